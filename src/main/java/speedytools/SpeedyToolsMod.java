@@ -5,6 +5,7 @@ import net.minecraftforge.fml.common.SidedProxy;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
 import speedytools.common.CommonProxy;
 
 
@@ -36,6 +37,11 @@ public class SpeedyToolsMod {
     proxy.postInit();
   }
 
+  @Mod.EventHandler
+  public void serverStarting(FMLServerStartingEvent event) {
+    proxy.serverStarting(event);
+  }
+
   /**
    * Prepend the name with the mod ID, suitable for textures.
    * @param name
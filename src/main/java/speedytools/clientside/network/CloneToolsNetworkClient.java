@@ -214,6 +214,11 @@ public class CloneToolsNetworkClient
     return serverPercentComplete;
   }
 
+  /** returns the server's estimate of the time until our action is complete; -1 if unknown */
+  public int getServerSecondsRemaining() {
+    return serverSecondsRemaining;
+  }
+
   public ServerStatus getServerStatus() {
     return serverStatus;
   }
@@ -229,6 +234,7 @@ public class CloneToolsNetworkClient
   {
     serverStatus = packet.getServerStatus();
     serverPercentComplete = packet.getCompletionPercentage();
+    serverSecondsRemaining = packet.getSecondsRemaining();
     nameOfPlayerBeingServiced = packet.getNameOfPlayerBeingServiced();
     lastServerStatusUpdateTime = System.nanoTime();
   }
@@ -413,6 +419,7 @@ public class CloneToolsNetworkClient
   private ClientStatus clientStatus;
   private ServerStatus serverStatus;
   private byte serverPercentComplete;
+  private int serverSecondsRemaining = -1;
   private IChatComponent nameOfPlayerBeingServiced = new ChatComponentText("");
 
   private ActionStatus lastActionStatus;
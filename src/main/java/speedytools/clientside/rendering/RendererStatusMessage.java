@@ -68,6 +68,8 @@ public class RendererStatusMessage implements RendererElement
     if (newMessageArrived) {  // don't start a new message until the old one has faded out
       if (animationState == AnimationState.NONE) {
         startMessageFadeIn(renderInfo.messageToDisplay, animationCounter);
+      } else if (renderInfo.replaceImmediately && animationState != AnimationState.FADE_OUT) {
+        currentlyDisplayedMessage = renderInfo.messageToDisplay;
       }
     } else if (renderInfo.messageToDisplay.isEmpty()) {
       if (animationState != AnimationState.NONE && animationState != AnimationState.FADE_OUT) {
@@ -166,6 +168,7 @@ public class RendererStatusMessage implements RendererElement
   public static class StatusMessageRenderInfo
   {
     public String messageToDisplay;   // empty for none
+    public boolean replaceImmediately; // if true, the message replaces the one being displayed without fading (eg a countdown)
   }
 
   private StatusMessageRenderInfoUpdateLink infoProvider;
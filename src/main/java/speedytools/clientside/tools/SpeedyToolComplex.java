@@ -1143,8 +1143,15 @@ public abstract class SpeedyToolComplex extends SpeedyToolComplexBase
     @Override
     public boolean refreshRenderInfo(RendererStatusMessage.StatusMessageRenderInfo infoToUpdate) {
       long timeMessageHasBeenDisplayed =  System.nanoTime() - errorMessageDisplayTimeStartNS;
+      final int MIN_SECONDS_REMAINING_TO_DISPLAY = 3;
+      ServerStatus serverStatus = cloneToolsNetworkClient.getServerStatus();
+      boolean serverIsPerformingOurTask = (serverStatus == ServerStatus.PERFORMING_YOUR_ACTION || serverStatus == ServerStatus.UNDOING_YOUR_ACTION);
+      infoToUpdate.replaceImmediately = false;
       if (timeMessageHasBeenDisplayed <= SpeedyToolsOptionsClient.getErrorMessageDisplayDurationNS()) {
         infoToUpdate.messageToDisplay = errorMessageBeingDisplayed;
+      } else if (serverIsPerformingOurTask && cloneToolsNetworkClient.getServerSecondsRemaining() >= MIN_SECONDS_REMAINING_TO_DISPLAY) {
+        infoToUpdate.messageToDisplay = "About " + cloneToolsNetworkClient.getServerSecondsRemaining() + " s remaining";
+        infoToUpdate.replaceImmediately = true;
       } else {
         infoToUpdate.messageToDisplay = "";
       }
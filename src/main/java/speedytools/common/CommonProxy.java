@@ -2,9 +2,11 @@ package speedytools.common;
 
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 import speedytools.common.blocks.RegistryForBlocks;
 import speedytools.common.items.RegistryForItems;
+import speedytools.serverside.CommandSpeedyToolsMetrics;
 import speedytools.serverside.ServerEventHandler;
 import speedytools.serverside.ServerSide;
 import speedytools.serverside.ServerTickHandler;
@@ -46,6 +48,14 @@ public abstract class CommonProxy {
     FMLCommonHandler.instance().bus().register(ServerSide.getPlayerTrackerRegistry());
   }
 
+  /**
+   * The server is about to start - register the server commands
+   */
+  public void serverStarting(FMLServerStartingEvent event)
+  {
+    event.registerServerCommand(new CommandSpeedyToolsMetrics());
+  }
+
   /**
    * Obtains the folder that world save backups should be stored in.
    * For Integrated Server, this is the saves folder
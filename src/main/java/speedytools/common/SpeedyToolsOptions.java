@@ -1,5 +1,7 @@
 package speedytools.common;
 
+import net.minecraftforge.fml.common.Loader;
+
 import java.io.File;
 
 /**
@@ -18,31 +20,109 @@ public class SpeedyToolsOptions
   // the maximum number of undo for the simple speedy tools
   public static int getMaxSimpleToolUndoCount() {return 5;}
 
+  // simple tool placements by the same player, next to each other and within this time of the first one, are merged into
+  //   a single undo.  0 = every placement is undone separately
+  public static int getSimpleToolUndoCoalesceMS() {return 0;}
+
   // the maximum number of undo for the complex speedy tools
   public static int getMaxComplexToolUndoCount() {return 5;}
 
+  // the (estimated) heap space the undo history may use on the server, for all players together.  0 = no limit
+  public static long getUndoHistoryMemoryBudgetBytes() {return 256L * 1024 * 1024;}
+
+  // the (estimated) heap space the undo history may use on the server for any one player.  0 = no limit
+  public static long getUndoHistoryMemoryPerPlayerBytes() {return 64L * 1024 * 1024;}
+
+  // which undos to make permanent first when the undo history is over budget: OLDEST_FIRST, LARGEST_FIRST or PLAYER_LRU
+  public static String getUndoHistoryEvictionPolicy() {return "OLDEST_FIRST";}
+
+  // if true - move undo layers which haven't been used for a while to compressed files in the world save folder,
+  //   reading them back when they are needed.  Players can then keep deeper undo histories without the heap cost
+  public static boolean getUndoSpillToDisk() {return true;}
+
+  // undo layers which haven't been used for this long are moved to disk
+  public static int getUndoSpillIdleTimeSeconds() {return 5 * 60;}
+
+  // once the undo history uses more than this fraction of its memory budget, the least recently used layers are moved to disk
+  public static double getUndoSpillMemoryFraction() {return 0.5;}
+
+  // how often to check for undo layers to move to disk
+  public static int getUndoStorageCheckPeriodInTicks() {return 20 * 5;}
+
+  // if true - record the undo history in a journal in each dimension's save folder, so that players can still undo
+  //   their changes after the server is restarted or crashes.  Off by default: every change to an undo layer is
+  //   written to disk again in full
+  public static boolean getUndoJournalEnabled() {return false;}
+
+  // how long the undo journal waits for more changes before flushing them to disk together
+  public static int getUndoJournalGroupCommitMS() {return 50;}
+
   // if true - enabled the in-game testing tools
   public static boolean getTesterToolsEnabled() { return DEBUG;}
 
-  // The length of maximum length of time per tick we will use for asynchronous tasks on the server
+  // The length of maximum length of time per tick we will use for asynchronous tasks on the server (all tasks combined;
+  //   the ServerTickScheduler will use less if the server is busy)
   public static long getMaxServerBusyTimeMS() {return 25;}
 
   // The length of maximum length of time per tick we will use for selection generation on the server
   public static long getMaxServerSelGenTimeMS() {return 25;}
 
+  // The maximum length of time per tick we will use for retiring culled undo layers on the server
+  public static long getMaxServerUndoRetirementTimeMS() {return 2;}
+
+  // The relative share of the per-tick time given to each scheduled subsystem when several have work waiting.  Retirement
+  //   is kept small because it can wait for idle time; it also gets any time left over by the others
+  public static double getSchedulerWeightActions() {return 1.0;}
+  public static double getSchedulerWeightSelections() {return 1.0;}
+  public static double getSchedulerWeightUndoRetirement() {return 0.1;}
+
+  // if true - when writing a fragment to the world, only send neighbour change notifications from the surface of the
+  //   fragment and from blocks which react to their neighbours (redstone, falling blocks, etc).  false = notify for every block
+  public static boolean getNotifyNeighboursOnBoundaryOnly() {return true;}
+
+  // if true - after writing a fragment to the world, only relight the columns which were written, spreading the light in
+  //   from the surface of the written voxels.  false = regenerate the height map and skylight of every chunk touched
+  public static boolean getIncrementalRelighting() {return true;}
+
+  // incremental relighting is skipped (the chunks are regenerated in full) if more than this fraction of the written
+  //   voxels are on the surface, eg for thin walls or scattered blocks
+  public static double getIncrementalRelightingMaxSurfaceFraction() {return 0.5;}
+
+  // if true - large simple tool placements of plain blocks (and air) are written in a batch like a fragment write, instead of
+  //   placing each block individually with its own neighbour updates, relighting and block change packet
+  public static boolean getBatchedSimplePlacement() {return true;}
+
+  // if true - send the blocks changed by a fragment write to clients as block / section deltas, coalesced over the whole action.
+  //   false = resend every chunk touched
+  public static boolean getDeltaChunkSync() {return true;}
+
+  // if true - do the parts of the asynchronous tasks which don't touch the world (orientation transforms, mask
+  //   generation, fragment comparison) on worker threads, leaving only the world changes for the server thread
+  public static boolean getOffThreadPreparation() {return true;}
+
+  // the maximum number of worker threads for off-thread preparation (never more than the number of processors - 1)
+  public static int getMaxPreparationThreads() {return 2;}
+
   // The packet size of the fragments to use when sending a Selection to/from the server
   public static int getSelectionPacketFragmentSize() {return 3000;}
 
-  // if true - logging of the network activity is active
-  public static boolean getNetworkLoggingActive() { return false;}  // doesn't work any more
+  // if true - the number and size of the packets sent to and received from each player are logged
+  public static boolean getNetworkLoggingActive() { return false;}
   public static File getNetworkLoggingDirectory()
   {
-    return null;
-//    if (Minecraft.getMinecraft() == null) return null;
-//    return Minecraft.getMinecraft().mcDataDir;
+    return new File(Loader.instance().getConfigDir().getParentFile(), "logs");
   }
   public static int getNetworkLoggingPeriodInTicks() {return 20 * 10;}
 
   public static String nameForSavesBackupFolder() { return "build-faster-backups";}
 
+  // the file in the world's save folder used to remember the measured stage timings of the asynchronous actions
+  public static String getStageTimingFileName() {return "speedytools-stagetimings.dat";}
+
+  // if true - collect OperationMetrics from startup.  Can also be switched on and off in-game with the metrics command
+  public static boolean getOperationMetricsEnabled() {return DEBUG;}
+
+  // how often to write the OperationMetrics to the log while they are enabled
+  public static int getOperationMetricsLogPeriodInTicks() {return 20 * 60 * 10;}
+
 }
@@ -1,7 +1,15 @@
 package speedytools.common.network;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.PacketBuffer;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraft.network.Packet;
+import speedytools.common.utilities.ErrorLog;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -9,30 +17,24 @@ import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
 * User: The Grey Ghost
 * Date: 3/08/2014
-* Used to profile the network traffic
-*
-* Need to modify the vanilla code to log to it, eg
-MemoryConnection::
-public void addToSendQueue(Packet par1Packet) {
-ServerSide.getNetworkTrafficMonitor().logPacket(NetworkTrafficMonitor.PacketLocation.OUTGOING, par1Packet);
-  // .. etc ..
-}
-public void processOrCachePacket(Packet par1Packet) {
-ServerSide.getNetworkTrafficMonitor().logPacket(NetworkTrafficMonitor.PacketLocation.INCOMING, par1Packet);
-}
-
+* Used to profile the network traffic: counts the number and total size of each type of packet sent and received.
+* Typical usage:
+* (1) monitorConnection() for each connection to be profiled, eg when a player logs in.  This adds a handler to the
+*     connection's netty pipeline which calls logPacket() for every packet, so the vanilla code doesn't need to be modified
+* (2) log() periodically to write the running totals to the log files
+* logPacket() may be called from the network threads.
 */
 public class NetworkTrafficMonitor
 {
-  static private final int MAX_PACKET_ID_PLUS_ONE = 256;
-  static private EnumMap<PacketLocation, int []> packetCount = new EnumMap<PacketLocation, int[]>(PacketLocation.class);
-  static private EnumMap<PacketLocation, int []> packetSize = new EnumMap<PacketLocation, int[]>(PacketLocation.class);
   private final Side whichSide;
   private  EnumMap<PacketLocation, FileWriter> logFiles = new EnumMap<PacketLocation, FileWriter>(PacketLocation.class);
+  private final EnumMap<PacketLocation, Map<String, PacketTally>> packetTallies = new EnumMap<PacketLocation, Map<String, PacketTally>>(PacketLocation.class);
 
   public enum PacketLocation {INCOMING, OUTGOING}
 
@@ -45,15 +47,7 @@ public class NetworkTrafficMonitor
         String filename = logfileStem + "-" + whichSide.toString() + "-" + packetLocation.toString() + ".log";
         FileWriter fileWriter = new FileWriter(logFileDirectory.resolve(filename).toString(), SHOULD_APPEND);
         logFiles.put(packetLocation, fileWriter);
-        fileWriter.write("Time, Count, Size");
-        for (int i = 0; i < MAX_PACKET_ID_PLUS_ONE; ++i) {
-          fileWriter.write("\t" + i);
-        }
-        fileWriter.write("\t");
-        for (int i = 0; i < MAX_PACKET_ID_PLUS_ONE; ++i) {
-          fileWriter.write("\t" + i);
-        }
-        fileWriter.write("\n");
+        fileWriter.write("Time\tPacket\tCount\tSize\n");
       }
     }
     resetTally();
@@ -61,17 +55,44 @@ public class NetworkTrafficMonitor
 
   public void resetTally()
   {
-    for (PacketLocation packetLocation : PacketLocation.values()) {
-      packetCount.put(packetLocation, new int[MAX_PACKET_ID_PLUS_ONE]);
-      packetSize.put(packetLocation, new int[MAX_PACKET_ID_PLUS_ONE]);
+    synchronized (packetTallies) {
+      for (PacketLocation packetLocation : PacketLocation.values()) {
+        packetTallies.put(packetLocation, new TreeMap<String, PacketTally>());
+      }
     }
   }
 
+  /**
+   * add the packet to the running totals for its type
+   */
   public void logPacket(PacketLocation packetLocation, Packet packet)
   {
-//    int packetID = packet.getPacketId();
-//    packetCount.get(packetLocation)[packetID]++;
-//    packetSize.get(packetLocation)[packetID] += packet.getPacketSize();
+    String packetName = packet.getClass().getSimpleName();
+    int packetSize = measurePacketSize(packet);
+    synchronized (packetTallies) {
+      Map<String, PacketTally> tallies = packetTallies.get(packetLocation);
+      PacketTally tally = tallies.get(packetName);
+      if (tally == null) {
+        tally = new PacketTally();
+        tallies.put(packetName, tally);
+      }
+      ++tally.count;
+      tally.totalSize += packetSize;
+    }
+  }
+
+  /**
+   * start logging all the packets sent and received on the given connection (eg a player's NetHandlerPlayServer.netManager)
+   */
+  public void monitorConnection(NetworkManager networkManager)
+  {
+    ChannelPipeline pipeline = networkManager.channel().pipeline();
+    if (pipeline.get(MONITOR_HANDLER_NAME) != null) return;
+    try {
+      pipeline.addBefore(VANILLA_PACKET_HANDLER_NAME, MONITOR_HANDLER_NAME, new PacketLoggingHandler());
+    } catch (Exception e) {   // eg the connection has already been closed
+      ErrorLog.defaultLog().info("Couldn't monitor the network connection because:" + e);
+    }
   }
 
   public void log() throws IOException
@@ -83,15 +104,14 @@ public class NetworkTrafficMonitor
     for (PacketLocation packetLocation : PacketLocation.values()) {
       FileWriter fileWriter = logFiles.get(packetLocation);
       if (fileWriter != null) {
-        fileWriter.write(nowAsString);
-        for (int i = 0; i < MAX_PACKET_ID_PLUS_ONE; ++i) {
-          fileWriter.write("\t" + packetCount.get(packetLocation)[i]);
+        StringBuilder lines = new StringBuilder();
+        synchronized (packetTallies) {
+          for (Map.Entry<String, PacketTally> entry : packetTallies.get(packetLocation).entrySet()) {
+            lines.append(nowAsString).append("\t").append(entry.getKey()).append("\t").append(entry.getValue().count)
+                 .append("\t").append(entry.getValue().totalSize).append("\n");
+          }
         }
-        fileWriter.write("\t");
-        for (int i = 0; i < MAX_PACKET_ID_PLUS_ONE; ++i) {
-          fileWriter.write("\t" + packetSize.get(packetLocation)[i]);
-        }
-        fileWriter.write("\n");
+        fileWriter.write(lines.toString());
         fileWriter.flush();
       }
     }
@@ -113,6 +133,50 @@ public class NetworkTrafficMonitor
     resetTally();
   }
 
+  // the size of the packet's data when it is sent, or 0 if it can't be measured
+  private static int measurePacketSize(Packet packet)
+  {
+    try {
+      PacketBuffer packetBuffer = new PacketBuffer(Unpooled.buffer());
+      packet.writePacketData(packetBuffer);
+      return packetBuffer.readableBytes();
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  // sits just before the vanilla packet handler, so it sees the decoded incoming packets and the outgoing packets
+  //   before they are encoded
+  private class PacketLoggingHandler extends ChannelDuplexHandler
+  {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+      if (msg instanceof Packet) {
+        logPacket(PacketLocation.INCOMING, (Packet)msg);
+      }
+      super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+      if (msg instanceof Packet) {
+        logPacket(PacketLocation.OUTGOING, (Packet)msg);
+      }
+      super.write(ctx, msg, promise);
+    }
+  }
+
+  private static class PacketTally
+  {
+    public int count;
+    public long totalSize;
+  }
+
+  private static final String VANILLA_PACKET_HANDLER_NAME = "packet_handler";
+  private static final String MONITOR_HANDLER_NAME = "speedytools:traffic_monitor";
+
   // logs values but doesn't write to a log file
   public static class NetworkTrafficMonitorNULL extends NetworkTrafficMonitor
   {
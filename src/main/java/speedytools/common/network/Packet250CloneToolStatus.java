@@ -19,22 +19,32 @@ public class Packet250CloneToolStatus  extends Packet250Base
 {
   public static Packet250CloneToolStatus serverStatusChange(ServerStatus newStatus, byte newPercentage, IChatComponent newNameOfPlayerBeingServiced)
   {
-    return new Packet250CloneToolStatus(ClientStatus.UNUSED, newStatus, newPercentage, newNameOfPlayerBeingServiced);
+    return serverStatusChange(newStatus, newPercentage, -1, newNameOfPlayerBeingServiced);
+  }
+
+  /**
+   * @param newSecondsRemaining the estimated time until the server's action is complete; -1 if unknown
+   */
+  public static Packet250CloneToolStatus serverStatusChange(ServerStatus newStatus, byte newPercentage, int newSecondsRemaining,
+                                                            IChatComponent newNameOfPlayerBeingServiced)
+  {
+    return new Packet250CloneToolStatus(ClientStatus.UNUSED, newStatus, newPercentage, newSecondsRemaining, newNameOfPlayerBeingServiced);
   }
 
   public static Packet250CloneToolStatus clientStatusChange(ClientStatus newStatus)
   {
-    return new Packet250CloneToolStatus(newStatus, ServerStatus.UNUSED, (byte)100, new ChatComponentText(""));
+    return new Packet250CloneToolStatus(newStatus, ServerStatus.UNUSED, (byte)100, -1, new ChatComponentText(""));
   }
 
   private Packet250CloneToolStatus(ClientStatus newClientStatus, ServerStatus newServerStatus,
-                                   byte newPercentage, IChatComponent newNameOfPlayerBeingServiced
+                                   byte newPercentage, int newSecondsRemaining, IChatComponent newNameOfPlayerBeingServiced
   )
   {
     super();
     clientStatus = newClientStatus;
     serverStatus = newServerStatus;
     completionPercentage = newPercentage;
+    secondsRemaining = (short)Math.max(-1, Math.min(Short.MAX_VALUE, newSecondsRemaining));
     nameOfPlayerBeingServiced = newNameOfPlayerBeingServiced;
     packetIsValid = true;
   }
@@ -68,6 +78,12 @@ public class Packet250CloneToolStatus  extends Packet250Base
     assert (serverStatus != null);
     return completionPercentage;
   }
+
+  /** returns the estimated time until the server's action is complete; -1 if unknown */
+  public int getSecondsRemaining() {
+    assert (serverStatus != null);
+    return secondsRemaining;
+  }
   public IChatComponent getNameOfPlayerBeingServiced() {
     assert (serverStatus != null);
     return nameOfPlayerBeingServiced;
@@ -96,6 +112,7 @@ public class Packet250CloneToolStatus  extends Packet250Base
       clientStatus = ClientStatus.byteToCommand(buf.readByte());
       serverStatus = ServerStatus.byteToCommand(buf.readByte());
       completionPercentage = buf.readByte();
+      secondsRemaining = buf.readShort();
       nameOfPlayerBeingServiced = new ChatComponentText(ByteBufUtils.readUTF8String(buf));
     } catch (IndexOutOfBoundsException ioe) {
       ErrorLog.defaultLog().info("Exception while reading Packet250CloneToolStatus: " + ioe);
@@ -111,6 +128,7 @@ public class Packet250CloneToolStatus  extends Packet250Base
     buf.writeByte(clientStatus.getStatusID());
     buf.writeByte(serverStatus.getStatusID());
     buf.writeByte(completionPercentage);
+    buf.writeShort(secondsRemaining);
     ByteBufUtils.writeUTF8String(buf, nameOfPlayerBeingServiced == null ? "" : nameOfPlayerBeingServiced.getUnformattedText());
   }
 
@@ -200,6 +218,7 @@ public class Packet250CloneToolStatus  extends Packet250Base
   private ClientStatus clientStatus;
   private ServerStatus serverStatus;
   private byte completionPercentage = 100;
+  private short secondsRemaining = -1;
   private IChatComponent nameOfPlayerBeingServiced;
 
   private static PacketHandlerMethod serverSideHandler;
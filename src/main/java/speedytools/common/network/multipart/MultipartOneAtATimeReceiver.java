@@ -3,6 +3,7 @@ package speedytools.common.network.multipart;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 import speedytools.common.network.PacketSender;
 import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.OperationMetrics;
 
 import java.util.TreeSet;
 
@@ -140,6 +141,7 @@ public class MultipartOneAtATimeReceiver
     packetTransmissionInfo.linkage = newLinkage;
     packetTransmissionInfo.transmissionState = PacketTransmissionInfo.TransmissionState.RECEIVING;
     packetTransmissionInfo.timeOfLastAction = System.nanoTime();
+    packetTransmissionInfo.timeOfStart = packetTransmissionInfo.timeOfLastAction;
     assert (packetBeingReceived == null);
     packetBeingReceived = packetTransmissionInfo;
     boolean success = doProcessIncoming(packetTransmissionInfo, packet);
@@ -159,6 +161,10 @@ public class MultipartOneAtATimeReceiver
         packetTransmissionInfo.linkage.packetAborted();
       } else {
         completedPacketIDs.add(uniqueID);
+        if (OperationMetrics.defaultMetrics().isEnabled()) {
+          OperationMetrics.defaultMetrics().recordLatency("MultipartOneAtATimeReceiver", packetTransmissionInfo.packet.getClass().getSimpleName(),
+                                                          System.nanoTime() - packetTransmissionInfo.timeOfStart);
+        }
         packetTransmissionInfo.linkage.packetCompleted();
         Packet250MultipartSegmentAcknowledge ackPacket = packetBeingReceived.packet.getAcknowledgementPacket();
         packetSender.sendPacket(ackPacket);
@@ -239,6 +245,7 @@ public class MultipartOneAtATimeReceiver
     public MultipartPacket packet;
     public PacketLinkage linkage;
     public long timeOfLastAction;
+    public long timeOfStart;
     public TransmissionState transmissionState;
     public enum TransmissionState {RECEIVING, SENDING_INITIAL_SEGMENTS, SENDER_WAITING_FOR_ACK, WAITING_FOR_FIRST_RESEND, RESENDING};
   }
@@ -6,6 +6,7 @@ import speedytools.common.network.Packet250Types;
 import speedytools.common.network.PacketHandlerRegistry;
 import speedytools.common.network.PacketSender;
 import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.OperationMetrics;
 
 import java.util.Map;
 import java.util.TreeMap;
@@ -99,6 +100,7 @@ public class MultipartOneAtATimeSender
     packetTransmissionInfo.linkage = linkage;
     packetTransmissionInfo.transmissionState = PacketTransmissionInfo.TransmissionState.SENDING_INITIAL_SEGMENTS;
     packetTransmissionInfo.timeOfLastAction = 0;
+    packetTransmissionInfo.timeOfStart = System.nanoTime();
     assert packetBeingSent == null;
     packetBeingSent = packetTransmissionInfo;
     doTransmission(packetTransmissionInfo);
@@ -263,6 +265,10 @@ public class MultipartOneAtATimeSender
         packetBeingSent.linkage.packetAborted();
         abortedPackets.add(packetTransmissionInfo.packet.getUniqueID());
       } else {
+        if (OperationMetrics.defaultMetrics().isEnabled()) {
+          OperationMetrics.defaultMetrics().recordLatency("MultipartOneAtATimeSender", packetTransmissionInfo.packet.getClass().getSimpleName(),
+                                                          System.nanoTime() - packetTransmissionInfo.timeOfStart);
+        }
         packetBeingSent.linkage.packetCompleted();
       }
       packetBeingSent = null;
@@ -320,6 +326,7 @@ public class MultipartOneAtATimeSender
     public MultipartPacket packet;
     public PacketLinkage linkage;
     public long timeOfLastAction;
+    public long timeOfStart;
     public TransmissionState transmissionState;
     public enum TransmissionState {RECEIVING, SENDING_INITIAL_SEGMENTS, SENDER_WAITING_FOR_ACK, WAITING_FOR_FIRST_RESEND, RESENDING};
   }
@@ -2,6 +2,7 @@ package speedytools.common.selections;
 
 import net.minecraftforge.fml.common.FMLLog;
 import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.HeapSizeEstimate;
 import speedytools.common.utilities.Pair;
 import speedytools.common.utilities.QuadOrientation;
 
@@ -291,6 +292,44 @@ public class VoxelSelection
     return copy;
   }
 
+  /** For the given VoxelSelection, make an "InnerSurfaceMask" copy which holds only the set voxels on the surface of the selection
+   *  i.e. the inverse of the BorderMask: for a given [x,y,z]:
+   *  1) if the voxel is clear, the InnerSurfaceMask voxel is clear
+   *  2) if all of the six adjacent voxels are set, the InnerSurfaceMask voxel is clear
+   *  3) otherwise, the InnerSurfaceMask voxel is set.
+   *  Voxels on the edge of the selection's bounding box are always on the surface.
+   * @return
+   */
+  public VoxelSelection generateInnerSurfaceMask()
+  {
+    VoxelSelection copy = new VoxelSelection(xSize, ySize, zSize);
+    addInnerSurfaceVoxels(copy, 0, xSize);
+    return copy;
+  }
+
+  /**
+   * adds the inner surface voxels (see generateInnerSurfaceMask) within a range of x to the given mask, so that a large
+   *   mask can be generated a slice at a time
+   * @param surfaceMask the mask to add to; must be the same size as this
+   * @param xMin the first x to check
+   * @param xMaxPlusOne the last x to check, plus one
+   */
+  public void addInnerSurfaceVoxels(VoxelSelection surfaceMask, int xMin, int xMaxPlusOne)
+  {
+    assert (surfaceMask.xSize == xSize && surfaceMask.ySize == ySize && surfaceMask.zSize == zSize);
+    for (int x = Math.max(0, xMin); x < Math.min(xSize, xMaxPlusOne); ++x) {
+      for (int y = 0; y < ySize; ++y) {
+        for (int z = 0; z < zSize; ++z) {
+          if (getVoxel(x, y, z)) {
+            if (!getVoxel(x-1, y, z) || !getVoxel(x+1, y, z) || !getVoxel(x, y-1, z) || !getVoxel(x, y+1, z) || !getVoxel(x, y, z-1) || !getVoxel(x, y, z+1)) {
+              surfaceMask.setVoxel(x, y, z);
+            }
+          }
+        }
+      }
+    }
+  }
+
   /**
    * clear all voxels outside of the given ranges (inclusive)
    * @param yMin
@@ -349,6 +388,12 @@ public class VoxelSelection
   {
     return voxels.cardinality();
   }
+
+  /** estimates the heap space used by this selection, for memory budgeting */
+  public long getRetainedBytes()
+  {
+    return 2 * HeapSizeEstimate.OBJECT_HEADER + HeapSizeEstimate.arrayBytes(voxels.size() / 64, 8);
+  }
   protected int xSize;
   protected int ySize;
   protected int zSize;
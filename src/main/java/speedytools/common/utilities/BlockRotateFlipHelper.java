@@ -5,6 +5,7 @@ import net.minecraft.block.properties.PropertyDirection;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.util.EnumFacing;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -159,9 +160,11 @@ public final class BlockRotateFlipHelper
     return hasPropertyDirection;
   }
 
-  private static Map<Block, PropertyDirection> propertyDirectionCache = new HashMap<Block, PropertyDirection>();
+  // the caches are synchronised because fragment writes are prepared on worker threads (see PreparedFragmentWrite)
+  private static Map<Block, PropertyDirection> propertyDirectionCache =
+          Collections.synchronizedMap(new HashMap<Block, PropertyDirection>());
   // cache of the direction property for each block; null = block has none
-  private static Map<Integer, Boolean> hasPropertyDirectionCache = new HashMap<Integer, Boolean>();
+  private static Map<Integer, Boolean> hasPropertyDirectionCache = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
 
 }
 
@@ -0,0 +1,64 @@
+package speedytools.common.utilities;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagIntArray;
+
+/**
+ * Rough estimates of the heap space used by the objects which make up the undo history, for memory budgeting.
+ * The estimates assume a 64 bit JVM without compressed references; they are meant to be in the right ballpark, not exact.
+ * Usage:
+ * (1) add up the estimates for the parts of a structure, eg HASHMAP_BASE + entries * HASHMAP_ENTRY_BOXED_INTEGERS
+ * (2) estimateNBTBytes() for NBT data such as TileEntities
+ */
+public class HeapSizeEstimate
+{
+  public static final long OBJECT_HEADER = 16;
+  public static final long ARRAY_HEADER = 16;
+  public static final long REFERENCE = 8;
+  public static final long HASHMAP_BASE = 64;                        // the map itself plus an empty table
+  public static final long HASHMAP_ENTRY = 32 + REFERENCE * 2;        // the entry plus its share of the table (load factor 0.75)
+  public static final long HASHMAP_ENTRY_BOXED_INTEGERS = HASHMAP_ENTRY + 2 * 16;   // key and value are Integers
+
+  /** the size of an array of the given number of elements of the given size, rounded up to 8 bytes */
+  public static long arrayBytes(long elementCount, long bytesPerElement)
+  {
+    return alignTo8(ARRAY_HEADER + elementCount * bytesPerElement);
+  }
+
+  /**
+   * estimate the size of an NBT tag and everything it contains
+   * @param tag may be null
+   * @return the estimated number of bytes
+   */
+  public static long estimateNBTBytes(NBTBase tag)
+  {
+    if (tag == null) return 0;
+    if (tag instanceof NBTTagCompound) {
+      NBTTagCompound compound = (NBTTagCompound)tag;
+      long bytes = OBJECT_HEADER + HASHMAP_BASE;
+      for (String key : compound.getKeySet()) {
+        bytes += HASHMAP_ENTRY + stringBytes(key) + estimateNBTBytes(compound.getTag(key));
+      }
+      return bytes;
+    }
+    if (tag instanceof NBTTagByteArray) {
+      return OBJECT_HEADER + arrayBytes(((NBTTagByteArray)tag).getByteArray().length, 1);
+    }
+    if (tag instanceof NBTTagIntArray) {
+      return OBJECT_HEADER + arrayBytes(((NBTTagIntArray)tag).getIntArray().length, 4);
+    }
+    return OBJECT_HEADER + stringBytes(tag.toString());   // lists and primitives: roughly in proportion to their text
+  }
+
+  public static long stringBytes(String string)
+  {
+    return OBJECT_HEADER + arrayBytes(string.length(), 2);
+  }
+
+  private static long alignTo8(long bytes)
+  {
+    return (bytes + 7) & ~7L;
+  }
+}
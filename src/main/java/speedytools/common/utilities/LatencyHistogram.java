@@ -0,0 +1,103 @@
+package speedytools.common.utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (or any other non-negative values), with logarithmically-sized buckets in the same style as
+ *   HdrHistogram: each power of two is split into SUB_BUCKET_COUNT equal buckets, so that any recorded value is known to
+ *   within 1/SUB_BUCKET_COUNT (12.5%) regardless of its magnitude.  Values 0 - 7 are recorded exactly.
+ * Recording is lock-free and doesn't allocate, so a histogram can be updated from several threads at once.  The
+ *   statistics may be slightly inconsistent with each other if they are read while values are being recorded.
+ */
+public class LatencyHistogram
+{
+  public LatencyHistogram()
+  {
+    bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+  }
+
+  /** record a value; negative values are recorded as 0 */
+  public void recordValue(long value)
+  {
+    if (value < 0) value = 0;
+    bucketCounts.incrementAndGet(bucketIndex(value));
+    totalCount.incrementAndGet();
+    totalOfValues.addAndGet(value);
+    long previousMax = maxValue.get();
+    while (value > previousMax && !maxValue.compareAndSet(previousMax, value)) {
+      previousMax = maxValue.get();
+    }
+  }
+
+  public long getTotalCount() {return totalCount.get();}
+
+  public long getMaxValue() {return maxValue.get();}
+
+  /** returns the mean of all the values recorded, or 0 if none */
+  public double getMean()
+  {
+    long count = totalCount.get();
+    return (count == 0) ? 0 : totalOfValues.get() / (double)count;
+  }
+
+  /**
+   * returns the value at the given percentile, i.e. the value which the given percentage of the recorded values are
+   *   less than or equal to.  The value returned is the highest value in the bucket, capped at the maximum recorded.
+   * @param percentile 0.0 - 100.0
+   * @return the value, or 0 if no values have been recorded
+   */
+  public long getValueAtPercentile(double percentile)
+  {
+    long count = totalCount.get();
+    if (count == 0) return 0;
+    long countAtPercentile = Math.max(1, (long)Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+    long cumulativeCount = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      cumulativeCount += bucketCounts.get(i);
+      if (cumulativeCount >= countAtPercentile) {
+        return Math.min(highestValueInBucket(i), maxValue.get());
+      }
+    }
+    return maxValue.get();
+  }
+
+  /** clear all the recorded values */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      bucketCounts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalOfValues.set(0);
+    maxValue.set(0);
+  }
+
+  // eg with 8 sub-buckets: 0 - 7 map to buckets 0 - 7, 8 - 15 to 8 - 15, 16 - 31 to 16 - 23 (two values per bucket), etc
+  private static int bucketIndex(long value)
+  {
+    if (value < SUB_BUCKET_COUNT) return (int)value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long highestValueInBucket(int index)
+  {
+    if (index < SUB_BUCKET_COUNT) return index;
+    int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    int subBucket = index % SUB_BUCKET_COUNT;
+    int shift = magnitude - SUB_BUCKET_BITS;
+    long lowestValue = (long)(SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowestValue + (1L << shift) - 1;
+  }
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray bucketCounts;
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalOfValues = new AtomicLong();
+  private final AtomicLong maxValue = new AtomicLong();
+}
@@ -0,0 +1,151 @@
+package speedytools.common.utilities;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects performance metrics for the asynchronous world operations:
+ * 1) a LatencyHistogram for each stage of each operation (eg WorldFragment.Write / WRITE_BLOCKS), in ns
+ * 2) a set of counters (voxels processed, chunks touched, etc)
+ * Metrics are only collected while enabled.  Callers should check isEnabled() before doing any work to gather a
+ *   measurement, so that the instrumentation costs nothing more than that check when it is disabled.
+ * Typical usage:
+ * (1) if (metrics.isEnabled()) { ... metrics.recordLatency("WorldFragment.Write", "WRITE_BLOCKS", durationNS); }
+ * (2) getReport() for a human-readable summary
+ */
+public class OperationMetrics
+{
+  public static OperationMetrics defaultMetrics() {return defaultMetrics;}
+
+  public OperationMetrics()
+  {
+    counters = new AtomicLong[Counter.values().length];
+    for (int i = 0; i < counters.length; ++i) {
+      counters[i] = new AtomicLong();
+    }
+    threadMXBean = ManagementFactory.getThreadMXBean();
+    allocatedBytesMethod = findAllocatedBytesMethod(threadMXBean);
+  }
+
+  public enum Counter {VOXELS_PROCESSED, CHUNKS_TOUCHED, BYTES_ALLOCATED, TICK_OVERRUNS, UNDO_VOXELS_UNCHANGED}
+
+  public boolean isEnabled() {return enabled;}
+
+  public void setEnabled(boolean newEnabled) {enabled = newEnabled;}
+
+  /**
+   * record the duration of one stage of an operation
+   * @param operationName eg WorldFragment.Write
+   * @param stageName eg WRITE_BLOCKS
+   * @param durationNS
+   */
+  public void recordLatency(String operationName, String stageName, long durationNS)
+  {
+    String key = operationName + STAGE_SEPARATOR + stageName;
+    LatencyHistogram histogram = histograms.get(key);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(key, newHistogram);
+      if (histogram == null) histogram = newHistogram;
+    }
+    histogram.recordValue(durationNS);
+  }
+
+  public void addToCounter(Counter counter, long amount)
+  {
+    counters[counter.ordinal()].addAndGet(amount);
+  }
+
+  public long getCounter(Counter counter)
+  {
+    return counters[counter.ordinal()].get();
+  }
+
+  /** returns the histogram for the given stage, or null if nothing has been recorded for it */
+  public LatencyHistogram getHistogram(String operationName, String stageName)
+  {
+    return histograms.get(operationName + STAGE_SEPARATOR + stageName);
+  }
+
+  /** clear all histograms and counters */
+  public void reset()
+  {
+    histograms.clear();
+    for (AtomicLong counter : counters) {
+      counter.set(0);
+    }
+  }
+
+  /**
+   * returns the number of bytes allocated so far by the current thread, if the JVM supports measuring it
+   * @return the number of bytes, or -1 if not supported
+   */
+  public long getCurrentThreadAllocatedBytes()
+  {
+    if (allocatedBytesMethod == null) return -1;
+    try {
+      return (Long)allocatedBytesMethod.invoke(threadMXBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * returns a summary of the metrics, one line per histogram, sorted by name, followed by the counters
+   */
+  public List<String> getReport()
+  {
+    List<String> report = new ArrayList<String>();
+    Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(histograms);
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      report.add(String.format("%s: n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+              entry.getKey(), histogram.getTotalCount(), histogram.getMean() / NS_PER_MS,
+              histogram.getValueAtPercentile(50) / NS_PER_MS, histogram.getValueAtPercentile(90) / NS_PER_MS,
+              histogram.getValueAtPercentile(99) / NS_PER_MS, histogram.getMaxValue() / NS_PER_MS));
+    }
+    StringBuilder counterLine = new StringBuilder();
+    for (Counter counter : Counter.values()) {
+      if (counterLine.length() > 0) counterLine.append(", ");
+      counterLine.append(counter.name().toLowerCase()).append("=").append(getCounter(counter));
+    }
+    report.add(counterLine.toString());
+    return report;
+  }
+
+  // The per-thread allocation count is an extension (com.sun.management.ThreadMXBean) which not every JVM provides, so it
+  //   is looked up by reflection instead of being linked directly.
+  // returns the getThreadAllocatedBytes(long threadID) method, or null if the JVM doesn't support it or it is switched off
+  private static Method findAllocatedBytesMethod(ThreadMXBean threadMXBean)
+  {
+    try {
+      Class<?> extendedMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (!extendedMXBeanClass.isInstance(threadMXBean)) return null;
+      Method isSupported = extendedMXBeanClass.getMethod("isThreadAllocatedMemorySupported");
+      Method isEnabled = extendedMXBeanClass.getMethod("isThreadAllocatedMemoryEnabled");
+      if (!(Boolean)isSupported.invoke(threadMXBean) || !(Boolean)isEnabled.invoke(threadMXBean)) return null;
+      return extendedMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static final String STAGE_SEPARATOR = " / ";
+  private static final double NS_PER_MS = 1000.0 * 1000.0;
+
+  private static OperationMetrics defaultMetrics = new OperationMetrics();
+
+  private volatile boolean enabled = false;
+  private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+  private final AtomicLong [] counters;
+  private final ThreadMXBean threadMXBean;
+  private final Method allocatedBytesMethod;   // null if allocation can't be measured
+}
@@ -0,0 +1,69 @@
+package speedytools.serverside;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.ChatComponentText;
+import speedytools.common.utilities.OperationMetrics;
+
+import java.util.List;
+
+/**
+ * Admin command to inspect the OperationMetrics:
+ * /speedytoolsmetrics [show] - show the latency histograms and counters
+ * /speedytoolsmetrics on | off - start or stop collecting metrics
+ * /speedytoolsmetrics reset - clear all the metrics collected so far
+ */
+public class CommandSpeedyToolsMetrics extends CommandBase
+{
+  @Override
+  public String getCommandName() {
+    return "speedytoolsmetrics";
+  }
+
+  @Override
+  public String getCommandUsage(ICommandSender sender) {
+    return "/speedytoolsmetrics [show|on|off|reset]";
+  }
+
+  @Override
+  public int getRequiredPermissionLevel() {
+    return 2;
+  }
+
+  @Override
+  public void processCommand(ICommandSender sender, String[] args) throws CommandException
+  {
+    OperationMetrics metrics = OperationMetrics.defaultMetrics();
+    String subCommand = (args.length == 0) ? "show" : args[0];
+    if (args.length > 1) throw new WrongUsageException(getCommandUsage(sender));
+
+    if (subCommand.equals("show")) {
+      if (!metrics.isEnabled()) {
+        sender.addChatMessage(new ChatComponentText("Metrics are not being collected; use /speedytoolsmetrics on"));
+      }
+      for (String line : metrics.getReport()) {
+        sender.addChatMessage(new ChatComponentText(line));
+      }
+    } else if (subCommand.equals("on")) {
+      metrics.setEnabled(true);
+      sender.addChatMessage(new ChatComponentText("Metrics collection started"));
+    } else if (subCommand.equals("off")) {
+      metrics.setEnabled(false);
+      sender.addChatMessage(new ChatComponentText("Metrics collection stopped"));
+    } else if (subCommand.equals("reset")) {
+      metrics.reset();
+      sender.addChatMessage(new ChatComponentText("Metrics cleared"));
+    } else {
+      throw new WrongUsageException(getCommandUsage(sender));
+    }
+  }
+
+  @Override
+  public List addTabCompletionOptions(ICommandSender sender, String[] args, BlockPos pos)
+  {
+    return (args.length == 1) ? getListOfStringsMatchingLastWord(args, "show", "on", "off", "reset") : null;
+  }
+}
@@ -4,6 +4,7 @@ import net.minecraft.world.WorldServer;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import speedytools.serverside.actions.SpeedyToolServerActions;
+import speedytools.serverside.worldmanipulation.StageTimingModel;
 
 /**
 Contains the custom Forge Event Handlers relevant to the Server
@@ -22,5 +23,20 @@ public class ServerEventHandler
   {
     if (!(event.world instanceof WorldServer)) return;
     SpeedyToolServerActions.worldUnloadEvent(event.world);
+    if (event.world.provider.getDimensionId() == 0) {   // the stage timings are shared by all the dimensions
+      StageTimingModel.removeInstance(event.world);
+    }
+  }
+
+  @SubscribeEvent
+  public void worldSave(WorldEvent.Save event)
+  {
+    if (!(event.world instanceof WorldServer)) return;
+    if (ServerSide.getWorldHistory() != null) {
+      ServerSide.getWorldHistory().worldSaved((WorldServer)event.world);
+    }
+    if (event.world.provider.getDimensionId() == 0) {
+      StageTimingModel.saveAll();
+    }
   }
 }
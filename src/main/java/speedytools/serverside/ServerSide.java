@@ -1,14 +1,21 @@
 package speedytools.serverside;
 
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraftforge.fml.relauncher.Side;
 import speedytools.common.SpeedyToolsOptions;
 import speedytools.common.network.NetworkTrafficMonitor;
 import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.OperationMetrics;
 import speedytools.serverside.actions.SpeedyToolServerActions;
 import speedytools.serverside.ingametester.InGameStatusSimulator;
 import speedytools.serverside.ingametester.InGameTester;
 import speedytools.serverside.network.PacketHandlerRegistryServer;
 import speedytools.serverside.network.SpeedyToolsNetworkServer;
+import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.ClientChunkSynchroniser;
+import speedytools.serverside.worldmanipulation.PreparationPool;
+import speedytools.serverside.worldmanipulation.StageTimingModel;
 import speedytools.serverside.worldmanipulation.WorldHistory;
 
 import java.io.File;
@@ -27,10 +34,22 @@ public class ServerSide
     packetHandlerRegistryServer = new PacketHandlerRegistryServer() ;
     serverVoxelSelections = new ServerVoxelSelections(packetHandlerRegistryServer, playerTrackerRegistry);
     worldHistory = new WorldHistory(SpeedyToolsOptions.getMaxComplexToolUndoCount(), SpeedyToolsOptions.getMaxSimpleToolUndoCount());
+    WorldHistory.EvictionPolicy evictionPolicy = WorldHistory.EvictionPolicy.OLDEST_FIRST;
+    try {
+      evictionPolicy = WorldHistory.EvictionPolicy.valueOf(SpeedyToolsOptions.getUndoHistoryEvictionPolicy());
+    } catch (IllegalArgumentException iae) {
+      ErrorLog.defaultLog().info("Unknown undo history eviction policy:" + SpeedyToolsOptions.getUndoHistoryEvictionPolicy() + "; using " + evictionPolicy);
+    }
+    worldHistory.setMemoryBudget(SpeedyToolsOptions.getUndoHistoryMemoryBudgetBytes(), SpeedyToolsOptions.getUndoHistoryMemoryPerPlayerBytes(), evictionPolicy);
+    final long NS_PER_MS = 1000L * 1000L;
+    worldHistory.setJournalEnabled(SpeedyToolsOptions.getUndoJournalEnabled(), SpeedyToolsOptions.getUndoJournalGroupCommitMS() * NS_PER_MS);
+    worldHistory.setSimpleUndoCoalescing(SpeedyToolsOptions.getSimpleToolUndoCoalesceMS() * NS_PER_MS);
     speedyToolServerActions = new SpeedyToolServerActions(serverVoxelSelections, worldHistory);
     speedyToolsNetworkServer = new SpeedyToolsNetworkServer(packetHandlerRegistryServer, speedyToolServerActions, playerTrackerRegistry);
     inGameTester = new InGameTester(packetHandlerRegistryServer);
     inGameStatusSimulator = new InGameStatusSimulator();
+    registerScheduledSubsystems();
+    OperationMetrics.defaultMetrics().setEnabled(SpeedyToolsOptions.getOperationMetricsEnabled());
 
     String NETWORK_LOG_FILENAME_STEM = "NetworkMonitor";
     if (SpeedyToolsOptions.getNetworkLoggingActive()) {
@@ -38,6 +57,7 @@ public class ServerSide
         File loggingDirectory = SpeedyToolsOptions.getNetworkLoggingDirectory();
         Path loggingPath = loggingDirectory == null ? null : loggingDirectory.toPath();
         networkTrafficMonitor = new NetworkTrafficMonitor(Side.SERVER, loggingPath, NETWORK_LOG_FILENAME_STEM);
+        playerTrackerRegistry.registerHandler(new NetworkMonitorPlayerTracker());
       } catch (IOException ioe) {
         ErrorLog.defaultLog().info("Couldn't create a NetworkTrafficMonitor because:" + ioe);
         networkTrafficMonitor = new NetworkTrafficMonitor.NetworkTrafficMonitorNULL();
@@ -58,6 +78,11 @@ public class ServerSide
     speedyToolServerActions = null;
     speedyToolsNetworkServer = null;
     serverVoxelSelections = null;
+    StageTimingModel.saveAll();
+    if (worldHistory != null) {
+      worldHistory.closeJournals();
+    }
+    PreparationPool.shutdownDefaultPool();
     try {
       networkTrafficMonitor.closeAll();
     } catch (IOException ioe) {
@@ -73,14 +98,23 @@ public class ServerSide
   {
     ++globalTickCount;
 
+    serverTickScheduler.tick();
     getSpeedyToolServerActions().tick();
+    ClientChunkSynchroniser.tickAll(getSpeedyToolServerActions().isAsynchronousActionInProgress());
     getSpeedyToolsNetworkServer().tick();
-    long maxTimeForSelectionGeneration = SpeedyToolsOptions.getMaxServerSelGenTimeMS();
-    if (getSpeedyToolServerActions().isAsynchronousActionInProgress()) {  // no selection generation if asynch task underway
-      maxTimeForSelectionGeneration = 0;
+    getServerVoxelSelections().tick();
+
+    if (SpeedyToolsOptions.getUndoSpillToDisk() && globalTickCount % SpeedyToolsOptions.getUndoStorageCheckPeriodInTicks() == 0) {
+      final long NS_PER_SECOND = 1000L * 1000L * 1000L;
+      long spillThresholdBytes = (long)(SpeedyToolsOptions.getUndoHistoryMemoryBudgetBytes() * SpeedyToolsOptions.getUndoSpillMemoryFraction());
+      worldHistory.manageUndoStorage(SpeedyToolsOptions.getUndoSpillIdleTimeSeconds() * NS_PER_SECOND, spillThresholdBytes);
+    }
+
+    if (globalTickCount % SpeedyToolsOptions.getOperationMetricsLogPeriodInTicks() == 0 && OperationMetrics.defaultMetrics().isEnabled()) {
+      for (String line : OperationMetrics.defaultMetrics().getReport()) {
+        ErrorLog.defaultLog().info("OperationMetrics: " + line);
+      }
     }
-    final long NS_PER_MS = 1000 * 1000;
-    getServerVoxelSelections().tick(maxTimeForSelectionGeneration * NS_PER_MS);
 
     if (globalTickCount % SpeedyToolsOptions.getNetworkLoggingPeriodInTicks() == 0) {
       try {
@@ -93,6 +127,64 @@ public class ServerSide
 
   private static int globalTickCount = 0;
 
+  // adds each player's connection to the NetworkTrafficMonitor when they log in
+  private static class NetworkMonitorPlayerTracker implements PlayerTrackerRegistry.IPlayerTracker
+  {
+    public void onPlayerLogin(EntityPlayer player)
+    {
+      if (!(player instanceof EntityPlayerMP)) return;
+      networkTrafficMonitor.monitorConnection(((EntityPlayerMP)player).playerNetServerHandler.netManager);
+    }
+    public void onPlayerLogout(EntityPlayer player) {}
+    public void onPlayerChangedDimension(EntityPlayer player) {}
+    public void onPlayerRespawn(EntityPlayer player) {}
+  }
+
+  // the asynchronous actions (including undo) take priority over selection generation for any leftover time; retiring
+  //   culled undo layers comes last.
+  // No selection generation while an asynchronous action is underway, the same as before the scheduler was introduced:
+  //   the action's progress is what the player is waiting for.
+  private static void registerScheduledSubsystems()
+  {
+    serverTickScheduler = new ServerTickScheduler();
+    final int ACTION_PRIORITY = 0;
+    final int SELECTION_PRIORITY = 1;
+    final int UNDO_RETIREMENT_PRIORITY = 2;
+    serverTickScheduler.registerSubsystem("actions", ACTION_PRIORITY, SpeedyToolsOptions.getSchedulerWeightActions(),
+            SpeedyToolsOptions.getMaxServerBusyTimeMS(),
+            new ServerTickScheduler.TimeslicedSubsystem() {
+              public boolean hasWork() {return speedyToolServerActions.isAsynchronousActionInProgress();}
+              public void runTimeslice(long stopTimeNS) {speedyToolServerActions.continueAsynchronousAction(stopTimeNS);}
+              public String getCurrentTaskDescription() {return speedyToolServerActions.getAsynchronousActionDescription();}
+            });
+    serverTickScheduler.registerSubsystem("selections", SELECTION_PRIORITY, SpeedyToolsOptions.getSchedulerWeightSelections(),
+            SpeedyToolsOptions.getMaxServerSelGenTimeMS(),
+            new ServerTickScheduler.TimeslicedSubsystem() {
+              public boolean hasWork() {
+                return serverVoxelSelections.isSelectionGenerationPending() && !speedyToolServerActions.isAsynchronousActionInProgress();
+              }
+              public void runTimeslice(long stopTimeNS) {serverVoxelSelections.continueSelectionGeneration(stopTimeNS - System.nanoTime());}
+              public String getCurrentTaskDescription() {return "selection generation";}
+            });
+    serverTickScheduler.registerSubsystem("undo retirement", UNDO_RETIREMENT_PRIORITY, SpeedyToolsOptions.getSchedulerWeightUndoRetirement(),
+            SpeedyToolsOptions.getMaxServerUndoRetirementTimeMS(),
+            new ServerTickScheduler.TimeslicedSubsystem() {
+              public boolean hasWork() {return worldHistory.isRetirementPending();}
+              public void runTimeslice(long stopTimeNS) {
+                AsynchronousToken retirementTask = worldHistory.getRetirementTask();
+                if (retirementTask == null) return;
+                retirementTask.setTimeOfInterrupt(stopTimeNS);
+                retirementTask.continueProcessing();
+              }
+              public String getCurrentTaskDescription() {return "undo retirement";}
+            });
+  }
+
+  public static ServerTickScheduler getServerTickScheduler() {
+    return serverTickScheduler;
+  }
+  private static ServerTickScheduler serverTickScheduler;
+
   public static SpeedyToolsNetworkServer getSpeedyToolsNetworkServer() {
     return speedyToolsNetworkServer;
   }
@@ -112,6 +204,10 @@ public class ServerSide
     return inGameStatusSimulator;
   }
 
+  public static WorldHistory getWorldHistory() {
+    return worldHistory;
+  }
+
   public static PlayerTrackerRegistry getPlayerTrackerRegistry() {
     return playerTrackerRegistry;
   }
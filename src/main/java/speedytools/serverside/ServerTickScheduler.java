@@ -0,0 +1,209 @@
+package speedytools.serverside;
+
+import net.minecraft.server.MinecraftServer;
+import speedytools.common.SpeedyToolsOptions;
+import speedytools.common.utilities.OperationMetrics;
+
+import java.util.*;
+
+/**
+ * Shares out a single per-tick time budget between all the subsystems which do timesliced work on the server
+ *   (asynchronous actions and undo, selection generation, etc).
+ * The budget is sized from the measured server tick time: when the rest of the server is using most of the 50 ms tick,
+ *   the budget shrinks (down to MIN_BUDGET_NS so that tasks still make progress); it never exceeds getMaxServerBusyTimeMS().
+ * Each tick:
+ * 1) every subsystem with work gets a share of the budget in proportion to its weight
+ * 2) any time left over (eg a subsystem finished early) is given out again in priority order
+ * No subsystem is given more than its own maximum time per tick, however much of the budget is left.
+ * The time used is recorded against the name each subsystem was registered with, and for each task within it (as
+ *   described by the subsystem).
+ * While OperationMetrics are enabled, each timeslice is also recorded in the metrics along with the memory it allocated,
+ *   and any timeslice which runs past its stop time by more than OVERRUN_TOLERANCE_NS is counted as a tick overrun.
+ * Usage:
+ * (1) register each subsystem once
+ * (2) call tick() once per server tick
+ */
+public class ServerTickScheduler
+{
+  /**
+   * A subsystem whose work can be carried out in timeslices
+   */
+  public interface TimeslicedSubsystem
+  {
+    // returns true if the subsystem has work waiting to be done
+    public boolean hasWork();
+
+    // do work until the given System.nanoTime()
+    public void runTimeslice(long stopTimeNS);
+
+    // a short description of the task currently being worked on, used for accounting; null if none
+    public String getCurrentTaskDescription();
+  }
+
+  /**
+   * register a subsystem
+   * @param name the name used for accounting
+   * @param priority lower numbers are served first when handing out leftover time
+   * @param weight relative share of the budget when several subsystems have work
+   * @param maxTimePerTickMS the most time the subsystem is given in any one tick
+   */
+  public void registerSubsystem(String name, int priority, double weight, long maxTimePerTickMS, TimeslicedSubsystem subsystem)
+  {
+    subsystems.add(new SubsystemEntry(name, priority, weight, maxTimePerTickMS * NS_PER_MS, subsystem));
+    Collections.sort(subsystems);
+  }
+
+  public void tick()
+  {
+    long startTimeNS = System.nanoTime();
+    long budgetNS = calculateBudgetNS();
+    lastBudgetNS = budgetNS;
+    long deadlineNS = startTimeNS + budgetNS;
+
+    double totalWeight = 0;
+    for (SubsystemEntry entry : subsystems) {
+      entry.lastTickNS = 0;
+      if (entry.subsystem.hasWork()) totalWeight += entry.weight;
+    }
+
+    if (totalWeight > 0) {
+      for (SubsystemEntry entry : subsystems) {
+        if (!entry.subsystem.hasWork()) continue;
+        long sliceNS = (long)(budgetNS * entry.weight / totalWeight);
+        runSlice(entry, Math.min(System.nanoTime() + sliceNS, deadlineNS));
+      }
+      for (SubsystemEntry entry : subsystems) {   // hand out any leftover time
+        if (System.nanoTime() >= deadlineNS) break;
+        if (entry.subsystem.hasWork() && entry.lastTickNS < entry.maxNSPerTick) {
+          runSlice(entry, deadlineNS);
+        }
+      }
+    }
+
+    long usedNS = System.nanoTime() - startTimeNS;
+    averageUsedNS = averageUsedNS * (1.0 - AVERAGE_SMOOTHING) + usedNS * AVERAGE_SMOOTHING;
+  }
+
+  private void runSlice(SubsystemEntry entry, long stopTimeNS)
+  {
+    stopTimeNS = Math.min(stopTimeNS, System.nanoTime() + entry.maxNSPerTick - entry.lastTickNS);
+    String taskDescription = entry.subsystem.getCurrentTaskDescription();
+    OperationMetrics metrics = OperationMetrics.defaultMetrics();
+    boolean measuring = metrics.isEnabled();
+    long startAllocatedBytes = measuring ? metrics.getCurrentThreadAllocatedBytes() : -1;
+    long startNS = System.nanoTime();
+    entry.subsystem.runTimeslice(stopTimeNS);
+    long endNS = System.nanoTime();
+    long elapsedNS = endNS - startNS;
+
+    if (measuring) {
+      metrics.recordLatency("ServerTickScheduler", entry.name, elapsedNS);
+      if (endNS - stopTimeNS > OVERRUN_TOLERANCE_NS) {
+        metrics.addToCounter(OperationMetrics.Counter.TICK_OVERRUNS, 1);
+        metrics.recordLatency("ServerTickScheduler", entry.name + " overrun", endNS - stopTimeNS);
+      }
+      if (startAllocatedBytes >= 0) {
+        metrics.addToCounter(OperationMetrics.Counter.BYTES_ALLOCATED, metrics.getCurrentThreadAllocatedBytes() - startAllocatedBytes);
+      }
+    }
+
+    entry.totalNS += elapsedNS;
+    entry.lastTickNS += elapsedNS;
+    if (taskDescription != null) {
+      String taskKey = entry.name + ":" + taskDescription;
+      Long previous = taskTotalsNS.get(taskKey);
+      taskTotalsNS.put(taskKey, (previous == null ? 0 : previous) + elapsedNS);
+    }
+  }
+
+  /**
+   * the budget is the time remaining in the tick after the rest of the server's work, using the
+   *   server's average tick time with our own average usage subtracted
+   */
+  private long calculateBudgetNS()
+  {
+    long maxBudgetNS = SpeedyToolsOptions.getMaxServerBusyTimeMS() * NS_PER_MS;
+    MinecraftServer minecraftServer = MinecraftServer.getServer();
+    if (minecraftServer == null) return maxBudgetNS;
+    long [] tickTimeArray = minecraftServer.tickTimeArray;
+    if (tickTimeArray == null || tickTimeArray.length == 0) return maxBudgetNS;
+    long sum = 0;
+    for (long tickTime : tickTimeArray) {
+      sum += tickTime;
+    }
+    double averageTickNS = sum / (double)tickTimeArray.length;
+    lastAverageTickNS = averageTickNS;
+    double otherWorkNS = Math.max(0, averageTickNS - averageUsedNS);
+    long availableNS = TICK_PERIOD_NS - SAFETY_MARGIN_NS - (long)otherWorkNS;
+    return Math.max(MIN_BUDGET_NS, Math.min(maxBudgetNS, availableNS));
+  }
+
+  /** returns the budget given out in the most recent tick, in ns */
+  public long getLastBudgetNS() {return lastBudgetNS;}
+
+  /** returns the server's average tick time (mspt), in ns, as used for the most recent budget */
+  public double getAverageTickNS() {return lastAverageTickNS;}
+
+  /** returns the smoothed average time used per tick by all subsystems, in ns */
+  public double getAverageUsedNS() {return averageUsedNS;}
+
+  /** returns the total time used by each subsystem since startup, in ns */
+  public Map<String, Long> getSubsystemTotalsNS()
+  {
+    Map<String, Long> retval = new LinkedHashMap<String, Long>();
+    for (SubsystemEntry entry : subsystems) {
+      retval.put(entry.name, entry.totalNS);
+    }
+    return retval;
+  }
+
+  /** returns the total time used by each of the recent tasks, in ns - keyed by "subsystem:task" */
+  public Map<String, Long> getTaskTotalsNS()
+  {
+    return Collections.unmodifiableMap(taskTotalsNS);
+  }
+
+  private static class SubsystemEntry implements Comparable<SubsystemEntry>
+  {
+    public SubsystemEntry(String i_name, int i_priority, double i_weight, long i_maxNSPerTick, TimeslicedSubsystem i_subsystem)
+    {
+      name = i_name;
+      priority = i_priority;
+      weight = i_weight;
+      maxNSPerTick = i_maxNSPerTick;
+      subsystem = i_subsystem;
+    }
+
+    @Override
+    public int compareTo(SubsystemEntry other) {
+      return (priority < other.priority) ? -1 : ((priority == other.priority) ? 0 : 1);
+    }
+
+    public final String name;
+    public final int priority;
+    public final double weight;
+    public final long maxNSPerTick;
+    public final TimeslicedSubsystem subsystem;
+    public long totalNS;
+    public long lastTickNS;   // the time used so far in the current (or most recent) tick
+  }
+
+  private static final long NS_PER_MS = 1000L * 1000L;
+  private static final long TICK_PERIOD_NS = 50 * NS_PER_MS;
+  private static final long SAFETY_MARGIN_NS = 5 * NS_PER_MS;
+  private static final long MIN_BUDGET_NS = 2 * NS_PER_MS;
+  private static final double AVERAGE_SMOOTHING = 0.05;
+  private static final long OVERRUN_TOLERANCE_NS = 1 * NS_PER_MS;
+  private static final int MAX_TASKS_REMEMBERED = 100;
+
+  private List<SubsystemEntry> subsystems = new ArrayList<SubsystemEntry>();
+  private Map<String, Long> taskTotalsNS = new LinkedHashMap<String, Long>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_TASKS_REMEMBERED;
+    }
+  };
+  private long lastBudgetNS;
+  private double lastAverageTickNS;
+  private double averageUsedNS;
+}
@@ -13,6 +13,7 @@ import speedytools.common.network.multipart.*;
 import speedytools.common.selections.BlockVoxelMultiSelector;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
 import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.OperationMetrics;
 import speedytools.serverside.network.PacketHandlerRegistryServer;
 import speedytools.serverside.network.PacketSenderServer;
 
@@ -66,9 +67,8 @@ public class ServerVoxelSelections
 
   /**
    * handle timeouts etc
-   * @param maximumDurationInNS - the maximum amount of time to spend generating selections for clients. 0 = don't generate any.
    */
-  public void tick(long maximumDurationInNS)
+  public void tick()
   {
     for (MultipartOneAtATimeReceiver receiver : playerMOATreceivers.values()) {
       receiver.onTick();
@@ -76,8 +76,23 @@ public class ServerVoxelSelections
     for (MultipartOneAtATimeSender sender : playerMOATsenders.values()) {
       sender.onTick();
     }
+  }
 
-    if (maximumDurationInNS == 0) return;
+  /**
+   * returns true if there are selection generation commands waiting or in progress
+   */
+  public boolean isSelectionGenerationPending()
+  {
+    return !commandQueue.isEmpty();
+  }
+
+  /**
+   * generate selections for clients
+   * @param maximumDurationInNS - the maximum amount of time to spend generating selections for clients. 0 = don't generate any.
+   */
+  public void continueSelectionGeneration(long maximumDurationInNS)
+  {
+    if (maximumDurationInNS <= 0) return;
 
     boolean foundSuitable = false;
     CommandQueueEntry currentCommand;
@@ -121,8 +136,17 @@ public class ServerVoxelSelections
       currentCommand.hasStarted = true;
     } else {
       BlockVoxelMultiSelector blockVoxelMultiSelector = currentCommand.blockVoxelMultiSelector;
+      OperationMetrics metrics = OperationMetrics.defaultMetrics();
+      boolean measuring = metrics.isEnabled();
+      long startTimeNS = measuring ? System.nanoTime() : 0;
       float progress = blockVoxelMultiSelector.continueSelectionGeneration(playerWorld, maximumDurationInNS);
+      if (measuring) {
+        currentCommand.processingTimeNS += System.nanoTime() - startTimeNS;
+      }
       if (progress < 0) { // finished
+        if (measuring) {
+          metrics.recordLatency("SelectionGeneration", commandPacket.getCommand().name(), currentCommand.processingTimeNS);
+        }
         BlockPos origin = blockVoxelMultiSelector.getWorldOrigin();
         VoxelSelectionWithOrigin newSelection = new VoxelSelectionWithOrigin(origin.getX(), origin.getY(), origin.getZ(),
                                                                              blockVoxelMultiSelector.getSelection());
@@ -376,6 +400,7 @@ public class PacketHandlerServerSelectionGeneration implements Packet250ServerSe
     public Packet250ServerSelectionGeneration commandPacket;
     public boolean hasStarted;
     public BlockVoxelMultiSelector blockVoxelMultiSelector;
+    public long processingTimeNS;     // only accumulated while OperationMetrics are enabled
 
     public CommandQueueEntry(EntityPlayerMP i_entityPlayerMP, Packet250ServerSelectionGeneration i_commandPacket) {
       entityPlayerMP = new WeakReference<EntityPlayerMP>(i_entityPlayerMP);
@@ -2,14 +2,19 @@ package speedytools.serverside.actions;
 
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.world.WorldServer;
+import speedytools.common.selections.VoxelSelection;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
+import speedytools.common.utilities.OperationMetrics;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.StageTimingModel;
 import speedytools.serverside.worldmanipulation.UniqueTokenID;
 import speedytools.serverside.worldmanipulation.WorldHistory;
 
 /**
 * User: The Grey Ghost
 * Date: 3/08/2014
+* The stage weights and the estimated time remaining come from the StageTimingModel, which is updated with the
+*   actual stage timings every time an action completes normally.
 */
 public abstract class AsynchronousActionBase implements AsynchronousToken
 {
@@ -23,6 +28,8 @@ public abstract class AsynchronousActionBase implements AsynchronousToken
     fractionComplete = 0;
     cumulativeTaskDurationWeight = 0.0;
     completed = false;
+    stageTimingModel = StageTimingModel.getInstance(i_worldServer);
+    stageTimer = new StageTimingModel.StageTimer(stageTimingModel, getClass().getSimpleName());
   }
 
   @Override
@@ -75,18 +82,71 @@ public abstract class AsynchronousActionBase implements AsynchronousToken
   /**
    * Set the task to be executed next
    * @param token the next task
-   * @param taskDurationWeight the estimated relative duration of this task as a fraction of the whole task duration; 0.0 - 1.0;
+   * @param stage the stage of the action that the task belongs to; its time is recorded against this stage
+   * @param defaultDurationWeight the estimated relative duration of this task as a fraction of the whole task duration; 0.0 - 1.0;
+   *                              used until the StageTimingModel has enough timings for this stage
    * @param resetCumulativeDuration
    */
-  public void setSubTask(AsynchronousToken token, double taskDurationWeight, boolean resetCumulativeDuration)
+  public void setSubTask(AsynchronousToken token, Enum<?> stage, double defaultDurationWeight, boolean resetCumulativeDuration)
   {
     if (resetCumulativeDuration) {
       cumulativeTaskDurationWeight = 0;
     } else {
       cumulativeTaskDurationWeight += subTaskDurationWeight;
     }
-    subTaskDurationWeight = taskDurationWeight;
+    subTaskDurationWeight = stageTimer.getStageWeight(stage, defaultDurationWeight);
     subTask = token;
+    stageTimer.switchStage(stage);
+  }
+
+  /**
+   * set the size of the work, used to predict the duration of the action
+   * @param voxelSelection the voxels affected by the action
+   */
+  protected void setWorkSize(VoxelSelection voxelSelection)
+  {
+    workVoxelCount = voxelSelection.getSetVoxelsCount();
+    long boundingVolume = (long)voxelSelection.getxSize() * voxelSelection.getySize() * voxelSelection.getzSize();
+    workDensity = (boundingVolume == 0) ? 0 : workVoxelCount / (double)boundingVolume;
+  }
+
+  /** the action has completed normally: record the stage timings in the StageTimingModel */
+  protected void recordStageTimings()
+  {
+    if (aborting || rollingBack) return;
+    stageTimer.finish(workVoxelCount, workDensity);
+    if (OperationMetrics.defaultMetrics().isEnabled()) {
+      OperationMetrics.defaultMetrics().addToCounter(OperationMetrics.Counter.VOXELS_PROCESSED, workVoxelCount);
+    }
+  }
+
+  /**
+   * estimate the processing time needed to complete the action, from the StageTimingModel if it has a prediction for
+   *   this size of action, otherwise by extrapolating the progress so far
+   * @return the estimated processing time remaining in ns, or -1 if unknown
+   */
+  public long getEstimatedProcessingTimeRemainingNS()
+  {
+    final double MIN_FRACTION_FOR_EXTRAPOLATION = 0.05;
+    double fraction = Math.min(1.0, getFractionComplete());
+    long predictedNS = stageTimingModel.predictDurationNS(getClass().getSimpleName(), workVoxelCount, workDensity);
+    if (predictedNS >= 0) return (long)(predictedNS * (1.0 - fraction));
+    if (fraction < MIN_FRACTION_FOR_EXTRAPOLATION) return -1;
+    return (long)(stageTimer.getProcessingTimeNS() * (1.0 - fraction) / fraction);
+  }
+
+  /**
+   * estimate the time until the action is complete, allowing for the action only receiving part of each tick
+   * @return the estimated time remaining in seconds, or -1 if unknown
+   */
+  public int getEstimatedSecondsRemaining()
+  {
+    final double NS_PER_SECOND = 1.0E9;
+    long remainingNS = getEstimatedProcessingTimeRemainingNS();
+    long processingNS = stageTimer.getProcessingTimeNS();
+    if (remainingNS < 0 || processingNS <= 0) return -1;
+    double elapsedPerProcessing = (System.nanoTime() - startTimeNS) / (double)processingNS;
+    return (int)Math.min(Short.MAX_VALUE, Math.ceil(remainingNS * elapsedPerProcessing / NS_PER_SECOND));
   }
 
   /** execute the current subtask
@@ -95,8 +155,11 @@ public abstract class AsynchronousActionBase implements AsynchronousToken
   public boolean executeSubTask()
   {
     if (subTask.isTaskComplete()) return true;
+    if (startTimeNS == 0) startTimeNS = System.nanoTime();
     subTask.setTimeOfInterrupt(interruptTimeNS);
+    stageTimer.resume();
     subTask.continueProcessing();
+    stageTimer.pause();
     double stageCompletion = subTask.isTaskComplete() ? 1.0 : subTask.getFractionComplete();
     fractionComplete = cumulativeTaskDurationWeight + subTaskDurationWeight * stageCompletion;
 //    System.out.println("AsynchronousActionBase.executeSubTask stageCompletion " + stageCompletion + " : " + fractionComplete);
@@ -111,7 +174,9 @@ public abstract class AsynchronousActionBase implements AsynchronousToken
     if (subTask.isTaskComplete()) return true;
     subTask.abortProcessing();
     subTask.setTimeOfInterrupt(interruptTimeNS);
+    stageTimer.resume();
     subTask.continueProcessing();
+    stageTimer.pause();
     double stageCompletion = subTask.isTaskComplete() ? 1.0 : subTask.getFractionComplete();
     fractionComplete = cumulativeTaskDurationWeight + subTaskDurationWeight * stageCompletion;
     return subTask.isTaskComplete();
@@ -131,5 +196,10 @@ public abstract class AsynchronousActionBase implements AsynchronousToken
   private AsynchronousToken subTask;
   private double subTaskDurationWeight;
   private double cumulativeTaskDurationWeight;
+  private final StageTimingModel stageTimingModel;
+  private final StageTimingModel.StageTimer stageTimer;
+  private long workVoxelCount = 0;
+  private double workDensity = 0;
+  private long startTimeNS = 0;
   private final UniqueTokenID transactionID = new UniqueTokenID();
 }
\ No newline at end of file
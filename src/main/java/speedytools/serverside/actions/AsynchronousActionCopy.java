@@ -5,12 +5,15 @@ import net.minecraft.world.WorldServer;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
 import speedytools.common.utilities.QuadOrientation;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.StreamingCopy;
 import speedytools.serverside.worldmanipulation.WorldFragment;
 import speedytools.serverside.worldmanipulation.WorldHistory;
 
 /**
 * User: The Grey Ghost
 * Date: 3/08/2014
+* If possible, the copy is streamed one destination chunk column at a time (see StreamingCopy), otherwise the
+*   entire source is read before writing.
 */
 public class AsynchronousActionCopy extends AsynchronousActionBase
 {
@@ -26,6 +29,7 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
     zpos = i_zpos;
     quadOrientation = i_quadOrientation;
     currentStage = ActionStage.SETUP;
+    setWorkSize(sourceVoxelSelection);
 //    for (ActionStage actionStage : ActionStage.values()) {
 //      ticksPerStage.put(actionStage, 0);
 //      milliSecondsPerStage.put(actionStage, 0.0);
@@ -46,12 +50,19 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
 //    ActionStage entryStage = currentStage;
     switch (currentStage) {
       case SETUP: {
+        if (StreamingCopy.canStream(sourceVoxelSelection, xpos, ypos, zpos, quadOrientation)) {
+          AsynchronousToken token = new StreamingCopy(worldHistory, entityPlayerMP, worldServer, sourceVoxelSelection,
+                                                      xpos, ypos, zpos, quadOrientation, getUniqueTokenID());
+          currentStage = ActionStage.STREAM;
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
+          break;
+        }
         sourceWorldFragment = new WorldFragment(sourceVoxelSelection.getxSize(), sourceVoxelSelection.getySize(), sourceVoxelSelection.getzSize());
         AsynchronousToken token = sourceWorldFragment.readFromWorldAsynchronous(worldServer,
                                                            sourceVoxelSelection.getWxOrigin(), sourceVoxelSelection.getWyOrigin(), sourceVoxelSelection.getWzOrigin(),
                                                            sourceVoxelSelection);
         currentStage = ActionStage.READ;
-        setSubTask(token, currentStage.durationWeight, false);
+        setSubTask(token, currentStage, currentStage.durationWeight, false);
         break;
       }
       case READ: {
@@ -59,10 +70,11 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
         AsynchronousToken token = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, sourceWorldFragment, xpos, ypos, zpos, quadOrientation, getUniqueTokenID());
         currentStage = ActionStage.WRITE;
         if (token != null) {
-          setSubTask(token, currentStage.durationWeight, false);
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
         }
         break;
       }
+      case STREAM:
       case WRITE: {
         if (!executeSubTask()) break;
         currentStage = ActionStage.COMPLETE;
@@ -75,6 +87,7 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
         if (!completed) {
           sourceWorldFragment = null;
           sourceVoxelSelection = null;
+          recordStageTimings();
           completed = true;
         }
         break;
@@ -96,6 +109,7 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
         currentStage = ActionStage.COMPLETE;
         break;
       }
+      case STREAM:
       case WRITE: {
         if (executeAbortSubTask()) break;
         currentStage = ActionStage.COMPLETE;
@@ -139,20 +153,26 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
         currentStage = ActionStage.COMPLETE;
         break;
       }
+      case STREAM:
       case WRITE: {
         if (!executeAbortSubTask()) break;
         AsynchronousToken token = worldHistory.performComplexUndoAsynchronous(entityPlayerMP, worldServer, getUniqueTokenID());  // rollback the placement we just completed.
         if (token == null ) {
           currentStage = ActionStage.COMPLETE;
         } else {
-          setSubTask(token, currentStage.durationWeight, true);
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
           currentStage = ActionStage.ROLLBACK;
         }
         break;
       }
       case ROLLBACK: {
         if (!executeSubTask()) break;
-        currentStage = ActionStage.COMPLETE;
+        AsynchronousToken token = worldHistory.performComplexUndoAsynchronous(entityPlayerMP, worldServer, getUniqueTokenID());  // a streamed copy has one layer per chunk column
+        if (token == null ) {
+          currentStage = ActionStage.COMPLETE;
+        } else {
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
+        }
         break;
       }
       case COMPLETE: { // do nothing
@@ -171,7 +191,7 @@ public class AsynchronousActionCopy extends AsynchronousActionBase
 
 
   public enum ActionStage {
-    SETUP(0.0), READ(0.3), WRITE(0.7), COMPLETE(0.0), ROLLBACK(1.0);
+    SETUP(0.0), READ(0.3), WRITE(0.7), STREAM(1.0), COMPLETE(0.0), ROLLBACK(1.0);
     ActionStage(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
   }
@@ -8,7 +8,6 @@ import speedytools.common.utilities.QuadOrientation;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
 import speedytools.serverside.worldmanipulation.WorldFragment;
 import speedytools.serverside.worldmanipulation.WorldHistory;
-import speedytools.serverside.worldmanipulation.WorldServerReaderFill;
 
 /**
 * User: The Grey Ghost
@@ -30,6 +29,7 @@ public class AsynchronousActionFill extends AsynchronousActionBase
     zpos = i_zpos;
     quadOrientation = i_quadOrientation;
     currentStage = ActionStage.SETUP;
+    setWorkSize(sourceVoxelSelection);
 //    for (ActionStage actionStage : ActionStage.values()) {
 //      ticksPerStage.put(actionStage, 0);
 //      milliSecondsPerStage.put(actionStage, 0.0);
@@ -49,22 +49,12 @@ public class AsynchronousActionFill extends AsynchronousActionBase
     long timeIn = System.nanoTime();
 //    ActionStage entryStage = currentStage;
     switch (currentStage) {
-      case SETUP: {
-        sourceWorldFragment = new WorldFragment(sourceVoxelSelection.getxSize(), sourceVoxelSelection.getySize(), sourceVoxelSelection.getzSize());
-        WorldServerReaderFill worldServerReaderFill = new WorldServerReaderFill(worldServer, fillBlock);
-        AsynchronousToken token = sourceWorldFragment.readFromWorldAsynchronous(worldServerReaderFill,
-                                                                               sourceVoxelSelection.getWxOrigin(), sourceVoxelSelection.getWyOrigin(), sourceVoxelSelection.getWzOrigin(),
-                                                                               sourceVoxelSelection);
-        currentStage = ActionStage.READ;
-        setSubTask(token, currentStage.durationWeight, false);
-        break;
-      }
-      case READ: {
-        if (!executeSubTask()) break;
+      case SETUP: {   // the fill fragment is the same everywhere, so there is no need to read it
+        sourceWorldFragment = WorldFragment.createUniformFill(sourceVoxelSelection, fillBlock);
         AsynchronousToken token = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, sourceWorldFragment, xpos, ypos, zpos, quadOrientation, getUniqueTokenID());
         currentStage = ActionStage.WRITE;
         if (token != null) {
-          setSubTask(token, currentStage.durationWeight, false);
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
         }
         break;
       }
@@ -80,6 +70,7 @@ public class AsynchronousActionFill extends AsynchronousActionBase
         if (!completed) {
           sourceWorldFragment = null;
           sourceVoxelSelection = null;
+          recordStageTimings();
           completed = true;
         }
         break;
@@ -96,11 +87,6 @@ public class AsynchronousActionFill extends AsynchronousActionBase
         currentStage = ActionStage.COMPLETE;
         break;
       }
-      case READ: {
-        if (executeAbortSubTask()) break;
-        currentStage = ActionStage.COMPLETE;
-        break;
-      }
       case WRITE: {
         if (executeAbortSubTask()) break;
         currentStage = ActionStage.COMPLETE;
@@ -139,18 +125,13 @@ public class AsynchronousActionFill extends AsynchronousActionBase
         currentStage = ActionStage.COMPLETE;
         break;
       }
-      case READ: {
-        if (!executeAbortSubTask()) break;
-        currentStage = ActionStage.COMPLETE;
-        break;
-      }
       case WRITE: {
         if (!executeAbortSubTask()) break;
         AsynchronousToken token = worldHistory.performComplexUndoAsynchronous(entityPlayerMP, worldServer, getUniqueTokenID());  // rollback the placement we just completed.
         if (token == null ) {
           currentStage = ActionStage.COMPLETE;
         } else {
-          setSubTask(token, currentStage.durationWeight, true);
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
           currentStage = ActionStage.ROLLBACK;
         }
         break;
@@ -176,7 +157,7 @@ public class AsynchronousActionFill extends AsynchronousActionBase
 
 
   public enum ActionStage {
-    SETUP(0.0), READ(0.3), WRITE(0.7), COMPLETE(0.0), ROLLBACK(1.0);
+    SETUP(0.0), WRITE(1.0), COMPLETE(0.0), ROLLBACK(1.0);
     ActionStage(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
   }
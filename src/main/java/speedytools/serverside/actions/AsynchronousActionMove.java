@@ -1,19 +1,25 @@
 package speedytools.serverside.actions;
 
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.block.Block;
 import net.minecraft.init.Blocks;
 import net.minecraft.world.WorldServer;
 import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
+import speedytools.common.utilities.Pair;
 import speedytools.common.utilities.QuadOrientation;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.UniqueTokenID;
 import speedytools.serverside.worldmanipulation.WorldFragment;
 import speedytools.serverside.worldmanipulation.WorldHistory;
-import speedytools.serverside.worldmanipulation.WorldServerReaderFill;
 
 /**
 * User: The Grey Ghost
 * Date: 3/08/2014
+* If the source and destination are close together, the erase and the write are fused into a single write of the
+*   union of the two: the destination voxels are filled from the source, and the remaining source voxels with air.
+*   This gives one undo layer, and each affected chunk is relit and resent once.
+* Otherwise, the source is erased and then the destination written, as two layers of the same undo transaction.
 */
 public class AsynchronousActionMove extends AsynchronousActionBase
 {
@@ -29,6 +35,7 @@ public class AsynchronousActionMove extends AsynchronousActionBase
     zpos = i_zpos;
     quadOrientation = i_quadOrientation;
     currentStage = ActionStage.SETUP;
+    setWorkSize(sourceVoxelSelection);
   }
 
   @Override
@@ -48,30 +55,24 @@ public class AsynchronousActionMove extends AsynchronousActionBase
                                                            sourceVoxelSelection.getWxOrigin(), sourceVoxelSelection.getWyOrigin(), sourceVoxelSelection.getWzOrigin(),
                                                            sourceVoxelSelection);
         currentStage = ActionStage.READ;
-        setSubTask(token, currentStage.durationWeight, false);
+        setSubTask(token, currentStage, currentStage.durationWeight, false);
         break;
       }
       case READ: {
         if (!executeSubTask()) break;
-        eraseWorldFragment = new WorldFragment(sourceVoxelSelection.getxSize(), sourceVoxelSelection.getySize(), sourceVoxelSelection.getzSize());
-        BlockWithMetadata airblock = new BlockWithMetadata(Blocks.air, 0);
-        AsynchronousToken token = eraseWorldFragment.readFromWorldAsynchronous(new WorldServerReaderFill(worldServer, airblock),
-                                                                                sourceVoxelSelection.getWxOrigin(), sourceVoxelSelection.getWyOrigin(), sourceVoxelSelection.getWzOrigin(),
-                                                                                sourceVoxelSelection);
-        currentStage = ActionStage.MAKE_BLANK;
-        if (token != null) {
-          setSubTask(token, currentStage.durationWeight, false);
+        if (planFusedMove()) {
+          currentStage = ActionStage.FUSE;
+          setSubTask(new FusedFragmentBuilder(), currentStage, currentStage.durationWeight, false);
+          break;
         }
-        break;
-      }
-      case MAKE_BLANK: {
-        if (!executeSubTask()) break;
+        BlockWithMetadata airblock = new BlockWithMetadata(Blocks.air, 0);
+        eraseWorldFragment = WorldFragment.createUniformFill(sourceVoxelSelection, airblock);
         AsynchronousToken token = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, eraseWorldFragment,
                 sourceVoxelSelection.getWxOrigin(), sourceVoxelSelection.getWyOrigin(), sourceVoxelSelection.getWzOrigin(),
                 quadOrientation, getUniqueTokenID());
         currentStage = ActionStage.ERASE;
         if (token != null) {
-          setSubTask(token, currentStage.durationWeight, false);
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
         }
         break;
       }
@@ -80,10 +81,22 @@ public class AsynchronousActionMove extends AsynchronousActionBase
         AsynchronousToken token = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, sourceWorldFragment, xpos, ypos, zpos, quadOrientation, getUniqueTokenID());
         currentStage = ActionStage.WRITE;
         if (token != null) {
-          setSubTask(token, currentStage.durationWeight, false);
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
         }
         break;
       }
+      case FUSE: {
+        if (!executeSubTask()) break;
+        AsynchronousToken token = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, fusedWorldFragment,
+                fusedWxOfOrigin, fusedWyOfOrigin, fusedWzOfOrigin, fusedOrientation, getUniqueTokenID());
+        sourceWorldFragment = null;
+        currentStage = ActionStage.FUSED_WRITE;
+        if (token != null) {
+          setSubTask(token, currentStage, currentStage.durationWeight, false);
+        }
+        break;
+      }
+      case FUSED_WRITE:
       case WRITE: {
         if (!executeSubTask()) break;
         currentStage = ActionStage.COMPLETE;
@@ -94,6 +107,8 @@ public class AsynchronousActionMove extends AsynchronousActionBase
           sourceWorldFragment = null;
           sourceVoxelSelection = null;
           eraseWorldFragment = null;
+          fusedWorldFragment = null;
+          recordStageTimings();
           completed = true;
         }
         break;
@@ -106,13 +121,14 @@ public class AsynchronousActionMove extends AsynchronousActionBase
 
   private void continueAborting() {
     switch (currentStage) {
-      case SETUP: {
+      case SETUP:
+      case FUSE: {
         currentStage = ActionStage.COMPLETE;
         break;
       }
       case READ:
-      case MAKE_BLANK:
       case ERASE:
+      case FUSED_WRITE:
       case WRITE:
       case ROLLBACK:
       {
@@ -125,6 +141,7 @@ public class AsynchronousActionMove extends AsynchronousActionBase
           sourceWorldFragment = null;
           sourceVoxelSelection = null;
           eraseWorldFragment = null;
+          fusedWorldFragment = null;
           completed = true;
         }
         break;
@@ -141,24 +158,25 @@ public class AsynchronousActionMove extends AsynchronousActionBase
     }
     startRollback = false;
     switch (currentStage) {
-      case SETUP: {
+      case SETUP:
+      case FUSE: {
         currentStage = ActionStage.COMPLETE;
         break;
       }
-      case READ:
-      case MAKE_BLANK: {
+      case READ: {
         if (!executeAbortSubTask()) break;
         currentStage = ActionStage.COMPLETE;
         break;
       }
       case ERASE:
+      case FUSED_WRITE:
       case WRITE: {
         if (!executeAbortSubTask()) break;
         AsynchronousToken token = worldHistory.performComplexUndoAsynchronous(entityPlayerMP, worldServer, getUniqueTokenID());  // rollback the placement we just completed.
         if (token == null ) {
           currentStage = ActionStage.COMPLETE;
         } else {
-          setSubTask(token, currentStage.durationWeight, true);
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
           currentStage = ActionStage.ROLLBACK;
         }
         break;
@@ -169,7 +187,7 @@ public class AsynchronousActionMove extends AsynchronousActionBase
         if (token == null ) {
           currentStage = ActionStage.COMPLETE;
         } else {
-          setSubTask(token, currentStage.durationWeight, true);
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
         }
         break;
       }
@@ -178,6 +196,7 @@ public class AsynchronousActionMove extends AsynchronousActionBase
           sourceWorldFragment = null;
           sourceVoxelSelection = null;
           eraseWorldFragment = null;
+          fusedWorldFragment = null;
           completed = true;
         }
         break;
@@ -189,8 +208,152 @@ public class AsynchronousActionMove extends AsynchronousActionBase
   }
 
 
+  /**
+   * Decide whether to fuse the erase and the write, and if so set up the fused fragment.
+   * The fused fragment covers the union of the source and destination, in the destination's (rotated) frame of
+   *   reference: an array coordinate [x,z] of the source maps to [x - fusedXoffset, z - fusedZoffset] of the fused
+   *   fragment, including for the parts of the fused fragment outside the source.
+   * @return true if the move should be fused; false if the union is too large compared to the source.
+   */
+  private boolean planFusedMove()
+  {
+    int xSize = sourceVoxelSelection.getxSize();
+    int ySize = sourceVoxelSelection.getySize();
+    int zSize = sourceVoxelSelection.getzSize();
+    Pair<Integer, Integer> wxRange = new Pair<Integer, Integer>(0, xSize - 1);
+    Pair<Integer, Integer> wzRange = new Pair<Integer, Integer>(0, zSize - 1);
+    quadOrientation.getWXZranges(wxRange, wzRange);
+    int wxMin = Math.min(sourceVoxelSelection.getWxOrigin(), wxRange.getFirst() + xpos);
+    int wxMax = Math.max(sourceVoxelSelection.getWxOrigin() + xSize - 1, wxRange.getSecond() + xpos);
+    int wzMin = Math.min(sourceVoxelSelection.getWzOrigin(), wzRange.getFirst() + zpos);
+    int wzMax = Math.max(sourceVoxelSelection.getWzOrigin() + zSize - 1, wzRange.getSecond() + zpos);
+    int wyMin = Math.min(sourceVoxelSelection.getWyOrigin(), ypos);
+    int wyMax = Math.max(sourceVoxelSelection.getWyOrigin() + ySize - 1, ypos + ySize - 1);
+
+    int x1 = quadOrientation.calcXfromWXZ(wxMin - xpos, wzMin - zpos);
+    int z1 = quadOrientation.calcZfromWXZ(wxMin - xpos, wzMin - zpos);
+    int x2 = quadOrientation.calcXfromWXZ(wxMax - xpos, wzMax - zpos);
+    int z2 = quadOrientation.calcZfromWXZ(wxMax - xpos, wzMax - zpos);
+    int fusedXsize = Math.abs(x2 - x1) + 1;
+    int fusedYsize = wyMax - wyMin + 1;
+    int fusedZsize = Math.abs(z2 - z1) + 1;
+    if (fusedXsize > WorldFragment.MAX_X_SIZE || fusedYsize > WorldFragment.MAX_Y_SIZE || fusedZsize > WorldFragment.MAX_Z_SIZE) return false;
+    long sourceVolume = (long)xSize * ySize * zSize;
+    long fusedVolume = (long)fusedXsize * fusedYsize * fusedZsize;
+    if (fusedVolume > MAX_FUSED_VOLUME_RATIO * sourceVolume) return false;
+
+    fusedXoffset = Math.min(x1, x2);
+    fusedZoffset = Math.min(z1, z2);
+    fusedOrientation = new QuadOrientation(0, 0, fusedXsize, fusedZsize, quadOrientation.isFlippedX(), quadOrientation.getClockwiseRotationCount());
+    fusedWxOfOrigin = xpos + quadOrientation.calcWXfromXZ(fusedXoffset, fusedZoffset) - fusedOrientation.calcWXfromXZ(0, 0);
+    fusedWyOfOrigin = wyMin;
+    fusedWzOfOrigin = zpos + quadOrientation.calcWZfromXZ(fusedXoffset, fusedZoffset) - fusedOrientation.calcWZfromXZ(0, 0);
+    fusedWorldFragment = new WorldFragment(fusedXsize, fusedYsize, fusedZsize);
+    fusedWorldFragment.invalidateLightValues();   // the light of the erased voxels isn't known until the write
+    return true;
+  }
+
+  /**
+   * Fills the fused fragment, one y layer at a time until interrupted:
+   * first the destination voxels from the source fragment, then air for the source voxels which haven't been filled.
+   * No light values are copied: the fused fragment has none, so the write keeps the destination light and rechecks it
+   *   instead (see WorldFragment.hasValidLightValues)
+   */
+  private class FusedFragmentBuilder implements AsynchronousToken
+  {
+    @Override
+    public boolean isTaskComplete() {
+      return fuseYcursor >= 2 * sourceVoxelSelection.getySize();
+    }
+
+    @Override
+    public boolean isTaskAborted() {
+      return false;
+    }
+
+    @Override
+    public double getFractionComplete() {
+      return fuseYcursor / (2.0 * sourceVoxelSelection.getySize());
+    }
+
+    @Override
+    public boolean isTimeToInterrupt() {
+      return (builderInterruptTimeNS == IMMEDIATE_TIMEOUT
+              || (builderInterruptTimeNS != INFINITE_TIMEOUT && System.nanoTime() >= builderInterruptTimeNS));
+    }
+
+    @Override
+    public void setTimeOfInterrupt(long timeToStopNS) {
+      builderInterruptTimeNS = timeToStopNS;
+    }
+
+    @Override
+    public void continueProcessing() {
+      int xSize = sourceVoxelSelection.getxSize();
+      int ySize = sourceVoxelSelection.getySize();
+      int zSize = sourceVoxelSelection.getzSize();
+      int yDestOffset = ypos - fusedWyOfOrigin;
+      int ySourceOffset = sourceVoxelSelection.getWyOrigin() - fusedWyOfOrigin;
+      final int AIR_ID = Block.getIdFromBlock(Blocks.air);
+
+      while (fuseYcursor < 2 * ySize) {
+        if (fuseYcursor < ySize) {
+          int y = fuseYcursor;
+          for (int z = 0; z < zSize; ++z) {
+            for (int x = 0; x < xSize; ++x) {
+              if (sourceWorldFragment.getVoxel(x, y, z)) {
+                int xf = x - fusedXoffset;
+                int yf = y + yDestOffset;
+                int zf = z - fusedZoffset;
+                fusedWorldFragment.copyVoxelContents(xf, yf, zf, sourceWorldFragment, x, y, z);
+                fusedWorldFragment.setTickInfo(xf, yf, zf, sourceWorldFragment.getTickInfo(x, y, z));
+              }
+            }
+          }
+        } else {
+          int y = fuseYcursor - ySize;
+          int wxOrigin = sourceVoxelSelection.getWxOrigin();
+          int wzOrigin = sourceVoxelSelection.getWzOrigin();
+          for (int z = 0; z < zSize; ++z) {
+            for (int x = 0; x < xSize; ++x) {
+              if (sourceVoxelSelection.getVoxel(x, y, z)) {
+                int xf = quadOrientation.calcXfromWXZ(wxOrigin + x - xpos, wzOrigin + z - zpos) - fusedXoffset;
+                int yf = y + ySourceOffset;
+                int zf = quadOrientation.calcZfromWXZ(wxOrigin + x - xpos, wzOrigin + z - zpos) - fusedZoffset;
+                if (!fusedWorldFragment.getVoxel(xf, yf, zf)) {
+                  fusedWorldFragment.setBlockID(xf, yf, zf, AIR_ID);
+                  fusedWorldFragment.setMetadata(xf, yf, zf, 0);
+                }
+              }
+            }
+          }
+        }
+        ++fuseYcursor;
+        if (isTimeToInterrupt()) break;
+      }
+    }
+
+    @Override
+    public void abortProcessing() {   // nothing has been written to the world yet
+    }
+
+    @Override
+    public VoxelSelectionWithOrigin getLockedRegion() {
+      return null;
+    }
+
+    @Override
+    public UniqueTokenID getUniqueTokenID() {
+      return builderTokenID;
+    }
+
+    private int fuseYcursor = 0;
+    private long builderInterruptTimeNS = INFINITE_TIMEOUT;
+    private final UniqueTokenID builderTokenID = new UniqueTokenID();
+  }
+
   public enum ActionStage {
-    SETUP(0.0), READ(0.3), MAKE_BLANK(0.1), ERASE(0.3),  WRITE(0.3), COMPLETE(0.0), ROLLBACK(1.0);
+    SETUP(0.0), READ(0.3), ERASE(0.35),  WRITE(0.35), FUSE(0.05), FUSED_WRITE(0.65), COMPLETE(0.0), ROLLBACK(1.0);
     ActionStage(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
   }
@@ -203,6 +366,15 @@ public class AsynchronousActionMove extends AsynchronousActionBase
   private ActionStage currentStage;
   WorldFragment sourceWorldFragment;
   WorldFragment eraseWorldFragment;
+  WorldFragment fusedWorldFragment;
+  private QuadOrientation fusedOrientation;
+  private int fusedXoffset;
+  private int fusedZoffset;
+  private int fusedWxOfOrigin;
+  private int fusedWyOfOrigin;
+  private int fusedWzOfOrigin;
+
+  private static final long MAX_FUSED_VOLUME_RATIO = 4;   // don't fuse if the union is much bigger than the source (mostly empty)
   VoxelSelectionWithOrigin sourceVoxelSelection;
 
 
@@ -34,7 +34,7 @@ public class AsynchronousActionUndo extends AsynchronousActionBase
           break;
         }
         currentStage = ActionStage.UNDO;
-        setSubTask(token, currentStage.durationWeight, false);
+        setSubTask(token, currentStage, currentStage.durationWeight, false);
         break;
       }
       case UNDO: {
@@ -43,12 +43,13 @@ public class AsynchronousActionUndo extends AsynchronousActionBase
         if (token == null) {
           currentStage = ActionStage.COMPLETE;
         } else {
-          setSubTask(token, currentStage.durationWeight, true);
+          setSubTask(token, currentStage, currentStage.durationWeight, true);
         }
         break;
       }
       case COMPLETE: {
         if (!completed) {
+          recordStageTimings();
           completed = true;
         }
         break;
@@ -8,7 +8,6 @@ import net.minecraft.util.EnumFacing;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
 import net.minecraftforge.common.DimensionManager;
-import speedytools.common.SpeedyToolsOptions;
 import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.items.RegistryForItems;
 import speedytools.common.network.ServerStatus;
@@ -22,13 +21,18 @@ import speedytools.serverside.ServerVoxelSelections;
 import speedytools.serverside.backup.MinecraftSaveFolderBackups;
 import speedytools.serverside.network.SpeedyToolsNetworkServer;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.ClientChunkSynchroniser;
+import speedytools.serverside.worldmanipulation.RegionLockManager;
 import speedytools.serverside.worldmanipulation.WorldHistory;
 
 import java.nio.file.Path;
-import java.util.List;
+import java.util.*;
 
 /**
 * Created by TheGreyGhost on 7/03/14.
+* Several players' complex actions and undos can be in progress at the same time, provided that they don't touch the same
+*   chunks: each action locks its footprint (the chunks it reads from and writes to) using a RegionLockManager.
+*   An action whose footprint is already locked is queued until the chunks are released.
 */
 public class SpeedyToolServerActions
 {
@@ -91,7 +95,8 @@ public class SpeedyToolServerActions
   }
 
   /**
-   * Starts a complex (asynchronous) action.  It will be progressed automatically whenever tick() is called.
+   * Starts a complex (asynchronous) action.  It will be progressed automatically whenever continueAsynchronousAction() is called.
+   * If the action overlaps an action already in progress, it is queued until that action is finished.
    * @param player
    * @param sequenceNumber
    * @param toolID
@@ -106,7 +111,7 @@ public class SpeedyToolServerActions
                                                int wxpos, int wypos, int wzpos, QuadOrientation quadOrientation,
                                                BlockPos initialSelectionOrigin)
   {
-    assert (!isAsynchronousActionInProgress());
+    assert (findActionInProgress(player) == null);
 //    System.out.println("Server: Tool Action received sequence #" + sequenceNumber + ": tool " + toolID + " at [" + wxpos + ", " + wypos + ", " + wzpos
 //                       + "], rotated:" + quadOrientation.getClockwiseRotationCount() + ", flippedX:" + quadOrientation.isFlippedX());
 
@@ -181,17 +186,74 @@ public class SpeedyToolServerActions
       return ResultWithReason.failure();
     }
 
-    token.setTimeOfInterrupt(AsynchronousToken.IMMEDIATE_TIMEOUT);
-    speedyToolsNetworkServer.changeServerStatus(ServerStatus.PERFORMING_YOUR_ACTION, player, (byte) 0);
-    token.continueProcessing();
-    asynchronousTaskInProgress = token;
-    asynchronousTaskActionType = ActionType.ACTION;
-    asynchronousTaskSequenceNumber = sequenceNumber;
-    asynchronousTaskEntityPlayerMP = player;
-
+    RegionLockManager.Footprint footprint = calculateActionFootprint(worldServer, voxelSelection, wxpos, wzpos, quadOrientation);
+    ActionInProgress actionInProgress = new ActionInProgress(token, ActionType.ACTION, sequenceNumber, player, footprint);
+    speedyToolsNetworkServer.changePlayerActionStatus(player, ServerStatus.PERFORMING_YOUR_ACTION, (byte) 0);
+    startOrQueueAction(actionInProgress);
     return ResultWithReason.success();
   }
 
+  /**
+   * the footprint of an action is the source selection plus the destination, each with a one-block border for the
+   *   neighbour updates
+   */
+  private static RegionLockManager.Footprint calculateActionFootprint(WorldServer worldServer, VoxelSelectionWithOrigin source,
+                                                                      int wxpos, int wzpos, QuadOrientation quadOrientation)
+  {
+    RegionLockManager.Footprint footprint = new RegionLockManager.Footprint(worldServer.provider.getDimensionId());
+    footprint.addRectangle(source.getWxOrigin() - 1, source.getWzOrigin() - 1,
+                           source.getWxOrigin() + source.getxSize(), source.getWzOrigin() + source.getzSize());
+    Pair<Integer, Integer> wxRange = new Pair<Integer, Integer>(0, source.getxSize() - 1);
+    Pair<Integer, Integer> wzRange = new Pair<Integer, Integer>(0, source.getzSize() - 1);
+    quadOrientation.getWXZranges(wxRange, wzRange);
+    footprint.addRectangle(wxpos + wxRange.getFirst() - 1, wzpos + wzRange.getFirst() - 1,
+                           wxpos + wxRange.getSecond() + 1, wzpos + wzRange.getSecond() + 1);
+    return footprint;
+  }
+
+  /**
+   * start the action immediately if its footprint is free and no earlier queued action overlaps it; otherwise queue it
+   */
+  private void startOrQueueAction(ActionInProgress actionInProgress)
+  {
+    queuedActions.add(actionInProgress);
+    startQueuedActions();
+  }
+
+  /**
+   * start all the queued actions whose footprints are free, in order.  An action is never started ahead of an earlier
+   *   queued action which overlaps it.
+   */
+  private void startQueuedActions()
+  {
+    List<RegionLockManager.Footprint> stillWaiting = new ArrayList<RegionLockManager.Footprint>();
+    Iterator<ActionInProgress> iterator = queuedActions.iterator();
+    while (iterator.hasNext()) {
+      ActionInProgress actionInProgress = iterator.next();
+      if (actionInProgress.cancelled) {   // undone before it had even started
+        iterator.remove();
+        speedyToolsNetworkServer.undoCompleted(actionInProgress.entityPlayerMP, actionInProgress.sequenceNumber);
+        speedyToolsNetworkServer.changePlayerActionStatus(actionInProgress.entityPlayerMP, ServerStatus.IDLE, (byte) 0);
+        continue;
+      }
+      boolean blockedByEarlierAction = false;
+      for (RegionLockManager.Footprint earlierFootprint : stillWaiting) {
+        if (earlierFootprint.overlaps(actionInProgress.footprint)) {
+          blockedByEarlierAction = true;
+          break;
+        }
+      }
+      if (!blockedByEarlierAction && regionLockManager.tryAcquire(actionInProgress, actionInProgress.footprint)) {
+        iterator.remove();
+        actionInProgress.token.setTimeOfInterrupt(AsynchronousToken.IMMEDIATE_TIMEOUT);
+        actionInProgress.token.continueProcessing();
+        actionsInProgress.add(actionInProgress);
+      } else {
+        stillWaiting.add(actionInProgress.footprint);
+      }
+    }
+  }
+
 //  /**
 //   * sets the current selection for the given player
 //   * @param player
@@ -212,12 +274,16 @@ public class SpeedyToolServerActions
       if (resultWithReason != null) return resultWithReason;
     }
 
-    // we're currently still synchronous undo so this is not relevant yet; just call performUndoOfLastAction instead
-    if (asynchronousTaskInProgress != null && !asynchronousTaskInProgress.isTaskComplete()) {
-      asynchronousTaskInProgress.rollback(undoSequenceNumber);
-      asynchronousTaskActionType = ActionType.UNDO;
-      asynchronousTaskSequenceNumber = undoSequenceNumber;
-      asynchronousTaskEntityPlayerMP = player;
+    ActionInProgress actionInProgress = findActionInProgress(player);
+    if (actionInProgress != null) {
+      if (queuedActions.contains(actionInProgress)) {
+        actionInProgress.cancelled = true;
+      } else {
+        actionInProgress.token.rollback(undoSequenceNumber);
+      }
+      actionInProgress.actionType = ActionType.UNDO;
+      actionInProgress.sequenceNumber = undoSequenceNumber;
+      speedyToolsNetworkServer.changePlayerActionStatus(player, ServerStatus.UNDOING_YOUR_ACTION, (byte) 0);
       return ResultWithReason.success();
     }
 
@@ -235,51 +301,106 @@ public class SpeedyToolServerActions
     }
 
     WorldServer worldServer = (WorldServer)player.theItemInWorldManager.theWorld;
+    RegionLockManager.Footprint footprint = worldHistory.getFootprintOfNextComplexUndo(player, worldServer);
+    if (footprint == null) {
+      return ResultWithReason.failure("There are no more spells to undo...");
+    }
     AsynchronousActionBase token = new AsynchronousActionUndo(speedyToolsNetworkServer, worldServer, player, worldHistory, undoSequenceNumber);
-
-    asynchronousTaskActionType = ActionType.UNDO;
-    asynchronousTaskSequenceNumber = undoSequenceNumber;
-    asynchronousTaskEntityPlayerMP = player;
-    token.setTimeOfInterrupt(AsynchronousToken.IMMEDIATE_TIMEOUT);
-    token.continueProcessing();
-    if (token.isTaskAborted()) {
+    ActionInProgress actionInProgress = new ActionInProgress(token, ActionType.UNDO, undoSequenceNumber, player, footprint);
+    speedyToolsNetworkServer.changePlayerActionStatus(player, ServerStatus.UNDOING_YOUR_ACTION, (byte) 0);
+    startOrQueueAction(actionInProgress);
+    if (token.isTaskAborted()) {   // started immediately and found nothing to undo; if it was queued, continueAsynchronousAction cleans up instead
+      actionsInProgress.remove(actionInProgress);
+      regionLockManager.release(actionInProgress);
+      speedyToolsNetworkServer.changePlayerActionStatus(player, ServerStatus.IDLE, (byte) 0);
       return ResultWithReason.failure("There are no more spells to undo...");
     }
-    asynchronousTaskInProgress = token;
     return ResultWithReason.success();
   }
 
+  /**
+   * update the server status sent to the clients.  Call once per tick, after continueAsynchronousAction()
+   */
   public void tick() {
     if (ServerSide.getInGameStatusSimulator().isTestModeActivated()) {
       ServerSide.getInGameStatusSimulator().updateServerStatus(speedyToolsNetworkServer);
     }
 
-    long stopTimeNS = System.nanoTime() + SpeedyToolsOptions.getMaxServerBusyTimeMS() * 1000L * 1000L;
+    if (!ServerSide.getInGameStatusSimulator().isTestModeActivated()) {
+      if (!isAsynchronousActionInProgress()) {
+        speedyToolsNetworkServer.changeServerStatus(ServerStatus.IDLE, null, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * continue processing the asynchronous actions in progress (if any); the time is shared equally between them
+   * @param stopTimeNS the System.nanoTime() at which processing should stop
+   */
+  public void continueAsynchronousAction(long stopTimeNS) {
     final int STATUS_UPDATE_PERIOD_TICKS = 10;
 
-    if (asynchronousTaskInProgress != null && !asynchronousTaskInProgress.isTaskComplete()) {
-      asynchronousTaskInProgress.setTimeOfInterrupt(stopTimeNS);
-      asynchronousTaskInProgress.continueProcessing();
+    startQueuedActions();
+    int actionsRemaining = actionsInProgress.size();
+    Iterator<ActionInProgress> iterator = actionsInProgress.iterator();
+    while (iterator.hasNext()) {
+      ActionInProgress actionInProgress = iterator.next();
+      long timeNow = System.nanoTime();
+      long sliceStopTimeNS = timeNow + Math.max(0, stopTimeNS - timeNow) / actionsRemaining;
+      --actionsRemaining;
+
+      AsynchronousActionBase token = actionInProgress.token;
+      if (token.isTaskAborted()) {   // eg an undo which was queued, and found nothing left to undo once it started
+        finishAction(actionInProgress);
+        iterator.remove();
+        continue;
+      }
+      long estimatedRemainingNS = token.getEstimatedProcessingTimeRemainingNS();
+      if (estimatedRemainingNS >= 0 && timeNow + estimatedRemainingNS <= stopTimeNS) {  // expected to finish this tick: let it, instead of interrupting it part way
+        sliceStopTimeNS = stopTimeNS;
+      }
+      token.setTimeOfInterrupt(sliceStopTimeNS);
+      token.continueProcessing();
 
-      if (asynchronousTaskInProgress.isTaskComplete()) {
-        if (asynchronousTaskActionType == ActionType.ACTION) {
-          speedyToolsNetworkServer.actionCompleted(asynchronousTaskEntityPlayerMP, asynchronousTaskSequenceNumber);
-        } else {
-          speedyToolsNetworkServer.undoCompleted(asynchronousTaskEntityPlayerMP, asynchronousTaskSequenceNumber);
-        }
-        asynchronousTaskInProgress = null;
+      if (token.isTaskComplete()) {
+        finishAction(actionInProgress);
+        iterator.remove();
       } else if (0 == (ServerSide.getGlobalTickCount() % STATUS_UPDATE_PERIOD_TICKS)) {  // task not complete
-        speedyToolsNetworkServer.changeServerStatus((asynchronousTaskActionType == ActionType.ACTION) ? ServerStatus.PERFORMING_YOUR_ACTION : ServerStatus.UNDOING_YOUR_ACTION,
-                asynchronousTaskEntityPlayerMP,
-                (byte) (100 * asynchronousTaskInProgress.getFractionComplete()));
+        speedyToolsNetworkServer.changePlayerActionStatus(actionInProgress.entityPlayerMP,
+                (actionInProgress.actionType == ActionType.ACTION) ? ServerStatus.PERFORMING_YOUR_ACTION : ServerStatus.UNDOING_YOUR_ACTION,
+                (byte) (100 * token.getFractionComplete()), token.getEstimatedSecondsRemaining());
       }
     }
+  }
 
-    if (!ServerSide.getInGameStatusSimulator().isTestModeActivated()) {
-      if (asynchronousTaskInProgress == null || asynchronousTaskInProgress.isTaskComplete()) {
-        speedyToolsNetworkServer.changeServerStatus(ServerStatus.IDLE, null, (byte) 0);
-      }
+  /**
+   * tell the client that the action (or undo) has finished, and release its chunks.  The caller must remove it from actionsInProgress.
+   * An aborted action has already been accepted, so the client is still told that it has finished
+   */
+  private void finishAction(ActionInProgress actionInProgress)
+  {
+    if (actionInProgress.token.isTaskAborted()) {
+      ErrorLog.defaultLog().debug("Asynchronous " + actionInProgress.actionType + " #" + actionInProgress.sequenceNumber + " aborted");
+    }
+    if (actionInProgress.actionType == ActionType.ACTION) {
+      speedyToolsNetworkServer.actionCompleted(actionInProgress.entityPlayerMP, actionInProgress.sequenceNumber);
+    } else {
+      speedyToolsNetworkServer.undoCompleted(actionInProgress.entityPlayerMP, actionInProgress.sequenceNumber);
     }
+    speedyToolsNetworkServer.changePlayerActionStatus(actionInProgress.entityPlayerMP, ServerStatus.IDLE, (byte) 0);
+    regionLockManager.release(actionInProgress);
+  }
+
+  // describes the asynchronous actions in progress by their type, eg "ACTION, UNDO"; null if none
+  public String getAsynchronousActionDescription()
+  {
+    if (actionsInProgress.isEmpty()) return null;
+    StringBuilder description = new StringBuilder();
+    for (ActionInProgress actionInProgress : actionsInProgress) {
+      if (description.length() > 0) description.append(", ");
+      description.append(actionInProgress.actionType);
+    }
+    return description.toString();
   }
 
   /**
@@ -300,14 +421,25 @@ public class SpeedyToolServerActions
 
   public static void worldUnloadEvent(World world)
   {
-    // for now - don't need to do anything
+    ClientChunkSynchroniser.removeInstance(world);
   }
 
-  // return true if an asynchronous action is in progress - backup, complex placement, complex undo
+  // return true if an asynchronous action is in progress or queued - complex placement, complex undo
   public boolean isAsynchronousActionInProgress()
   {
-    if (asynchronousTaskInProgress != null && !asynchronousTaskInProgress.isTaskComplete()) return true;
-    return false;
+    return !actionsInProgress.isEmpty() || !queuedActions.isEmpty();
+  }
+
+  // returns the action in progress or queued for the given player, or null if none
+  private ActionInProgress findActionInProgress(EntityPlayerMP player)
+  {
+    for (ActionInProgress actionInProgress : actionsInProgress) {
+      if (actionInProgress.entityPlayerMP == player) return actionInProgress;
+    }
+    for (ActionInProgress actionInProgress : queuedActions) {
+      if (actionInProgress.entityPlayerMP == player) return actionInProgress;
+    }
+    return null;
   }
 
   private static MinecraftSaveFolderBackups minecraftSaveFolderBackups;
@@ -315,10 +447,30 @@ public class SpeedyToolServerActions
   private WorldHistory worldHistory;
   protected ServerVoxelSelections serverVoxelSelections;  // protected for test stub
 
-  private AsynchronousActionBase asynchronousTaskInProgress;
-  private int asynchronousTaskSequenceNumber;
   enum ActionType {ACTION, UNDO};
-  private ActionType asynchronousTaskActionType;
-  private EntityPlayerMP asynchronousTaskEntityPlayerMP;
+
+  private static class ActionInProgress
+  {
+    public ActionInProgress(AsynchronousActionBase i_token, ActionType i_actionType, int i_sequenceNumber, EntityPlayerMP i_entityPlayerMP,
+                            RegionLockManager.Footprint i_footprint)
+    {
+      token = i_token;
+      actionType = i_actionType;
+      sequenceNumber = i_sequenceNumber;
+      entityPlayerMP = i_entityPlayerMP;
+      footprint = i_footprint;
+    }
+
+    public final AsynchronousActionBase token;
+    public ActionType actionType;
+    public int sequenceNumber;
+    public final EntityPlayerMP entityPlayerMP;
+    public final RegionLockManager.Footprint footprint;
+    public boolean cancelled;    // undone while still queued
+  }
+
+  private RegionLockManager regionLockManager = new RegionLockManager();
+  private List<ActionInProgress> actionsInProgress = new LinkedList<ActionInProgress>();
+  private List<ActionInProgress> queuedActions = new LinkedList<ActionInProgress>();
 
 }
@@ -11,6 +11,7 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.BlockPos;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
 import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.network.Packet250SpeedyIngameTester;
 import speedytools.common.selections.VoxelSelection;
@@ -19,6 +20,8 @@ import speedytools.common.utilities.QuadOrientation;
 import speedytools.serverside.actions.AsynchronousActionCopy;
 import speedytools.serverside.network.PacketHandlerRegistryServer;
 import speedytools.serverside.worldmanipulation.AsynchronousToken;
+import speedytools.serverside.worldmanipulation.IncrementalRelighter;
+import speedytools.serverside.worldmanipulation.UniqueTokenID;
 import speedytools.serverside.worldmanipulation.WorldFragment;
 import speedytools.serverside.worldmanipulation.WorldHistory;
 import speedytools.serverside.worldmanipulation.WorldSelectionUndo;
@@ -90,6 +93,8 @@ public class
         case 17: success = performTest17(performTest); break;
         case 18: success = performTest18(entityPlayerMP, performTest); break;
         case 19: success = performTest19(entityPlayerMP, performTest); break;
+        case 20: success = performTest20(performTest); break;
+        case 21: success = performTest21(performTest); break;
         default: blankTest = true; break;
       }
       if (blankTest) {
@@ -954,6 +959,145 @@ public class
   }
 
 
+  /**
+   * Test20: relighting benchmark.  Writes a solid cube with a light source in the middle, then times the incremental
+   *   relighting against rechecking the light of every written voxel (the accurate alternative), and also prints the
+   *   time to regenerate the skylight of every chunk touched (which doesn't repair block light).
+   * Succeeds if the incremental relighting is faster.
+   */
+  public boolean performTest20(boolean performTest)
+  {
+    final int XORIGIN = 60; final int YORIGIN = 4; final int ZORIGIN = 19;
+    final int XSIZE = 32; final int YSIZE = 16; final int ZSIZE = 32;
+    WorldServer worldServer = MinecraftServer.getServer().worldServerForDimension(0);
+
+    WorldFragment cube = new WorldFragment(XSIZE, YSIZE, ZSIZE);
+    int fillID = Block.getIdFromBlock(performTest ? Blocks.stone : Blocks.air);
+    for (int x = 0; x < XSIZE; ++x) {
+      for (int y = 0; y < YSIZE; ++y) {
+        for (int z = 0; z < ZSIZE; ++z) {
+          cube.setBlockID(x, y, z, fillID);
+          cube.setMetadata(x, y, z, 0);
+          cube.setLightValue(x, y, z, (byte)0);
+        }
+      }
+    }
+    if (performTest) {
+      cube.setBlockID(XSIZE / 2, YSIZE / 2, ZSIZE / 2, Block.getIdFromBlock(Blocks.glowstone));
+    }
+    cube.writeToWorld(worldServer, XORIGIN, YORIGIN, ZORIGIN, null);
+    if (!performTest) return true;
+
+    VoxelSelection writtenVoxels = new VoxelSelection(XSIZE, YSIZE, ZSIZE);
+    writtenVoxels.setAll();
+    VoxelSelection surfaceVoxels = writtenVoxels.generateInnerSurfaceMask();
+    QuadOrientation noChange = new QuadOrientation(0, 0, 1, 1);
+
+    final int REPEATS = 5;
+    long incrementalNS = 0;
+    long everyVoxelNS = 0;
+    long skylightMapNS = 0;
+    for (int i = 0; i < REPEATS; ++i) {
+      long startTime = System.nanoTime();
+      IncrementalRelighter relighter = new IncrementalRelighter(worldServer, writtenVoxels, surfaceVoxels,
+                                                                XORIGIN, YORIGIN, ZORIGIN, noChange, 0, YSIZE);
+      relighter.continueRelighting(new UninterruptedToken());
+      incrementalNS += System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int x = 0; x < XSIZE; ++x) {
+        for (int y = 0; y < YSIZE; ++y) {
+          for (int z = 0; z < ZSIZE; ++z) {
+            worldServer.checkLight(new BlockPos(XORIGIN + x, YORIGIN + y, ZORIGIN + z));
+          }
+        }
+      }
+      everyVoxelNS += System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int cx = XORIGIN >> 4; cx <= (XORIGIN + XSIZE - 1) >> 4; ++cx) {
+        for (int cz = ZORIGIN >> 4; cz <= (ZORIGIN + ZSIZE - 1) >> 4; ++cz) {
+          Chunk chunk = worldServer.getChunkFromChunkCoords(cx, cz);
+          chunk.generateSkylightMap();
+        }
+      }
+      skylightMapNS += System.nanoTime() - startTime;
+    }
+    System.out.println();
+    System.out.println("Relighting " + XSIZE + "x" + YSIZE + "x" + ZSIZE + " average ms: incremental = " + incrementalNS / REPEATS / 1.0E6
+                       + ", every voxel = " + everyVoxelNS / REPEATS / 1.0E6
+                       + ", skylight map only = " + skylightMapNS / REPEATS / 1.0E6);
+    return incrementalNS < everyVoxelNS;
+  }
+
+  /**
+   * Test21: synchronous writes which are big enough to be prepared on a worker thread (see PreparationPool) must still be
+   *   finished when they return.  Copies a 32x16x32 region (16384 voxels) with WorldFragment.writeToWorld, then overwrites
+   *   the copy with a WorldSelectionUndo and undoes it again, checking the world after each step.
+   */
+  public boolean performTest21(boolean performTest)
+  {
+    final int XORIGIN = 0; final int YORIGIN = 4; final int ZORIGIN = 240;
+    final int XSIZE = 32; final int YSIZE = 16; final int ZSIZE = 32;
+    if (!standardCopyAndTest(performTest, true, XORIGIN, YORIGIN, ZORIGIN, XSIZE, YSIZE, ZSIZE)) return false;
+    if (!performTest) return true;
+
+    WorldServer worldServer = MinecraftServer.getServer().worldServerForDimension(0);
+    TestRegions testRegions = new TestRegions(XORIGIN, YORIGIN, ZORIGIN, XSIZE, YSIZE, ZSIZE, false);
+    BlockPos output = testRegions.testOutputRegion;
+    WorldFragment blankFragment = new WorldFragment(XSIZE, YSIZE, ZSIZE);
+    blankFragment.readFromWorld(worldServer, testRegions.testRegionInitialiser.getX(), testRegions.testRegionInitialiser.getY(), testRegions.testRegionInitialiser.getZ(), null);
+
+    WorldSelectionUndo worldSelectionUndo = new WorldSelectionUndo();
+    worldSelectionUndo.writeToWorld(worldServer, blankFragment, output.getX(), output.getY(), output.getZ());
+    if (!regionMatches(worldServer, testRegions.testRegionInitialiser, output, XSIZE, YSIZE, ZSIZE)) return false;
+
+    worldSelectionUndo.undoChanges(worldServer, new LinkedList<WorldSelectionUndo>());
+    return regionMatches(worldServer, testRegions.sourceRegion, output, XSIZE, YSIZE, ZSIZE);
+  }
+
+  // returns true if the world at actualOrigin matches the world at expectedOrigin
+  private boolean regionMatches(WorldServer worldServer, BlockPos expectedOrigin, BlockPos actualOrigin, int xSize, int ySize, int zSize)
+  {
+    WorldFragment expected = new WorldFragment(xSize, ySize, zSize);
+    expected.readFromWorld(worldServer, expectedOrigin.getX(), expectedOrigin.getY(), expectedOrigin.getZ(), null);
+    WorldFragment actual = new WorldFragment(xSize, ySize, zSize);
+    actual.readFromWorld(worldServer, actualOrigin.getX(), actualOrigin.getY(), actualOrigin.getZ(), null);
+    boolean retval = WorldFragment.areFragmentsEqual(expected, actual);
+    if (!retval) {
+      System.out.println();
+      System.out.println("Mismatch at [" + WorldFragment.lastCompareFailX + ", " + WorldFragment.lastCompareFailY + ", " + WorldFragment.lastCompareFailZ + "]");
+      System.out.println("Expected vs Actual:");
+      System.out.println(WorldFragment.lastFailureReason);
+    }
+    return retval;
+  }
+
+  // a token which never asks to be interrupted, for running an incremental task to completion in one call
+  private static class UninterruptedToken implements AsynchronousToken
+  {
+    @Override
+    public boolean isTaskComplete() {return false;}
+    @Override
+    public boolean isTaskAborted() {return false;}
+    @Override
+    public double getFractionComplete() {return 0;}
+    @Override
+    public boolean isTimeToInterrupt() {return false;}
+    @Override
+    public void setTimeOfInterrupt(long timeToStopNS) {}
+    @Override
+    public void continueProcessing() {}
+    @Override
+    public void abortProcessing() {}
+    @Override
+    public VoxelSelectionWithOrigin getLockedRegion() {return null;}
+    @Override
+    public UniqueTokenID getUniqueTokenID() {return uniqueTokenID;}
+
+    private final UniqueTokenID uniqueTokenID = new UniqueTokenID();
+  }
+
   public boolean standardCopyAndTest(boolean performTest, boolean expectedMatchesSource,
                                      int xOrigin, int yOrigin, int zOrigin, int xSize, int ySize, int zSize)
   {
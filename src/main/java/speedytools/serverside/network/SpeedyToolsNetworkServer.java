@@ -24,6 +24,8 @@ import java.util.Map;
 * Usage:
 * (1) addPlayer when player joins, removePlayer when player leaves
 * (2) changeServerStatus to let all interested clients know what the server is doing (busy or not)
+*     changePlayerActionStatus to let a client know the progress of its own action; several players' actions can be in
+*       progress at once
 * (3) handlePacket should be called to process incoming packets from the client
 * (4) in response to an incoming ToolAction, will call SpeedyToolServerActions.performToolAction.
 *     performToolAction must:
@@ -93,6 +95,9 @@ public class SpeedyToolsNetworkServer
     lastAcknowledgedUndoPacket.remove(whichPlayer);
     lastAcknowledgedActionPacket.remove(whichPlayer);
     lastStatusPacketTimeNS.remove(whichPlayer);
+    playerActionStatuses.remove(whichPlayer);
+    playerActionPercentComplete.remove(whichPlayer);
+    playerActionSecondsRemaining.remove(whichPlayer);
   }
 
   /**
@@ -117,6 +122,43 @@ public class SpeedyToolsNetworkServer
     }
   }
 
+  /**
+   * Changes the status of the action being performed for the given player, and informs the client if it is interested.
+   * Overrides the server status for that player unless the server is performing a backup.
+   * @param newStatus PERFORMING_YOUR_ACTION, UNDOING_YOUR_ACTION, or IDLE if the player has no action in progress
+   * @param newPercentComplete
+   */
+  public void changePlayerActionStatus(EntityPlayerMP player, ServerStatus newStatus, byte newPercentComplete)
+  {
+    changePlayerActionStatus(player, newStatus, newPercentComplete, -1);
+  }
+
+  /**
+   * As for changePlayerActionStatus, with an estimate of the time remaining
+   * @param newSecondsRemaining estimated time until the action is complete, or -1 if unknown
+   */
+  public void changePlayerActionStatus(EntityPlayerMP player, ServerStatus newStatus, byte newPercentComplete, int newSecondsRemaining)
+  {
+    assert (newPercentComplete >= 0 && newPercentComplete <= 100);
+    if (newStatus == ServerStatus.IDLE) {
+      if (playerActionStatuses.remove(player) == null) return;
+      playerActionPercentComplete.remove(player);
+      playerActionSecondsRemaining.remove(player);
+    } else {
+      if (newStatus == playerActionStatuses.get(player) && Byte.valueOf(newPercentComplete).equals(playerActionPercentComplete.get(player))
+          && Integer.valueOf(newSecondsRemaining).equals(playerActionSecondsRemaining.get(player))) {
+        return;
+      }
+      playerActionStatuses.put(player, newStatus);
+      playerActionPercentComplete.put(player, newPercentComplete);
+      playerActionSecondsRemaining.put(player, newSecondsRemaining);
+    }
+    ClientStatus clientStatus = playerStatuses.get(player);
+    if (clientStatus != null && clientStatus != ClientStatus.IDLE) {
+      sendUpdateToClient(player);
+    }
+  }
+
   /** tell the client that the current action has been completed
    *
    * @param player
@@ -144,8 +186,15 @@ public class SpeedyToolsNetworkServer
   private void sendUpdateToClient(EntityPlayerMP player)
   {
     ServerStatus serverStatusForThisPlayer = serverStatus;
+    byte percentCompleteForThisPlayer = serverPercentComplete;
+    int secondsRemainingForThisPlayer = -1;
     IChatComponent nameOfOtherPlayerBeingServiced = new ChatComponentText("");
-    if (player != playerBeingServiced) {
+    ServerStatus playerActionStatus = playerActionStatuses.get(player);
+    if (playerActionStatus != null && serverStatus != ServerStatus.PERFORMING_BACKUP) {
+      serverStatusForThisPlayer = playerActionStatus;
+      percentCompleteForThisPlayer = playerActionPercentComplete.get(player);
+      secondsRemainingForThisPlayer = playerActionSecondsRemaining.get(player);
+    } else if (player != playerBeingServiced) {
       switch (serverStatus) {
         case IDLE:
         case PERFORMING_BACKUP: {
@@ -162,7 +211,8 @@ public class SpeedyToolsNetworkServer
       }
     }
 
-    Packet250CloneToolStatus packet = Packet250CloneToolStatus.serverStatusChange(serverStatusForThisPlayer, serverPercentComplete, nameOfOtherPlayerBeingServiced);
+    Packet250CloneToolStatus packet = Packet250CloneToolStatus.serverStatusChange(serverStatusForThisPlayer, percentCompleteForThisPlayer,
+                                                                                 secondsRemainingForThisPlayer, nameOfOtherPlayerBeingServiced);
     PacketSenderServer packetSenderServer = playerPacketSenders.get(player);
     if (packetSenderServer == null) {
       ErrorLog.defaultLog().info("sendUpdateToClient tried to send packet to unregistered player:" + player);
@@ -270,20 +320,21 @@ public class SpeedyToolsNetworkServer
         } else {
 
           ResultWithReason result = ResultWithReason.failure();
-          if (serverStatus == ServerStatus.IDLE) {
+          ServerStatus statusForThisPlayer = getServerStatusForPlayer(player);
+          if (statusForThisPlayer == ServerStatus.IDLE) {
             result = speedyToolServerActions.performComplexAction(player, sequenceNumber, packet.getToolID(), packet.getBlockWithMetadata(),
                                                                   packet.getXpos(), packet.getYpos(), packet.getZpos(),
                                                                   packet.getQuadOrientation(), packet.getSelectionInitialOrigin());
           } else {
-            switch (serverStatus) {
+            switch (statusForThisPlayer) {
               case PERFORMING_BACKUP: {
                 result = ResultWithReason.failure("Must wait for world backup");
                 break;
               }
               case PERFORMING_YOUR_ACTION:
               case UNDOING_YOUR_ACTION: {
-                if (player == playerBeingServiced) {
-                  if (serverStatus == ServerStatus.PERFORMING_YOUR_ACTION) {
+                if (player == playerBeingServiced || playerActionStatuses.containsKey(player)) {
+                  if (statusForThisPlayer == ServerStatus.PERFORMING_YOUR_ACTION) {
                     result = ResultWithReason.failure("Must wait for your earlier spell to finish");
                   } else {
                     result = ResultWithReason.failure("Must wait for your earlier spell to undo");
@@ -322,18 +373,19 @@ public class SpeedyToolsNetworkServer
         } else {
           ResultWithReason result = ResultWithReason.failure();
           if (packet.getActionToBeUndoneSequenceNumber() == null) { // undo last completed action
-            if (serverStatus == ServerStatus.IDLE) {
+            ServerStatus statusForThisPlayer = getServerStatusForPlayer(player);
+            if (statusForThisPlayer == ServerStatus.IDLE) {
               result = speedyToolServerActions.performUndoOfLastComplexAction(player, packet.getSequenceNumber());
             } else {
-              switch (serverStatus) {
+              switch (statusForThisPlayer) {
                 case PERFORMING_BACKUP: {
                   result = ResultWithReason.failure("Must wait for world backup");
                   break;
                 }
                 case PERFORMING_YOUR_ACTION:
                 case UNDOING_YOUR_ACTION: {
-                  if (player == playerBeingServiced) {
-                    if (serverStatus == ServerStatus.PERFORMING_YOUR_ACTION) {
+                  if (player == playerBeingServiced || playerActionStatuses.containsKey(player)) {
+                    if (statusForThisPlayer == ServerStatus.PERFORMING_YOUR_ACTION) {
                       result = ResultWithReason.failure("Must wait for your earlier spell to finish");
                     } else {
                       result = ResultWithReason.failure("Must wait for your earlier spell to undo");
@@ -373,6 +425,17 @@ public class SpeedyToolsNetworkServer
     }
   }
 
+  /**
+   * the server status as it affects the given player: the backup blocks everyone; otherwise only the player's own action
+   *   (or an action set by the in-game status simulator) is relevant
+   */
+  private ServerStatus getServerStatusForPlayer(EntityPlayerMP player)
+  {
+    if (serverStatus == ServerStatus.PERFORMING_BACKUP) return serverStatus;
+    ServerStatus playerActionStatus = playerActionStatuses.get(player);
+    return (playerActionStatus != null) ? playerActionStatus : serverStatus;
+  }
+
   /**
    * update the status of the appropriate client; replies with the server status if the client is interested
    * @param player
@@ -479,6 +542,9 @@ public class SpeedyToolsNetworkServer
   private Map<EntityPlayerMP, Integer> lastAcknowledgedUndo;
   private Map<EntityPlayerMP, Packet250CloneToolAcknowledge> lastAcknowledgedUndoPacket;
   private Map<EntityPlayerMP, Long> lastStatusPacketTimeNS;
+  private Map<EntityPlayerMP, ServerStatus> playerActionStatuses = new HashMap<EntityPlayerMP, ServerStatus>();
+  private Map<EntityPlayerMP, Byte> playerActionPercentComplete = new HashMap<EntityPlayerMP, Byte>();
+  private Map<EntityPlayerMP, Integer> playerActionSecondsRemaining = new HashMap<EntityPlayerMP, Integer>();
 
 //  private class TimeStampSequenceNumber {
 //    public long timestamp;
@@ -59,4 +59,10 @@ public interface BlockDataStore
    * @param lightValue lightvalue (sky << 4 | block)
    */
   public void setLightValue(int x, int y, int z, byte lightValue);
+
+  /**
+   * estimates the heap space used by this store, for memory budgeting (see HeapSizeEstimate)
+   * @return the estimated number of bytes
+   */
+  public long getRetainedBytes();
 }
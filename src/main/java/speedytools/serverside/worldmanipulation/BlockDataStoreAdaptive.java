@@ -0,0 +1,261 @@
+package speedytools.serverside.worldmanipulation;
+
+import speedytools.common.utilities.HeapSizeEstimate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Stores the Block Data (ID, metadata, lightvalue), choosing the storage separately for each 16x16x16 section:
+ * 1) a section which has never been written takes no storage at all (reads return zero)
+ * 2) a section with only a few blocks is stored sparsely (map from offset to data)
+ * 3) once the section fill ratio passes PROMOTE_THRESHOLD, it is converted to dense arrays
+ * 4) if a dense section is mostly cleared again (fewer than DEMOTE_THRESHOLD non-zero blocks), it is converted back to sparse
+ * This means the memory and access cost track the actual density in each part of the fragment, rather than a single
+ *   guess for the whole fragment made before any blocks have been stored.
+ */
+public class BlockDataStoreAdaptive implements BlockDataStore
+{
+  public BlockDataStoreAdaptive(int i_xcount, int i_ycount, int i_zcount)
+  {
+    xCount = i_xcount;
+    yCount = i_ycount;
+    zCount = i_zcount;
+    sxCount = (xCount + SECTION_SIZE - 1) >> SECTION_BITS;
+    syCount = (yCount + SECTION_SIZE - 1) >> SECTION_BITS;
+    szCount = (zCount + SECTION_SIZE - 1) >> SECTION_BITS;
+    sections = new Section[sxCount * syCount * szCount];
+  }
+
+  @Override
+  public int getBlockID(int x, int y, int z) {
+    return getData(x, y, z) & 0xfff;
+  }
+
+  @Override
+  public void setBlockID(int x, int y, int z, int blockID) {
+    int data = getData(x, y, z);
+    setData(x, y, z, (data & ~0xfff) | (blockID & 0xfff));
+  }
+
+  @Override
+  public int getMetadata(int x, int y, int z) {
+    return (getData(x, y, z) >> 12) & 0x0f;
+  }
+
+  @Override
+  public void setMetadata(int x, int y, int z, int metadata) {
+    int data = getData(x, y, z);
+    setData(x, y, z, (data & ~0xf000) | ((metadata & 0x0f) << 12));
+  }
+
+  @Override
+  public byte getLightValue(int x, int y, int z) {
+    return (byte)(getData(x, y, z) >> 16);
+  }
+
+  @Override
+  public void setLightValue(int x, int y, int z, byte lightValue) {
+    int data = getData(x, y, z);
+    setData(x, y, z, (data & ~0xff0000) | ((lightValue & 0xff) << 16));
+  }
+
+  /**
+   * returns the number of sections currently stored densely (for testing / diagnostics)
+   */
+  public int getDenseSectionCount()
+  {
+    int count = 0;
+    for (Section section : sections) {
+      if (section instanceof SectionDense) ++count;
+    }
+    return count;
+  }
+
+  /**
+   * returns the number of sections currently stored sparsely (for testing / diagnostics)
+   */
+  public int getSparseSectionCount()
+  {
+    int count = 0;
+    for (Section section : sections) {
+      if (section instanceof SectionSparse) ++count;
+    }
+    return count;
+  }
+
+  @Override
+  public long getRetainedBytes()
+  {
+    long bytes = HeapSizeEstimate.OBJECT_HEADER + HeapSizeEstimate.arrayBytes(sections.length, HeapSizeEstimate.REFERENCE);
+    for (Section section : sections) {
+      if (section != null) bytes += section.getRetainedBytes();
+    }
+    return bytes;
+  }
+
+  // the data is packed as per BlockDataStoreSparse: bits 0 - 11 = blockID, 12 - 15 = metadata, 16 - 23 = light
+  private int getData(int x, int y, int z)
+  {
+    assert (x >= 0 && x < xCount);
+    assert (y >= 0 && y < yCount);
+    assert (z >= 0 && z < zCount);
+    Section section = sections[sectionIndex(x, y, z)];
+    if (section == null) return 0;
+    return section.get(localOffset(x, y, z));
+  }
+
+  private void setData(int x, int y, int z, int data)
+  {
+    assert (x >= 0 && x < xCount);
+    assert (y >= 0 && y < yCount);
+    assert (z >= 0 && z < zCount);
+    final int sectionIndex = sectionIndex(x, y, z);
+    Section section = sections[sectionIndex];
+    if (section == null) {
+      if (data == 0) return;
+      section = new SectionSparse();
+      sections[sectionIndex] = section;
+    }
+    section.set(localOffset(x, y, z), data);
+
+    int nonZeroCount = section.getNonZeroCount();
+    if (section instanceof SectionSparse) {
+      if (nonZeroCount > PROMOTE_THRESHOLD) {
+        sections[sectionIndex] = new SectionDense((SectionSparse)section);
+      }
+    } else {
+      if (nonZeroCount < DEMOTE_THRESHOLD) {
+        sections[sectionIndex] = (nonZeroCount == 0) ? null : new SectionSparse((SectionDense)section);
+      }
+    }
+  }
+
+  private int sectionIndex(int x, int y, int z)
+  {
+    return ((y >> SECTION_BITS) * szCount + (z >> SECTION_BITS)) * sxCount + (x >> SECTION_BITS);
+  }
+
+  private static int localOffset(int x, int y, int z)
+  {
+    return ((y & SECTION_MASK) << (2 * SECTION_BITS)) | ((z & SECTION_MASK) << SECTION_BITS) | (x & SECTION_MASK);
+  }
+
+  private interface Section
+  {
+    public int get(int offset);
+    public void set(int offset, int data);
+    public int getNonZeroCount();
+    public long getRetainedBytes();
+  }
+
+  private static class SectionSparse implements Section
+  {
+    public SectionSparse()
+    {
+      sparseData = new HashMap<Integer, Integer>();
+    }
+
+    public SectionSparse(SectionDense source)
+    {
+      sparseData = new HashMap<Integer, Integer>(source.getNonZeroCount() * 2);
+      for (int offset = 0; offset < SECTION_VOLUME; ++offset) {
+        int data = source.get(offset);
+        if (data != 0) {
+          sparseData.put(offset, data);
+        }
+      }
+    }
+
+    @Override
+    public int get(int offset) {
+      Integer data = sparseData.get(offset);
+      return data == null ? 0 : data;
+    }
+
+    @Override
+    public void set(int offset, int data) {
+      if (data == 0) {            // zero is the same as "not stored", so drop it to keep the map small
+        sparseData.remove(offset);
+      } else {
+        sparseData.put(offset, data);
+      }
+    }
+
+    @Override
+    public int getNonZeroCount() {
+      return sparseData.size();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+      return HeapSizeEstimate.OBJECT_HEADER + HeapSizeEstimate.HASHMAP_BASE
+             + sparseData.size() * HeapSizeEstimate.HASHMAP_ENTRY_BOXED_INTEGERS;
+    }
+
+    private HashMap<Integer, Integer> sparseData;
+  }
+
+  private static class SectionDense implements Section
+  {
+    public SectionDense(SectionSparse source)
+    {
+      blockIDandMetadata = new char[SECTION_VOLUME];
+      lightValues = new byte[SECTION_VOLUME];
+      nonZeroCount = 0;
+      Iterator<Map.Entry<Integer, Integer>> iterator = source.sparseData.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Integer, Integer> entry = iterator.next();
+        set(entry.getKey(), entry.getValue());
+      }
+    }
+
+    @Override
+    public int get(int offset) {
+      return blockIDandMetadata[offset] | ((lightValues[offset] & 0xff) << 16);
+    }
+
+    @Override
+    public void set(int offset, int data) {
+      boolean wasZero = (blockIDandMetadata[offset] == 0 && lightValues[offset] == 0);
+      blockIDandMetadata[offset] = (char)(data & 0xffff);
+      lightValues[offset] = (byte)(data >> 16);
+      boolean isZero = (data == 0);
+      if (wasZero && !isZero) ++nonZeroCount;
+      if (!wasZero && isZero) --nonZeroCount;
+    }
+
+    @Override
+    public int getNonZeroCount() {
+      return nonZeroCount;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+      return HeapSizeEstimate.OBJECT_HEADER + HeapSizeEstimate.arrayBytes(SECTION_VOLUME, 2) + HeapSizeEstimate.arrayBytes(SECTION_VOLUME, 1);
+    }
+
+    private char blockIDandMetadata[];
+    private byte lightValues[];
+    private int nonZeroCount;
+  }
+
+  private static final int SECTION_BITS = 4;
+  private static final int SECTION_SIZE = 1 << SECTION_BITS;
+  private static final int SECTION_MASK = SECTION_SIZE - 1;
+  private static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+
+  // promote when more than 1/4 full (same threshold as the read SETUP); demote at 1/16 to avoid thrashing back and forth
+  private static final int PROMOTE_THRESHOLD = SECTION_VOLUME / 4;
+  private static final int DEMOTE_THRESHOLD = SECTION_VOLUME / 16;
+
+  private Section [] sections;
+
+  private int xCount;
+  private int yCount;
+  private int zCount;
+  private int sxCount;
+  private int syCount;
+  private int szCount;
+}
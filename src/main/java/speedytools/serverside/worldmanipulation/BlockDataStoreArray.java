@@ -1,5 +1,7 @@
 package speedytools.serverside.worldmanipulation;
 
+import speedytools.common.utilities.HeapSizeEstimate;
+
 /**
  * User: The Grey Ghost
  * Date: 20/07/2014
@@ -121,6 +123,11 @@ public class BlockDataStoreArray implements BlockDataStore
     lightValues[offset] = lightValue;
   }
 
+  @Override
+  public long getRetainedBytes() {
+    return HeapSizeEstimate.OBJECT_HEADER + 3 * HeapSizeEstimate.arrayBytes(blockIDbits0to7.length, 1);
+  }
+
   private byte blockIDbits0to7[];
   private byte blockIDbits8to11andmetaData[];
   private byte lightValues[];
@@ -1,5 +1,7 @@
 package speedytools.serverside.worldmanipulation;
 
+import speedytools.common.utilities.HeapSizeEstimate;
+
 import java.util.HashMap;
 
 /**
@@ -125,6 +127,12 @@ public class BlockDataStoreSparse implements BlockDataStore
     sparseData.put(offset, (lightValue << 16) | (data == null ? 0 : data & ~0xff0000));
   }
 
+  @Override
+  public long getRetainedBytes() {
+    return HeapSizeEstimate.OBJECT_HEADER + HeapSizeEstimate.HASHMAP_BASE
+           + sparseData.size() * HeapSizeEstimate.HASHMAP_ENTRY_BOXED_INTEGERS;
+  }
+
   private HashMap<Integer, Integer> sparseData;
 
   private int xCount;
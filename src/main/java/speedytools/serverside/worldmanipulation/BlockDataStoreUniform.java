@@ -0,0 +1,108 @@
+package speedytools.serverside.worldmanipulation;
+
+import speedytools.common.utilities.HeapSizeEstimate;
+
+/**
+ * Stores the Block Data (ID, metadata, lightvalue) for a fragment where every voxel holds the same value, for
+ *   example when deleting (filling with air) or filling with a single block.
+ * Takes constant storage regardless of the size of the fragment, until a voxel is changed: the first write copies the
+ *   uniform value into a BlockDataStoreAdaptive and all further access goes to that copy (copy-on-write).
+ */
+public class BlockDataStoreUniform implements BlockDataStore
+{
+  public BlockDataStoreUniform(int i_xcount, int i_ycount, int i_zcount, int i_blockID, int i_metadata, byte i_lightValue)
+  {
+    xCount = i_xcount;
+    yCount = i_ycount;
+    zCount = i_zcount;
+    blockID = i_blockID;
+    metadata = i_metadata;
+    lightValue = i_lightValue;
+  }
+
+  @Override
+  public int getBlockID(int x, int y, int z) {
+    return (copiedStore == null) ? blockID : copiedStore.getBlockID(x, y, z);
+  }
+
+  @Override
+  public void setBlockID(int x, int y, int z, int blockID) {
+    copyOnWrite().setBlockID(x, y, z, blockID);
+  }
+
+  @Override
+  public int getMetadata(int x, int y, int z) {
+    return (copiedStore == null) ? metadata : copiedStore.getMetadata(x, y, z);
+  }
+
+  @Override
+  public void setMetadata(int x, int y, int z, int metadata) {
+    copyOnWrite().setMetadata(x, y, z, metadata);
+  }
+
+  @Override
+  public byte getLightValue(int x, int y, int z) {
+    return (copiedStore == null) ? lightValue : copiedStore.getLightValue(x, y, z);
+  }
+
+  @Override
+  public void setLightValue(int x, int y, int z, byte lightValue) {
+    copyOnWrite().setLightValue(x, y, z, lightValue);
+  }
+
+  @Override
+  public long getRetainedBytes() {
+    long bytes = HeapSizeEstimate.OBJECT_HEADER + 32;
+    if (copiedStore != null) bytes += copiedStore.getRetainedBytes();
+    return bytes;
+  }
+
+  /**
+   * @return true if every voxel still holds the uniform value, i.e. no voxel has been written since construction
+   */
+  public boolean isUniform() {
+    return copiedStore == null;
+  }
+
+  /** the uniform block ID; only meaningful while isUniform() */
+  public int getBlockID() {
+    return blockID;
+  }
+
+  /** the uniform metadata; only meaningful while isUniform() */
+  public int getMetadata() {
+    return metadata;
+  }
+
+  /** the uniform light value; only meaningful while isUniform() */
+  public byte getLightValue() {
+    return lightValue;
+  }
+
+  // on the first write, copy the uniform value into every voxel of a normal store
+  private BlockDataStore copyOnWrite()
+  {
+    if (copiedStore == null) {
+      BlockDataStore newStore = new BlockDataStoreAdaptive(xCount, yCount, zCount);
+      for (int y = 0; y < yCount; ++y) {
+        for (int z = 0; z < zCount; ++z) {
+          for (int x = 0; x < xCount; ++x) {
+            newStore.setBlockID(x, y, z, blockID);
+            newStore.setMetadata(x, y, z, metadata);
+            newStore.setLightValue(x, y, z, lightValue);
+          }
+        }
+      }
+      copiedStore = newStore;
+    }
+    return copiedStore;
+  }
+
+  private final int xCount;
+  private final int yCount;
+  private final int zCount;
+  private final int blockID;
+  private final int metadata;
+  private final byte lightValue;
+  private BlockDataStore copiedStore;   // null until the first write
+}
@@ -0,0 +1,170 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.WorldServer;
+import speedytools.common.selections.VoxelSelection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the voxels locked by the complex tasks in progress, used to keep simple tool placements and undos away from them.
+ * Each locked region refers to the task's own mask (no copy) and overlays it with a grid of 16x16x16 sections, one grid cell
+ *   per section of each chunk that the region covers.  Each cell is classified the first time it is queried:
+ * 1) EMPTY - none of the voxels in the section are locked
+ * 2) FULL - all of the voxels in the section which lie inside the region are locked
+ * 3) PARTIAL - only in this case is the mask itself consulted for each query
+ * A query is a constant-time lookup for each region (there are only ever a few) and doesn't allocate.
+ * Typical usage:
+ * (1) addLockedRegion() when a task starts locking voxels; removeLockedRegion() when it finishes
+ * (2) isLocked(), getLockOwner() or cullLockedVoxels() to test voxels against all of the regions
+ */
+public class ChunkGridLockIndex
+{
+  /**
+   * add a locked region.  The mask is not copied: voxels added to it later may be missed, and voxels cleared from it
+   *   may still be reported as locked.
+   * @param owner the task which holds the lock
+   * @param mask the locked voxels
+   * @param wxOrigin the world coordinates of the mask's [0,0,0]
+   */
+  public void addLockedRegion(Object owner, WorldServer worldServer, VoxelSelection mask, int wxOrigin, int wyOrigin, int wzOrigin)
+  {
+    lockedRegions.add(new LockedRegion(owner, worldServer, mask, wxOrigin, wyOrigin, wzOrigin));
+  }
+
+  /** remove all the regions locked by the given owner */
+  public void removeLockedRegion(Object owner)
+  {
+    for (int i = lockedRegions.size() - 1; i >= 0; --i) {
+      if (lockedRegions.get(i).owner == owner) {
+        lockedRegions.remove(i);
+      }
+    }
+  }
+
+  public boolean isEmpty() {return lockedRegions.isEmpty();}
+
+  public boolean isLocked(WorldServer worldServer, int wx, int wy, int wz)
+  {
+    return getLockOwner(worldServer, wx, wy, wz) != null;
+  }
+
+  /** returns the owner of the lock on the given voxel, or null if not locked */
+  public Object getLockOwner(WorldServer worldServer, int wx, int wy, int wz)
+  {
+    for (int i = 0; i < lockedRegions.size(); ++i) {
+      LockedRegion lockedRegion = lockedRegions.get(i);
+      if (lockedRegion.worldServer == worldServer && lockedRegion.isLocked(wx, wy, wz)) {
+        return lockedRegion.owner;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * remove all the locked blocks from the list
+   * @return the blocks which aren't locked; the original list if none of them are locked
+   */
+  public List<BlockPos> cullLockedVoxels(WorldServer worldServer, List<BlockPos> blocksToCheck)
+  {
+    if (lockedRegions.isEmpty()) return blocksToCheck;
+    List<BlockPos> culledList = null;
+    int index = 0;
+    for (BlockPos blockPos : blocksToCheck) {
+      boolean locked = isLocked(worldServer, blockPos.getX(), blockPos.getY(), blockPos.getZ());
+      if (locked && culledList == null) {           // first locked block: copy the unlocked blocks so far
+        culledList = new ArrayList<BlockPos>(blocksToCheck.size());
+        culledList.addAll(blocksToCheck.subList(0, index));
+      } else if (!locked && culledList != null) {
+        culledList.add(blockPos);
+      }
+      ++index;
+    }
+    return (culledList == null) ? blocksToCheck : culledList;
+  }
+
+  private static class LockedRegion
+  {
+    public LockedRegion(Object i_owner, WorldServer i_worldServer, VoxelSelection i_mask, int i_wxOrigin, int i_wyOrigin, int i_wzOrigin)
+    {
+      owner = i_owner;
+      worldServer = i_worldServer;
+      mask = i_mask;
+      wxOrigin = i_wxOrigin;
+      wyOrigin = i_wyOrigin;
+      wzOrigin = i_wzOrigin;
+      cxMin = wxOrigin >> 4;
+      czMin = wzOrigin >> 4;
+      czCount = ((wzOrigin + mask.getzSize() - 1) >> 4) - czMin + 1;
+      int cxCount = ((wxOrigin + mask.getxSize() - 1) >> 4) - cxMin + 1;
+      sectionStates = new byte[cxCount * czCount * SECTIONS_PER_CHUNK];
+    }
+
+    public boolean isLocked(int wx, int wy, int wz)
+    {
+      int x = wx - wxOrigin;
+      int y = wy - wyOrigin;
+      int z = wz - wzOrigin;
+      if (x < 0 || x >= mask.getxSize() || y < 0 || y >= mask.getySize() || z < 0 || z >= mask.getzSize()) return false;
+      if (wy < 0 || wy >= SECTIONS_PER_CHUNK * 16) return mask.getVoxel(x, y, z);
+
+      int cellIndex = ((((wx >> 4) - cxMin) * czCount + ((wz >> 4) - czMin)) * SECTIONS_PER_CHUNK) + (wy >> 4);
+      byte state = sectionStates[cellIndex];
+      if (state == UNKNOWN) {
+        state = classifySection(wx & ~0x0f, wy & ~0x0f, wz & ~0x0f);
+        sectionStates[cellIndex] = state;
+      }
+      switch (state) {
+        case EMPTY: return false;
+        case FULL: return true;
+        default: return mask.getVoxel(x, y, z);
+      }
+    }
+
+    // classify the section with the given world corner, considering only the part which lies inside the mask
+    private byte classifySection(int wxSection, int wySection, int wzSection)
+    {
+      int xMin = Math.max(0, wxSection - wxOrigin);
+      int xMax = Math.min(mask.getxSize(), wxSection + 16 - wxOrigin);
+      int yMin = Math.max(0, wySection - wyOrigin);
+      int yMax = Math.min(mask.getySize(), wySection + 16 - wyOrigin);
+      int zMin = Math.max(0, wzSection - wzOrigin);
+      int zMax = Math.min(mask.getzSize(), wzSection + 16 - wzOrigin);
+      boolean anySet = false;
+      boolean anyClear = false;
+      for (int z = zMin; z < zMax; ++z) {
+        for (int y = yMin; y < yMax; ++y) {
+          for (int x = xMin; x < xMax; ++x) {
+            if (mask.getVoxel(x, y, z)) {
+              anySet = true;
+            } else {
+              anyClear = true;
+            }
+            if (anySet && anyClear) return PARTIAL;
+          }
+        }
+      }
+      return anySet ? FULL : EMPTY;
+    }
+
+    public final Object owner;
+    public final WorldServer worldServer;
+    private final VoxelSelection mask;
+    private final int wxOrigin;
+    private final int wyOrigin;
+    private final int wzOrigin;
+    private final int cxMin;
+    private final int czMin;
+    private final int czCount;
+    private final byte [] sectionStates;
+  }
+
+  private static final int SECTIONS_PER_CHUNK = 16;
+  private static final byte UNKNOWN = 0;
+  private static final byte EMPTY = 1;
+  private static final byte FULL = 2;
+  private static final byte PARTIAL = 3;
+
+  private List<LockedRegion> lockedRegions = new ArrayList<LockedRegion>();
+}
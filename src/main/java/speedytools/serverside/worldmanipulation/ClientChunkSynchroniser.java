@@ -0,0 +1,269 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.server.S21PacketChunkData;
+import net.minecraft.network.play.server.S22PacketMultiBlockChange;
+import net.minecraft.server.management.PlayerManager;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Collects the blocks changed by WorldFragment writes and sends them to the watching clients, choosing for each chunk the
+ *   cheapest of:
+ * 1) a multi-block change packet, if only a few blocks have changed (up to MAX_DELTA_BLOCKS)
+ * 2) an update of only the changed sections, if fewer than FULL_RESEND_SECTION_COUNT sections have changed
+ * 3) otherwise, a full chunk resend
+ * The changes are sent to the players which the PlayerManager has watching the chunk, the same as vanilla block changes.
+ * A client relights the blocks it receives in a multi-block change itself, but takes the light values of resent sections
+ *   as they are, so when sections are resent, the light of the sections next to them (which the server's relighting may
+ *   have spread into, including in the neighbouring chunks) is resent as well.  Light changes found by the relighting
+ *   itself (eg below a column whose height changed) are marked with markLightChanged.
+ * The changes to a chunk are held while an asynchronous action is in progress and the chunk is still being written to, so
+ *   that the several writes performed by a move or an undo are coalesced into a single update for each chunk; once the
+ *   chunk has gone HOLD_QUIET_TICKS without a change, or has been held for MAX_HOLD_TICKS, it is sent anyway.
+ * Typical usage:
+ * (1) getInstance(worldServer).markBlockChanged() for each block written
+ * (2) tickAll() once per server tick, after the asynchronous actions have been processed
+ */
+public class ClientChunkSynchroniser
+{
+  public static ClientChunkSynchroniser getInstance(WorldServer worldServer)
+  {
+    ClientChunkSynchroniser instance = instances.get(worldServer);
+    if (instance == null) {
+      instance = new ClientChunkSynchroniser(worldServer);
+      instances.put(worldServer, instance);
+    }
+    return instance;
+  }
+
+  /**
+   * discard the synchroniser for a world which is being unloaded
+   */
+  public static void removeInstance(World world)
+  {
+    instances.remove(world);
+  }
+
+  /**
+   * send the pending changes for all worlds
+   * @param holdChanges if true, an asynchronous action is still underway - only send changes which have been held for too long
+   */
+  public static void tickAll(boolean holdChanges)
+  {
+    for (ClientChunkSynchroniser instance : instances.values()) {
+      instance.tick(holdChanges);
+    }
+  }
+
+  private ClientChunkSynchroniser(WorldServer i_worldServer)
+  {
+    worldServerReference = new WeakReference<WorldServer>(i_worldServer);
+  }
+
+  /**
+   * record that the block at the given world position has changed
+   */
+  public void markBlockChanged(int wx, int wy, int wz)
+  {
+    getChunkChanges(wx >> 4, wz >> 4).markBlockChanged(wx & 0x0f, wy, wz & 0x0f);
+  }
+
+  /**
+   * record that the light (but not the block) at the given world position has changed
+   */
+  public void markLightChanged(int wx, int wy, int wz)
+  {
+    if (wy < 0 || wy > 255) return;
+    getChunkChanges(wx >> 4, wz >> 4).markLightChanged(1 << (wy >> 4));
+  }
+
+  private ChunkChanges getChunkChanges(int cx, int cz)
+  {
+    if (lastChunkChanges == null || lastChunkChanges.cx != cx || lastChunkChanges.cz != cz) {  // successive blocks are usually in the same chunk
+      Long chunkKey = ((long)cx << 32) | (cz & 0xffffffffL);
+      lastChunkChanges = pendingChanges.get(chunkKey);
+      if (lastChunkChanges == null) {
+        lastChunkChanges = new ChunkChanges(cx, cz, ticksElapsed);
+        pendingChanges.put(chunkKey, lastChunkChanges);
+      }
+    }
+    lastChunkChanges.lastChangeTick = ticksElapsed;
+    return lastChunkChanges;
+  }
+
+  private void tick(boolean holdChanges)
+  {
+    ++ticksElapsed;
+    if (pendingChanges.isEmpty()) return;
+    WorldServer worldServer = worldServerReference.get();
+    if (worldServer == null) {
+      pendingChanges.clear();
+      lastChunkChanges = null;
+      return;
+    }
+    List<EntityPlayerMP> players = new ArrayList<EntityPlayerMP>();
+    for (Object playerEntity : worldServer.playerEntities) {
+      players.add((EntityPlayerMP)playerEntity);
+    }
+    PlayerManager playerManager = worldServer.getPlayerManager();
+    List<ChunkChanges> lightSpreadSources = new LinkedList<ChunkChanges>();
+
+    Iterator<ChunkChanges> iterator = pendingChanges.values().iterator();
+    while (iterator.hasNext()) {
+      ChunkChanges chunkChanges = iterator.next();
+      if (holdChanges && ticksElapsed - chunkChanges.lastChangeTick < HOLD_QUIET_TICKS
+          && ticksElapsed - chunkChanges.firstChangeTick < MAX_HOLD_TICKS) continue;
+      iterator.remove();
+      if (chunkChanges == lastChunkChanges) lastChunkChanges = null;
+
+      List<EntityPlayerMP> watchingPlayers = new LinkedList<EntityPlayerMP>();
+      for (EntityPlayerMP entityPlayerMP : players) {
+        if (playerManager.isPlayerWatchingChunk(entityPlayerMP, chunkChanges.cx, chunkChanges.cz)) {
+          watchingPlayers.add(entityPlayerMP);
+        }
+      }
+      if (!watchingPlayers.isEmpty()) {
+        boolean sectionsResent = sendChunkChanges(worldServer, chunkChanges, watchingPlayers);
+        if (sectionsResent && chunkChanges.changedSections != 0) {
+          lightSpreadSources.add(chunkChanges);
+        }
+      }
+    }
+
+    // the resent sections may have spread light into the sections around them, which the clients won't relight themselves
+    for (ChunkChanges source : lightSpreadSources) {
+      int spreadSections = (source.changedSections | (source.changedSections << 1) | (source.changedSections >> 1)) & 0xffff;
+      for (int dcx = -1; dcx <= 1; ++dcx) {
+        for (int dcz = -1; dcz <= 1; ++dcz) {
+          int sectionsToResend = (dcx == 0 && dcz == 0) ? (spreadSections & ~source.changedSections) : spreadSections;
+          if (sectionsToResend != 0) {
+            getChunkChanges(source.cx + dcx, source.cz + dcz).markLightChanged(sectionsToResend);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * send the changes for one chunk
+   * @return true if sections of the chunk were resent (rather than a multi-block change only)
+   */
+  private boolean sendChunkChanges(WorldServer worldServer, ChunkChanges chunkChanges, List<EntityPlayerMP> watchingPlayers)
+  {
+    Chunk chunk = worldServer.getChunkFromChunkCoords(chunkChanges.cx, chunkChanges.cz);
+    List<Packet> packets = new LinkedList<Packet>();
+    boolean sectionsResent = false;
+
+    if (chunkChanges.changedSections == 0 && chunkChanges.lightChangedSections == 0) return false;
+    if (chunkChanges.changedSections == 0) {   // light changes only
+      packets.add(new S21PacketChunkData(chunk, false, chunkChanges.lightChangedSections));
+    } else if (!chunkChanges.deltaOverflowed) {
+      short [] crammedPositions = new short[chunkChanges.changedBlocks.size()];
+      int i = 0;
+      for (short crammedPosition : chunkChanges.changedBlocks) {
+        crammedPositions[i++] = crammedPosition;
+      }
+      packets.add(new S22PacketMultiBlockChange(crammedPositions.length, crammedPositions, chunk));
+      for (short crammedPosition : crammedPositions) {
+        BlockPos blockPos = new BlockPos((chunkChanges.cx << 4) + ((crammedPosition >> 12) & 0x0f),
+                                         crammedPosition & 0xff,
+                                         (chunkChanges.cz << 4) + ((crammedPosition >> 8) & 0x0f));
+        addTileEntityPacket(packets, worldServer.getTileEntity(blockPos));
+      }
+      int lightOnlySections = chunkChanges.lightChangedSections & ~chunkChanges.changedSections;
+      if (lightOnlySections != 0) {
+        packets.add(new S21PacketChunkData(chunk, false, lightOnlySections));
+      }
+    } else if (Integer.bitCount(chunkChanges.changedSections | chunkChanges.lightChangedSections) < FULL_RESEND_SECTION_COUNT) {
+      sectionsResent = true;
+      packets.add(new S21PacketChunkData(chunk, false, chunkChanges.changedSections | chunkChanges.lightChangedSections));
+      for (Object tileEntityObject : chunk.getTileEntityMap().values()) {
+        TileEntity tileEntity = (TileEntity)tileEntityObject;
+        if ((chunkChanges.changedSections & (1 << (tileEntity.getPos().getY() >> 4))) != 0) {
+          addTileEntityPacket(packets, tileEntity);
+        }
+      }
+    } else {
+      ChunkCoordIntPair chunkCoordIntPair = chunk.getChunkCoordIntPair();
+      for (EntityPlayerMP entityPlayerMP : watchingPlayers) {
+        entityPlayerMP.loadedChunks.add(chunkCoordIntPair);  // a better name for "loadedChunks" would be "dirtyChunksQueuedForSending"
+      }
+      return true;
+    }
+
+    for (EntityPlayerMP entityPlayerMP : watchingPlayers) {
+      for (Packet packet : packets) {
+        entityPlayerMP.playerNetServerHandler.sendPacket(packet);
+      }
+    }
+    return sectionsResent;
+  }
+
+  private static void addTileEntityPacket(List<Packet> packets, TileEntity tileEntity)
+  {
+    if (tileEntity == null) return;
+    Packet descriptionPacket = tileEntity.getDescriptionPacket();
+    if (descriptionPacket != null) {
+      packets.add(descriptionPacket);
+    }
+  }
+
+  private static class ChunkChanges
+  {
+    public ChunkChanges(int i_cx, int i_cz, int i_firstChangeTick)
+    {
+      cx = i_cx;
+      cz = i_cz;
+      firstChangeTick = i_firstChangeTick;
+    }
+
+    // xLSN, zLSN = position within the chunk; wy = world y
+    public void markBlockChanged(int xLSN, int wy, int zLSN)
+    {
+      if (wy < 0 || wy > 255) return;
+      changedSections |= 1 << (wy >> 4);
+      if (deltaOverflowed) return;
+      changedBlocks.add((short)((xLSN << 12) | (zLSN << 8) | wy));   // same packing as S22PacketMultiBlockChange
+      if (changedBlocks.size() > MAX_DELTA_BLOCKS) {
+        deltaOverflowed = true;
+        changedBlocks = null;
+      }
+    }
+
+    public void markLightChanged(int sectionMask)
+    {
+      lightChangedSections |= sectionMask;
+    }
+
+    public final int cx;
+    public final int cz;
+    public final int firstChangeTick;
+    public int lastChangeTick;
+    public int changedSections;
+    public int lightChangedSections;   // sections whose light has changed but whose blocks haven't (necessarily)
+    public boolean deltaOverflowed;
+    public Set<Short> changedBlocks = new HashSet<Short>();
+  }
+
+  private static final int MAX_DELTA_BLOCKS = 64;            // same as the vanilla PlayerManager
+  private static final int FULL_RESEND_SECTION_COUNT = 8;
+  private static final int HOLD_QUIET_TICKS = 2;
+  private static final int MAX_HOLD_TICKS = 10;
+
+  // weak keys as a backstop in case a world is discarded without an unload event; the instance only holds its world weakly
+  private static WeakHashMap<World, ClientChunkSynchroniser> instances = new WeakHashMap<World, ClientChunkSynchroniser>();
+
+  private final WeakReference<WorldServer> worldServerReference;
+  private HashMap<Long, ChunkChanges> pendingChanges = new HashMap<Long, ChunkChanges>();
+  private ChunkChanges lastChunkChanges;
+  private int ticksElapsed;
+}
@@ -0,0 +1,285 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.block.Block;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.fml.relauncher.ReflectionHelper;
+import speedytools.common.selections.VoxelSelection;
+import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.QuadOrientation;
+
+import java.lang.reflect.Field;
+
+/**
+ * Repairs the height map and lighting after a WorldFragment has been written, touching only the columns which were written
+ *   instead of regenerating the whole of every chunk.
+ * The light values copied from the fragment are not trusted, because light which entered the fragment from outside can
+ *   hold itself up once the fragment has been moved.  Instead:
+ * 1) RESET pass: for each written column, the height map (and precipitation height map, and the chunk's minimum height)
+ *    is recalculated, then every written voxel is reset to a lower bound - skylight 15 if it can see the sky, otherwise 0,
+ *    and block light 0.
+ * 2) CHECK pass: the world's light update (a bounded flood fill which only needs to brighten, since nothing is too bright)
+ *    is run on the voxels where light can enter: the surface of the write mask, the voxels just below the sky in this
+ *    column or a neighbouring column, and blocks which emit light.  Skylight is also rechecked over any range where the
+ *    column height changed.
+ * Interior voxels are lit by the flood fill spreading in from those voxels, so the number of light updates is roughly
+ *   proportional to the surface of the mask, not its volume.  If the surface is a large fraction of the volume (eg thin
+ *   walls), the caller should regenerate the chunks in full instead (see getSurfaceFraction).
+ * The work is done one column at a time and can be interrupted between columns.
+ * Typical usage:
+ * (1) create the relighter after the blocks have been written
+ * (2) repeatedly call continueRelighting(token) until it returns true
+ */
+public class IncrementalRelighter
+{
+  /**
+   * @param i_writtenVoxels the voxels which were written, in fragment coordinates
+   * @param i_surfaceVoxels the written voxels on the surface of the write mask (see VoxelSelection.generateInnerSurfaceMask)
+   * @param i_yClipMin the lowest fragment y which was written
+   * @param i_yClipMaxPlusOne the highest fragment y which was written, plus one
+   */
+  public IncrementalRelighter(WorldServer i_worldServer, VoxelSelection i_writtenVoxels, VoxelSelection i_surfaceVoxels,
+                              int i_wxOrigin, int i_wyOrigin, int i_wzOrigin, QuadOrientation i_orientation,
+                              int i_yClipMin, int i_yClipMaxPlusOne)
+  {
+    worldServer = i_worldServer;
+    writtenVoxels = i_writtenVoxels;
+    surfaceVoxels = i_surfaceVoxels;
+    wxOrigin = i_wxOrigin;
+    wyOrigin = i_wyOrigin;
+    wzOrigin = i_wzOrigin;
+    orientation = i_orientation;
+    yClipMin = i_yClipMin;
+    yClipMaxPlusOne = i_yClipMaxPlusOne;
+    xCount = writtenVoxels.getxSize();
+    zCount = writtenVoxels.getzSize();
+    oldHeights = new int[xCount * zCount];
+    x = 0;
+    z = 0;
+    resetComplete = false;
+  }
+
+  /**
+   * if set, the light changes found below the written voxels (where a column height changed) are passed to the
+   *   synchroniser so that the clients receive them
+   */
+  public void setClientChunkSynchroniser(ClientChunkSynchroniser i_clientChunkSynchroniser)
+  {
+    clientChunkSynchroniser = i_clientChunkSynchroniser;
+  }
+
+  /**
+   * the fraction of the written voxels which are on the surface; the cost of incremental relighting is roughly
+   *   proportional to this
+   */
+  public static double getSurfaceFraction(VoxelSelection writtenVoxels, VoxelSelection surfaceVoxels)
+  {
+    int writtenCount = writtenVoxels.getSetVoxelsCount();
+    return (writtenCount == 0) ? 0.0 : surfaceVoxels.getSetVoxelsCount() / (double)writtenCount;
+  }
+
+  /**
+   * relight columns until finished or until the token says it's time to interrupt
+   * @param token the token whose interrupt time is used
+   * @return true if the relighting is complete
+   */
+  public boolean continueRelighting(AsynchronousToken token)
+  {
+    if (!resetComplete) {
+      for (; z < zCount; ++z, x = 0) {
+        for (; x < xCount; ) {
+          resetColumn(x, z);
+          ++x;
+          if (token.isTimeToInterrupt()) return false;
+        }
+      }
+      resetComplete = true;
+      x = 0;
+      z = 0;
+    }
+    for (; z < zCount; ++z, x = 0) {
+      for (; x < xCount; ) {
+        checkColumn(x, z);
+        ++x;
+        if (token.isTimeToInterrupt()) return false;
+      }
+    }
+    return true;
+  }
+
+  public double getFractionComplete()
+  {
+    double passFraction = Math.min(1.0, (z * xCount + x) / (double)(zCount * xCount));
+    return resetComplete ? 0.5 + passFraction / 2.0 : passFraction / 2.0;
+  }
+
+  // recalculates the height map for the column and resets the light of the written voxels to their lower bound
+  private void resetColumn(int x, int z)
+  {
+    int yWrittenMax = -1;
+    for (int y = yClipMaxPlusOne - 1; y >= yClipMin; --y) {
+      if (writtenVoxels.getVoxel(x, y, z)) {
+        yWrittenMax = y;
+        break;
+      }
+    }
+    if (yWrittenMax < 0) return;
+
+    int wx = orientation.calcWXfromXZ(x, z) + wxOrigin;
+    int wz = orientation.calcWZfromXZ(x, z) + wzOrigin;
+    Chunk chunk = worldServer.getChunkFromChunkCoords(wx >> 4, wz >> 4);
+    int xLSN = wx & 0x0f;
+    int zLSN = wz & 0x0f;
+
+    // the height map holds the y just above the highest block which blocks light
+    int oldHeight = chunk.getHeightValue(xLSN, zLSN);
+    oldHeights[z * xCount + x] = oldHeight;
+    int newHeight = 0;
+    for (int wy = Math.max(oldHeight, yWrittenMax + wyOrigin + 1) - 1; wy >= 0; --wy) {
+      if (chunk.getBlock(xLSN, wy, zLSN).getLightOpacity() != 0) {
+        newHeight = wy + 1;
+        break;
+      }
+    }
+    if (newHeight != oldHeight) {
+      int [] heightMap = chunk.getHeightMap();
+      heightMap[zLSN << 4 | xLSN] = newHeight;
+      updateHeightMapMinimum(chunk, heightMap);
+    }
+    invalidatePrecipitationHeight(chunk, xLSN, zLSN);   // recalculated by the chunk the next time it's needed
+
+    final boolean hasSky = !worldServer.provider.getHasNoSky();
+    final byte SKY_LOWER_BOUND = (byte)(15 << 4);
+    for (int y = yClipMin; y <= yWrittenMax; ++y) {
+      if (writtenVoxels.getVoxel(x, y, z)) {
+        int wy = y + wyOrigin;
+        WorldFragment.setLightValue(chunk, wx, wy, wz, (hasSky && wy >= newHeight) ? SKY_LOWER_BOUND : 0);
+      }
+    }
+    chunk.setChunkModified();
+  }
+
+  // runs the light updates for the voxels of the column where light can enter
+  private void checkColumn(int x, int z)
+  {
+    int yWrittenMin = -1;
+    int yWrittenMax = -1;
+    for (int y = yClipMin; y < yClipMaxPlusOne; ++y) {
+      if (writtenVoxels.getVoxel(x, y, z)) {
+        if (yWrittenMin < 0) yWrittenMin = y;
+        yWrittenMax = y;
+      }
+    }
+    if (yWrittenMin < 0) return;
+
+    int wx = orientation.calcWXfromXZ(x, z) + wxOrigin;
+    int wz = orientation.calcWZfromXZ(x, z) + wzOrigin;
+    Chunk chunk = worldServer.getChunkFromChunkCoords(wx >> 4, wz >> 4);
+    int xLSN = wx & 0x0f;
+    int zLSN = wz & 0x0f;
+    final boolean hasSky = !worldServer.provider.getHasNoSky();
+
+    int oldHeight = oldHeights[z * xCount + x];
+    int newHeight = chunk.getHeightValue(xLSN, zLSN);
+    if (hasSky && newHeight != oldHeight) {   // includes voxels which weren't written, eg under a roof which was removed
+      for (int wy = Math.min(oldHeight, newHeight); wy < Math.max(oldHeight, newHeight); ++wy) {
+        worldServer.checkLightFor(EnumSkyBlock.SKY, new BlockPos(wx, wy, wz));
+        if (clientChunkSynchroniser != null) {
+          clientChunkSynchroniser.markLightChanged(wx, wy, wz);
+        }
+      }
+    }
+
+    // skylight can enter a voxel below the sky from above, or sideways from a column whose sky is lower
+    int wySkyBandMin = newHeight - 1;
+    if (hasSky) {
+      wySkyBandMin = Math.min(wySkyBandMin, getWorldHeight(wx - 1, wz, newHeight));
+      wySkyBandMin = Math.min(wySkyBandMin, getWorldHeight(wx + 1, wz, newHeight));
+      wySkyBandMin = Math.min(wySkyBandMin, getWorldHeight(wx, wz - 1, newHeight));
+      wySkyBandMin = Math.min(wySkyBandMin, getWorldHeight(wx, wz + 1, newHeight));
+    }
+
+    for (int y = yWrittenMin; y <= yWrittenMax; ++y) {
+      if (!writtenVoxels.getVoxel(x, y, z)) continue;
+      int wy = y + wyOrigin;
+      if (surfaceVoxels.getVoxel(x, y, z)) {
+        worldServer.checkLight(new BlockPos(wx, wy, wz));
+        continue;
+      }
+      if (hasSky && wy >= wySkyBandMin && wy < newHeight) {
+        worldServer.checkLightFor(EnumSkyBlock.SKY, new BlockPos(wx, wy, wz));
+      }
+      Block block = chunk.getBlock(xLSN, wy, zLSN);
+      if (block.getLightValue() > 0) {
+        worldServer.checkLightFor(EnumSkyBlock.BLOCK, new BlockPos(wx, wy, wz));
+      }
+    }
+    chunk.setChunkModified();
+  }
+
+  // the height map value at the given world column, or the default if its chunk isn't loaded
+  private int getWorldHeight(int wx, int wz, int defaultHeight)
+  {
+    if (!worldServer.getChunkProvider().chunkExists(wx >> 4, wz >> 4)) return defaultHeight;
+    return worldServer.getChunkFromChunkCoords(wx >> 4, wz >> 4).getHeightValue(wx & 0x0f, wz & 0x0f);
+  }
+
+  private static void updateHeightMapMinimum(Chunk chunk, int [] heightMap)
+  {
+    if (heightMapMinimumField == null) return;
+    int minimum = Integer.MAX_VALUE;
+    for (int height : heightMap) {
+      minimum = Math.min(minimum, height);
+    }
+    try {
+      heightMapMinimumField.setInt(chunk, minimum);
+    } catch (IllegalAccessException iae) {
+      ErrorLog.defaultLog().debug("IncrementalRelighter couldn't set heightMapMinimum: " + iae);
+    }
+  }
+
+  private static void invalidatePrecipitationHeight(Chunk chunk, int xLSN, int zLSN)
+  {
+    if (precipitationHeightMapField == null) return;
+    try {
+      int [] precipitationHeightMap = (int [])precipitationHeightMapField.get(chunk);
+      precipitationHeightMap[xLSN + (zLSN << 4)] = PRECIPITATION_HEIGHT_UNKNOWN;
+    } catch (IllegalAccessException iae) {
+      ErrorLog.defaultLog().debug("IncrementalRelighter couldn't reset precipitationHeightMap: " + iae);
+    }
+  }
+
+  private static Field findChunkField(String... fieldNames)
+  {
+    try {
+      return ReflectionHelper.findField(Chunk.class, fieldNames);
+    } catch (ReflectionHelper.UnableToFindFieldException e) {
+      ErrorLog.defaultLog().info("IncrementalRelighter couldn't find Chunk field " + fieldNames[0] + "; it won't be updated");
+      return null;
+    }
+  }
+
+  private static final Field heightMapMinimumField = findChunkField("heightMapMinimum", "field_82912_p");
+  private static final Field precipitationHeightMapField = findChunkField("precipitationHeightMap", "field_76638_b");
+  private static final int PRECIPITATION_HEIGHT_UNKNOWN = -999;   // same as Chunk uses
+
+  private final WorldServer worldServer;
+  private final VoxelSelection writtenVoxels;
+  private final VoxelSelection surfaceVoxels;
+  private final int wxOrigin;
+  private final int wyOrigin;
+  private final int wzOrigin;
+  private final QuadOrientation orientation;
+  private final int yClipMin;
+  private final int yClipMaxPlusOne;
+  private final int xCount;
+  private final int zCount;
+  private final int [] oldHeights;   // the height map of each column before the RESET pass changed it
+
+  private int x;
+  private int z;
+  private boolean resetComplete;
+  private ClientChunkSynchroniser clientChunkSynchroniser;
+}
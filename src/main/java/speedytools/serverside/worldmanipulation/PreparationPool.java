@@ -0,0 +1,156 @@
+package speedytools.serverside.worldmanipulation;
+
+import speedytools.common.SpeedyToolsOptions;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of worker threads for the "prepare" part of the asynchronous tasks: work which only needs data that won't
+ *   change while the task is running (orientation transforms, metadata rotation, mask generation, fragment comparison)
+ *   so that it can be done off the server thread.  Anything which reads or changes the world must stay on the server thread.
+ * The tasks submitted must not refer to any objects which the server thread may change while they are running.
+ * The threads are daemons and have slightly lower priority than the server thread, so that they don't delay the tick.
+ * Disk I/O (spilling undo layers to disk and reading them back) has its own single-threaded pool, so that slow reads
+ *   and writes don't hold up the preparation work, and vice versa.
+ * Usage:
+ * (1) prepare() the work - on the pool if isEnabled(), otherwise immediately on the server thread; or
+ *     submitIO() the disk access
+ * (2) getResultIfReady() from the task's timeslices until the result is available; it never waits.
+ *     A task which must run to completion in a single call (INFINITE_TIMEOUT) uses getResult(future, true) instead.
+ */
+public class PreparationPool
+{
+  public static PreparationPool defaultPool()
+  {
+    if (defaultPool == null) {
+      defaultPool = new PreparationPool(SpeedyToolsOptions.getMaxPreparationThreads());
+    }
+    return defaultPool;
+  }
+
+  /** the pool used for disk I/O, with a single thread */
+  public static PreparationPool ioPool()
+  {
+    if (ioPool == null) {
+      ioPool = new PreparationPool(1, "SpeedyTools disk I/O");
+    }
+    return ioPool;
+  }
+
+  public static boolean isEnabled() {return SpeedyToolsOptions.getOffThreadPreparation();}
+
+  /**
+   * @param maxThreads the maximum number of worker threads; fewer if the machine doesn't have enough processors
+   */
+  public PreparationPool(int maxThreads)
+  {
+    this(maxThreads, "SpeedyTools preparation");
+  }
+
+  /**
+   * @param maxThreads the maximum number of worker threads; fewer if the machine doesn't have enough processors
+   * @param i_threadName the name given to the worker threads (followed by a number)
+   */
+  public PreparationPool(int maxThreads, String i_threadName)
+  {
+    final String threadName = i_threadName;
+    int threadCount = Math.max(1, Math.min(maxThreads, Runtime.getRuntime().availableProcessors() - 1));
+    executorService = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, threadName + " " + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    });
+  }
+
+  public <T> Future<T> submit(Callable<T> task)
+  {
+    return executorService.submit(task);
+  }
+
+  /**
+   * carry out the work on the default pool if off-thread preparation is enabled, otherwise on the calling thread
+   * @return the Future for the result (already complete if the work was done on the calling thread)
+   */
+  public static <T> Future<T> prepare(Callable<T> task)
+  {
+    if (isEnabled()) return defaultPool().submit(task);
+    FutureTask<T> futureTask = new FutureTask<T>(task);
+    futureTask.run();
+    return futureTask;
+  }
+
+  /**
+   * carry out the disk access on the I/O pool
+   * @return the Future for the result
+   */
+  public static <T> Future<T> submitIO(Callable<T> task)
+  {
+    return ioPool().submit(task);
+  }
+
+  /**
+   * returns the result of the preparation if it has finished, without waiting
+   * @return the result, or null if it's not ready yet
+   * @throws RuntimeException if the preparation threw an exception
+   */
+  public static <T> T getResultIfReady(Future<T> future)
+  {
+    return getResult(future, false);
+  }
+
+  /**
+   * returns the result of the preparation, optionally waiting for it to finish
+   * @param waitUntilReady if true, wait until the preparation has finished - only for tasks which must run to
+   *                       completion in a single call
+   * @return the result, or null if it's not ready yet (and waitUntilReady is false)
+   * @throws RuntimeException if the preparation threw an exception
+   */
+  public static <T> T getResult(Future<T> future, boolean waitUntilReady)
+  {
+    if (!waitUntilReady && !future.isDone()) return null;
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ee) {
+      throw new RuntimeException("Preparation failed", ee.getCause());
+    }
+  }
+
+  /** stop the pool; any work which hasn't started yet is discarded */
+  public void shutdown()
+  {
+    executorService.shutdownNow();
+  }
+
+  /** shut down the default pool and the I/O pool, if they have been started */
+  public static void shutdownDefaultPool()
+  {
+    if (defaultPool != null) {
+      defaultPool.shutdown();
+      defaultPool = null;
+    }
+    if (ioPool != null) {
+      ioPool.shutdown();
+      ioPool = null;
+    }
+  }
+
+  private static PreparationPool defaultPool;
+  private static PreparationPool ioPool;
+
+  private final ExecutorService executorService;
+  private final AtomicInteger threadNumber = new AtomicInteger();
+}
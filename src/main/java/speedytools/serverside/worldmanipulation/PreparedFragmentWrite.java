@@ -0,0 +1,290 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.nbt.NBTTagCompound;
+import speedytools.common.selections.VoxelSelection;
+import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.QuadOrientation;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the blocks of a WorldFragment write on a worker thread, so that the server thread only has to copy them into
+ *   the chunks.  The worker works through the destination one 16x16x16 world section at a time (chunk column by chunk
+ *   column) and for each section produces the local positions, block IDs, reoriented block states, light values and
+ *   tile entity data of the voxels to be written, in the order they are stored in the section.
+ * The prepared sections are handed over through a small bounded queue, so that only a few sections are held in memory
+ *   at once; the worker waits whenever the server thread falls behind.  If the server thread stops taking sections for
+ *   a long time (eg the game is paused), the worker gives up; resume() starts it again from the section it stopped at.
+ * The fragment and the selection must not be changed until the preparation is finished or cancelled.
+ * Usage:
+ * (1) create, then start()
+ * (2) on the server thread, repeatedly pollSection() and write each section into the world,
+ *     until isPreparationFinished() and there are no more sections.  pollSection() never waits; a write which must
+ *     run to completion in a single call uses waitForSection() instead.
+ * (3) if isPreparationFinished() and wasAbandoned(), resume() once the remaining sections have been taken
+ * (4) if hasFailed(), write the fragment on the server thread instead
+ * (5) cancel() if the write is aborted
+ */
+public class PreparedFragmentWrite
+{
+  /**
+   * @param selection the voxels of the fragment to be written
+   * @param wxOrigin the world coordinates of the fragment's [0,0,0]
+   * @param wxMin the world x range of the destination, clipped to the valid y range
+   */
+  public PreparedFragmentWrite(WorldFragment i_fragment, VoxelSelection i_selection, int i_wxOrigin, int i_wyOrigin, int i_wzOrigin,
+                               QuadOrientation i_orientation,
+                               int i_wxMin, int i_wxMaxPlusOne, int i_wyMin, int i_wyMaxPlusOne, int i_wzMin, int i_wzMaxPlusOne)
+  {
+    fragment = i_fragment;
+    selection = i_selection;
+    wxOrigin = i_wxOrigin;
+    wyOrigin = i_wyOrigin;
+    wzOrigin = i_wzOrigin;
+    orientation = i_orientation;
+    wxMin = i_wxMin;
+    wxMaxPlusOne = i_wxMaxPlusOne;
+    wyMin = i_wyMin;
+    wyMaxPlusOne = i_wyMaxPlusOne;
+    wzMin = i_wzMin;
+    wzMaxPlusOne = i_wzMaxPlusOne;
+    int cxCount = ((wxMaxPlusOne - 1) >> 4) - (wxMin >> 4) + 1;
+    int cyCount = (wyMaxPlusOne <= wyMin) ? 0 : ((wyMaxPlusOne - 1) >> 4) - (wyMin >> 4) + 1;
+    int czCount = ((wzMaxPlusOne - 1) >> 4) - (wzMin >> 4) + 1;
+    totalSectionCount = cxCount * cyCount * czCount;
+  }
+
+  /** start the preparation on the given pool */
+  public void start(PreparationPool pool)
+  {
+    pool.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        prepareAllSections();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * restart the preparation after it was abandoned, from the first section which wasn't handed over
+   * Only call once isPreparationFinished() and wasAbandoned()
+   */
+  public void resume(PreparationPool pool)
+  {
+    assert finished && abandoned;
+    abandoned = false;
+    finished = false;
+    start(pool);
+  }
+
+  /**
+   * returns the next prepared section, if there is one ready
+   * @return the section, or null if none is ready yet (or there are no more)
+   */
+  public PreparedSection pollSection()
+  {
+    PreparedSection section = preparedSections.poll();
+    if (section != null) lastSectionIndexTaken = section.sectionIndex;
+    return section;
+  }
+
+  /**
+   * returns the next prepared section, waiting up to maxWaitMS for one to be ready
+   * @return the section, or null if none was ready in time (or there are no more)
+   */
+  public PreparedSection waitForSection(long maxWaitMS)
+  {
+    PreparedSection section;
+    try {
+      section = preparedSections.poll(maxWaitMS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (section != null) lastSectionIndexTaken = section.sectionIndex;
+    return section;
+  }
+
+  /** returns true once the worker has finished (or failed, abandoned, or been cancelled); there may still be sections waiting to be taken */
+  public boolean isPreparationFinished() {return finished;}
+
+  /**
+   * returns true if the preparation failed; the fragment should be written on the server thread instead
+   */
+  public boolean hasFailed() {return failed;}
+
+  /**
+   * returns true if the worker gave up because the server thread stopped taking sections for a long time (eg the game
+   *   was paused); the sections already handed over are still valid, and resume() will prepare the rest
+   */
+  public boolean wasAbandoned() {return abandoned;}
+
+  /** returns the fraction of the sections which have been taken so far */
+  public double getFractionComplete()
+  {
+    return (totalSectionCount == 0) ? 1.0 : (lastSectionIndexTaken + 1) / (double)totalSectionCount;
+  }
+
+  /** stop the preparation as soon as possible */
+  public void cancel()
+  {
+    cancelled = true;
+    preparedSections.clear();
+  }
+
+  /**
+   * The voxels to be written into one 16x16x16 world section
+   */
+  public static class PreparedSection
+  {
+    public final int cx;
+    public final int cy;
+    public final int cz;
+    public final int voxelCount;
+    public final short [] positions;            // (y << 8) | (z << 4) | x, relative to the section corner
+    public final int [] blockIDs;
+    public final IBlockState [] blockStates;
+    public final byte [] lightValues;
+    public final NBTTagCompound [] tileEntityData;   // null if none of the voxels has a tile entity
+
+    private PreparedSection(int i_sectionIndex, int i_cx, int i_cy, int i_cz, int i_voxelCount, short [] i_positions,
+                            int [] i_blockIDs, IBlockState [] i_blockStates, byte [] i_lightValues, NBTTagCompound [] i_tileEntityData)
+    {
+      sectionIndex = i_sectionIndex;
+      cx = i_cx;
+      cy = i_cy;
+      cz = i_cz;
+      voxelCount = i_voxelCount;
+      positions = i_positions;
+      blockIDs = i_blockIDs;
+      blockStates = i_blockStates;
+      lightValues = i_lightValues;
+      tileEntityData = i_tileEntityData;
+    }
+
+    private final int sectionIndex;
+  }
+
+  private void prepareAllSections()
+  {
+    try {
+      short [] positions = new short[VOXELS_PER_SECTION];
+      int [] blockIDs = new int[VOXELS_PER_SECTION];
+      IBlockState [] blockStates = new IBlockState[VOXELS_PER_SECTION];
+      byte [] lightValues = new byte[VOXELS_PER_SECTION];
+      NBTTagCompound [] tileEntityData = new NBTTagCompound[VOXELS_PER_SECTION];
+      ReorientedBlockCache blockCache = new ReorientedBlockCache();
+
+      int sectionIndex = 0;
+      for (int cx = wxMin >> 4; cx <= (wxMaxPlusOne - 1) >> 4; ++cx) {
+        for (int cz = wzMin >> 4; cz <= (wzMaxPlusOne - 1) >> 4; ++cz) {
+          for (int cy = wyMin >> 4; cy <= (wyMaxPlusOne - 1) >> 4; ++cy, ++sectionIndex) {
+            if (cancelled) return;
+            if (sectionIndex < nextSectionIndex) continue;   // already handed over before the preparation was abandoned
+            int count = 0;
+            boolean anyTileEntities = false;
+            for (int wy = Math.max(cy << 4, wyMin); wy < Math.min((cy << 4) + 16, wyMaxPlusOne); ++wy) {
+              int y = wy - wyOrigin;
+              for (int wz = Math.max(cz << 4, wzMin); wz < Math.min((cz << 4) + 16, wzMaxPlusOne); ++wz) {
+                for (int wx = Math.max(cx << 4, wxMin); wx < Math.min((cx << 4) + 16, wxMaxPlusOne); ++wx) {
+                  int x = orientation.calcXfromWXZ(wx - wxOrigin, wz - wzOrigin);
+                  int z = orientation.calcZfromWXZ(wx - wxOrigin, wz - wzOrigin);
+                  if (!selection.getVoxel(x, y, z)) continue;
+                  positions[count] = (short)(((wy & 0x0f) << 8) | ((wz & 0x0f) << 4) | (wx & 0x0f));
+                  int blockID = fragment.getBlockID(x, y, z);
+                  blockIDs[count] = blockID;
+                  blockStates[count] = blockCache.getReorientedState(blockID, fragment.getMetadata(x, y, z));
+                  lightValues[count] = fragment.getLightValue(x, y, z);
+                  NBTTagCompound nbt = fragment.getTileEntityData(x, y, z);
+                  tileEntityData[count] = nbt;
+                  if (nbt != null) anyTileEntities = true;
+                  ++count;
+                }
+              }
+            }
+            if (count > 0) {
+              PreparedSection section = new PreparedSection(sectionIndex, cx, cy, cz, count,
+                      Arrays.copyOf(positions, count), Arrays.copyOf(blockIDs, count),
+                      Arrays.copyOf(blockStates, count), Arrays.copyOf(lightValues, count),
+                      anyTileEntities ? Arrays.copyOf(tileEntityData, count) : null);
+              if (!handOver(section)) return;
+            }
+            nextSectionIndex = sectionIndex + 1;
+          }
+        }
+      }
+    } catch (Throwable t) {
+      ErrorLog.defaultLog().info("Preparation of a fragment write failed, will write on the server thread instead: " + t);
+      failed = true;
+    } finally {
+      finished = true;
+    }
+  }
+
+  // wait for space in the queue; give up if cancelled, or if the server thread stops taking sections (the game has been
+  //   paused, or the task has been dropped)
+  private boolean handOver(PreparedSection section) throws InterruptedException
+  {
+    long giveUpTimeNS = System.nanoTime() + ABANDON_TIMEOUT_NS;
+    while (!preparedSections.offer(section, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+      if (cancelled) return false;
+      if (System.nanoTime() > giveUpTimeNS) {
+        abandoned = true;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // the reoriented block state for each blockID + metadata, looked up once only
+  private class ReorientedBlockCache
+  {
+    public IBlockState getReorientedState(int blockID, int metadata)
+    {
+      int key = (blockID << 4) | metadata;
+      IBlockState blockState = blockStates[key];
+      if (blockState == null) {
+        int reorientedMetadata = WorldFragment.reorientMetadata(blockID, metadata, orientation);
+        blockState = Block.getBlockById(blockID).getStateFromMeta(reorientedMetadata);
+        blockStates[key] = blockState;
+      }
+      return blockState;
+    }
+
+    private final IBlockState [] blockStates = new IBlockState[(0xfff + 1) << 4];
+  }
+
+  private static final int VOXELS_PER_SECTION = 16 * 16 * 16;
+  private static final int QUEUE_CAPACITY = 64;
+  private static final long OFFER_WAIT_MS = 100;
+  private static final long ABANDON_TIMEOUT_NS = 10 * 1000L * 1000L * 1000L;
+
+  private final WorldFragment fragment;
+  private final VoxelSelection selection;
+  private final int wxOrigin;
+  private final int wyOrigin;
+  private final int wzOrigin;
+  private final QuadOrientation orientation;
+  private final int wxMin;
+  private final int wxMaxPlusOne;
+  private final int wyMin;
+  private final int wyMaxPlusOne;
+  private final int wzMin;
+  private final int wzMaxPlusOne;
+  private final int totalSectionCount;
+
+  private final BlockingQueue<PreparedSection> preparedSections = new ArrayBlockingQueue<PreparedSection>(QUEUE_CAPACITY);
+  private volatile boolean cancelled = false;
+  private volatile boolean finished = false;
+  private volatile boolean failed = false;
+  private volatile boolean abandoned = false;
+  private volatile int nextSectionIndex = 0;   // the first section not yet handed over; worker thread only while it's running
+  private int lastSectionIndexTaken = -1;   // server thread only
+}
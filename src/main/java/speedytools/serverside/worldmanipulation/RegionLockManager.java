@@ -0,0 +1,132 @@
+package speedytools.serverside.worldmanipulation;
+
+import java.util.*;
+
+/**
+ * Grants exclusive access to regions of the world, at chunk resolution, so that several complex actions can be in
+ *   progress at the same time provided that they don't touch the same chunks.
+ * Each owner (eg an action in progress) acquires the chunks of its entire footprint (everything it reads from or writes to)
+ *   in one step: either all the chunks are granted or none are.
+ * Typical usage:
+ * (1) build a Footprint for the action: new Footprint(dimension), then addRectangle() for each region it touches
+ * (2) tryAcquire(owner, footprint) - if false, queue the action and try again later
+ * (3) release(owner) once the action is complete
+ */
+public class RegionLockManager
+{
+  /**
+   * The set of chunks touched by an action, in one dimension
+   */
+  public static class Footprint
+  {
+    public Footprint(int i_dimension)
+    {
+      dimension = i_dimension;
+    }
+
+    /**
+     * add all the chunks which overlap the given rectangle of world coordinates (inclusive)
+     */
+    public void addRectangle(int wxMin, int wzMin, int wxMax, int wzMax)
+    {
+      int cxMin = Math.min(wxMin, wxMax) >> 4;
+      int cxMax = Math.max(wxMin, wxMax) >> 4;
+      int czMin = Math.min(wzMin, wzMax) >> 4;
+      int czMax = Math.max(wzMin, wzMax) >> 4;
+      for (int cx = cxMin; cx <= cxMax; ++cx) {
+        for (int cz = czMin; cz <= czMax; ++cz) {
+          chunks.add(chunkKey(cx, cz));
+        }
+      }
+    }
+
+    /** add all the chunks of another footprint in the same dimension */
+    public void addAll(Footprint other)
+    {
+      assert (other.dimension == dimension);
+      chunks.addAll(other.chunks);
+    }
+
+    /** returns true if the two footprints have at least one chunk in common */
+    public boolean overlaps(Footprint other)
+    {
+      if (other.dimension != dimension) return false;
+      Set<Long> smaller = (chunks.size() <= other.chunks.size()) ? chunks : other.chunks;
+      Set<Long> larger = (smaller == chunks) ? other.chunks : chunks;
+      for (Long chunk : smaller) {
+        if (larger.contains(chunk)) return true;
+      }
+      return false;
+    }
+
+    public boolean isEmpty() {return chunks.isEmpty();}
+    public int getDimension() {return dimension;}
+    public int getChunkCount() {return chunks.size();}
+
+    private final int dimension;
+    private final Set<Long> chunks = new HashSet<Long>();
+  }
+
+  /**
+   * try to lock all the chunks in the footprint for the given owner
+   * @param owner the object which will hold the lock; an owner can only hold one footprint at a time
+   * @return true if all the chunks were locked; false if any were already locked by another owner (none are locked)
+   */
+  public boolean tryAcquire(Object owner, Footprint footprint)
+  {
+    assert (!heldFootprints.containsKey(owner));
+    if (!isAvailable(footprint)) return false;
+    HashMap<Long, Object> dimensionLocks = locks.get(footprint.dimension);
+    if (dimensionLocks == null) {
+      dimensionLocks = new HashMap<Long, Object>();
+      locks.put(footprint.dimension, dimensionLocks);
+    }
+    for (Long chunk : footprint.chunks) {
+      dimensionLocks.put(chunk, owner);
+    }
+    heldFootprints.put(owner, footprint);
+    return true;
+  }
+
+  /** returns true if none of the chunks in the footprint are locked */
+  public boolean isAvailable(Footprint footprint)
+  {
+    HashMap<Long, Object> dimensionLocks = locks.get(footprint.dimension);
+    if (dimensionLocks == null) return true;
+    for (Long chunk : footprint.chunks) {
+      if (dimensionLocks.containsKey(chunk)) return false;
+    }
+    return true;
+  }
+
+  /** release all the chunks held by the given owner; does nothing if the owner holds none */
+  public void release(Object owner)
+  {
+    Footprint footprint = heldFootprints.remove(owner);
+    if (footprint == null) return;
+    HashMap<Long, Object> dimensionLocks = locks.get(footprint.dimension);
+    for (Long chunk : footprint.chunks) {
+      if (dimensionLocks.get(chunk) == owner) {
+        dimensionLocks.remove(chunk);
+      }
+    }
+    if (dimensionLocks.isEmpty()) {
+      locks.remove(footprint.dimension);
+    }
+  }
+
+  /** returns true if the given chunk is locked by any owner */
+  public boolean isLocked(int dimension, int cx, int cz)
+  {
+    HashMap<Long, Object> dimensionLocks = locks.get(dimension);
+    return dimensionLocks != null && dimensionLocks.containsKey(chunkKey(cx, cz));
+  }
+
+  private static Long chunkKey(int cx, int cz)
+  {
+    return ((long)cx << 32) | (cz & 0xffffffffL);
+  }
+
+  private HashMap<Integer, HashMap<Long, Object>> locks = new HashMap<Integer, HashMap<Long, Object>>();
+  private HashMap<Object, Footprint> heldFootprints = new HashMap<Object, Footprint>();
+}
@@ -0,0 +1,476 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import speedytools.common.SpeedyToolsOptions;
+import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.OperationMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Learns how long the stages of the asynchronous tasks actually take, so that the progress reported to the client
+ *   advances smoothly and an estimated time remaining can be given.
+ * For each type of task, the model keeps moving averages of:
+ * 1) the fraction of the task's processing time spent in each stage, separately for each path (the sequence of stages
+ *    the task went through, eg a move which was fused or not) - used as the stage weights
+ * 2) the processing time per voxel, separately for sparse, medium and dense selections - used to predict the duration
+ * Only the time spent actually processing is counted, not the time between ticks.
+ * While a task is running, its path isn't known in advance: each stage is given its share of the task's remaining
+ *   weight, according to the most common path which matches the stages so far.  The weights of the stages actually
+ *   used therefore add up to no more than 1.
+ * Typical usage:
+ * (1) each task creates a StageTimer, for the model of its world, when it starts
+ * (2) the StageTimer is resumed and paused around each call to continueProcessing, and told whenever the stage changes
+ * (3) the task uses getStageWeight() instead of its hard-coded weights
+ * (4) when the task completes normally, finish() records the timings in the model
+ * Each server has its own model, which is kept in the world's save folder: it is loaded the first time it is used,
+ *   and should be saved whenever the world is saved (saveAll()) and unloaded (removeInstance()).
+ * While OperationMetrics are enabled, the StageTimer also records the processing time of each stage in the metrics.
+ */
+public class StageTimingModel
+{
+  /**
+   * returns the model for the server which owns the given world, loading it from the world's save folder the first time
+   * @param worldServer the world; if null, or it has no save folder, a new model is returned which is never saved
+   */
+  public static StageTimingModel getInstance(WorldServer worldServer)
+  {
+    File file = getModelFile(worldServer);
+    if (file == null) return new StageTimingModel(null);
+    synchronized (instances) {
+      StageTimingModel model = instances.get(file);
+      if (model == null) {
+        model = new StageTimingModel(file);
+        model.readFromFile(file);
+        instances.put(file, model);
+      }
+      return model;
+    }
+  }
+
+  /** save all the models which have changed since they were last saved, eg when the worlds are saved */
+  public static void saveAll()
+  {
+    synchronized (instances) {
+      for (StageTimingModel model : instances.values()) {
+        if (model.isDirty()) {
+          model.saveToFile(model.modelFile);
+        }
+      }
+    }
+  }
+
+  /** save and discard the model belonging to the given world's server; call when the overworld is unloaded */
+  public static void removeInstance(World world)
+  {
+    if (!(world instanceof WorldServer)) return;
+    File file = getModelFile((WorldServer)world);
+    if (file == null) return;
+    synchronized (instances) {
+      StageTimingModel model = instances.remove(file);
+      if (model != null && model.isDirty()) {
+        model.saveToFile(file);
+      }
+    }
+  }
+
+  /**
+   * @param i_modelFile the file that the model is saved to; null = not saved
+   */
+  public StageTimingModel(File i_modelFile)
+  {
+    modelFile = i_modelFile;
+  }
+
+  /**
+   * returns the share of the task's remaining processing time which will be spent in the given stage, according to the
+   *   path most often recorded for this task which starts with previousStages followed by the given stage
+   * @param previousStages the stages that the task has been through so far, in order
+   * @return 0.0 - 1.0, or -1 if there aren't enough samples of a matching path yet
+   */
+  public synchronized double getStageShare(String taskName, List<String> previousStages, String stageName)
+  {
+    PathTimings bestPath = null;
+    for (PathTimings pathTimings : stageFractions.values()) {
+      if (pathTimings.sampleCount < MIN_SAMPLES || !pathTimings.taskName.equals(taskName)
+          || !pathTimings.startsWith(previousStages, stageName)) {
+        continue;
+      }
+      if (bestPath == null || pathTimings.sampleCount > bestPath.sampleCount) {
+        bestPath = pathTimings;
+      }
+    }
+    if (bestPath == null) return -1;
+
+    int stageIndex = previousStages.size();
+    double remainingFraction = 0;
+    for (int i = stageIndex; i < bestPath.fractions.length; ++i) {
+      remainingFraction += bestPath.fractions[i];
+    }
+    if (remainingFraction <= 0) return 1.0 / (bestPath.fractions.length - stageIndex);
+    return bestPath.fractions[stageIndex] / remainingFraction;
+  }
+
+  /**
+   * predict the processing time for a task
+   * @param voxelCount the number of voxels affected by the task
+   * @param density the fraction of the bounding box occupied by the voxels (0.0 - 1.0)
+   * @return the predicted processing time in ns, or -1 if not known
+   */
+  public synchronized long predictDurationNS(String taskName, long voxelCount, double density)
+  {
+    if (voxelCount <= 0) return -1;
+    MovingAverage average = nsPerVoxel.get(taskName + DENSITY_SEPARATOR + densityBucket(density));
+    if (average == null || average.sampleCount < MIN_SAMPLES) return -1;
+    return (long)(average.value * voxelCount);
+  }
+
+  /**
+   * record the stage timings of a completed task
+   * @param stageTimesNS the processing time spent in each stage, in the order that the stages were used
+   * @param voxelCount the number of voxels affected by the task; 0 if not known
+   * @param density the fraction of the bounding box occupied by the voxels
+   */
+  public synchronized void recordTask(String taskName, LinkedHashMap<String, Long> stageTimesNS, long voxelCount, double density)
+  {
+    long totalNS = 0;
+    for (Long stageTime : stageTimesNS.values()) {
+      totalNS += stageTime;
+    }
+    if (totalNS <= 0) return;
+
+    String pathKey = getPathKey(taskName, stageTimesNS.keySet());
+    PathTimings pathTimings = stageFractions.get(pathKey);
+    if (pathTimings == null) {
+      pathTimings = new PathTimings(taskName, new ArrayList<String>(stageTimesNS.keySet()));
+      stageFractions.put(pathKey, pathTimings);
+    }
+    int i = 0;
+    for (Long stageTime : stageTimesNS.values()) {
+      double fraction = stageTime / (double)totalNS;
+      pathTimings.fractions[i] = (pathTimings.sampleCount == 0) ? fraction
+                                                                : pathTimings.fractions[i] * (1.0 - SMOOTHING) + fraction * SMOOTHING;
+      ++i;
+    }
+    ++pathTimings.sampleCount;
+
+    if (voxelCount > 0) {
+      updateAverage(nsPerVoxel, taskName + DENSITY_SEPARATOR + densityBucket(density), totalNS / (double)voxelCount);
+    }
+    dirty = true;
+  }
+
+  /** returns true if the model has changed since it was last saved or loaded */
+  public synchronized boolean isDirty() {return dirty;}
+
+  /**
+   * load the model from the given file, replacing any existing timings
+   * @return true for success, false if the file couldn't be read (the model is unchanged)
+   */
+  public synchronized boolean readFromFile(File file)
+  {
+    if (!file.isFile() || !file.canRead()) return false;
+    try {
+      NBTTagCompound nbt = CompressedStreamTools.read(file);
+      if (nbt == null || nbt.getInteger(VERSION_TAG) != VERSION_VALUE) {
+        ErrorLog.defaultLog().info("Invalid stage timing file (missing tag or wrong version): " + file);
+        return false;
+      }
+      Map<String, PathTimings> newStageFractions = readPaths(nbt.getCompoundTag(STAGE_FRACTIONS_TAG));
+      Map<String, MovingAverage> newNsPerVoxel = readAverages(nbt.getCompoundTag(NS_PER_VOXEL_TAG));
+      stageFractions = newStageFractions;
+      nsPerVoxel = newNsPerVoxel;
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().info("Failure while reading stage timing file (" + file + "): " + ioe);
+      return false;
+    }
+    dirty = false;
+    return true;
+  }
+
+  /**
+   * save the model to the given file, overwriting it if it exists
+   * @return true for success
+   */
+  public synchronized boolean saveToFile(File file)
+  {
+    NBTTagCompound nbt = new NBTTagCompound();
+    nbt.setInteger(VERSION_TAG, VERSION_VALUE);
+    nbt.setTag(STAGE_FRACTIONS_TAG, writePaths(stageFractions));
+    nbt.setTag(NS_PER_VOXEL_TAG, writeAverages(nsPerVoxel));
+    try {
+      CompressedStreamTools.write(nbt, file);
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().info("Failed to save stage timing file (" + file + "): " + ioe);
+      return false;
+    }
+    dirty = false;
+    return true;
+  }
+
+  /**
+   * Accumulates the processing time of a single task, stage by stage
+   */
+  public static class StageTimer
+  {
+    public StageTimer(StageTimingModel i_model, String i_taskName)
+    {
+      model = i_model;
+      taskName = i_taskName;
+    }
+
+    /**
+     * returns the weight of the given stage: its share (see getStageShare()) of the weight not yet given to the earlier
+     *   stages.  The weight is fixed the first time it is asked for, so that the task's progress doesn't jump if the
+     *   model changes while the task is running.  The weights of all the stages add up to no more than 1.
+     * @param defaultWeight the weight to use if the model doesn't have enough samples of a matching path yet
+     */
+    public double getStageWeight(Enum<?> stage, double defaultWeight)
+    {
+      Double weight = stageWeights.get(stage.name());
+      if (weight == null) {
+        double remainingWeight = Math.max(0.0, 1.0 - totalWeight);
+        List<String> previousStages = new ArrayList<String>(stageTimesNS.keySet());
+        previousStages.remove(stage.name());
+        double share = model.getStageShare(taskName, previousStages, stage.name());
+        weight = (share >= 0) ? remainingWeight * share : Math.min(defaultWeight, remainingWeight);
+        stageWeights.put(stage.name(), weight);
+        totalWeight += weight;
+      }
+      return weight;
+    }
+
+    /** start timing - call at the start of each continueProcessing */
+    public void resume()
+    {
+      resumeTimeNS = System.nanoTime();
+      running = true;
+    }
+
+    /** stop timing - call at the end of each continueProcessing */
+    public void pause()
+    {
+      if (!running) return;
+      addTime(System.nanoTime() - resumeTimeNS);
+      running = false;
+    }
+
+    /** the task has moved to a new stage; any time from now on is counted against that stage */
+    public void switchStage(Enum<?> newStage)
+    {
+      if (running) {
+        long timeNow = System.nanoTime();
+        addTime(timeNow - resumeTimeNS);
+        resumeTimeNS = timeNow;
+      }
+      OperationMetrics metrics = OperationMetrics.defaultMetrics();
+      if (metrics.isEnabled() && currentStageName != null) {
+        metrics.recordLatency(taskName, currentStageName, totalNS - totalNSAtStageStart);
+      }
+      totalNSAtStageStart = totalNS;
+      currentStageName = newStage.name();
+      if (!stageTimesNS.containsKey(currentStageName)) {   // part of the task's path, even if it takes no time
+        stageTimesNS.put(currentStageName, 0L);
+      }
+    }
+
+    /** returns the total processing time so far, in ns */
+    public long getProcessingTimeNS()
+    {
+      return totalNS + (running ? System.nanoTime() - resumeTimeNS : 0);
+    }
+
+    /**
+     * the task has completed normally - record the timings in the model.  Don't call for aborted tasks.
+     * @param voxelCount the number of voxels affected by the task; 0 if not known
+     * @param density the fraction of the bounding box occupied by the voxels
+     */
+    public void finish(long voxelCount, double density)
+    {
+      pause();
+      if (finished) return;
+      finished = true;
+      model.recordTask(taskName, stageTimesNS, voxelCount, density);
+    }
+
+    private void addTime(long elapsedNS)
+    {
+      if (currentStageName == null || elapsedNS <= 0) return;
+      stageTimesNS.put(currentStageName, stageTimesNS.get(currentStageName) + elapsedNS);
+      totalNS += elapsedNS;
+    }
+
+    private final StageTimingModel model;
+    private final String taskName;
+    private final Map<String, Double> stageWeights = new HashMap<String, Double>();
+    private final LinkedHashMap<String, Long> stageTimesNS = new LinkedHashMap<String, Long>();   // in the order the stages were used
+    private double totalWeight = 0;
+    private String currentStageName;
+    private long resumeTimeNS;
+    private long totalNS;
+    private long totalNSAtStageStart;
+    private boolean running = false;
+    private boolean finished = false;
+  }
+
+  // the file for the model of the given world's server, or null if the world isn't saved
+  private static File getModelFile(WorldServer worldServer)
+  {
+    if (worldServer == null) return null;
+    File saveDirectory = worldServer.getSaveHandler().getWorldDirectory();
+    return (saveDirectory == null) ? null : new File(saveDirectory, SpeedyToolsOptions.getStageTimingFileName());
+  }
+
+  private static String getPathKey(String taskName, Collection<String> stageNames)
+  {
+    StringBuilder key = new StringBuilder(taskName);
+    String separator = PATH_SEPARATOR;
+    for (String stageName : stageNames) {
+      key.append(separator).append(stageName);
+      separator = STAGE_SEPARATOR;
+    }
+    return key.toString();
+  }
+
+  private static String densityBucket(double density)
+  {
+    if (density < SPARSE_DENSITY) return "sparse";
+    if (density > DENSE_DENSITY) return "dense";
+    return "medium";
+  }
+
+  private static void updateAverage(Map<String, MovingAverage> averages, String key, double newValue)
+  {
+    MovingAverage average = averages.get(key);
+    if (average == null) {
+      average = new MovingAverage();
+      average.value = newValue;
+      averages.put(key, average);
+    } else {
+      average.value = average.value * (1.0 - SMOOTHING) + newValue * SMOOTHING;
+    }
+    ++average.sampleCount;
+  }
+
+  // each path is stored as its key (task name and stages), with the fraction of each stage and the number of samples
+  private static Map<String, PathTimings> readPaths(NBTTagCompound nbt)
+  {
+    Map<String, PathTimings> paths = new HashMap<String, PathTimings>();
+    for (String key : nbt.getKeySet()) {
+      int separatorIndex = key.indexOf(PATH_SEPARATOR);
+      if (separatorIndex < 0) continue;
+      NBTTagCompound entry = nbt.getCompoundTag(key);
+      String taskName = key.substring(0, separatorIndex);
+      List<String> stageNames = Arrays.asList(key.substring(separatorIndex + PATH_SEPARATOR.length()).split(Pattern.quote(STAGE_SEPARATOR)));
+      PathTimings pathTimings = new PathTimings(taskName, stageNames);
+      for (int i = 0; i < stageNames.size(); ++i) {
+        pathTimings.fractions[i] = entry.getDouble(stageNames.get(i));
+      }
+      pathTimings.sampleCount = entry.getInteger(SAMPLES_TAG);
+      paths.put(key, pathTimings);
+    }
+    return paths;
+  }
+
+  private static NBTTagCompound writePaths(Map<String, PathTimings> paths)
+  {
+    NBTTagCompound nbt = new NBTTagCompound();
+    for (Map.Entry<String, PathTimings> entry : paths.entrySet()) {
+      PathTimings pathTimings = entry.getValue();
+      NBTTagCompound pathNBT = new NBTTagCompound();
+      for (int i = 0; i < pathTimings.stageNames.size(); ++i) {
+        pathNBT.setDouble(pathTimings.stageNames.get(i), pathTimings.fractions[i]);
+      }
+      pathNBT.setInteger(SAMPLES_TAG, pathTimings.sampleCount);
+      nbt.setTag(entry.getKey(), pathNBT);
+    }
+    return nbt;
+  }
+
+  private static Map<String, MovingAverage> readAverages(NBTTagCompound nbt)
+  {
+    Map<String, MovingAverage> averages = new HashMap<String, MovingAverage>();
+    for (String key : nbt.getKeySet()) {
+      NBTTagCompound entry = nbt.getCompoundTag(key);
+      MovingAverage average = new MovingAverage();
+      average.value = entry.getDouble(VALUE_TAG);
+      average.sampleCount = entry.getInteger(SAMPLES_TAG);
+      averages.put(key, average);
+    }
+    return averages;
+  }
+
+  private static NBTTagCompound writeAverages(Map<String, MovingAverage> averages)
+  {
+    NBTTagCompound nbt = new NBTTagCompound();
+    for (Map.Entry<String, MovingAverage> entry : averages.entrySet()) {
+      NBTTagCompound averageNBT = new NBTTagCompound();
+      averageNBT.setDouble(VALUE_TAG, entry.getValue().value);
+      averageNBT.setInteger(SAMPLES_TAG, entry.getValue().sampleCount);
+      nbt.setTag(entry.getKey(), averageNBT);
+    }
+    return nbt;
+  }
+
+  private static class MovingAverage
+  {
+    public double value;
+    public int sampleCount;
+  }
+
+  // the moving average fraction of the task's time spent in each stage, for one path through the stages
+  private static class PathTimings
+  {
+    public PathTimings(String i_taskName, List<String> i_stageNames)
+    {
+      taskName = i_taskName;
+      stageNames = i_stageNames;
+      fractions = new double[i_stageNames.size()];
+    }
+
+    // true if the path starts with the given stages, followed by nextStage
+    public boolean startsWith(List<String> stages, String nextStage)
+    {
+      if (stageNames.size() <= stages.size()) return false;
+      return stageNames.subList(0, stages.size()).equals(stages) && stageNames.get(stages.size()).equals(nextStage);
+    }
+
+    public final String taskName;
+    public final List<String> stageNames;
+    public final double [] fractions;
+    public int sampleCount;
+  }
+
+  private static final double SMOOTHING = 0.2;          // weight of the newest sample in the moving average
+  private static final int MIN_SAMPLES = 3;             // don't trust the average until it has this many samples
+  private static final double SPARSE_DENSITY = 0.25;
+  private static final double DENSE_DENSITY = 0.75;
+  private static final String PATH_SEPARATOR = "|";
+  private static final String STAGE_SEPARATOR = ",";
+  private static final String DENSITY_SEPARATOR = "#";
+  private static final String VERSION_TAG = "version";
+  private static final int VERSION_VALUE = 2;
+  private static final String STAGE_FRACTIONS_TAG = "stageFractions";
+  private static final String NS_PER_VOXEL_TAG = "nsPerVoxel";
+  private static final String VALUE_TAG = "value";
+  private static final String SAMPLES_TAG = "samples";
+
+  private static final Map<File, StageTimingModel> instances = new HashMap<File, StageTimingModel>();   // one per server (save folder)
+
+  private final File modelFile;
+  private Map<String, PathTimings> stageFractions = new HashMap<String, PathTimings>();   // key = task name and path
+  private Map<String, MovingAverage> nsPerVoxel = new HashMap<String, MovingAverage>();
+  private boolean dirty = false;
+}
@@ -0,0 +1,21 @@
+package speedytools.serverside.worldmanipulation;
+
+/**
+ * The undo data of a WorldSelectionUndo which is held outside of memory, for example in a spill file (UndoLayerSpillFile)
+ *   or in the undo journal (UndoJournal).
+ * read() doesn't touch the world, so it can be called from a worker thread.
+ * Usage:
+ * (1) read() the data back when the layer needs it
+ * (2) delete() once the data has been read back, or is no longer needed
+ */
+public interface StoredUndoLayer
+{
+  /**
+   * read the undo data back
+   * @return the data, or null for failure
+   */
+  UndoLayerSpillFile.Contents read();
+
+  /** release the storage, if it is only used by this layer */
+  void delete();
+}
@@ -0,0 +1,304 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
+import speedytools.common.selections.VoxelSelection;
+import speedytools.common.selections.VoxelSelectionWithOrigin;
+import speedytools.common.utilities.Pair;
+import speedytools.common.utilities.QuadOrientation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Copies a selection to a new location one destination chunk column at a time, instead of reading the entire source
+ *   into a WorldFragment before writing any of it.
+ * For each destination chunk column:
+ * 1) the source voxels which will land in that column are read into a small WorldFragment
+ * 2) the fragment is written with undo, using the same transactionID for every column, and the column's undo layer is
+ *    then merged into the transaction's previous layer (see WorldHistory.coalesceTransaction), so that the whole copy
+ *    is held as one undo layer and undone in one step
+ * Only one column's fragment is held at a time.
+ * If the source and destination overlap, the columns are processed in an order which guarantees that no column is
+ *   overwritten before it has been read.  This is only possible for a pure translation - use canStream() to check.
+ * Typical usage:
+ * (1) canStream() - if false, read the whole source first instead
+ * (2) create the StreamingCopy, then setTimeOfInterrupt() and continueProcessing() until isTaskComplete()
+ * (3) to roll back: WorldHistory.performComplexUndoAsynchronous(transactionID) until it returns null
+ */
+public class StreamingCopy implements AsynchronousToken
+{
+  /**
+   * returns true if the copy can be streamed: either the source and destination don't overlap, or the copy is a
+   *   translation without rotation or flip
+   */
+  public static boolean canStream(VoxelSelectionWithOrigin source, int wxOfOrigin, int wyOfOrigin, int wzOfOrigin, QuadOrientation quadOrientation)
+  {
+    if (quadOrientation.getClockwiseRotationCount() == 0 && !quadOrientation.isFlippedX()) return true;
+
+    Pair<Integer, Integer> wxRange = new Pair<Integer, Integer>(0, source.getxSize() - 1);
+    Pair<Integer, Integer> wzRange = new Pair<Integer, Integer>(0, source.getzSize() - 1);
+    quadOrientation.getWXZranges(wxRange, wzRange);
+    boolean xOverlaps = wxRange.getFirst() + wxOfOrigin <= source.getWxOrigin() + source.getxSize() - 1
+                        && wxRange.getSecond() + wxOfOrigin >= source.getWxOrigin();
+    boolean yOverlaps = wyOfOrigin <= source.getWyOrigin() + source.getySize() - 1
+                        && wyOfOrigin + source.getySize() - 1 >= source.getWyOrigin();
+    boolean zOverlaps = wzRange.getFirst() + wzOfOrigin <= source.getWzOrigin() + source.getzSize() - 1
+                        && wzRange.getSecond() + wzOfOrigin >= source.getWzOrigin();
+    return !(xOverlaps && yOverlaps && zOverlaps);
+  }
+
+  /**
+   * @param source the voxels to be copied, must satisfy canStream()
+   * @param wxOfOrigin the destination, as for WorldHistory.writeToWorldWithUndoAsynchronous
+   * @param transactionID the transactionID for all of the undo layers
+   */
+  public StreamingCopy(WorldHistory i_worldHistory, EntityPlayerMP i_entityPlayerMP, WorldServer i_worldServer,
+                       VoxelSelectionWithOrigin i_source, int i_wxOfOrigin, int i_wyOfOrigin, int i_wzOfOrigin,
+                       QuadOrientation i_quadOrientation, UniqueTokenID i_transactionID)
+  {
+    worldHistory = i_worldHistory;
+    entityPlayerMP = i_entityPlayerMP;
+    worldServer = i_worldServer;
+    source = i_source;
+    wxOfOrigin = i_wxOfOrigin;
+    wyOfOrigin = i_wyOfOrigin;
+    wzOfOrigin = i_wzOfOrigin;
+    quadOrientation = i_quadOrientation;
+    transactionID = i_transactionID;
+    interruptTimeNS = INFINITE_TIMEOUT;
+    currentStage = StreamingStage.SETUP;
+  }
+
+  @Override
+  public boolean isTaskComplete() {
+    return currentStage == StreamingStage.COMPLETE;
+  }
+
+  @Override
+  public boolean isTaskAborted() {
+    return aborting && isTaskComplete();
+  }
+
+  @Override
+  public double getFractionComplete() {
+    if (currentStage == StreamingStage.COMPLETE) return 1.0;
+    if (columnsToCopy == null || columnsToCopy.isEmpty()) return 0.0;
+    if (subTask == null) return nextColumnIndex / (double)columnsToCopy.size();
+    double subTaskFraction = subTask.getFractionComplete();
+    double columnFraction = (currentStage == StreamingStage.READ) ? READ_WEIGHT * subTaskFraction
+                                                                   : READ_WEIGHT + (1.0 - READ_WEIGHT) * subTaskFraction;
+    return (nextColumnIndex - 1 + columnFraction) / columnsToCopy.size();
+  }
+
+  @Override
+  public boolean isTimeToInterrupt() {
+    return (interruptTimeNS == IMMEDIATE_TIMEOUT || (interruptTimeNS != INFINITE_TIMEOUT && System.nanoTime() >= interruptTimeNS));
+  }
+
+  @Override
+  public void setTimeOfInterrupt(long timeToStopNS) {
+    interruptTimeNS = timeToStopNS;
+  }
+
+  @Override
+  public void continueProcessing() {
+    while (currentStage != StreamingStage.COMPLETE) {
+      switch (currentStage) {
+        case SETUP: {
+          planColumns();
+          currentStage = StreamingStage.NEXT_COLUMN;
+          break;
+        }
+        case NEXT_COLUMN: {
+          if (aborting || nextColumnIndex >= columnsToCopy.size()) {
+            currentStage = StreamingStage.COMPLETE;
+            break;
+          }
+          if (startReadingColumn(columnsToCopy.get(nextColumnIndex++))) {
+            currentStage = StreamingStage.READ;
+          }
+          break;
+        }
+        case READ: {
+          if (!executeSubTask()) return;
+          if (aborting) {
+            currentStage = StreamingStage.COMPLETE;
+            break;
+          }
+          subTask = worldHistory.writeToWorldWithUndoAsynchronous(entityPlayerMP, worldServer, columnFragment,
+                                                                   columnWxOfOrigin, wyOfOrigin, columnWzOfOrigin,
+                                                                   columnOrientation, transactionID);
+          columnFragment = null;
+          currentStage = StreamingStage.WRITE;
+          break;
+        }
+        case WRITE: {
+          if (!executeSubTask()) return;
+          subTask = null;
+          final int BORDER_WIDTH = 1;    // each column's undo layer includes a border of neighbouring voxels
+          worldHistory.coalesceTransaction(entityPlayerMP, worldServer, transactionID,
+                                           wxDestMin - BORDER_WIDTH, wyOfOrigin - BORDER_WIDTH, wzDestMin - BORDER_WIDTH,
+                                           wxDestMax - wxDestMin + 1 + 2 * BORDER_WIDTH, source.getySize() + 2 * BORDER_WIDTH,
+                                           wzDestMax - wzDestMin + 1 + 2 * BORDER_WIDTH);
+          currentStage = StreamingStage.NEXT_COLUMN;
+          break;
+        }
+        default: {
+          assert false : "Invalid currentStage : " + currentStage;
+          currentStage = StreamingStage.COMPLETE;
+        }
+      }
+      if (isTimeToInterrupt()) return;
+    }
+    columnsToCopy = null;
+    columnFragment = null;
+  }
+
+  @Override
+  public void abortProcessing() {
+    aborting = true;
+  }
+
+  @Override
+  public VoxelSelectionWithOrigin getLockedRegion() {
+    if (subTask == null || subTask.isTaskComplete()) return null;
+    return subTask.getLockedRegion();
+  }
+
+  @Override
+  public UniqueTokenID getUniqueTokenID() {
+    return uniqueTokenID;
+  }
+
+  // returns true if the sub-task is finished
+  private boolean executeSubTask() {
+    if (subTask == null || subTask.isTaskComplete()) {
+      return true;
+    }
+    if (aborting) {
+      subTask.abortProcessing();
+    }
+    subTask.setTimeOfInterrupt(interruptTimeNS);
+    subTask.continueProcessing();
+    return subTask.isTaskComplete();
+  }
+
+  /**
+   * make the list of destination chunk columns, in the order they must be copied in.
+   * For a translation by [dx, dz] each column overwrites source voxels which belong to columns further along in the
+   *   direction of [dx, dz], so those must be copied first: descending cx if dx > 0, and similarly for cz.
+   */
+  private void planColumns()
+  {
+    Pair<Integer, Integer> wxRange = new Pair<Integer, Integer>(0, source.getxSize() - 1);
+    Pair<Integer, Integer> wzRange = new Pair<Integer, Integer>(0, source.getzSize() - 1);
+    quadOrientation.getWXZranges(wxRange, wzRange);
+    wxDestMin = wxRange.getFirst() + wxOfOrigin;
+    wxDestMax = wxRange.getSecond() + wxOfOrigin;
+    wzDestMin = wzRange.getFirst() + wzOfOrigin;
+    wzDestMax = wzRange.getSecond() + wzOfOrigin;
+
+    columnsToCopy = new ArrayList<Pair<Integer, Integer>>();
+    for (int cx = wxDestMin >> 4; cx <= wxDestMax >> 4; ++cx) {
+      for (int cz = wzDestMin >> 4; cz <= wzDestMax >> 4; ++cz) {
+        columnsToCopy.add(new Pair<Integer, Integer>(cx, cz));
+      }
+    }
+
+    final int dx = quadOrientation.calcWXfromXZ(0, 0) + wxOfOrigin - source.getWxOrigin();
+    final int dz = quadOrientation.calcWZfromXZ(0, 0) + wzOfOrigin - source.getWzOrigin();
+    Collections.sort(columnsToCopy, new Comparator<Pair<Integer, Integer>>() {
+      @Override
+      public int compare(Pair<Integer, Integer> first, Pair<Integer, Integer> second) {
+        int xOrder = first.getFirst().compareTo(second.getFirst());
+        if (xOrder != 0) return (dx > 0) ? -xOrder : xOrder;
+        int zOrder = first.getSecond().compareTo(second.getSecond());
+        return (dz > 0) ? -zOrder : zOrder;
+      }
+    });
+  }
+
+  /**
+   * start reading the source voxels which are copied into the given destination chunk column
+   * @return true if the read has started; false if no voxels land in this column
+   */
+  private boolean startReadingColumn(Pair<Integer, Integer> column)
+  {
+    int wxMin = Math.max(wxDestMin, column.getFirst() << 4);
+    int wxMax = Math.min(wxDestMax, (column.getFirst() << 4) + 15);
+    int wzMin = Math.max(wzDestMin, column.getSecond() << 4);
+    int wzMax = Math.min(wzDestMax, (column.getSecond() << 4) + 15);
+
+    // the destination rectangle maps back to a rectangle in the source
+    int x1 = quadOrientation.calcXfromWXZ(wxMin - wxOfOrigin, wzMin - wzOfOrigin);
+    int z1 = quadOrientation.calcZfromWXZ(wxMin - wxOfOrigin, wzMin - wzOfOrigin);
+    int x2 = quadOrientation.calcXfromWXZ(wxMax - wxOfOrigin, wzMax - wzOfOrigin);
+    int z2 = quadOrientation.calcZfromWXZ(wxMax - wxOfOrigin, wzMax - wzOfOrigin);
+    int xMin = Math.min(x1, x2);
+    int zMin = Math.min(z1, z2);
+    int xSize = Math.abs(x2 - x1) + 1;
+    int zSize = Math.abs(z2 - z1) + 1;
+    int ySize = source.getySize();
+
+    VoxelSelection columnMask = new VoxelSelection(xSize, ySize, zSize);
+    boolean anySet = false;
+    for (int y = 0; y < ySize; ++y) {
+      for (int z = 0; z < zSize; ++z) {
+        for (int x = 0; x < xSize; ++x) {
+          if (source.getVoxel(x + xMin, y, z + zMin)) {
+            columnMask.setVoxel(x, y, z);
+            anySet = true;
+          }
+        }
+      }
+    }
+    if (!anySet) return false;
+
+    // the column fragment's [0,0] corresponds to [xMin, zMin] of the source; adjust the placement so that it lands in
+    //   the same place as it would have as part of the whole source
+    columnOrientation = new QuadOrientation(0, 0, xSize, zSize, quadOrientation.isFlippedX(), quadOrientation.getClockwiseRotationCount());
+    columnWxOfOrigin = wxOfOrigin + quadOrientation.calcWXfromXZ(xMin, zMin) - columnOrientation.calcWXfromXZ(0, 0);
+    columnWzOfOrigin = wzOfOrigin + quadOrientation.calcWZfromXZ(xMin, zMin) - columnOrientation.calcWZfromXZ(0, 0);
+
+    columnFragment = new WorldFragment(xSize, ySize, zSize);
+    subTask = columnFragment.readFromWorldAsynchronous(worldServer,
+                                                       source.getWxOrigin() + xMin, source.getWyOrigin(), source.getWzOrigin() + zMin,
+                                                       columnMask);
+    return true;
+  }
+
+  private enum StreamingStage {SETUP, NEXT_COLUMN, READ, WRITE, COMPLETE}
+
+  private static final double READ_WEIGHT = 0.3;
+
+  private final WorldHistory worldHistory;
+  private final EntityPlayerMP entityPlayerMP;
+  private final WorldServer worldServer;
+  private final VoxelSelectionWithOrigin source;
+  private final int wxOfOrigin;
+  private final int wyOfOrigin;
+  private final int wzOfOrigin;
+  private final QuadOrientation quadOrientation;
+  private final UniqueTokenID transactionID;
+  private final UniqueTokenID uniqueTokenID = new UniqueTokenID();
+
+  private StreamingStage currentStage;
+  private boolean aborting = false;
+  private long interruptTimeNS;
+  private AsynchronousToken subTask;
+
+  private List<Pair<Integer, Integer>> columnsToCopy;
+  private int nextColumnIndex = 0;
+  private int wxDestMin;
+  private int wxDestMax;
+  private int wzDestMin;
+  private int wzDestMax;
+
+  private WorldFragment columnFragment;
+  private QuadOrientation columnOrientation;
+  private int columnWxOfOrigin;
+  private int columnWzOfOrigin;
+}
@@ -0,0 +1,740 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.world.WorldServer;
+import speedytools.common.utilities.ErrorLog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the undo layers in one dimension's history, kept in the world's save folder, so that the
+ *   undo history survives a restart (or a crash) of the server.
+ * Each layer is recorded when it is added to the history, and recorded again in full whenever it is changed by the
+ *   undo or makePermanent of another layer; a removal record is added when it leaves the history.  The latest record
+ *   for each layer wins.
+ * The records are encoded and written by a dedicated I/O thread, which gathers up the records arriving within the
+ *   group commit time and then flushes them to disk together, so the server thread never waits for the disk.  Each
+ *   layer record is made from a copy of the layer's undo data, so the layer can keep changing while it is encoded.
+ * A save point is recorded whenever the world is saved.  The world on disk only matches the history as it was at the
+ *   last save point, so recovery discards any records after it.
+ * Every record is checksummed; after a crash, recovery also stops at the first incomplete or corrupt record.
+ * Recovery memory-maps the journal and recreates the layers without decoding them: each recreated layer reads its undo
+ *   data from the mapped journal the first time it is needed.
+ * Once most of the journal is taken up by superseded records, the I/O thread rewrites it with just the current ones.
+ *
+ * Format:
+ * int MAGIC, int VERSION, then the records: int payloadLength, int CRC32 of the payload, payload
+ * LAYER payload: byte LAYER, long layerID, long creationOrder, boolean complexHistory, long playerUUIDmost,
+ *   long playerUUIDleast, long transactionSession, int transactionKey, int wxOrigin, wyOrigin, wzOrigin,
+ *   int xCount, yCount, zCount, then the undo data (see UndoLayerSpillFile)
+ * REMOVE payload: byte REMOVE, long layerID
+ * SAVE_POINT payload: byte SAVE_POINT, long savePointNumber
+ * Usage:
+ * (1) open() the journal for the world, then getRecoveredLayers() and add them to the history
+ * (2) appendLayer() when a layer is added to the history; appendRemoval() when it is removed
+ * (3) journalChangedLayers() after any undo or makePermanent, to record the layers which were changed
+ * (4) appendSavePoint() whenever the world is saved
+ * (5) close() when the world is unloaded or the server stops
+ */
+public class UndoJournal
+{
+  /**
+   * returns the journal file for the given world (in the world's save folder)
+   * @return the file, or null if the folder can't be created
+   */
+  public static File getJournalFile(WorldServer worldServer)
+  {
+    File folder = UndoLayerSpillFile.getUndoStorageFolder(worldServer, JOURNAL_SUBFOLDER_NAME);
+    return (folder == null) ? null : new File(folder, JOURNAL_FILE_NAME);
+  }
+
+  /**
+   * open the journal, recovering the layers recorded in it, and start the I/O thread.  If the journal can't be
+   *   recognised, a new one is started in its place.
+   * @param groupCommitNS how long the I/O thread waits for more records before flushing them to disk
+   * @return the journal, or null if the file can't be opened
+   */
+  public static UndoJournal open(File file, long groupCommitNS)
+  {
+    UndoJournal journal = new UndoJournal(file, groupCommitNS);
+    if (!journal.recover()) return null;
+    journal.startWriter();
+    return journal;
+  }
+
+  /**
+   * returns the layers recovered from the journal, in ascending order of creation.  Only returns them once.
+   */
+  public List<RecoveredLayer> getRecoveredLayers()
+  {
+    List<RecoveredLayer> retval = recoveredLayers;
+    recoveredLayers = new ArrayList<RecoveredLayer>();
+    return retval;
+  }
+
+  /**
+   * returns the creation order for layers created from now on: greater than that of all the layers in the journal.
+   *   Subsequent layers should add their time since a fixed point in this session.
+   */
+  public long getCreationOrderBase() {return creationOrderBase;}
+
+  /**
+   * record a layer which has been added to the history
+   * @param playerID the player who owns the layer
+   * @param complexHistory true for the complex tools history, false for the simple tools history
+   * @param transactionID the transaction the layer belongs to
+   * @param creationOrder the layers are recovered in ascending order of creationOrder (see getCreationOrderBase())
+   */
+  public void appendLayer(WorldSelectionUndo worldSelectionUndo, UUID playerID, boolean complexHistory, UniqueTokenID transactionID, long creationOrder)
+  {
+    if (closed) return;
+    JournalledLayer journalledLayer = new JournalledLayer(nextLayerID++, playerID, complexHistory, transactionID, creationOrder);
+    journalledLayers.put(worldSelectionUndo, journalledLayer);
+    enqueueLayer(worldSelectionUndo, journalledLayer);
+  }
+
+  /** record a layer which has been removed from the history (undone or made permanent); does nothing if it isn't in the journal */
+  public void appendRemoval(WorldSelectionUndo worldSelectionUndo)
+  {
+    JournalledLayer journalledLayer = journalledLayers.remove(worldSelectionUndo);
+    if (journalledLayer == null || closed) return;
+    queue.add(new PendingRecord(TYPE_REMOVE, journalledLayer.layerID));
+  }
+
+  /**
+   * record that the world has been saved: after a crash, the layers are recovered as they were at the last save point.
+   *   Records any changed layers first.
+   */
+  public void appendSavePoint()
+  {
+    if (closed) return;
+    journalChangedLayers();
+    queue.add(new PendingRecord(TYPE_SAVE_POINT, nextSavePointNumber++));
+  }
+
+  /**
+   * record again any layers which have changed since they were last recorded.  A layer whose undo data is on disk is
+   *   left until it has been brought back into memory.
+   */
+  public void journalChangedLayers()
+  {
+    if (closed) return;
+    for (Map.Entry<WorldSelectionUndo, JournalledLayer> entry : journalledLayers.entrySet()) {
+      if (entry.getKey().getChangeCount() != entry.getValue().journalledChangeCount) {
+        enqueueLayer(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * flush any records which haven't been written yet, then close the journal.  Waits for the I/O thread to finish.
+   */
+  public void close()
+  {
+    if (closed) return;
+    closed = true;
+    queue.add(CLOSE);
+    try {
+      writerThread.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    if (writerThread.isAlive()) {
+      ErrorLog.defaultLog().info("Undo journal " + file + " didn't finish writing in time");
+    } else {
+      closeQuietly(randomAccessFile);
+    }
+  }
+
+  /**
+   * An undo layer recovered from the journal.  Its undo data is read from the journal the first time it is needed.
+   */
+  public static class RecoveredLayer
+  {
+    public RecoveredLayer(WorldSelectionUndo i_worldSelectionUndo, UUID i_playerID, boolean i_complexHistory, UniqueTokenID i_transactionID)
+    {
+      worldSelectionUndo = i_worldSelectionUndo;
+      playerID = i_playerID;
+      complexHistory = i_complexHistory;
+      transactionID = i_transactionID;
+    }
+
+    public final WorldSelectionUndo worldSelectionUndo;
+    public final UUID playerID;
+    public final boolean complexHistory;
+    public final UniqueTokenID transactionID;
+  }
+
+  private UndoJournal(File i_file, long i_groupCommitNS)
+  {
+    file = i_file;
+    groupCommitNS = i_groupCommitNS;
+  }
+
+  // open the file, find the valid records, discard any incomplete records at the end, and recreate the layers
+  private boolean recover()
+  {
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      channel = randomAccessFile.getChannel();
+      long fileSize = channel.size();
+      long validLength = (fileSize > MAX_JOURNAL_BYTES) ? -1 : scanRecords();
+      if (validLength < 0) {
+        ErrorLog.defaultLog().info("Undo journal " + file + " can't be recovered; starting a new one");
+        liveRecords.clear();
+        validLength = 0;
+      }
+      if (validLength == 0) {
+        channel.truncate(0);
+        writeFully(channel, createFileHeader(), 0);
+        validLength = HEADER_BYTES;
+      } else if (validLength < fileSize) {
+        ErrorLog.defaultLog().info("Undo journal " + file + ": discarding the last " + (fileSize - validLength)
+                                   + " bytes, recorded after the world was last saved");
+        channel.truncate(validLength);
+      }
+      fileLength = validLength;
+      atSavePoint = true;
+      lastSavePointNumber = nextSavePointNumber - 1;
+      channel.position(fileLength);
+      if (!liveRecords.isEmpty()) {
+        createRecoveredLayers(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength));
+      }
+      return true;
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().info("Couldn't open undo journal " + file + ": " + ioe);
+      closeQuietly(randomAccessFile);
+      return false;
+    }
+  }
+
+  // read through the records, keeping the location of the latest record of each layer which hasn't been removed as at
+  //   the last save point
+  // returns the length of the journal up to the last save point, or -1 if the journal isn't recognised
+  private long scanRecords() throws IOException
+  {
+    long fileSize = channel.size();
+    if (fileSize == 0) return 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    if (!readFully(channel, header, 0) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return -1;
+
+    long position = HEADER_BYTES;
+    long savePointEnd = HEADER_BYTES;
+    LinkedHashMap<Long, LayerRecord> savedRecords = new LinkedHashMap<Long, LayerRecord>();
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    CRC32 crc32 = new CRC32();
+    while (true) {
+      recordHeader.clear();
+      if (!readFully(channel, recordHeader, position)) break;
+      int payloadLength = recordHeader.getInt(0);
+      int checksum = recordHeader.getInt(4);
+      if (payloadLength < REMOVE_PAYLOAD_BYTES || payloadLength > fileSize - position - RECORD_HEADER_BYTES) break;
+      ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+      if (!readFully(channel, payload, position + RECORD_HEADER_BYTES)) break;
+      crc32.reset();
+      crc32.update(payload.array(), 0, payloadLength);
+      if ((int)crc32.getValue() != checksum) break;
+      if (!indexRecord(payload, position, RECORD_HEADER_BYTES + payloadLength)) break;
+      position += RECORD_HEADER_BYTES + payloadLength;
+      if (payload.get(0) == TYPE_SAVE_POINT) {
+        savePointEnd = position;
+        savedRecords = new LinkedHashMap<Long, LayerRecord>(liveRecords);
+      }
+    }
+    liveRecords = savedRecords;
+    return savePointEnd;
+  }
+
+  // returns false if the record isn't valid
+  private boolean indexRecord(ByteBuffer payload, long recordOffset, int recordLength)
+  {
+    payload.rewind();
+    byte recordType = payload.get();
+    long layerID = payload.getLong();
+    switch (recordType) {
+      case TYPE_SAVE_POINT: {
+        nextSavePointNumber = Math.max(nextSavePointNumber, layerID + 1);
+        return true;
+      }
+      case TYPE_REMOVE: {
+        nextLayerID = Math.max(nextLayerID, layerID + 1);
+        liveRecords.remove(layerID);
+        return true;
+      }
+      case TYPE_LAYER: {
+        if (payload.remaining() < LAYER_PAYLOAD_HEADER_BYTES - 1 - 8) return false;
+        LayerRecord layerRecord = new LayerRecord(recordOffset, recordLength);
+        nextLayerID = Math.max(nextLayerID, layerID + 1);
+        layerRecord.layerID = layerID;
+        layerRecord.creationOrder = payload.getLong();
+        layerRecord.complexHistory = payload.get() != 0;
+        layerRecord.playerID = new UUID(payload.getLong(), payload.getLong());
+        layerRecord.transactionSession = payload.getLong();
+        layerRecord.transactionKey = payload.getInt();
+        layerRecord.wxOrigin = payload.getInt();
+        layerRecord.wyOrigin = payload.getInt();
+        layerRecord.wzOrigin = payload.getInt();
+        layerRecord.xCount = payload.getInt();
+        layerRecord.yCount = payload.getInt();
+        layerRecord.zCount = payload.getInt();
+        liveRecords.put(layerID, layerRecord);
+        creationOrderBase = Math.max(creationOrderBase, layerRecord.creationOrder + 1);
+        return true;
+      }
+      default: {
+        return false;
+      }
+    }
+  }
+
+  // create a layer for each live record, which reads its undo data from the mapped journal when it is needed
+  private void createRecoveredLayers(MappedByteBuffer mappedJournal)
+  {
+    List<LayerRecord> layerRecords = new ArrayList<LayerRecord>(liveRecords.values());
+    Collections.sort(layerRecords, new Comparator<LayerRecord>() {
+      @Override
+      public int compare(LayerRecord o1, LayerRecord o2) {
+        return (o1.creationOrder < o2.creationOrder) ? -1 : ((o1.creationOrder == o2.creationOrder) ? 0 : 1);
+      }
+    });
+
+    HashMap<String, UniqueTokenID> transactions = new HashMap<String, UniqueTokenID>();
+    for (LayerRecord layerRecord : layerRecords) {
+      String transactionName = layerRecord.transactionSession + ":" + layerRecord.transactionKey;
+      UniqueTokenID transactionID = transactions.get(transactionName);
+      if (transactionID == null) {
+        transactionID = new UniqueTokenID();
+        transactions.put(transactionName, transactionID);
+      }
+      ByteBuffer undoData = mappedJournal.duplicate();
+      undoData.limit((int)(layerRecord.offset + layerRecord.length));
+      undoData.position((int)(layerRecord.offset + RECORD_HEADER_BYTES + LAYER_PAYLOAD_HEADER_BYTES));
+      StoredUndoLayer storedLayer = new JournalStoredLayer(undoData.slice(), "Undo journal " + file + " layer " + layerRecord.layerID);
+      WorldSelectionUndo worldSelectionUndo = WorldSelectionUndo.createFromStorage(storedLayer,
+              layerRecord.wxOrigin, layerRecord.wyOrigin, layerRecord.wzOrigin,
+              layerRecord.xCount, layerRecord.yCount, layerRecord.zCount);
+
+      JournalledLayer journalledLayer = new JournalledLayer(layerRecord.layerID, layerRecord.playerID, layerRecord.complexHistory,
+                                                            transactionID, layerRecord.creationOrder);
+      journalledLayer.journalledChangeCount = worldSelectionUndo.getChangeCount();
+      journalledLayers.put(worldSelectionUndo, journalledLayer);
+      recoveredLayers.add(new RecoveredLayer(worldSelectionUndo, layerRecord.playerID, layerRecord.complexHistory, transactionID));
+    }
+  }
+
+  private void startWriter()
+  {
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runWriter();
+      }
+    }, "SpeedyTools undo journal " + file.getParentFile().getParentFile().getName());
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  // the I/O thread: write each batch of records, then flush them to disk together
+  private void runWriter()
+  {
+    List<PendingRecord> batch = new ArrayList<PendingRecord>();
+    boolean closing = false;
+    compactIfWorthwhile();
+    while (!closing) {
+      try {
+        batch.add(queue.take());
+        long commitTimeNS = System.nanoTime() + groupCommitNS;
+        long waitNS;
+        while (batch.get(batch.size() - 1) != CLOSE && (waitNS = commitTimeNS - System.nanoTime()) > 0) {
+          PendingRecord record = queue.poll(waitNS, TimeUnit.NANOSECONDS);
+          if (record == null) break;
+          batch.add(record);
+        }
+        queue.drainTo(batch);
+      } catch (InterruptedException ie) {
+        closing = true;
+      }
+      for (PendingRecord record : batch) {
+        if (record == CLOSE) {
+          closing = true;
+        } else {
+          writeRecord(record);
+        }
+      }
+      batch.clear();
+      if (!failed) {
+        try {
+          channel.force(false);
+        } catch (IOException ioe) {
+          abandonJournal(ioe);
+        }
+      }
+      compactIfWorthwhile();
+    }
+  }
+
+  // encode the record and append it to the journal
+  private void writeRecord(PendingRecord record)
+  {
+    byte [] payload = null;
+    try {
+      payload = record.encode();
+    } catch (Exception e) {
+      ErrorLog.defaultLog().info("Couldn't encode undo layer for journal " + file + ": " + e);
+    }
+    if (payload == null || failed) return;
+
+    try {
+      writeFully(channel, createRecord(payload), fileLength);
+    } catch (IOException ioe) {
+      abandonJournal(ioe);
+      return;
+    }
+    switch (record.recordType) {
+      case TYPE_LAYER: {
+        liveRecords.put(record.layerID, new LayerRecord(fileLength, RECORD_HEADER_BYTES + payload.length));
+        break;
+      }
+      case TYPE_REMOVE: {
+        liveRecords.remove(record.layerID);
+        break;
+      }
+    }
+    atSavePoint = (record.recordType == TYPE_SAVE_POINT);
+    if (atSavePoint) lastSavePointNumber = record.layerID;
+    fileLength += RECORD_HEADER_BYTES + payload.length;
+  }
+
+  // if the journal can't be written, it is emptied rather than left out of date, so that a restart won't recover
+  //   layers which have since been undone or made permanent
+  private void abandonJournal(IOException ioe)
+  {
+    ErrorLog.defaultLog().info("Couldn't write undo journal " + file + ", undo history won't be kept after a restart: " + ioe);
+    failed = true;
+    try {
+      channel.truncate(HEADER_BYTES);
+      channel.force(false);
+    } catch (IOException ioe2) {
+      ErrorLog.defaultLog().info("Couldn't empty undo journal " + file + ": " + ioe2);
+    }
+  }
+
+  // if most of the journal is superseded records, rewrite it with only the current records followed by a save point.
+  // Only done straight after a save point, when the current records are the ones which would be recovered.
+  private void compactIfWorthwhile()
+  {
+    if (failed || !atSavePoint || fileLength < COMPACTION_MIN_BYTES) return;
+    long liveBytes = HEADER_BYTES;
+    for (LayerRecord layerRecord : liveRecords.values()) {
+      liveBytes += layerRecord.length;
+    }
+    if (liveBytes * COMPACTION_RATIO > fileLength) return;
+
+    File compactedFile = new File(file.getPath() + COMPACTION_SUFFIX);
+    RandomAccessFile compacted = null;
+    boolean renamed = false;
+    try {
+      compacted = new RandomAccessFile(compactedFile, "rw");
+      FileChannel compactedChannel = compacted.getChannel();
+      compactedChannel.truncate(0);
+      writeFully(compactedChannel, createFileHeader(), 0);
+      LinkedHashMap<Long, LayerRecord> newLocations = new LinkedHashMap<Long, LayerRecord>();
+      long position = HEADER_BYTES;
+      for (Map.Entry<Long, LayerRecord> entry : liveRecords.entrySet()) {
+        LayerRecord layerRecord = entry.getValue();
+        long bytesLeft = layerRecord.length;
+        long sourcePosition = layerRecord.offset;
+        compactedChannel.position(position);
+        while (bytesLeft > 0) {
+          long bytesCopied = channel.transferTo(sourcePosition, bytesLeft, compactedChannel);
+          if (bytesCopied <= 0) throw new EOFException();
+          sourcePosition += bytesCopied;
+          bytesLeft -= bytesCopied;
+        }
+        newLocations.put(entry.getKey(), new LayerRecord(position, layerRecord.length));
+        position += layerRecord.length;
+      }
+      ByteBuffer savePoint = createRecord(new PendingRecord(TYPE_SAVE_POINT, lastSavePointNumber).encode());
+      int savePointLength = savePoint.remaining();
+      writeFully(compactedChannel, savePoint, position);
+      position += savePointLength;
+      compactedChannel.force(true);
+      compacted.close();
+      compacted = null;
+      renamed = compactedFile.renameTo(file);
+      if (!renamed) {
+        ErrorLog.defaultLog().debug("Couldn't replace undo journal " + file + " with its compacted version");
+        return;
+      }
+      closeQuietly(randomAccessFile);
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      channel = randomAccessFile.getChannel();
+      liveRecords = newLocations;
+      fileLength = position;
+    } catch (IOException ioe) {
+      if (renamed) {
+        abandonJournal(ioe);
+      } else {
+        ErrorLog.defaultLog().info("Couldn't compact undo journal " + file + ": " + ioe);
+      }
+    } finally {
+      closeQuietly(compacted);
+      if (!renamed && compactedFile.exists() && !compactedFile.delete()) {
+        ErrorLog.defaultLog().debug("Couldn't delete " + compactedFile);
+      }
+    }
+  }
+
+  // queue a copy of the layer's current contents for writing.  If they aren't in memory, the layer is left to be
+  //   recorded by a later journalChangedLayers(), rather than reading them back from disk on the server thread.
+  private void enqueueLayer(WorldSelectionUndo worldSelectionUndo, JournalledLayer journalledLayer)
+  {
+    UndoLayerSpillFile.Contents snapshot = worldSelectionUndo.getSnapshotForJournal();
+    if (snapshot == null) return;
+    journalledLayer.journalledChangeCount = worldSelectionUndo.getChangeCount();
+    queue.add(new PendingRecord(journalledLayer, snapshot,
+                                worldSelectionUndo.getWxOfOrigin(), worldSelectionUndo.getWyOfOrigin(), worldSelectionUndo.getWzOfOrigin()));
+  }
+
+  // the record header (length and checksum) followed by the payload
+  private static ByteBuffer createRecord(byte [] payload)
+  {
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload);
+    ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+    recordBuffer.putInt(payload.length).putInt((int)crc32.getValue()).put(payload);
+    recordBuffer.flip();
+    return recordBuffer;
+  }
+
+  private static ByteBuffer createFileHeader()
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION);
+    header.flip();
+    return header;
+  }
+
+  private static void writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      position += fileChannel.write(buffer, position);
+    }
+  }
+
+  // returns false if the end of the file is reached first
+  private static boolean readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      int bytesRead = fileChannel.read(buffer, position);
+      if (bytesRead < 0) return false;
+      position += bytesRead;
+    }
+    return true;
+  }
+
+  private static void closeQuietly(Closeable closeable)
+  {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException ioe) {
+      // do nothing
+    }
+  }
+
+  // the details of a layer which has been recorded in the journal, needed to record it again
+  private static class JournalledLayer
+  {
+    public JournalledLayer(long i_layerID, UUID i_playerID, boolean i_complexHistory, UniqueTokenID i_transactionID, long i_creationOrder)
+    {
+      layerID = i_layerID;
+      playerID = i_playerID;
+      complexHistory = i_complexHistory;
+      transactionID = i_transactionID;
+      creationOrder = i_creationOrder;
+    }
+
+    public final long layerID;
+    public final UUID playerID;
+    public final boolean complexHistory;
+    public final UniqueTokenID transactionID;
+    public final long creationOrder;
+    public int journalledChangeCount = NOT_YET_JOURNALLED;
+  }
+
+  // a record waiting for the I/O thread: a layer, a removal, or a save point
+  private class PendingRecord
+  {
+    public PendingRecord(JournalledLayer i_journalledLayer, UndoLayerSpillFile.Contents i_contents,
+                         int i_wxOrigin, int i_wyOrigin, int i_wzOrigin)
+    {
+      recordType = TYPE_LAYER;
+      layerID = i_journalledLayer.layerID;
+      journalledLayer = i_journalledLayer;
+      contents = i_contents;
+      wxOrigin = i_wxOrigin;
+      wyOrigin = i_wyOrigin;
+      wzOrigin = i_wzOrigin;
+    }
+
+    // a removal (layerID) or a save point (savePointNumber)
+    public PendingRecord(byte i_recordType, long i_layerID)
+    {
+      recordType = i_recordType;
+      layerID = i_layerID;
+      journalledLayer = null;
+      contents = null;
+      wxOrigin = 0;
+      wyOrigin = 0;
+      wzOrigin = 0;
+    }
+
+    // returns the payload, or null for failure
+    public byte [] encode() throws IOException
+    {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream dataOutputStream = new DataOutputStream(payload);
+      if (recordType != TYPE_LAYER) {
+        dataOutputStream.writeByte(recordType);
+        dataOutputStream.writeLong(layerID);
+        dataOutputStream.flush();
+        return payload.toByteArray();
+      }
+      dataOutputStream.writeByte(TYPE_LAYER);
+      dataOutputStream.writeLong(layerID);
+      dataOutputStream.writeLong(journalledLayer.creationOrder);
+      dataOutputStream.writeBoolean(journalledLayer.complexHistory);
+      dataOutputStream.writeLong(journalledLayer.playerID.getMostSignificantBits());
+      dataOutputStream.writeLong(journalledLayer.playerID.getLeastSignificantBits());
+      dataOutputStream.writeLong(transactionSession);
+      dataOutputStream.writeInt(journalledLayer.transactionID.hashCode());     // unique within this session
+      dataOutputStream.writeInt(wxOrigin);
+      dataOutputStream.writeInt(wyOrigin);
+      dataOutputStream.writeInt(wzOrigin);
+      dataOutputStream.writeInt(contents.undoWorldFragment.getxCount());
+      dataOutputStream.writeInt(contents.undoWorldFragment.getyCount());
+      dataOutputStream.writeInt(contents.undoWorldFragment.getzCount());
+      dataOutputStream.flush();
+      if (!UndoLayerSpillFile.writeContents(contents.undoWorldFragment, contents.changedBlocksMask, Channels.newChannel(payload))) return null;
+      return payload.toByteArray();
+    }
+
+    public final byte recordType;
+    public final long layerID;
+    public final JournalledLayer journalledLayer;
+    public final UndoLayerSpillFile.Contents contents;
+    public final int wxOrigin;
+    public final int wyOrigin;
+    public final int wzOrigin;
+  }
+
+  // the location of a layer's latest record in the journal, plus its details when found during recovery
+  private static class LayerRecord
+  {
+    public LayerRecord(long i_offset, int i_length)
+    {
+      offset = i_offset;
+      length = i_length;
+    }
+
+    public final long offset;
+    public final int length;
+    public long layerID;
+    public long creationOrder;
+    public boolean complexHistory;
+    public UUID playerID;
+    public long transactionSession;
+    public int transactionKey;
+    public int wxOrigin;
+    public int wyOrigin;
+    public int wzOrigin;
+    public int xCount;
+    public int yCount;
+    public int zCount;
+  }
+
+  // the undo data of a recovered layer, in the mapped journal
+  private static class JournalStoredLayer implements StoredUndoLayer
+  {
+    public JournalStoredLayer(ByteBuffer i_undoData, String i_description)
+    {
+      undoData = i_undoData;
+      description = i_description;
+    }
+
+    @Override
+    public UndoLayerSpillFile.Contents read()
+    {
+      ByteBuffer buffer = undoData.duplicate();     // so that several threads can read at once
+      byte [] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      try {
+        return UndoLayerSpillFile.readContents(Channels.newChannel(new ByteArrayInputStream(bytes)), description);
+      } catch (IOException ioe) {
+        ErrorLog.defaultLog().info("Exception while reading " + description + ": " + ioe);
+        return null;
+      }
+    }
+
+    @Override
+    public void delete()
+    {
+      // the record stays in the journal until the layer is removed from the history
+    }
+
+    private final ByteBuffer undoData;
+    private final String description;
+  }
+
+  private static final String JOURNAL_SUBFOLDER_NAME = "journal";
+  private static final String JOURNAL_FILE_NAME = "undo.journal";
+  private static final String COMPACTION_SUFFIX = ".compacting";
+  private static final int MAGIC = 0x5354554A;   // "STUJ"
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 2 * 4;
+  private static final int RECORD_HEADER_BYTES = 2 * 4;
+  private static final byte TYPE_LAYER = 1;
+  private static final byte TYPE_REMOVE = 2;
+  private static final byte TYPE_SAVE_POINT = 3;
+  private static final int NOT_YET_JOURNALLED = -1;
+  private static final int REMOVE_PAYLOAD_BYTES = 1 + 8;
+  private static final int LAYER_PAYLOAD_HEADER_BYTES = 1 + 8 + 8 + 1 + 8 + 8 + 8 + 4 + 3 * 4 + 3 * 4;
+  private static final long MAX_JOURNAL_BYTES = Integer.MAX_VALUE;    // the most that can be memory-mapped at once
+  private static final long COMPACTION_MIN_BYTES = 16 * 1024 * 1024;
+  private static final long COMPACTION_RATIO = 3;        // compact once the current records are less than a third of the journal
+  private static final long CLOSE_TIMEOUT_MS = 30 * 1000;
+
+  private final PendingRecord CLOSE = new PendingRecord(TYPE_REMOVE, -1);      // tells the I/O thread to stop
+
+  private final File file;
+  private final long groupCommitNS;
+  private final long transactionSession = new Random().nextLong();   // distinguishes this session's transaction keys from earlier ones
+  private volatile boolean closed = false;
+
+  // server thread only
+  private long nextLayerID = 1;
+  private long creationOrderBase = 0;
+  private long nextSavePointNumber = 1;
+  private IdentityHashMap<WorldSelectionUndo, JournalledLayer> journalledLayers = new IdentityHashMap<WorldSelectionUndo, JournalledLayer>();
+  private List<RecoveredLayer> recoveredLayers = new ArrayList<RecoveredLayer>();
+
+  private final LinkedBlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<PendingRecord>();
+  private Thread writerThread;
+
+  // I/O thread only, once it has started
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+  private long fileLength;
+  private LinkedHashMap<Long, LayerRecord> liveRecords = new LinkedHashMap<Long, LayerRecord>();
+  private boolean failed = false;
+  private boolean atSavePoint;          // true if the last record was a save point (or there are no records since recovery)
+  private long lastSavePointNumber;
+}
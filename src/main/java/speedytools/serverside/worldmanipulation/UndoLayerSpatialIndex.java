@@ -0,0 +1,100 @@
+package speedytools.serverside.worldmanipulation;
+
+import java.util.*;
+
+/**
+ * Index of the footprints of the undo layers in the history, so that the layers overlapping a given region can be found
+ *   without scanning the whole history.
+ * The index is a grid of chunk columns for a single world (each DimensionHistory has its own); each layer is added to
+ *   every column that its footprint touches.  A query looks up only the columns touched by the region, so its cost
+ *   depends on the number of layers nearby rather than the total number of layers in the history.
+ * The index is conservative: it returns every layer whose footprint shares a chunk column with the region, which may
+ *   include some layers which don't actually overlap it.  The caller does the exact check.
+ * Typical usage:
+ * (1) add() each layer when it is added to the history; remove() it when it is removed from the history
+ * (2) getOverlapping() to find the layers which might overlap a region
+ */
+public class UndoLayerSpatialIndex<T>
+{
+  /**
+   * add an item to the index.  If the item is already in the index, it is moved to the new footprint.
+   * @param wxMin the world x,z range of the footprint (inclusive)
+   */
+  public void add(T item, int wxMin, int wzMin, int wxMax, int wzMax)
+  {
+    remove(item);
+    IndexedFootprint footprint = new IndexedFootprint(wxMin >> 4, wzMin >> 4, wxMax >> 4, wzMax >> 4);
+    for (int cx = footprint.cxMin; cx <= footprint.cxMax; ++cx) {
+      for (int cz = footprint.czMin; cz <= footprint.czMax; ++cz) {
+        Long key = columnKey(cx, cz);
+        List<T> column = grid.get(key);
+        if (column == null) {
+          column = new ArrayList<T>(2);
+          grid.put(key, column);
+        }
+        column.add(item);
+      }
+    }
+    footprints.put(item, footprint);
+  }
+
+  /** remove an item from the index; does nothing if it isn't in the index */
+  public void remove(T item)
+  {
+    IndexedFootprint footprint = footprints.remove(item);
+    if (footprint == null) return;
+    for (int cx = footprint.cxMin; cx <= footprint.cxMax; ++cx) {
+      for (int cz = footprint.czMin; cz <= footprint.czMax; ++cz) {
+        Long key = columnKey(cx, cz);
+        List<T> column = grid.get(key);
+        if (column == null) continue;
+        column.remove(item);
+        if (column.isEmpty()) grid.remove(key);
+      }
+    }
+  }
+
+  /**
+   * find all the items which might overlap the given region
+   * @param wxMin the world x,z range of the region (inclusive)
+   * @return the items (in no particular order), each listed once
+   */
+  public Set<T> getOverlapping(int wxMin, int wzMin, int wxMax, int wzMax)
+  {
+    Set<T> overlapping = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    for (int cx = wxMin >> 4; cx <= wxMax >> 4; ++cx) {
+      for (int cz = wzMin >> 4; cz <= wzMax >> 4; ++cz) {
+        List<T> column = grid.get(columnKey(cx, cz));
+        if (column != null) overlapping.addAll(column);
+      }
+    }
+    return overlapping;
+  }
+
+  public int size() {return footprints.size();}
+
+  private static Long columnKey(int cx, int cz)
+  {
+    return ((long)cx << 32) | (cz & 0xffffffffL);
+  }
+
+  // the chunk columns an item was added to, so that it can be removed again after its footprint has changed
+  private static class IndexedFootprint
+  {
+    public IndexedFootprint(int i_cxMin, int i_czMin, int i_cxMax, int i_czMax)
+    {
+      cxMin = i_cxMin;
+      czMin = i_czMin;
+      cxMax = i_cxMax;
+      czMax = i_czMax;
+    }
+
+    public final int cxMin;
+    public final int czMin;
+    public final int cxMax;
+    public final int czMax;
+  }
+
+  private HashMap<Long, List<T>> grid = new HashMap<Long, List<T>>();
+  private IdentityHashMap<T, IndexedFootprint> footprints = new IdentityHashMap<T, IndexedFootprint>();
+}
@@ -0,0 +1,233 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.world.WorldServer;
+import speedytools.common.selections.VoxelSelection;
+import speedytools.common.utilities.ErrorLog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores the undo data of a WorldSelectionUndo (the undo fragment and the changed blocks mask) in a compressed file, so
+ *   that undo layers which haven't been used for a while don't take up heap space.
+ * The files only last for the current server session - the folder is emptied the first time it is used.
+ * write() and read() don't touch the world, so they can be called from a worker thread, provided the fragment and mask
+ *   are not being modified at the same time.
+ * Format:
+ * int MAGIC, int VERSION, int compressedMaskLength, deflated mask (VoxelSelection.writeToBytes), then the fragment (WorldFragmentCodec)
+ * Usage:
+ * (1) getSpillFolder() for the world (and emptySpillFolder() the first time), then create an UndoLayerSpillFile for each layer
+ * (2) write() the layer's data; read() it back later
+ * (3) delete() the file once the data has been read back, or is no longer needed
+ * The format can also be written to / read from other channels with writeContents() and readContents() (see UndoJournal)
+ */
+public class UndoLayerSpillFile implements StoredUndoLayer
+{
+  /**
+   * returns the folder to store the spilled undo layers for the given world (in the world's save folder)
+   * @return the folder, or null if it can't be created
+   */
+  public static File getSpillFolder(WorldServer worldServer)
+  {
+    return getUndoStorageFolder(worldServer, SPILL_SUBFOLDER_NAME);
+  }
+
+  /**
+   * returns one of the folders used to store the undo data for the given world (in the world's save folder).  The
+   *   spilled layers and the undo journal have separate subfolders, so that emptying the spill folder can't touch the journal.
+   * @param subfolderName the name of the subfolder within the world's undo storage folder
+   * @return the folder, or null if it can't be created
+   */
+  public static File getUndoStorageFolder(WorldServer worldServer, String subfolderName)
+  {
+    File saveDirectory = worldServer.getSaveHandler().getWorldDirectory();
+    if (saveDirectory == null) return null;
+    File folder = new File(saveDirectory, UNDO_STORAGE_FOLDER_NAME + File.separator + "DIM" + worldServer.provider.getDimensionId()
+                                          + File.separator + subfolderName);
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      ErrorLog.defaultLog().info("Couldn't create folder for undo storage:" + folder);
+      return null;
+    }
+    return folder;
+  }
+
+  /** delete any files left over from a previous session */
+  public static void emptySpillFolder(File folder)
+  {
+    File [] oldFiles = folder.listFiles();
+    if (oldFiles == null) return;
+    for (File oldFile : oldFiles) {
+      if (oldFile.getName().endsWith(FILE_SUFFIX) && !oldFile.delete()) {
+        ErrorLog.defaultLog().debug("Couldn't delete old undo storage file:" + oldFile);
+      }
+    }
+  }
+
+  public UndoLayerSpillFile(File folder)
+  {
+    file = new File(folder, FILE_PREFIX + nextFileNumber() + FILE_SUFFIX);
+  }
+
+  /**
+   * write the undo data to the file
+   * @return true for success
+   */
+  public boolean write(WorldFragment undoWorldFragment, VoxelSelection changedBlocksMask)
+  {
+    FileOutputStream fileOutputStream = null;
+    boolean success = false;
+    try {
+      fileOutputStream = new FileOutputStream(file);
+      success = writeContents(undoWorldFragment, changedBlocksMask, fileOutputStream.getChannel());
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().info("Exception while writing undo storage file " + file + ": " + ioe);
+    } finally {
+      if (fileOutputStream != null) {
+        try {
+          fileOutputStream.close();
+        } catch (IOException ioe) {
+          success = false;
+        }
+      }
+      if (!success) delete();
+    }
+    return success;
+  }
+
+  /**
+   * read the undo data back from the file
+   * @return the data, or null for failure
+   */
+  @Override
+  public Contents read()
+  {
+    FileInputStream fileInputStream = null;
+    try {
+      fileInputStream = new FileInputStream(file);
+      return readContents(fileInputStream.getChannel(), "Undo storage file " + file);
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().info("Exception while reading undo storage file " + file + ": " + ioe);
+      return null;
+    } finally {
+      if (fileInputStream != null) {
+        try {
+          fileInputStream.close();
+        } catch (IOException ioe) {
+          // do nothing
+        }
+      }
+    }
+  }
+
+  /**
+   * write the undo data to the given channel, in the format described above.  The channel is not closed.
+   * @return true for success
+   */
+  public static boolean writeContents(WorldFragment undoWorldFragment, VoxelSelection changedBlocksMask, WritableByteChannel channel) throws IOException
+  {
+    ByteArrayOutputStream maskBytes = changedBlocksMask.writeToBytes();
+    if (maskBytes == null) return false;
+    ByteArrayOutputStream compressedMask = new ByteArrayOutputStream();
+    DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(compressedMask);
+    maskBytes.writeTo(deflaterOutputStream);
+    deflaterOutputStream.close();
+
+    ByteBuffer header = ByteBuffer.allocate(3 * 4);
+    header.putInt(MAGIC).putInt(VERSION).putInt(compressedMask.size());
+    header.flip();
+    writeFully(channel, header);
+    writeFully(channel, ByteBuffer.wrap(compressedMask.toByteArray()));
+    return WorldFragmentCodec.writeToChannel(undoWorldFragment, channel);
+  }
+
+  /**
+   * read undo data in the format described above from the given channel.  The channel is not closed.
+   * @param description the source of the data, for error messages
+   * @return the data, or null if it is invalid
+   */
+  public static Contents readContents(ReadableByteChannel channel, String description) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(3 * 4);
+    readFully(channel, header);
+    header.flip();
+    int magic = header.getInt();
+    int version = header.getInt();
+    int compressedMaskLength = header.getInt();
+    if (magic != MAGIC || version != VERSION || compressedMaskLength < 0 || compressedMaskLength > MAX_MASK_BYTES) {
+      ErrorLog.defaultLog().info(description + " has an invalid header");
+      return null;
+    }
+    ByteBuffer compressedMask = ByteBuffer.allocate(compressedMaskLength);
+    readFully(channel, compressedMask);
+
+    InflaterInputStream inflaterInputStream = new InflaterInputStream(new ByteArrayInputStream(compressedMask.array()));
+    ByteArrayOutputStream maskBytes = new ByteArrayOutputStream();
+    byte [] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = inflaterInputStream.read(buffer)) > 0) {
+      maskBytes.write(buffer, 0, bytesRead);
+    }
+    VoxelSelection changedBlocksMask = new VoxelSelection(1, 1, 1);
+    if (!changedBlocksMask.readFromBytes(new ByteArrayInputStream(maskBytes.toByteArray()))) {
+      ErrorLog.defaultLog().info(description + " has an invalid mask");
+      return null;
+    }
+    WorldFragment undoWorldFragment = WorldFragmentCodec.readFromChannel(channel);
+    if (undoWorldFragment == null) {
+      ErrorLog.defaultLog().info(description + " has an invalid fragment");
+      return null;
+    }
+    return new Contents(undoWorldFragment, changedBlocksMask);
+  }
+
+  @Override
+  public void delete()
+  {
+    if (file.exists() && !file.delete()) {
+      ErrorLog.defaultLog().debug("Couldn't delete undo storage file:" + file);
+    }
+  }
+
+  public static class Contents
+  {
+    public Contents(WorldFragment i_undoWorldFragment, VoxelSelection i_changedBlocksMask)
+    {
+      undoWorldFragment = i_undoWorldFragment;
+      changedBlocksMask = i_changedBlocksMask;
+    }
+    public final WorldFragment undoWorldFragment;
+    public final VoxelSelection changedBlocksMask;
+  }
+
+  private static synchronized long nextFileNumber() {return fileNumber++;}
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) throw new EOFException();
+    }
+  }
+
+  private static final String UNDO_STORAGE_FOLDER_NAME = "speedytools-undo";
+  private static final String SPILL_SUBFOLDER_NAME = "spill";
+  private static final String FILE_PREFIX = "undolayer";
+  private static final String FILE_SUFFIX = ".dat";
+  private static final int MAGIC = 0x5354554C;   // "STUL"
+  private static final int VERSION = 1;
+  private static final int MAX_MASK_BYTES = 64 * 1024 * 1024;   // sanity limit against corrupt data
+
+  private static long fileNumber = System.currentTimeMillis();    // different from the previous session's files, just in case
+
+  private final File file;
+}
@@ -1,6 +1,9 @@
 package speedytools.serverside.worldmanipulation;
 
 import net.minecraft.block.Block;
+import net.minecraft.block.BlockFalling;
+import net.minecraft.block.BlockLiquid;
+import net.minecraft.block.BlockPistonBase;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityHanging;
@@ -18,6 +21,8 @@ import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 import net.minecraft.world.gen.structure.StructureBoundingBox;
 import org.lwjgl.Sys;
+import speedytools.common.SpeedyToolsOptions;
+import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.selections.VoxelSelection;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
 import speedytools.common.utilities.*;
@@ -48,6 +53,9 @@ public class WorldFragment
 
   private static final int Y_MIN_VALID = 0;
   private static final int Y_MAX_VALID_PLUS_ONE = 256;
+  private static final long MIN_VOLUME_FOR_PREPARATION = 16 * 16 * 16 * 4;  // smaller writes aren't worth handing to a worker thread
+  private static final int TICKS_SORTED_PER_INTERRUPT_CHECK = 256;  // pending ticks sorted into chunk columns between checks for the end of the timeslice
+  private static final long SECTION_WAIT_MS = 100;  // how long a run-to-completion write waits for each prepared section before checking the worker again
 
   /**
    * create an empty WorldFragment from a given quadOrientation and y size
@@ -72,6 +80,7 @@ public class WorldFragment
     entityData = sourceFragment.entityData;
     voxelsWithStoredData = sourceFragment.voxelsWithStoredData;
     tickingBlocks = sourceFragment.tickingBlocks;
+    validLightValues = sourceFragment.validLightValues;
   }
 
   /** creates a WorldFragment, initially empty
@@ -85,6 +94,54 @@ public class WorldFragment
     initialise(i_xcount, i_ycount, i_zcount);
   }
 
+  /**
+   * creates a WorldFragment where every voxel in the mask contains the same block, for example for deleting or
+   *   filling a selection.  The block data takes constant storage and the fragment doesn't need to be read from the world.
+   * If any voxel is subsequently changed, the store copies itself to normal storage (see BlockDataStoreUniform).
+   * The fragment has no meaningful light values: writing it leaves the destination light in place and then rechecks
+   *   the light of every written voxel (see hasValidLightValues).
+   * @param mask the voxels to be filled; the fragment is the same size as the mask
+   * @param fillBlock the block to fill with; null = air
+   * @return the new fragment
+   */
+  public static WorldFragment createUniformFill(VoxelSelection mask, BlockWithMetadata fillBlock)
+  {
+    WorldFragment worldFragment = new WorldFragment(mask.getxSize(), mask.getySize(), mask.getzSize());
+    Block block = (fillBlock == null || fillBlock.block == null) ? Blocks.air : fillBlock.block;
+    int metadata = (fillBlock == null) ? 0 : fillBlock.metaData;
+    worldFragment.blockDataStore = new BlockDataStoreUniform(worldFragment.xCount, worldFragment.yCount, worldFragment.zCount,
+                                                             Block.getIdFromBlock(block), metadata, (byte)0);
+    worldFragment.voxelsWithStoredData = new VoxelSelection(mask);
+    worldFragment.validLightValues = false;
+    return worldFragment;
+  }
+
+  /**
+   * @return true if this fragment has the same block in every voxel (see createUniformFill)
+   */
+  public boolean isUniformFill()
+  {
+    return blockDataStore instanceof BlockDataStoreUniform && ((BlockDataStoreUniform)blockDataStore).isUniform();
+  }
+
+  /**
+   * @return true if the stored light values were read from a world and can be copied when writing; false if the light
+   *   of the written voxels must be recalculated instead (see createUniformFill)
+   */
+  public boolean hasValidLightValues()
+  {
+    return validLightValues;
+  }
+
+  /**
+   * mark the stored light values as meaningless, eg for a fragment assembled from voxels whose light isn't known: writing
+   *   it leaves the destination light in place and then rechecks the light of every written voxel
+   */
+  public void invalidateLightValues()
+  {
+    validLightValues = false;
+  }
+
   private void initialise(int i_xcount, int i_ycount, int i_zcount)
   {
     assert (i_xcount >= 0 && i_xcount <= MAX_X_SIZE);
@@ -94,12 +151,12 @@ public class WorldFragment
     yCount = i_ycount;
     zCount = i_zcount;
 
-    final int DEFAULT_BLOCK_COUNT_ESTIMATE = 16;
-    blockDataStore = new BlockDataStoreSparse(xCount, yCount, zCount, DEFAULT_BLOCK_COUNT_ESTIMATE);
+    blockDataStore = new BlockDataStoreAdaptive(xCount, yCount, zCount);   // starts empty, sections promote themselves as they fill
     tileEntityData = new HashMap<Integer, NBTTagCompound>();
     entityData = new HashMap<Integer, LinkedList<NBTTagCompound>>();
     voxelsWithStoredData = new VoxelSelection(i_xcount, i_ycount, i_zcount);
     tickingBlocks = new HashMap<Integer, NextTickListEntry>();
+    validLightValues = true;
   }
 
   /**
@@ -482,11 +539,13 @@ public class WorldFragment
       }
       voxelsWithStoredData = new VoxelSelection(xCount, yCount, zCount);   // starts empty, the setBlockID will fill it
 
+      // if the selection is dense overall, go straight to the array.  Otherwise let the adaptive store decide
+      //   section-by-section, since a sparse selection overall may still be dense in places
       final double THRESHOLD_FILL_FRACTION = 0.25;
       if (setVoxelsCount / (double) (xCount * yCount * zCount) > THRESHOLD_FILL_FRACTION) {
         blockDataStore = new BlockDataStoreArray(xCount, yCount, zCount);
       } else {
-        blockDataStore = new BlockDataStoreSparse(xCount, yCount, zCount, setVoxelsCount);
+        blockDataStore = new BlockDataStoreAdaptive(xCount, yCount, zCount);
       }
       state.setStage(AsynchronousReadStages.TILEDATA);
       if (state.isTimeToInterrupt()) return;
@@ -547,53 +606,117 @@ public class WorldFragment
       state.setStage(AsynchronousReadStages.ENTITYDATA);
     }
 
+    // the entities and ticks are captured one chunk at a time, so that the cost of each step is bounded and the
+    //   stage can be interrupted part way through.  state.x and state.z hold the chunk offsets from cxMin, czMin
+    final int cxMin = wxOrigin >> 4;
+    final int czMin = wzOrigin >> 4;
+    final int cxCount = ((wxOrigin + xCount - 1) >> 4) - cxMin + 1;
+    final int czCount = ((wzOrigin + zCount - 1) >> 4) - czMin + 1;
+
     if (state.getStage() == AsynchronousReadStages.ENTITYDATA) {
       final double EXPAND = 3;
-      AxisAlignedBB axisAlignedBB = new AxisAlignedBB(wxOrigin, wyOrigin, wzOrigin,
-              wxOrigin + xCount, wyOrigin + yCount, wzOrigin + zCount)
-              .expand(EXPAND, EXPAND, EXPAND);
-
-      List<EntityHanging> allHangingEntities = worldServerReader.getEntitiesWithinAABB(EntityHanging.class,
-                                                                                       axisAlignedBB);
-
-      for (EntityHanging entity : allHangingEntities) {
-        int x = entity.func_174857_n().getX() - wxOrigin;
-        int y = entity.func_174857_n().getY() - wyOrigin;
-        int z = entity.func_174857_n().getZ() - wzOrigin;
+      int cxOffset = state.x;
+      int czOffset = state.z;
+      for (; czOffset < czCount; ++czOffset, cxOffset = 0) {
+        for (; cxOffset < cxCount; ++cxOffset) {
+          int cx = cxMin + cxOffset;
+          int cz = czMin + czOffset;
+          int wxChunkMin = Math.max(cx << 4, wxOrigin);
+          int wzChunkMin = Math.max(cz << 4, wzOrigin);
+          int wxChunkMaxPlusOne = Math.min((cx << 4) + 16, wxOrigin + xCount);
+          int wzChunkMaxPlusOne = Math.min((cz << 4) + 16, wzOrigin + zCount);
+          AxisAlignedBB axisAlignedBB = new AxisAlignedBB(wxChunkMin, wyOrigin, wzChunkMin,
+                                                          wxChunkMaxPlusOne, wyOrigin + yCount, wzChunkMaxPlusOne)
+                                                          .expand(EXPAND, EXPAND, EXPAND);
+
+          List<EntityHanging> chunkHangingEntities = worldServerReader.getEntitiesWithinAABB(EntityHanging.class,
+                                                                                             axisAlignedBB);
+          for (EntityHanging entity : chunkHangingEntities) {
+            BlockPos hangingPosition = entity.func_174857_n();
+            if ((hangingPosition.getX() >> 4) != cx || (hangingPosition.getZ() >> 4) != cz) continue;  // belongs to a neighbouring chunk
+            int x = hangingPosition.getX() - wxOrigin;
+            int y = hangingPosition.getY() - wyOrigin;
+            int z = hangingPosition.getZ() - wzOrigin;
 
-        if (selection.getVoxel(x, y, z)) {
-          NBTTagCompound tag = new NBTTagCompound();
-          entity.writeToNBTOptional(tag);
-          addEntity(x, y, z, tag);
+            if (selection.getVoxel(x, y, z)) {
+              NBTTagCompound tag = new NBTTagCompound();
+              entity.writeToNBTOptional(tag);
+              addEntity(x, y, z, tag);
+            }
+          }
+          if (state.isTimeToInterrupt()) {
+            state.z = czOffset;
+            state.x = cxOffset + 1;
+            state.setStageFractionComplete((czOffset * cxCount + cxOffset + 1) / (double)(czCount * cxCount));
+            return;
+          }
         }
       }
+      if (OperationMetrics.defaultMetrics().isEnabled()) {
+        OperationMetrics.defaultMetrics().addToCounter(OperationMetrics.Counter.CHUNKS_TOUCHED, cxCount * czCount);
+      }
       state.setStage(AsynchronousReadStages.TICKINGBLOCKS);
     }
 
     if (state.getStage() == AsynchronousReadStages.TICKINGBLOCKS) {
+      // the world's pending ticks are fetched once for the whole fragment and sorted into chunk columns, a few at a
+      //   time; then they are assigned to the fragment one chunk column at a time
       int yClipMin = Math.max(Y_MIN_VALID, 0 + wyOrigin) - wyOrigin;
       int yClipMaxPlusOne = Math.min(Y_MAX_VALID_PLUS_ONE, yCount + wyOrigin) - wyOrigin;
+      if (state.pendingTicksByChunk == null) {
+        state.pendingTicksByChunk = new HashMap<Long, List<NextTickListEntry>>();
+        List<NextTickListEntry> blockTickInfo = null;
+        if (yClipMin < yClipMaxPlusOne) {
+          StructureBoundingBox fragmentSBB = new StructureBoundingBox(wxOrigin, yClipMin + wyOrigin, wzOrigin,
+                                                                      wxOrigin + xCount, yClipMaxPlusOne - 1 + wyOrigin, wzOrigin + zCount);
+          blockTickInfo = worldServerReader.getTickingBlocks(fragmentSBB);
+        }
+        state.pendingTicksToSort = (blockTickInfo == null) ? null : blockTickInfo.iterator();
+        if (state.isTimeToInterrupt()) return;
+      }
 
-//      long startTime = System.nanoTime(); // todo remove
-
-      StructureBoundingBox yColumnSBB = new StructureBoundingBox(wxOrigin, yClipMin + wyOrigin, wzOrigin,
-                                                                 wxOrigin + xCount, yClipMaxPlusOne - 1 + wyOrigin, wzOrigin + zCount);
-      List<NextTickListEntry> blockTickInfo = worldServerReader.getTickingBlocks(yColumnSBB);
-//      long time2 = System.nanoTime(); // todo remove
-      if (blockTickInfo != null) {
-        for (NextTickListEntry nextTickListEntry : blockTickInfo) {
-          int x = nextTickListEntry.position.getX() - wxOrigin;
-          int y = nextTickListEntry.position.getY() - wyOrigin;
-          int z = nextTickListEntry.position.getZ() - wzOrigin;
-          if (selection.getVoxel(x, y, z)) {
-            setTickInfo(x, y, z, nextTickListEntry);
+      if (state.pendingTicksToSort != null) {
+        int sortedCount = 0;
+        while (state.pendingTicksToSort.hasNext()) {
+          NextTickListEntry nextTickListEntry = state.pendingTicksToSort.next();
+          Long chunkKey = chunkKey(nextTickListEntry.position.getX() >> 4, nextTickListEntry.position.getZ() >> 4);
+          List<NextTickListEntry> chunkTicks = state.pendingTicksByChunk.get(chunkKey);
+          if (chunkTicks == null) {
+            chunkTicks = new ArrayList<NextTickListEntry>();
+            state.pendingTicksByChunk.put(chunkKey, chunkTicks);
           }
+          chunkTicks.add(nextTickListEntry);
+          if (++sortedCount % TICKS_SORTED_PER_INTERRUPT_CHECK == 0 && state.isTimeToInterrupt()) return;
         }
+        state.pendingTicksToSort = null;
+        if (state.isTimeToInterrupt()) return;
       }
-      long endTime = System.nanoTime(); // todo remove
-//      System.out.println("start:" + startTime + ", end:" + endTime + ", delta(ms) = " + (endTime - startTime) / 1000000); //todo remove
-//      System.out.println("   time1,2 = " + (time2 - startTime) + ", " + (endTime - time2));
 
+      int cxOffset = state.x;
+      int czOffset = state.z;
+      for (; czOffset < czCount; ++czOffset, cxOffset = 0) {
+        for (; cxOffset < cxCount; ++cxOffset) {
+          List<NextTickListEntry> chunkTicks = state.pendingTicksByChunk.get(chunkKey(cxMin + cxOffset, czMin + czOffset));
+          if (chunkTicks != null) {
+            for (NextTickListEntry nextTickListEntry : chunkTicks) {
+              int x = nextTickListEntry.position.getX() - wxOrigin;
+              int y = nextTickListEntry.position.getY() - wyOrigin;
+              int z = nextTickListEntry.position.getZ() - wzOrigin;
+              if (x >= 0 && x < xCount && y >= yClipMin && y < yClipMaxPlusOne && z >= 0 && z < zCount
+                  && selection.getVoxel(x, y, z)) {
+                setTickInfo(x, y, z, nextTickListEntry);
+              }
+            }
+          }
+          if (state.isTimeToInterrupt()) {
+            state.z = czOffset;
+            state.x = cxOffset + 1;
+            state.setStageFractionComplete((czOffset * cxCount + cxOffset + 1) / (double)(czCount * cxCount));
+            return;
+          }
+        }
+      }
+      state.pendingTicksByChunk = null;
       state.setStage(AsynchronousReadStages.COMPLETE);
     }
 
@@ -601,6 +724,11 @@ public class WorldFragment
     return;
   }
 
+  private static Long chunkKey(int cx, int cz)
+  {
+    return ((long)cx << 32) | (cz & 0xffffffffL);
+  }
+
   public enum AsynchronousReadStages
   {
     SETUP(0.1), TILEDATA(0.6), ENTITYDATA(0.2), TICKINGBLOCKS(0.1), COMPLETE(0.0);
@@ -634,7 +762,9 @@ public class WorldFragment
 
     @Override
     public void continueProcessing() {
+      stageTimer.resume();
       readFromWorldAsynchronous_do(worldServerReader, this);
+      stageTimer.pause();
     }
 
     @Override
@@ -648,14 +778,17 @@ public class WorldFragment
     @Override
     public double getFractionComplete()
     {
-      return cumulativeCompletion + currentStage.durationWeight * stageFractionComplete;
+      return cumulativeCompletion + stageTimer.getStageWeight(currentStage, currentStage.durationWeight) * stageFractionComplete;
     }
 
     public VoxelSelectionWithOrigin getLockedRegion()
     {
       if (currentStage == AsynchronousReadStages.SETUP || isTaskComplete()) return null;
       assert (voxelSelection != null);
-      return new VoxelSelectionWithOrigin(wxOrigin, wyOrigin, wzOrigin, voxelSelection);
+      if (lockedRegionWithOrigin == null) {
+        lockedRegionWithOrigin = new VoxelSelectionWithOrigin(wxOrigin, wyOrigin, wzOrigin, voxelSelection);
+      }
+      return lockedRegionWithOrigin;
     }
 
     @Override
@@ -670,7 +803,9 @@ public class WorldFragment
       wyOrigin = i_wyOrigin;
       wzOrigin = i_wzOrigin;
       voxelSelection = i_voxelSelection;
+      stageTimer = new StageTimingModel.StageTimer(StageTimingModel.getInstance(worldServerReader.getWorldServer()), "WorldFragment.Read");
       currentStage = AsynchronousReadStages.SETUP;
+      stageTimer.switchStage(currentStage);
       interruptTimeNS = INFINITE_TIMEOUT;
       stageFractionComplete = 0;
       cumulativeCompletion = 0;
@@ -682,8 +817,15 @@ public class WorldFragment
     public AsynchronousReadStages getStage() {return currentStage;}
     public void setStage(AsynchronousReadStages nextStage)
     {
-      cumulativeCompletion += currentStage.durationWeight;
+      cumulativeCompletion += stageTimer.getStageWeight(currentStage, currentStage.durationWeight);
       currentStage = nextStage;
+      stageTimer.switchStage(nextStage);
+      if (nextStage == AsynchronousReadStages.COMPLETE && !aborted) {
+        stageTimer.finish(0, 0);
+      }
+      stageFractionComplete = 0;
+      x = 0;
+      z = 0;
     }
 
     public void setStageFractionComplete(double completionFraction)
@@ -700,8 +842,11 @@ public class WorldFragment
 
     public int x;
     public int z;
+    public HashMap<Long, List<NextTickListEntry>> pendingTicksByChunk;  // TICKINGBLOCKS: the pending ticks sorted by chunk column; null until needed
+    public Iterator<NextTickListEntry> pendingTicksToSort;              // TICKINGBLOCKS: the pending ticks not yet sorted; null once they all are
 
     private AsynchronousReadStages currentStage;
+    private final StageTimingModel.StageTimer stageTimer;
     private long interruptTimeNS;
     private double stageFractionComplete;
     private double cumulativeCompletion;
@@ -824,6 +969,13 @@ public class WorldFragment
     int wzMaxPlusOne = zrange.getSecond() + 1 + wzOrigin;
 
     if (state.getStage() == AsynchronousWriteStages.SETUP) {
+      // start preparing the blocks on a worker thread while the server thread does the rest of the setup
+      if (PreparationPool.isEnabled() && (long)xCount * yCount * zCount >= MIN_VOLUME_FOR_PREPARATION) {
+        state.preparedWrite = new PreparedFragmentWrite(this, selection, wxOrigin, wyOrigin, wzOrigin, orientation,
+                                                        wxMin, wxMaxPlusOne, yClipMin + wyOrigin, yClipMaxPlusOne + wyOrigin,
+                                                        wzMin, wzMaxPlusOne);
+        state.preparedWrite.start(PreparationPool.defaultPool());
+      }
       final double EXPAND = 3;
       AxisAlignedBB axisAlignedBB = new AxisAlignedBB(wxMin, wyOrigin, wzMin,
               wxMaxPlusOne, wyOrigin + yCount, wzMaxPlusOne)
@@ -841,6 +993,10 @@ public class WorldFragment
           entity.setDead();
         }
       }
+      if (OperationMetrics.defaultMetrics().isEnabled()) {
+        int chunkCount = (((wxMaxPlusOne - 1) >> 4) - (wxMin >> 4) + 1) * (((wzMaxPlusOne - 1) >> 4) - (wzMin >> 4) + 1);
+        OperationMetrics.defaultMetrics().addToCounter(OperationMetrics.Counter.CHUNKS_TOUCHED, chunkCount);
+      }
       state.setStage(AsynchronousWriteStages.WRITE_TILEDATA);
       if (state.isTimeToInterrupt()) return;
     }
@@ -849,12 +1005,32 @@ public class WorldFragment
     // During overwrite, the TileEntity is marked invalid and removed from the chunk.  The position is changed to
     //    prevent it from interfering with the new TileEntity at the same blockpos.
 
+    if (state.getStage() == AsynchronousWriteStages.WRITE_TILEDATA && state.preparedWrite != null) {
+      boolean finished = writePreparedSections(worldServer, state);
+      if (!finished) return;
+    }
+
     if (state.getStage() == AsynchronousWriteStages.WRITE_TILEDATA) {
       //todo: keep track of dirty chunks here  Need to to makeChunkDirty?
 //      System.out.println("writeToWorldAsynchronous_do: origin [" + wxOrigin + ", " + wyOrigin + ", " + wzOrigin + "]");
 //      System.out.println("  [wx0,wz0] = [" + orientation.calcWXfromXZ(0, 0) +", " +orientation.calcWZfromXZ(0,0) + "]");
 //      System.out.println("  [wxmax,wzmax] inclusive = [" + orientation.calcWXfromXZ(xCount-1, zCount-1) +", " +orientation.calcWZfromXZ(xCount-1, zCount-1) + "]");
 
+      // uniform fill: the block is the same everywhere, so look it up and reorient it once only
+      final boolean uniformFill = isUniformFill();
+      int uniformBlockID = 0;
+      int uniformMetadata = 0;
+      IBlockState uniformBlockState = null;
+      if (uniformFill) {
+        BlockDataStoreUniform uniformStore = (BlockDataStoreUniform)blockDataStore;
+        uniformBlockID = uniformStore.getBlockID();
+        uniformMetadata = reorientMetadata(uniformBlockID, uniformStore.getMetadata(), orientation);
+        uniformBlockState = Block.getBlockById(uniformBlockID).getStateFromMeta(uniformMetadata);
+      }
+      final boolean hasTileEntityData = !tileEntityData.isEmpty();
+      ClientChunkSynchroniser clientChunkSynchroniser = SpeedyToolsOptions.getDeltaChunkSync()
+                                                        ? ClientChunkSynchroniser.getInstance(worldServer) : null;
+
       int x = state.x;
       int z = state.z;
       for (; z < zCount; ++z, x = 0) {
@@ -865,34 +1041,29 @@ public class WorldFragment
               int wy = y + wyOrigin;
               int wz = orientation.calcWZfromXZ(x, z) + wzOrigin;
               BlockPos blockPos = new BlockPos(wx, wy, wz);
-              int blockID = getBlockID(x, y, z);
-              int blockMetadata = getMetadata(x, y, z);
-              byte lightValue = getLightValue(x, y, z);
 
               Chunk chunk = worldServer.getChunkFromChunkCoords(wx >> 4, wz >> 4);
-              TileEntity tileentity = chunk.getTileEntity(blockPos, Chunk.EnumCreateEntityType.CHECK);
-              if (tileentity != null) {
-                final BlockPos ARBITRARY_INVALID_POSITION = new BlockPos(0, -1, 0);
-                tileentity.setPos(ARBITRARY_INVALID_POSITION);      // stops it from overwriting a new TileEntity in the same position
-                                                                    //  see World.updateEntities() at section "blockEntities"
-                tileentity.invalidate();
-                chunk.removeTileEntity(blockPos);
+              removeChunkTileEntity(chunk, blockPos);
+
+              boolean successful;
+              if (uniformFill) {
+                successful = setBlockState(chunk, wx, wy, wz, uniformBlockID, uniformBlockState);
+              } else {
+                int blockID = getBlockID(x, y, z);
+                int blockMetadata = reorientMetadata(blockID, getMetadata(x, y, z), orientation);
+                successful = setBlockIDWithMetadata(chunk, wx, wy, wz, blockID, blockMetadata);
               }
-
-              if (orientation.isFlippedX()) {
-                blockMetadata = BlockRotateFlipHelper.flip(blockID, blockMetadata, BlockRotateFlipHelper.FlipDirection.WEST_EAST);
-              }
-              for (int quadrants = orientation.getClockwiseRotationCount(); quadrants > 0; --quadrants) {
-                blockMetadata = BlockRotateFlipHelper.rotate90(blockID, blockMetadata);
-              }
-
-              boolean successful = setBlockIDWithMetadata(chunk, wx, wy, wz, blockID, blockMetadata);
-              NBTTagCompound tileEntityNBT = getTileEntityData(x, y, z);
+              NBTTagCompound tileEntityNBT = hasTileEntityData ? getTileEntityData(x, y, z) : null;
               if (successful && tileEntityNBT != null) {
                 setWorldTileEntity(worldServer, wx, wy, wz, tileEntityNBT);
               }
 
-              setLightValue(chunk, wx, wy, wz, lightValue);
+              if (validLightValues) {   // otherwise keep the destination light until HEIGHT_AND_SKYLIGHT rechecks it
+                setLightValue(chunk, wx, wy, wz, getLightValue(x, y, z));
+              }
+              if (clientChunkSynchroniser != null) {
+                clientChunkSynchroniser.markBlockChanged(wx, wy, wz);
+              }
             }
           } // for y
           if (state.isTimeToInterrupt()) {
@@ -903,7 +1074,7 @@ public class WorldFragment
           }
         }
       }
-      state.setStage(AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT);
+      state.setStage(AsynchronousWriteStages.SURFACE_MASK);
     }
 
     final int cxMin = wxMin >> 4;
@@ -913,7 +1084,55 @@ public class WorldFragment
     final int czMin = wzMin >> 4;
     final int czMax = (wzMaxPlusOne - 1) >> 4;
 
-    if (state.getStage() == AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT) {
+    // the surface of the write mask is needed for incremental relighting and for boundary-only neighbour notification;
+    //   it is generated one x slice at a time because it visits every voxel in the mask
+    //   (a fragment without valid light values is always relit incrementally, because the full regeneration below
+    //   only repairs the skylight)
+    final boolean relightIncrementally = SpeedyToolsOptions.getIncrementalRelighting() || !validLightValues;
+    final boolean notifyBoundaryOnly = SpeedyToolsOptions.getNotifyNeighboursOnBoundaryOnly();
+    if (state.getStage() == AsynchronousWriteStages.SURFACE_MASK) {
+      if (relightIncrementally || notifyBoundaryOnly) {
+        final int xSize = selection.getxSize();
+        if (state.surfaceMask == null) {
+          state.surfaceMask = new VoxelSelection(xSize, selection.getySize(), selection.getzSize());
+        }
+        for (int x = state.x; x < xSize; ++x) {
+          selection.addInnerSurfaceVoxels(state.surfaceMask, x, x + 1);
+          if (state.isTimeToInterrupt()) {
+            state.x = x + 1;
+            state.setStageFractionComplete(state.x / (double)xSize);
+            return;
+          }
+        }
+      }
+      state.setStage(AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT);
+    }
+
+    // if the surface is a large part of the written volume (eg thin walls), the incremental relighting does more light
+    //   updates than it saves, so regenerate the chunks in full instead
+    if (state.getStage() == AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT && relightIncrementally && state.relighter == null
+        && validLightValues && !state.relightInFull
+        && IncrementalRelighter.getSurfaceFraction(selection, state.surfaceMask) > SpeedyToolsOptions.getIncrementalRelightingMaxSurfaceFraction()) {
+      state.relightInFull = true;
+    }
+
+    if (state.getStage() == AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT && relightIncrementally && !state.relightInFull) {
+      if (state.relighter == null) {
+        state.relighter = new IncrementalRelighter(worldServer, selection, state.surfaceMask, wxOrigin, wyOrigin, wzOrigin,
+                                                   orientation, yClipMin, yClipMaxPlusOne);
+        if (SpeedyToolsOptions.getDeltaChunkSync()) {
+          state.relighter.setClientChunkSynchroniser(ClientChunkSynchroniser.getInstance(worldServer));
+        }
+      }
+      if (!state.relighter.continueRelighting(state)) {
+        state.setStageFractionComplete(state.relighter.getFractionComplete());
+        return;
+      }
+      state.relighter = null;
+      state.setStage(AsynchronousWriteStages.NEIGHBOUR_CHANGE);
+    }
+
+    if (state.getStage() == AsynchronousWriteStages.HEIGHT_AND_SKYLIGHT) {   // regenerate every chunk in full
       int cx = state.x;
       int cz = state.z;
       int xCount = cxMax - cxMin + 1;
@@ -935,18 +1154,26 @@ public class WorldFragment
     }
 
     if (state.getStage() == AsynchronousWriteStages.NEIGHBOUR_CHANGE) {
+      // interior voxels only have written voxels as neighbours, so notifying them is redundant unless the block itself
+      //   reacts to its neighbours (eg redstone, sand)
       int x = state.x;
       int z = state.z;
       for (; z < zCount; ++z, x = 0) {
         for (; x < xCount; ++x) {
           for (int y = yClipMin; y < yClipMaxPlusOne; ++y) {
             if (selection.getVoxel(x, y, z)) {
+              boolean onSurface = !notifyBoundaryOnly || state.surfaceMask.getVoxel(x, y, z);
+              int blockID = getBlockID(x, y, z);
+              if (!onSurface && !needsNeighbourUpdates(blockID)) continue;
               int wx = orientation.calcWXfromXZ(x, z) + wxOrigin;
               int wy = y + wyOrigin;
               int wz = orientation.calcWZfromXZ(x, z) + wzOrigin;
               BlockPos blockPos = new BlockPos(wx, wy, wz);
               IBlockState blockState = worldServer.getBlockState(blockPos);
               worldServer.notifyNeighborsRespectDebug(blockPos, blockState.getBlock());
+              if (!onSurface) {   // none of its neighbours will notify it, so do it here
+                worldServer.notifyBlockOfStateChange(blockPos, blockState.getBlock());
+              }
             }
           }
           if (state.isTimeToInterrupt()) {
@@ -969,9 +1196,10 @@ public class WorldFragment
         for (; czOffset < zCount; ++czOffset) {
           int cx = cxOffset + cxMin;
           int cz = czOffset + czMin;
-          // mark chunks for "loading" (transfer to any interested player)
+          // mark chunks for "loading" (transfer to any interested player).  Not needed if the changed blocks were given
+          //   to the ClientChunkSynchroniser during WRITE_TILEDATA
           PlayerManager playerManager = worldServer.getPlayerManager();
-          if (playerManager != null) {  // may be null during testing
+          if (playerManager != null && !SpeedyToolsOptions.getDeltaChunkSync()) {  // may be null during testing
             for (Object playerEntity : worldServer.playerEntities) {
               EntityPlayerMP entityPlayerMP = (EntityPlayerMP) playerEntity;
               if (playerManager.isPlayerWatchingChunk(entityPlayerMP, cx, cz)) {        // todo later: this might be slow because it searches loadedChunks unnecessarily; optimise later
@@ -989,26 +1217,28 @@ public class WorldFragment
           int ymax = wyOrigin + yClipMaxPlusOne - 1;
           int zmax = (cz << 4) | 0x0f;
 
-          for (int wx = xmin; wx <= xmax; ++wx) {
-            for (int wy = ymin; wy <= ymax; ++wy) {
-              for (int wz = zmin; wz <= zmax; ++wz) {
-                int x = orientation.calcXfromWXZ(wx - wxOrigin, wz - wzOrigin);
-                int y = wy - wyOrigin;
-                int z = orientation.calcZfromWXZ(wx - wxOrigin, wz - wzOrigin);
-                if (selection.getVoxel(x, y, z)) {
-                  LinkedList<NBTTagCompound> listOfEntitiesAtThisBlock = getEntitiesAtBlock(x, y, z);
-                  if (listOfEntitiesAtThisBlock != null) {
-                    for (NBTTagCompound nbtTagCompound : listOfEntitiesAtThisBlock) {
-                      Entity newEntity = spawnRotatedTranslatedEntity(worldServer, nbtTagCompound, wx, wy, wz, orientation);
-                      if (newEntity != null) {
-                        worldServer.spawnEntityInWorld(newEntity);
+          if (!entityData.isEmpty()) {   // if nothing to spawn (eg uniform fill) - skip the voxel scan
+            for (int wx = xmin; wx <= xmax; ++wx) {
+              for (int wy = ymin; wy <= ymax; ++wy) {
+                for (int wz = zmin; wz <= zmax; ++wz) {
+                  int x = orientation.calcXfromWXZ(wx - wxOrigin, wz - wzOrigin);
+                  int y = wy - wyOrigin;
+                  int z = orientation.calcZfromWXZ(wx - wxOrigin, wz - wzOrigin);
+                  if (selection.getVoxel(x, y, z)) {
+                    LinkedList<NBTTagCompound> listOfEntitiesAtThisBlock = getEntitiesAtBlock(x, y, z);
+                    if (listOfEntitiesAtThisBlock != null) {
+                      for (NBTTagCompound nbtTagCompound : listOfEntitiesAtThisBlock) {
+                        Entity newEntity = spawnRotatedTranslatedEntity(worldServer, nbtTagCompound, wx, wy, wz, orientation);
+                        if (newEntity != null) {
+                          worldServer.spawnEntityInWorld(newEntity);
+                        }
                       }
                     }
                   }
                 }
               }
-            }
-          } // for y
+            } // for y
+          }
           if (state.isTimeToInterrupt()) {
             state.z = czOffset + 1;
             state.x = cxOffset;
@@ -1020,6 +1250,10 @@ public class WorldFragment
       state.setStage(AsynchronousWriteStages.UPDATE_TICKS);
     }
 
+    if (state.getStage() == AsynchronousWriteStages.UPDATE_TICKS && tickingBlocks.isEmpty()) {
+      state.setStage(AsynchronousWriteStages.COMPLETE);
+    }
+
     if (state.getStage() == AsynchronousWriteStages.UPDATE_TICKS) {
       long worldTotalTimeNow = worldServer.getWorldInfo().getWorldTotalTime();
       int x = state.x;
@@ -1060,9 +1294,89 @@ public class WorldFragment
     }
   }
 
+  /**
+   * Write the blocks which have been prepared by the worker thread (see PreparedFragmentWrite), section by section,
+   *   then move to the next stage.  If the preparation failed, the normal write is used instead.
+   * Doesn't wait for the worker: if no section is ready, it returns and tries again in the next timeslice.  The
+   *   exception is a write which must run to completion in a single call (eg writeToWorld()), which waits instead.
+   * @return true if finished (or falling back to the normal write), false if interrupted or waiting for the worker
+   */
+  private boolean writePreparedSections(WorldServer worldServer, AsynchronousWrite state)
+  {
+    PreparedFragmentWrite preparedWrite = state.preparedWrite;
+    boolean waitForWorker = state.isRunToCompletion();
+    ClientChunkSynchroniser clientChunkSynchroniser = SpeedyToolsOptions.getDeltaChunkSync()
+                                                      ? ClientChunkSynchroniser.getInstance(worldServer) : null;
+    while (true) {
+      if (preparedWrite.hasFailed()) {      // start again from the beginning on the server thread
+        preparedWrite.cancel();
+        state.preparedWrite = null;
+        return true;
+      }
+      PreparedFragmentWrite.PreparedSection section = waitForWorker ? preparedWrite.waitForSection(SECTION_WAIT_MS)
+                                                                    : preparedWrite.pollSection();
+      if (section == null) {
+        if (!preparedWrite.isPreparationFinished()) {
+          if (waitForWorker) continue;
+          return false;
+        }
+        section = preparedWrite.pollSection();   // the worker may have added the last section just before it finished
+        if (section == null) {
+          if (preparedWrite.hasFailed()) continue;
+          if (preparedWrite.wasAbandoned()) {      // the worker gave up waiting for us; carry on from where it stopped
+            preparedWrite.resume(PreparationPool.defaultPool());
+            if (waitForWorker) continue;
+            return false;
+          }
+          state.preparedWrite = null;
+          state.setStage(AsynchronousWriteStages.SURFACE_MASK);
+          return true;
+        }
+      }
+
+      Chunk chunk = worldServer.getChunkFromChunkCoords(section.cx, section.cz);
+      int wxBase = section.cx << 4;
+      int wyBase = section.cy << 4;
+      int wzBase = section.cz << 4;
+      for (int i = 0; i < section.voxelCount; ++i) {
+        int position = section.positions[i];
+        int wx = wxBase | (position & 0x0f);
+        int wy = wyBase | ((position >> 8) & 0x0f);
+        int wz = wzBase | ((position >> 4) & 0x0f);
+        removeChunkTileEntity(chunk, new BlockPos(wx, wy, wz));
+        boolean successful = setBlockState(chunk, wx, wy, wz, section.blockIDs[i], section.blockStates[i]);
+        NBTTagCompound tileEntityNBT = (section.tileEntityData == null) ? null : section.tileEntityData[i];
+        if (successful && tileEntityNBT != null) {
+          setWorldTileEntity(worldServer, wx, wy, wz, tileEntityNBT);
+        }
+        if (validLightValues) {
+          setLightValue(chunk, wx, wy, wz, section.lightValues[i]);
+        }
+        if (clientChunkSynchroniser != null) {
+          clientChunkSynchroniser.markBlockChanged(wx, wy, wz);
+        }
+      }
+      state.setStageFractionComplete(preparedWrite.getFractionComplete());
+      if (state.isTimeToInterrupt()) return false;
+    }
+  }
+
+  // remove any TileEntity at the given position, before the block is overwritten
+  private static void removeChunkTileEntity(Chunk chunk, BlockPos blockPos)
+  {
+    TileEntity tileentity = chunk.getTileEntity(blockPos, Chunk.EnumCreateEntityType.CHECK);
+    if (tileentity != null) {
+      final BlockPos ARBITRARY_INVALID_POSITION = new BlockPos(0, -1, 0);
+      tileentity.setPos(ARBITRARY_INVALID_POSITION);      // stops it from overwriting a new TileEntity in the same position
+                                                          //  see World.updateEntities() at section "blockEntities"
+      tileentity.invalidate();
+      chunk.removeTileEntity(blockPos);
+    }
+  }
+
   public enum AsynchronousWriteStages
   {
-    SETUP(0.1), WRITE_TILEDATA(0.3), HEIGHT_AND_SKYLIGHT(0.1), NEIGHBOUR_CHANGE(0.2), SEND_CHUNKS_AND_ENTITIES(0.2), UPDATE_TICKS(0.1), COMPLETE(0.0);
+    SETUP(0.1), WRITE_TILEDATA(0.3), SURFACE_MASK(0.05), HEIGHT_AND_SKYLIGHT(0.1), NEIGHBOUR_CHANGE(0.15), SEND_CHUNKS_AND_ENTITIES(0.2), UPDATE_TICKS(0.1), COMPLETE(0.0);
 
     AsynchronousWriteStages(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
@@ -1092,13 +1406,15 @@ public class WorldFragment
 
     @Override
     public void continueProcessing() {
+      stageTimer.resume();
       writeToWorldAsynchronous_do(worldServer, this);
+      stageTimer.pause();
     }
 
     @Override
     public double getFractionComplete()
     {
-      return cumulativeCompletion + currentStage.durationWeight * stageFractionComplete;
+      return cumulativeCompletion + stageTimer.getStageWeight(currentStage, currentStage.durationWeight) * stageFractionComplete;
     }
 
     @Override
@@ -1106,6 +1422,10 @@ public class WorldFragment
     {
       currentStage = AsynchronousWriteStages.COMPLETE;
       aborted = true;
+      if (preparedWrite != null) {
+        preparedWrite.cancel();
+        preparedWrite = null;
+      }
     }
 
     public AsynchronousWrite(WorldServer i_worldServer, VoxelSelection i_writeMask, int i_wxOrigin, int i_wyOrigin, int i_wzOrigin, QuadOrientation i_quadOrientation)
@@ -1116,7 +1436,9 @@ public class WorldFragment
       wzOrigin = i_wzOrigin;
       writeMask = i_writeMask;
       quadOrientation = i_quadOrientation;
+      stageTimer = new StageTimingModel.StageTimer(StageTimingModel.getInstance(worldServer), "WorldFragment.Write");
       currentStage = AsynchronousWriteStages.SETUP;
+      stageTimer.switchStage(currentStage);
       interruptTimeNS = INFINITE_TIMEOUT;
       stageFractionComplete = 0;
       cumulativeCompletion = 0;
@@ -1130,8 +1452,12 @@ public class WorldFragment
     public AsynchronousWriteStages getStage() {return currentStage;}
     public void setStage(AsynchronousWriteStages nextStage)
     {
-      cumulativeCompletion += currentStage.durationWeight;
+      cumulativeCompletion += stageTimer.getStageWeight(currentStage, currentStage.durationWeight);
       currentStage = nextStage;
+      stageTimer.switchStage(nextStage);
+      if (nextStage == AsynchronousWriteStages.COMPLETE && !aborted) {
+        stageTimer.finish(0, 0);
+      }
       x = 0;
       z = 0;
     }
@@ -1142,10 +1468,16 @@ public class WorldFragment
       stageFractionComplete = completionFraction;
     }
 
+    // true if the write must be finished in a single call (see writeToWorld()), so it must wait for the prepared sections
+    public boolean isRunToCompletion() {return interruptTimeNS == INFINITE_TIMEOUT;}
+
     public VoxelSelectionWithOrigin getLockedRegion()
     {
       if (isTaskComplete()) return null;
-      return new VoxelSelectionWithOrigin(wxOrigin, wyOrigin, wzOrigin, lockedRegion);
+      if (lockedRegionWithOrigin == null) {
+        lockedRegionWithOrigin = new VoxelSelectionWithOrigin(wxOrigin, wyOrigin, wzOrigin, lockedRegion);
+      }
+      return lockedRegionWithOrigin;
     }
 
     public void enqueueTileEntityForRemoval(TileEntity tileEntity)
@@ -1174,13 +1506,33 @@ public class WorldFragment
     public int z;
 
     private AsynchronousWriteStages currentStage;
+    private final StageTimingModel.StageTimer stageTimer;
     private long interruptTimeNS;
     private double stageFractionComplete;
     private double cumulativeCompletion;
     private final VoxelSelection lockedRegion;
+    private VoxelSelectionWithOrigin lockedRegionWithOrigin;   // copied once, on the first request
     private boolean aborted;
     private final UniqueTokenID uniqueTokenID = new UniqueTokenID();
     private Queue<BlockPos> tileEntitiesForRemoval;
+    public VoxelSelection surfaceMask;    // SURFACE_MASK: the surface of the written voxels, for relighting & NEIGHBOUR_CHANGE; null if not needed
+    public IncrementalRelighter relighter; // HEIGHT_AND_SKYLIGHT: the relighting in progress; null until needed
+    public boolean relightInFull;          // HEIGHT_AND_SKYLIGHT: true if the surface is too large for incremental relighting
+    public PreparedFragmentWrite preparedWrite; // WRITE_TILEDATA: the blocks being prepared off-thread; null if not used
+  }
+
+  /**
+   * returns true if the given block reacts to neighbour changes in a way which matters even when all its neighbours
+   *   have just been written too - eg falling blocks, liquids, redstone components, pistons
+   * @param blockID
+   * @return
+   */
+  private static boolean needsNeighbourUpdates(int blockID)
+  {
+    if (blockID == 0) return false;
+    Block block = Block.getBlockById(blockID);
+    return block instanceof BlockFalling || block instanceof BlockLiquid || block instanceof BlockPistonBase
+           || block.canProvidePower() || block.hasComparatorInputOverride();
   }
 
   /**
@@ -1281,7 +1633,31 @@ public class WorldFragment
     }
   }
 
+  /**
+   * returns the metadata for the given block after it has been flipped and rotated to the given orientation
+   */
+  static int reorientMetadata(int blockID, int blockMetadata, QuadOrientation orientation)
+  {
+    if (orientation.isFlippedX()) {
+      blockMetadata = BlockRotateFlipHelper.flip(blockID, blockMetadata, BlockRotateFlipHelper.FlipDirection.WEST_EAST);
+    }
+    for (int quadrants = orientation.getClockwiseRotationCount(); quadrants > 0; --quadrants) {
+      blockMetadata = BlockRotateFlipHelper.rotate90(blockID, blockMetadata);
+    }
+    return blockMetadata;
+  }
+
   public static boolean setBlockIDWithMetadata(Chunk chunk, int wx, int wy, int wz, int blockID, int metaData)
+  {
+    Block block = Block.getBlockById(blockID);
+    IBlockState iBlockState = block.getStateFromMeta(metaData);
+    return setBlockState(chunk, wx, wy, wz, blockID, iBlockState);
+  }
+
+  /**
+   * as for setBlockIDWithMetadata, but with a blockstate that has already been looked up
+   */
+  public static boolean setBlockState(Chunk chunk, int wx, int wy, int wz, int blockID, IBlockState iBlockState)
   {
     int xLSN = wx & 0x0f;
     int yLSN = wy & 0x0f;
@@ -1297,8 +1673,6 @@ public class WorldFragment
       extendedblockstorage =  new ExtendedBlockStorage(wy & ~0x0f, hasSky);
       storageArrays[wy >> 4] = extendedblockstorage;
     }
-    Block block = Block.getBlockById(blockID);
-    IBlockState iBlockState = block.getStateFromMeta(metaData);
     extendedblockstorage.set(xLSN, yLSN, zLSN, iBlockState);
 //    extendedblockstorage.func_150818_a(xLSN, yLSN, zLSN, block);    //setExtBlockID
 //    extendedblockstorage.setExtBlockMetadata(xLSN, yLSN, zLSN, metaData);
@@ -1359,6 +1733,63 @@ public class WorldFragment
     return true;
   }
 
+  /**
+   * Would writing the voxel of the source fragment leave this voxel unchanged?  i.e. are the block, metadata, and
+   *   TileEntity the same once the source voxel has been reoriented.  Voxels which hold Entities on either side are
+   *   never counted as matching.
+   * Doesn't modify either fragment, so it can be called from a worker thread.
+   * @param x  x,y,z position of the voxel in this fragment
+   * @param sourceFragment the fragment that would be written
+   * @param xSrc x,y,z position of the voxel in the source fragment
+   * @param orientation the orientation that the source fragment would be written with
+   * @return true if they match exactly
+   */
+  public boolean doesVoxelMatchReoriented(int x, int y, int z,
+                                          WorldFragment sourceFragment, int xSrc, int ySrc, int zSrc, QuadOrientation orientation)
+  {
+    int blockID = sourceFragment.getBlockID(xSrc, ySrc, zSrc);
+    if (this.getBlockID(x, y, z) != blockID
+        || this.getMetadata(x, y, z) != reorientMetadata(blockID, sourceFragment.getMetadata(xSrc, ySrc, zSrc), orientation)) {
+      return false;
+    }
+    LinkedList<NBTTagCompound> entities = this.getEntitiesAtBlock(x, y, z);
+    if (entities != null && !entities.isEmpty()) return false;
+    entities = sourceFragment.getEntitiesAtBlock(xSrc, ySrc, zSrc);
+    if (entities != null && !entities.isEmpty()) return false;
+
+    NBTTagCompound nbt1 = this.getTileEntityData(x, y, z);
+    NBTTagCompound nbt2 = sourceFragment.getTileEntityData(xSrc, ySrc, zSrc);
+    if (nbt1 == null || nbt2 == null) return nbt1 == nbt2;
+    nbt1 = changeTileEntityNBTposition((NBTTagCompound)nbt1.copy(), 0, 0, 0);
+    nbt2 = changeTileEntityNBTposition((NBTTagCompound)nbt2.copy(), 0, 0, 0);
+    return nbt1.toString().equals(nbt2.toString());
+  }
+
+  /**
+   * discard the stored data for all voxels which aren't in the given mask, for example to drop the voxels of an
+   *   undo fragment which turned out not to change
+   * @param keepMask the voxels to keep; must be the same size as the fragment
+   */
+  public void discardVoxelsOutsideMask(VoxelSelection keepMask)
+  {
+    assert (keepMask.getxSize() == xCount && keepMask.getySize() == yCount && keepMask.getzSize() == zCount);
+    VoxelSelection keptVoxels = new VoxelSelection(voxelsWithStoredData);   // copy: the mask may be shared with other fragments
+    for (int y = 0; y < yCount; ++y) {
+      for (int z = 0; z < zCount; ++z) {
+        for (int x = 0; x < xCount; ++x) {
+          if (keptVoxels.getVoxel(x, y, z) && !keepMask.getVoxel(x, y, z)) {
+            keptVoxels.clearVoxel(x, y, z);
+            final int offset = y * xCount * zCount + z * xCount + x;
+            tileEntityData.remove(offset);
+            entityData.remove(offset);
+            tickingBlocks.remove(offset);
+          }
+        }
+      }
+    }
+    voxelsWithStoredData = keptVoxels;
+  }
+
   /**
    * copy the contents of the source voxel into this fragment, at the indicated destination
    * @param xDest
@@ -1445,6 +1876,29 @@ public class WorldFragment
     return true;
   }
 
+  /**
+   * estimates the heap space used by this fragment (block data, tile entity and entity NBT, and the voxel mask), for
+   *   memory budgeting.  Walks all the NBT, so the caller should keep the result rather than asking repeatedly.
+   * @return the estimated number of bytes
+   */
+  public long getRetainedBytes()
+  {
+    long bytes = HeapSizeEstimate.OBJECT_HEADER + blockDataStore.getRetainedBytes() + voxelsWithStoredData.getRetainedBytes();
+    bytes += HeapSizeEstimate.HASHMAP_BASE + tileEntityData.size() * HeapSizeEstimate.HASHMAP_ENTRY_BOXED_INTEGERS;
+    for (NBTTagCompound nbt : tileEntityData.values()) {
+      bytes += HeapSizeEstimate.estimateNBTBytes(nbt);
+    }
+    bytes += HeapSizeEstimate.HASHMAP_BASE + entityData.size() * HeapSizeEstimate.HASHMAP_ENTRY_BOXED_INTEGERS;
+    for (LinkedList<NBTTagCompound> entities : entityData.values()) {
+      if (entities == null) continue;
+      for (NBTTagCompound nbt : entities) {
+        bytes += HeapSizeEstimate.REFERENCE * 4 + HeapSizeEstimate.estimateNBTBytes(nbt);
+      }
+    }
+    bytes += HeapSizeEstimate.HASHMAP_BASE + tickingBlocks.size() * (HeapSizeEstimate.HASHMAP_ENTRY + 64);
+    return bytes;
+  }
+
   public static int lastCompareFailX;    // for testing purposes only
   public static int lastCompareFailY;
   public static int lastCompareFailZ;
@@ -1460,6 +1914,7 @@ public class WorldFragment
   private HashMap<Integer, NextTickListEntry> tickingBlocks;
 
   private VoxelSelection voxelsWithStoredData;                        // each set voxel corresponds to a block with valid data.
+  private boolean validLightValues;                                   // false if the light must be recalculated after writing
 
 //  private AsynchronousRead currentAsynchronousRead;
 
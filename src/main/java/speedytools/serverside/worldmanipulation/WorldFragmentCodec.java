@@ -0,0 +1,480 @@
+package speedytools.serverside.worldmanipulation;
+
+import net.minecraft.block.Block;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.NextTickListEntry;
+import speedytools.common.utilities.ErrorLog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary serialisation of a WorldFragment, used for clipboard persistence, spilling undo to disk, and network transfer.
+ * The fragment is processed one 16x16x16 section at a time; each section is deflated separately and written
+ *   as a length-prefixed record, so the working memory is one section regardless of the fragment size, and
+ *   the reader never consumes bytes beyond the end of the fragment (several fragments can share a channel).
+ * Neither method touches the world, so they can be called from a worker thread, provided the fragment is not being
+ *   modified at the same time.
+ *
+ * Format:
+ * header (uncompressed): int MAGIC, int VERSION, int xCount, int yCount, int zCount
+ * then for each section in y, z, x order: int compressedLength, int uncompressedLength, deflated section data
+ *   (compressedLength == 0 means the section has no stored voxels, and uncompressedLength is omitted)
+ * section data:
+ * 1) mask - one bit per voxel in the section
+ * 2) palette of (blockID | metadata << 12) for the stored voxels, then the palette index of each stored voxel, bit-packed
+ * 3) light value of each stored voxel
+ * 4) TileEntity NBT, Entity NBT, and tick entries, each keyed by the voxel's index within the section
+ */
+public class WorldFragmentCodec
+{
+  /**
+   * write the fragment to the given channel.  The channel is not closed.
+   * @return true for success, false for failure
+   */
+  public static boolean writeToChannel(WorldFragment worldFragment, WritableByteChannel channel)
+  {
+    try {
+      ByteBuffer header = ByteBuffer.allocate(5 * 4);
+      header.putInt(MAGIC).putInt(VERSION);
+      header.putInt(worldFragment.getxCount()).putInt(worldFragment.getyCount()).putInt(worldFragment.getzCount());
+      header.flip();
+      writeFully(channel, header);
+
+      SectionEncoder encoder = new SectionEncoder(worldFragment);
+      try {
+        for (int sy = 0; sy < worldFragment.getyCount(); sy += SECTION_SIZE) {
+          for (int sz = 0; sz < worldFragment.getzCount(); sz += SECTION_SIZE) {
+            for (int sx = 0; sx < worldFragment.getxCount(); sx += SECTION_SIZE) {
+              encoder.encodeSection(sx, sy, sz, channel);
+            }
+          }
+        }
+      } finally {
+        encoder.end();
+      }
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().debug("Exception while WorldFragmentCodec.writeToChannel: " + ioe);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * read a fragment from the given channel.  The channel is not closed, and is left positioned immediately after the fragment.
+   * Tick entries are given positions relative to the fragment origin, the same as the other stored data.
+   * Every length, count and index in the data is checked against the fragment dimensions before it is used, so corrupt
+   *   or truncated data fails cleanly instead of writing outside the fragment.
+   * @return the new fragment, or null for failure
+   */
+  public static WorldFragment readFromChannel(ReadableByteChannel channel)
+  {
+    try {
+      ByteBuffer header = ByteBuffer.allocate(5 * 4);
+      readFully(channel, header);
+      header.flip();
+      int magic = header.getInt();
+      int version = header.getInt();
+      int xCount = header.getInt();
+      int yCount = header.getInt();
+      int zCount = header.getInt();
+      if (magic != MAGIC || version != VERSION) {
+        ErrorLog.defaultLog().debug("WorldFragmentCodec.readFromChannel: unrecognised header " + magic + ", version " + version);
+        return null;
+      }
+      if (xCount < 1 || xCount > WorldFragment.MAX_X_SIZE || yCount < 1 || yCount > WorldFragment.MAX_Y_SIZE
+          || zCount < 1 || zCount > WorldFragment.MAX_Z_SIZE) {
+        ErrorLog.defaultLog().debug("WorldFragmentCodec.readFromChannel: invalid size [" + xCount + ", " + yCount + ", " + zCount + "]");
+        return null;
+      }
+
+      WorldFragment worldFragment = new WorldFragment(xCount, yCount, zCount);
+      SectionDecoder decoder = new SectionDecoder(worldFragment);
+      try {
+        for (int sy = 0; sy < yCount; sy += SECTION_SIZE) {
+          for (int sz = 0; sz < zCount; sz += SECTION_SIZE) {
+            for (int sx = 0; sx < xCount; sx += SECTION_SIZE) {
+              decoder.decodeSection(sx, sy, sz, channel);
+            }
+          }
+        }
+      } finally {
+        decoder.end();
+      }
+      return worldFragment;
+    } catch (IOException ioe) {
+      ErrorLog.defaultLog().debug("Exception while WorldFragmentCodec.readFromChannel: " + ioe);
+    } catch (DataFormatException dfe) {
+      ErrorLog.defaultLog().debug("Exception while WorldFragmentCodec.readFromChannel: " + dfe);
+    }
+    return null;
+  }
+
+  private static class SectionEncoder
+  {
+    public SectionEncoder(WorldFragment i_worldFragment)
+    {
+      worldFragment = i_worldFragment;
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public void encodeSection(int sx, int sy, int sz, WritableByteChannel channel) throws IOException
+    {
+      final int xMax = Math.min(SECTION_SIZE, worldFragment.getxCount() - sx);
+      final int yMax = Math.min(SECTION_SIZE, worldFragment.getyCount() - sy);
+      final int zMax = Math.min(SECTION_SIZE, worldFragment.getzCount() - sz);
+
+      byte [] maskBits = new byte[SECTION_VOLUME / 8];
+      int [] storedLocalIndices = new int[SECTION_VOLUME];
+      int storedCount = 0;
+      for (int y = 0; y < yMax; ++y) {
+        for (int z = 0; z < zMax; ++z) {
+          for (int x = 0; x < xMax; ++x) {
+            if (worldFragment.getVoxel(x + sx, y + sy, z + sz)) {
+              int localIndex = localIndex(x, y, z);
+              maskBits[localIndex >> 3] |= (byte)(1 << (localIndex & 7));
+              storedLocalIndices[storedCount++] = localIndex;
+            }
+          }
+        }
+      }
+
+      ByteBuffer recordHeader = ByteBuffer.allocate(2 * 4);
+      if (storedCount == 0) {
+        recordHeader.putInt(0);
+        recordHeader.flip();
+        writeFully(channel, recordHeader);
+        return;
+      }
+
+      uncompressed.reset();
+      DataOutputStream outputStream = new DataOutputStream(uncompressed);
+      outputStream.write(maskBits);
+
+      HashMap<Integer, Integer> paletteLookup = new HashMap<Integer, Integer>();
+      LinkedList<Integer> palette = new LinkedList<Integer>();
+      int [] paletteIndices = new int[storedCount];
+      for (int i = 0; i < storedCount; ++i) {
+        int x = localX(storedLocalIndices[i]) + sx;
+        int y = localY(storedLocalIndices[i]) + sy;
+        int z = localZ(storedLocalIndices[i]) + sz;
+        int key = worldFragment.getBlockID(x, y, z) | (worldFragment.getMetadata(x, y, z) << 12);
+        Integer paletteIndex = paletteLookup.get(key);
+        if (paletteIndex == null) {
+          paletteIndex = palette.size();
+          paletteLookup.put(key, paletteIndex);
+          palette.add(key);
+        }
+        paletteIndices[i] = paletteIndex;
+      }
+      outputStream.writeShort(palette.size());
+      for (int key : palette) {
+        outputStream.writeChar(key);
+      }
+      int bitsPerIndex = bitsNeeded(palette.size());
+      outputStream.writeByte(bitsPerIndex);
+      writePackedIndices(outputStream, paletteIndices, storedCount, bitsPerIndex);
+
+      for (int i = 0; i < storedCount; ++i) {
+        outputStream.writeByte(worldFragment.getLightValue(localX(storedLocalIndices[i]) + sx,
+                                                           localY(storedLocalIndices[i]) + sy,
+                                                           localZ(storedLocalIndices[i]) + sz));
+      }
+
+      ByteArrayOutputStream tileEntities = new ByteArrayOutputStream();
+      ByteArrayOutputStream entities = new ByteArrayOutputStream();
+      ByteArrayOutputStream ticks = new ByteArrayOutputStream();
+      DataOutputStream tileEntityStream = new DataOutputStream(tileEntities);
+      DataOutputStream entityStream = new DataOutputStream(entities);
+      DataOutputStream tickStream = new DataOutputStream(ticks);
+      int tileEntityCount = 0;
+      int entityBlockCount = 0;
+      int tickCount = 0;
+      for (int i = 0; i < storedCount; ++i) {
+        int x = localX(storedLocalIndices[i]) + sx;
+        int y = localY(storedLocalIndices[i]) + sy;
+        int z = localZ(storedLocalIndices[i]) + sz;
+        NBTTagCompound tileEntityNBT = worldFragment.getTileEntityData(x, y, z);
+        if (tileEntityNBT != null) {
+          tileEntityStream.writeShort(storedLocalIndices[i]);
+          CompressedStreamTools.write(tileEntityNBT, tileEntityStream);
+          ++tileEntityCount;
+        }
+        LinkedList<NBTTagCompound> entitiesAtBlock = worldFragment.getEntitiesAtBlock(x, y, z);
+        if (entitiesAtBlock != null && !entitiesAtBlock.isEmpty()) {
+          entityStream.writeShort(storedLocalIndices[i]);
+          entityStream.writeInt(entitiesAtBlock.size());
+          for (NBTTagCompound entityNBT : entitiesAtBlock) {
+            CompressedStreamTools.write(entityNBT, entityStream);
+          }
+          ++entityBlockCount;
+        }
+        NextTickListEntry nextTickListEntry = worldFragment.getTickInfo(x, y, z);
+        if (nextTickListEntry != null) {
+          tickStream.writeShort(storedLocalIndices[i]);
+          tickStream.writeLong(nextTickListEntry.scheduledTime);
+          tickStream.writeInt(nextTickListEntry.priority);
+          ++tickCount;
+        }
+      }
+      outputStream.writeInt(tileEntityCount);
+      tileEntities.writeTo(outputStream);
+      outputStream.writeInt(entityBlockCount);
+      entities.writeTo(outputStream);
+      outputStream.writeInt(tickCount);
+      ticks.writeTo(outputStream);
+      outputStream.flush();
+
+      byte [] sectionData = uncompressed.toByteArray();
+      deflater.reset();
+      deflater.setInput(sectionData);
+      deflater.finish();
+      compressed.reset();
+      while (!deflater.finished()) {
+        int count = deflater.deflate(deflateBuffer);
+        compressed.write(deflateBuffer, 0, count);
+      }
+
+      recordHeader.putInt(compressed.size());
+      recordHeader.putInt(sectionData.length);
+      recordHeader.flip();
+      writeFully(channel, recordHeader);
+      writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+    }
+
+    public void end()
+    {
+      deflater.end();
+    }
+
+    private final WorldFragment worldFragment;
+    private final Deflater deflater;
+    private final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final byte [] deflateBuffer = new byte[8192];
+  }
+
+  private static class SectionDecoder
+  {
+    public SectionDecoder(WorldFragment i_worldFragment)
+    {
+      worldFragment = i_worldFragment;
+      inflater = new Inflater();
+    }
+
+    public void decodeSection(int sx, int sy, int sz, ReadableByteChannel channel) throws IOException, DataFormatException
+    {
+      final int xMax = Math.min(SECTION_SIZE, worldFragment.getxCount() - sx);
+      final int yMax = Math.min(SECTION_SIZE, worldFragment.getyCount() - sy);
+      final int zMax = Math.min(SECTION_SIZE, worldFragment.getzCount() - sz);
+
+      ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+      readFully(channel, lengthBuffer);
+      lengthBuffer.flip();
+      int compressedLength = lengthBuffer.getInt();
+      if (compressedLength == 0) return;
+      lengthBuffer.clear();
+      readFully(channel, lengthBuffer);
+      lengthBuffer.flip();
+      int uncompressedLength = lengthBuffer.getInt();
+      if (compressedLength < 0 || compressedLength > MAX_SECTION_BYTES
+          || uncompressedLength < SECTION_VOLUME / 8 || uncompressedLength > MAX_SECTION_BYTES) {
+        throw new IOException("section length out of range: " + compressedLength + ", " + uncompressedLength);
+      }
+
+      ByteBuffer compressedData = ByteBuffer.allocate(compressedLength);
+      readFully(channel, compressedData);
+      byte [] sectionData = new byte[uncompressedLength];
+      inflater.reset();
+      inflater.setInput(compressedData.array());
+      int inflatedLength = inflater.inflate(sectionData);
+      if (inflatedLength != uncompressedLength || !inflater.finished()) {
+        throw new IOException("section length mismatch: expected " + uncompressedLength + ", got " + inflatedLength);
+      }
+
+      DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(sectionData));
+      byte [] maskBits = new byte[SECTION_VOLUME / 8];
+      inputStream.readFully(maskBits);
+      int [] storedLocalIndices = new int[SECTION_VOLUME];
+      int storedCount = 0;
+      for (int localIndex = 0; localIndex < SECTION_VOLUME; ++localIndex) {
+        if ((maskBits[localIndex >> 3] & (1 << (localIndex & 7))) != 0) {
+          if (localX(localIndex) >= xMax || localY(localIndex) >= yMax || localZ(localIndex) >= zMax) {
+            throw new IOException("mask has a voxel outside the fragment: local index " + localIndex);
+          }
+          storedLocalIndices[storedCount++] = localIndex;
+        }
+      }
+      if (storedCount == 0) throw new IOException("non-empty section record has an empty mask");
+
+      int paletteSize = inputStream.readUnsignedShort();
+      if (paletteSize < 1 || paletteSize > storedCount) throw new IOException("palette size out of range: " + paletteSize);
+      int [] palette = new int[paletteSize];
+      for (int i = 0; i < paletteSize; ++i) {
+        palette[i] = inputStream.readChar();
+      }
+      int bitsPerIndex = inputStream.readUnsignedByte();
+      if (bitsPerIndex != bitsNeeded(paletteSize)) throw new IOException("bitsPerIndex doesn't match palette size: " + bitsPerIndex);
+      int [] paletteIndices = readPackedIndices(inputStream, storedCount, bitsPerIndex);
+
+      for (int i = 0; i < storedCount; ++i) {
+        int x = localX(storedLocalIndices[i]) + sx;
+        int y = localY(storedLocalIndices[i]) + sy;
+        int z = localZ(storedLocalIndices[i]) + sz;
+        if (paletteIndices[i] >= paletteSize) throw new IOException("palette index out of range");
+        int key = palette[paletteIndices[i]];
+        worldFragment.setBlockID(x, y, z, key & 0xfff);
+        worldFragment.setMetadata(x, y, z, (key >> 12) & 0x0f);
+        worldFragment.setLightValue(x, y, z, inputStream.readByte());
+      }
+
+      int tileEntityCount = inputStream.readInt();
+      checkCount("tileEntityCount", tileEntityCount, storedCount);
+      for (int i = 0; i < tileEntityCount; ++i) {
+        int localIndex = readStoredLocalIndex(inputStream, maskBits);
+        NBTTagCompound tileEntityNBT = readNBT(inputStream);
+        worldFragment.setTileEntityData(localX(localIndex) + sx, localY(localIndex) + sy, localZ(localIndex) + sz, tileEntityNBT);
+      }
+      int entityBlockCount = inputStream.readInt();
+      checkCount("entityBlockCount", entityBlockCount, storedCount);
+      for (int i = 0; i < entityBlockCount; ++i) {
+        int localIndex = readStoredLocalIndex(inputStream, maskBits);
+        int entityCount = inputStream.readInt();
+        checkCount("entityCount", entityCount, inputStream.available());   // every entity takes at least one byte
+        for (int j = 0; j < entityCount; ++j) {
+          NBTTagCompound entityNBT = readNBT(inputStream);
+          worldFragment.addEntity(localX(localIndex) + sx, localY(localIndex) + sy, localZ(localIndex) + sz, entityNBT);
+        }
+      }
+      int tickCount = inputStream.readInt();
+      checkCount("tickCount", tickCount, storedCount);
+      for (int i = 0; i < tickCount; ++i) {
+        int localIndex = readStoredLocalIndex(inputStream, maskBits);
+        int x = localX(localIndex) + sx;
+        int y = localY(localIndex) + sy;
+        int z = localZ(localIndex) + sz;
+        NextTickListEntry nextTickListEntry = new NextTickListEntry(new BlockPos(x, y, z), Block.getBlockById(worldFragment.getBlockID(x, y, z)));
+        nextTickListEntry.scheduledTime = inputStream.readLong();
+        nextTickListEntry.priority = inputStream.readInt();
+        worldFragment.setTickInfo(x, y, z, nextTickListEntry);
+      }
+      if (inputStream.available() != 0) throw new IOException("unexpected " + inputStream.available() + " bytes at end of section");
+    }
+
+    private void checkCount(String name, int count, int maximum) throws IOException
+    {
+      if (count < 0 || count > maximum) throw new IOException(name + " out of range: " + count);
+    }
+
+    // reads the index of a voxel within the section, which must be one of the stored voxels
+    private int readStoredLocalIndex(DataInputStream inputStream, byte [] maskBits) throws IOException
+    {
+      int localIndex = inputStream.readUnsignedShort();
+      if (localIndex >= SECTION_VOLUME || (maskBits[localIndex >> 3] & (1 << (localIndex & 7))) == 0) {
+        throw new IOException("local index doesn't match a stored voxel: " + localIndex);
+      }
+      return localIndex;
+    }
+
+    // the NBT reader can throw unchecked exceptions on malformed data
+    private NBTTagCompound readNBT(DataInputStream inputStream) throws IOException
+    {
+      try {
+        return CompressedStreamTools.read(inputStream);
+      } catch (RuntimeException re) {
+        throw new IOException("malformed NBT: " + re);
+      }
+    }
+
+    public void end()
+    {
+      inflater.end();
+    }
+
+    private final WorldFragment worldFragment;
+    private final Inflater inflater;
+  }
+
+  // number of bits needed to hold an index into a palette of the given size (0 if only one entry)
+  private static int bitsNeeded(int paletteSize)
+  {
+    return (paletteSize <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+  }
+
+  private static void writePackedIndices(DataOutputStream outputStream, int [] indices, int count, int bitsPerIndex) throws IOException
+  {
+    if (bitsPerIndex == 0) return;
+    long accumulator = 0;
+    int bitsInAccumulator = 0;
+    for (int i = 0; i < count; ++i) {
+      accumulator |= ((long)indices[i]) << bitsInAccumulator;
+      bitsInAccumulator += bitsPerIndex;
+      while (bitsInAccumulator >= 8) {
+        outputStream.writeByte((int)(accumulator & 0xff));
+        accumulator >>>= 8;
+        bitsInAccumulator -= 8;
+      }
+    }
+    if (bitsInAccumulator > 0) {
+      outputStream.writeByte((int)(accumulator & 0xff));
+    }
+  }
+
+  private static int [] readPackedIndices(DataInputStream inputStream, int count, int bitsPerIndex) throws IOException
+  {
+    int [] indices = new int[count];
+    if (bitsPerIndex == 0) return indices;
+    if (bitsPerIndex > 16) throw new IOException("invalid bitsPerIndex:" + bitsPerIndex);
+    final int indexMask = (1 << bitsPerIndex) - 1;
+    long accumulator = 0;
+    int bitsInAccumulator = 0;
+    for (int i = 0; i < count; ++i) {
+      while (bitsInAccumulator < bitsPerIndex) {
+        accumulator |= ((long)inputStream.readUnsignedByte()) << bitsInAccumulator;
+        bitsInAccumulator += 8;
+      }
+      indices[i] = (int)(accumulator & indexMask);
+      accumulator >>>= bitsPerIndex;
+      bitsInAccumulator -= bitsPerIndex;
+    }
+    return indices;
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) throw new EOFException();
+    }
+  }
+
+  // index of a voxel within its section: y, then z, then x, four bits each
+  private static int localIndex(int x, int y, int z) {return (y << (2 * SECTION_BITS)) | (z << SECTION_BITS) | x;}
+  private static int localX(int localIndex) {return localIndex & SECTION_MASK;}
+  private static int localY(int localIndex) {return (localIndex >> (2 * SECTION_BITS)) & SECTION_MASK;}
+  private static int localZ(int localIndex) {return (localIndex >> SECTION_BITS) & SECTION_MASK;}
+
+  private static final int MAGIC = 0x53545746;   // "STWF"
+  private static final int VERSION = 1;
+
+  private static final int SECTION_BITS = 4;
+  private static final int SECTION_SIZE = 1 << SECTION_BITS;
+  private static final int SECTION_MASK = SECTION_SIZE - 1;
+  private static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+  private static final int MAX_SECTION_BYTES = 64 * 1024 * 1024;   // sanity limit against corrupt data
+}
@@ -6,8 +6,10 @@ import net.minecraft.util.EnumFacing;
 import net.minecraft.world.WorldServer;
 import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
+import speedytools.common.utilities.ErrorLog;
 import speedytools.common.utilities.QuadOrientation;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.*;
 
@@ -19,8 +21,26 @@ import java.util.*;
 * a) at least one "complex" undo eg for clone & copy tools.  They will get more if there is enough space.
 *    If the history is full, these "extra" undo layers are discarded, oldest first.
 * b) a fixed maximum number of "simple" undos with instant placement eg for wand and orb
-* The layers are grouped according to WorldServer (different dimensions will have different WorldServers)
+* The layers are grouped according to WorldServer (different dimensions will have different WorldServers): each world has
+*   its own DimensionHistory with its own layers, spatial index, tasks in progress, and retirement queue,
+*   so that a task in one dimension doesn't hold up the undos or background work of any other.  The undo limits and the
+*   memory budget still apply to each player's layers in all dimensions together.
 * Automatically gets rid of EntityPlayerMP and WorldServer which are no longer valid
+* The history can also be limited by the (estimated) heap space it uses - see setMemoryBudget().  Undos are made permanent
+*   to stay within the budget, chosen according to the EvictionPolicy.
+* Idle undo layers can be moved to disk to save memory, and are read back automatically when needed - see manageUndoStorage()
+* The history can be recorded in a journal for each dimension, so that it survives a restart of the server - see
+*   setJournalEnabled().  The journal is read back the first time each world is used; the recovered layers are given
+*   back to their players (matched by UUID) the first time each player uses the history in that world.  Call worldSaved()
+*   whenever a world is saved: after a crash, the history is recovered as it was when the world was last saved.
+* Rapid simple tool placements by the same player can be merged into a single undo layer - see setSimpleUndoCoalescing().
+* Layers culled from the history (too many undos, or over the memory budget) aren't made permanent straight away; they
+*   are queued for retirement and made permanent later by the retirement task (see getRetirementTask()), so that the
+*   write which caused the cull doesn't have to wait for it.  Until then they can't be undone, but are otherwise kept
+*   up to date by the other layers' undos, exactly as if they were still in the history.
+* Several complex writes or undos may be in progress at once; the caller is responsible for making sure that they don't
+*   overlap (see RegionLockManager).  Simple tool placements and undos are split around all of the tasks in progress in
+*   the same dimension.
 */
 public class WorldHistory
 {
@@ -31,6 +51,112 @@ public class WorldHistory
     maximumSimpleDepthPerPlayer = maximumSimpleUndosPerPlayer;
   }
 
+  /** which undos to make permanent first, when the history is over its memory budget
+   * OLDEST_FIRST = the oldest undo; LARGEST_FIRST = the undo using the most memory;
+   * PLAYER_LRU = the oldest undo of the player who has been inactive for the longest time
+   */
+  public enum EvictionPolicy {OLDEST_FIRST, LARGEST_FIRST, PLAYER_LRU}
+
+  /**
+   * limit the undo history by its (estimated) heap size as well as by the number of undos.
+   * Every player keeps their most recent complex undo regardless of its size.
+   * @param i_memoryBudgetBytes the total for all players; 0 = no limit
+   * @param i_memoryPerPlayerBytes the limit for each player; 0 = no limit
+   * @param i_evictionPolicy which undos to make permanent first
+   */
+  public void setMemoryBudget(long i_memoryBudgetBytes, long i_memoryPerPlayerBytes, EvictionPolicy i_evictionPolicy)
+  {
+    memoryBudgetBytes = i_memoryBudgetBytes;
+    memoryPerPlayerBytes = i_memoryPerPlayerBytes;
+    evictionPolicy = i_evictionPolicy;
+    enforceMemoryBudget();
+    journalChangedLayers();
+  }
+
+  /** returns the estimated heap space used by all the undo layers in the history */
+  public long getRetainedBytes()
+  {
+    long totalBytes = 0;
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+        totalBytes += undoLayerInfo.worldSelectionUndo.getRetainedBytes();
+      }
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersSimple) {
+        totalBytes += undoLayerInfo.worldSelectionUndo.getRetainedBytes();
+      }
+    }
+    return totalBytes;
+  }
+
+  /**
+   * record the undo history of each world in an UndoJournal, so that it survives a restart of the server.
+   * Must be called before the history is used.
+   * @param i_journalEnabled true to record the history
+   * @param i_journalGroupCommitNS how long the journal waits for more changes before flushing them to disk together
+   */
+  public void setJournalEnabled(boolean i_journalEnabled, long i_journalGroupCommitNS)
+  {
+    journalEnabled = i_journalEnabled;
+    journalGroupCommitNS = i_journalGroupCommitNS;
+  }
+
+  /**
+   * merge each simple tool placement into the player's previous simple tool undo layer, if the previous layer was created
+   *   recently, is next to the new placement, and no other layer nearby has been created since.  The merged placements
+   *   are then undone together.
+   * @param i_coalesceWindowNS placements up to this long after the first placement in a layer are merged into it; 0 = never merge
+   */
+  public void setSimpleUndoCoalescing(long i_coalesceWindowNS)
+  {
+    simpleCoalesceWindowNS = i_coalesceWindowNS;
+  }
+
+  /** returns true if any dimension has culled layers waiting to be retired, and no write or undo in progress to prevent it */
+  public boolean isRetirementPending()
+  {
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      if (!dimensionHistory.layersAwaitingRetirement.isEmpty() && !dimensionHistory.isAsynchronousTaskInProgress()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * returns the task which retires the layers culled from the history, ie makes them permanent and removes them.
+   *   It should be given spare time on the server thread, at low priority.  It skips any dimension where a write or undo
+   *   is in progress, and is complete when there are no more layers waiting.
+   * @return the task, or null if no layers are waiting to be retired
+   */
+  public AsynchronousToken getRetirementTask()
+  {
+    if (getLayersAwaitingRetirement() == 0) return null;
+    if (retirementTask == null || retirementTask.isTaskComplete()) {
+      retirementTask = new AsynchronousRetirement();
+    }
+    return retirementTask;
+  }
+
+  /**
+   * record a save point in the world's undo journal (if it has one), so that after a crash the history is recovered to
+   *   match the saved world.  Should be called whenever the world is saved.
+   */
+  public void worldSaved(WorldServer worldServer)
+  {
+    UndoJournal journal = worldJournals.get(worldServer);
+    if (journal != null) {
+      journal.appendSavePoint();
+    }
+  }
+
+  /** flush and close all the undo journals, eg when the server is stopping */
+  public void closeJournals()
+  {
+    for (UndoJournal journal : journalsByFile.values()) {
+      journal.close();
+    }
+    journalsByFile.clear();
+    worldJournals.clear();
+  }
+
   /** write the given fragment to the World, storing undo information
    * @param player
    * @param worldServer
@@ -72,19 +198,21 @@ public class WorldHistory
    * @param wyOfOrigin
    * @param wzOfOrigin
    * @param quadOrientation
-   * @return the asynchronous token for further processing, or null if a complex operation is already in progress
+   * @return the asynchronous token for further processing
    */
   public AsynchronousToken writeToWorldWithUndoAsynchronous(EntityPlayerMP player, WorldServer worldServer, WorldFragment fragmentToWrite, int wxOfOrigin, int wyOfOrigin, int wzOfOrigin,
                                                             QuadOrientation quadOrientation, UniqueTokenID transactionID)
   {
-    if (currentAsynchronousTask != null && !currentAsynchronousTask.isTaskComplete()) return null; // only one complex task at once!
-
+    prepareHistory(player, worldServer);
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
     WorldSelectionUndo worldSelectionUndo = new WorldSelectionUndo();
     AsynchronousToken subToken = worldSelectionUndo.writeToWorldAsynchronous(worldServer, fragmentToWrite, wxOfOrigin, wyOfOrigin, wzOfOrigin, quadOrientation, transactionID);
-    UndoLayerInfo undoLayerInfo = new UndoLayerInfo(System.nanoTime(), worldServer, player, worldSelectionUndo);
-    currentAsynchronousTask = new AsynchronousWriteOrUndo(AsynchronousActionType.WRITE, subToken, undoLayerInfo, transactionID);
+    UndoLayerInfo undoLayerInfo = new UndoLayerInfo(System.nanoTime(), worldServer, player, worldSelectionUndo, dimensionHistory);
+    playerLastActivity.put(player, undoLayerInfo.creationTime);
+    AsynchronousWriteOrUndo task = new AsynchronousWriteOrUndo(AsynchronousActionType.WRITE, subToken, undoLayerInfo, transactionID);
+    dimensionHistory.asynchronousTasksInProgress.add(task);
 
-    return currentAsynchronousTask;
+    return task;
     // once the operation is complete, the token will add the undoLayerInfo to the complex list
   }
 
@@ -94,17 +222,22 @@ public class WorldHistory
    */
   public void writeToWorldWithUndo(WorldServer worldServer, EntityPlayerMP entityPlayerMP, BlockWithMetadata blockToPlace, EnumFacing sideToPlace, List<BlockPos> blockSelection)
   {
-    if (currentAsynchronousTask != null && !currentAsynchronousTask.isTaskComplete()) {
-      blockSelection = currentAsynchronousTask.cullLockedVoxels(worldServer, blockSelection);
-    }
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
+    blockSelection = dimensionHistory.lockIndex.cullLockedVoxels(worldServer, blockSelection);
     if (blockSelection.isEmpty()) return;
+    prepareHistory(entityPlayerMP, worldServer);
     WorldSelectionUndo worldSelectionUndo = new WorldSelectionUndo();
     worldSelectionUndo.writeToWorld(worldServer, entityPlayerMP, blockToPlace, sideToPlace, blockSelection);
-    UndoLayerInfo undoLayerInfo = new UndoLayerInfo(System.nanoTime(), worldServer, entityPlayerMP, worldSelectionUndo);
-    undoLayersSimple.add(undoLayerInfo);
+    UndoLayerInfo undoLayerInfo = new UndoLayerInfo(System.nanoTime(), worldServer, entityPlayerMP, worldSelectionUndo, dimensionHistory);
+    if (!coalesceWithPreviousSimpleUndo(undoLayerInfo)) {
+      addToHistory(dimensionHistory.undoLayersSimple, undoLayerInfo);
+    }
+    playerLastActivity.put(entityPlayerMP, undoLayerInfo.creationTime);
 
     final int ARBITRARY_LARGE_VALUE = 1000000;
-    cullUndoLayers(undoLayersSimple, maximumSimpleDepthPerPlayer, ARBITRARY_LARGE_VALUE);
+    cullUndoLayers(false, maximumSimpleDepthPerPlayer, ARBITRARY_LARGE_VALUE);
+    enforceMemoryBudget();
+    journalChangedLayers();
   }
 
   /** perform complex undo action for the given player - finds the most recent complex action that they did in the current WorldServer
@@ -126,24 +259,69 @@ public class WorldHistory
    * @param player
    * @param worldServer
    * @param transactionID if not null, perform the undo with the given transactionID, if it still exists.
-   * @return the asynchronous token for further processing, or null if no undo found or a complex operation is already in progress
+   * @return the asynchronous token for further processing, or null if no undo found
    */
   public AsynchronousToken performComplexUndoAsynchronous(EntityPlayerMP player, WorldServer worldServer, UniqueTokenID transactionID) {
-    if (currentAsynchronousTask != null && !currentAsynchronousTask.isTaskComplete()) return null;
-
+    prepareHistory(player, worldServer);
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
     UndoLayerInfo undoLayerFound = null;
     if (transactionID != null) {
-      undoLayerFound = getSpecificUndo(undoLayersComplex, player, worldServer, transactionID);
+      undoLayerFound = getSpecificUndo(dimensionHistory.undoLayersComplex, player, transactionID);
     } else {
-      undoLayerFound = getMostRecentUndo(undoLayersComplex, player, worldServer);
+      undoLayerFound = getMostRecentUndo(dimensionHistory.undoLayersComplex, player);
     }
     if (undoLayerFound == null) return null;
+    playerLastActivity.put(player, System.nanoTime());
 
-    LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(undoLayerFound.creationTime, worldServer);
+    LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(undoLayerFound);
     AsynchronousToken subToken = undoLayerFound.worldSelectionUndo.undoChangesAsynchronous(worldServer, subsequentUndoLayers);
-    currentAsynchronousTask = new AsynchronousWriteOrUndo(AsynchronousActionType.UNDO, subToken, undoLayerFound, null);
+    AsynchronousWriteOrUndo task = new AsynchronousWriteOrUndo(AsynchronousActionType.UNDO, subToken, undoLayerFound, null);
+    dimensionHistory.asynchronousTasksInProgress.add(task);
 
-    return currentAsynchronousTask;
+    return task;
+  }
+
+  /**
+   * merges the given player's most recent complex layer of the transaction into the transaction's previous layer, so that a
+   *   transaction written in several parts (eg StreamingCopy) is held as one undo layer instead of one per part.
+   * Skipped if any other layer overlapping them was created in between, or if the previous layer can't be changed at the
+   *   moment (eg it is spilled to disk); the transaction is still undone in one step, from several layers.
+   * @param wxMin the region covered by the whole transaction (including the border of each part); the previous layer is
+   *              enlarged to cover it the first time, so that its undo data isn't copied again for every part
+   * @param xSize the size of the region
+   */
+  public void coalesceTransaction(EntityPlayerMP player, WorldServer worldServer, UniqueTokenID transactionID,
+                                  int wxMin, int wyMin, int wzMin, int xSize, int ySize, int zSize)
+  {
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
+    UndoLayerInfo newerLayer = null;
+    UndoLayerInfo olderLayer = null;
+    Iterator<UndoLayerInfo> undoLayerInfoIterator = dimensionHistory.undoLayersComplex.descendingIterator();
+    while (undoLayerInfoIterator.hasNext() && olderLayer == null) {
+      UndoLayerInfo undoLayerInfo = undoLayerInfoIterator.next();
+      if (undoLayerInfo.entityPlayerMP.get() != player || !undoLayerInfo.transactionID.equals(transactionID)) continue;
+      if (newerLayer == null) {
+        newerLayer = undoLayerInfo;
+      } else {
+        olderLayer = undoLayerInfo;
+      }
+    }
+    if (olderLayer == null || !isMergeable(olderLayer) || !isMergeable(newerLayer)
+        || olderLayer.worldSelectionUndo.isSpilled() || newerLayer.worldSelectionUndo.isSpilled()) {
+      return;
+    }
+
+    Set<UndoLayerInfo> nearbyLayers = getNearbyUndoLayers(olderLayer);
+    nearbyLayers.addAll(getNearbyUndoLayers(newerLayer));
+    for (UndoLayerInfo nearbyLayer : nearbyLayers) {
+      if (nearbyLayer.creationTime > olderLayer.creationTime && nearbyLayer.creationTime < newerLayer.creationTime) return;
+    }
+
+    olderLayer.worldSelectionUndo.enlarge(wxMin, wyMin, wzMin, xSize, ySize, zSize);
+    olderLayer.worldSelectionUndo.coalesce(newerLayer.worldSelectionUndo);
+    removeFromHistory(dimensionHistory.undoLayersComplex, newerLayer);
+    addToSpatialIndex(olderLayer);     // the footprint has grown
+    journalChangedLayers();
   }
 
   /** get the unique transaction ID for the undo that will be performed next
@@ -154,77 +332,112 @@ public class WorldHistory
    */
   public UniqueTokenID getTransactionIDForNextComplexUndo(EntityPlayerMP player, WorldServer worldServer)
   {
-    UndoLayerInfo undoLayerFound = getMostRecentUndo(undoLayersComplex, player, worldServer);
+    prepareHistory(player, worldServer);
+    UndoLayerInfo undoLayerFound = getMostRecentUndo(getDimensionHistory(worldServer).undoLayersComplex, player);
     if (undoLayerFound == null) return null;
     return undoLayerFound.transactionID;
   }
 
+  /** get the chunks which will be affected by the undo that will be performed next (all layers of the transaction)
+   *
+   * @param player
+   * @param worldServer
+   * @return null if no undo found
+   */
+  public RegionLockManager.Footprint getFootprintOfNextComplexUndo(EntityPlayerMP player, WorldServer worldServer)
+  {
+    prepareHistory(player, worldServer);
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
+    UndoLayerInfo undoLayerFound = getMostRecentUndo(dimensionHistory.undoLayersComplex, player);
+    if (undoLayerFound == null) return null;
+    RegionLockManager.Footprint footprint = new RegionLockManager.Footprint(worldServer.provider.getDimensionId());
+    for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+      if (undoLayerInfo.transactionID.equals(undoLayerFound.transactionID)) {
+        undoLayerInfo.worldSelectionUndo.addToFootprint(footprint);
+      }
+    }
+    return footprint;
+  }
+
   /** perform simple undo action for the given player - finds the most recent simple action that they did in the given WorldServer
    * @param player
    * @param worldServer
    * @return true for success, or failure if no undo found
    */
   public boolean performSimpleUndo(EntityPlayerMP player, WorldServer worldServer) {
-    UndoLayerInfo undoLayerFound = getMostRecentUndo(undoLayersSimple, player, worldServer);
+    prepareHistory(player, worldServer);
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
+    UndoLayerInfo undoLayerFound = getMostRecentUndo(dimensionHistory.undoLayersSimple, player);
     if (undoLayerFound == null) return false;
+    playerLastActivity.put(player, System.nanoTime());
     undoLayerFound.undoHasCommenced = true;  // prevent future performUndo from finding this undo (in case of deferred removal)
 
     boolean deferLayerRemoval = false;
-    if (currentAsynchronousTask != null && !currentAsynchronousTask.isTaskComplete()) {
+    for (AsynchronousWriteOrUndo task : dimensionHistory.getAsynchronousTasksInProgress()) {
       // if an asynch task is happening, strip out any voxels locked by the task and only undo these.
       //   the task will queue the remaining (locked) voxels for later undo
-      UndoLayerInfo unlockedOnly = currentAsynchronousTask.removeLockedVoxelsAndScheduleForLaterExecution(undoLayerFound);
+      UndoLayerInfo unlockedOnly = task.removeLockedVoxelsAndScheduleForLaterExecution(undoLayerFound);
       if (unlockedOnly != null) {  // null means no locked voxels so just perform undo as normal
         undoLayerFound = unlockedOnly;
         deferLayerRemoval = true;
       }
     }
 
-    LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(undoLayerFound.creationTime, worldServer);
+    LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(undoLayerFound);
     undoLayerFound.worldSelectionUndo.undoChanges(worldServer, subsequentUndoLayers);
     if (!deferLayerRemoval) {
-      undoLayersSimple.remove(undoLayerFound);
+      boolean foundAndRemoved = removeFromHistory(dimensionHistory.undoLayersSimple, undoLayerFound);
+      assert (foundAndRemoved);
     }
+    journalChangedLayers();
     return true;
   }
 
-  /** find the most recent undo entry, in the given undoHistory, for the given player and worldServerReader
+  /** returns true if any complex write or undo is in progress, in any dimension
+   */
+  public boolean isAsynchronousTaskInProgress()
+  {
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      if (dimensionHistory.isAsynchronousTaskInProgress()) return true;
+    }
+    return false;
+  }
+
+  /** find the most recent undo entry, in the given undoHistory (of one dimension), for the given player
    * @param undoHistory
    * @param player
-   * @param worldServer
    * @return the undo entry, or null if none found
    */
-  private UndoLayerInfo getMostRecentUndo(LinkedList<UndoLayerInfo> undoHistory, EntityPlayerMP player, WorldServer worldServer)
+  private UndoLayerInfo getMostRecentUndo(LinkedList<UndoLayerInfo> undoHistory, EntityPlayerMP player)
   {
     UndoLayerInfo undoLayerFound = null;
     Iterator<UndoLayerInfo> undoLayerInfoIterator = undoHistory.descendingIterator();
     while (undoLayerFound == null && undoLayerInfoIterator.hasNext()) {
       UndoLayerInfo undoLayerInfo = undoLayerInfoIterator.next();
-      if (undoLayerInfo.worldServer.get() == worldServer
-              && undoLayerInfo.entityPlayerMP.get() == player
-              && !undoLayerInfo.undoHasCommenced    ) {
+      if (undoLayerInfo.entityPlayerMP.get() == player
+              && !undoLayerInfo.undoHasCommenced
+              && undoLayerInfo.retiringFromHistory == null) {
         undoLayerFound = undoLayerInfo;
       }
     }
     return undoLayerFound;
   }
 
-  /** find the most recent undo entry, in the given undoHistory, for the given player and worldServerReader
+  /** find the most recent undo entry, in the given undoHistory (of one dimension), for the given player and transaction
    * @param undoHistory
    * @param player
-   * @param worldServer
    * @return the undo entry, or null if none found
    */
-  private UndoLayerInfo getSpecificUndo(LinkedList<UndoLayerInfo> undoHistory, EntityPlayerMP player, WorldServer worldServer, UniqueTokenID transactionID)
+  private UndoLayerInfo getSpecificUndo(LinkedList<UndoLayerInfo> undoHistory, EntityPlayerMP player, UniqueTokenID transactionID)
   {
     UndoLayerInfo undoLayerFound = null;
     Iterator<UndoLayerInfo> undoLayerInfoIterator = undoHistory.descendingIterator();
     while (undoLayerFound == null && undoLayerInfoIterator.hasNext()) {
       UndoLayerInfo undoLayerInfo = undoLayerInfoIterator.next();
       if (undoLayerInfo.transactionID.equals(transactionID)
-          && undoLayerInfo.worldServer.get() == worldServer
           && undoLayerInfo.entityPlayerMP.get() == player
-          && !undoLayerInfo.undoHasCommenced    ) {
+          && !undoLayerInfo.undoHasCommenced
+          && undoLayerInfo.retiringFromHistory == null) {
         undoLayerFound = undoLayerInfo;
       }
     }
@@ -238,14 +451,16 @@ public class WorldHistory
      */
   public void removePlayer(EntityPlayerMP entityPlayerMP)
   {
-    for (UndoLayerInfo undoLayerInfo : undoLayersComplex) {
-      if (undoLayerInfo.entityPlayerMP.get() == entityPlayerMP) {
-        undoLayerInfo.entityPlayerMP.clear();
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+        if (undoLayerInfo.entityPlayerMP.get() == entityPlayerMP) {
+          undoLayerInfo.entityPlayerMP.clear();
+        }
       }
-    }
-    for (UndoLayerInfo undoLayerInfo : undoLayersSimple) {
-      if (undoLayerInfo.entityPlayerMP.get() == entityPlayerMP) {
-        undoLayerInfo.entityPlayerMP.clear();
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersSimple) {
+        if (undoLayerInfo.entityPlayerMP.get() == entityPlayerMP) {
+          undoLayerInfo.entityPlayerMP.clear();
+        }
       }
     }
   }
@@ -253,34 +468,31 @@ public class WorldHistory
   /**
    * removes the specified worldServerReader from the history.
    * Optional, since any worldServerReader entries in the history which become invalid will eventually be removed automatically.
+   * The world's journal is closed; its layers are recovered again if the world is used again.
+   * The world's whole DimensionHistory is dropped at once, including any layers waiting for retirement.
    * @param worldServer
    */
   public void removeWorldServer(WorldServer worldServer)
   {
-    for (UndoLayerInfo undoLayerInfo : undoLayersComplex) {
-      if (undoLayerInfo.worldServer.get() == worldServer) {
-        undoLayerInfo.worldServer.clear();
-      }
-    }
-    for (UndoLayerInfo undoLayerInfo : undoLayersSimple) {
-      if (undoLayerInfo.worldServer.get() == worldServer) {
-        undoLayerInfo.worldServer.clear();
-      }
+    UndoJournal journal = worldJournals.remove(worldServer);
+    if (journal != null) {
+      journal.close();
+      journalsByFile.values().remove(journal);
     }
+    dimensionHistories.remove(worldServer);
   }
 
   /** for debugging purposes
    */
   public void printUndoStackYSlice(WorldServer worldServer, BlockPos origin, int xSize, int y, int zSize)
   {
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
     for (int x = 0; x < xSize; ++x) {
-      for (UndoLayerInfo undoLayerInfo : undoLayersComplex) {
-        if (undoLayerInfo.worldServer.get() == worldServer) {
-          for (int z = 0; z < zSize; ++z) {
-            Integer metadata = undoLayerInfo.worldSelectionUndo.getStoredMetadata(x + origin.getX(), y + origin.getY(), z + origin.getZ());
-            System.out.print((metadata == null) ? "-" : metadata);
-            System.out.print(" ");
-          }
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+        for (int z = 0; z < zSize; ++z) {
+          Integer metadata = undoLayerInfo.worldSelectionUndo.getStoredMetadata(x + origin.getX(), y + origin.getY(), z + origin.getZ());
+          System.out.print((metadata == null) ? "-" : metadata);
+          System.out.print(" ");
         }
         System.out.print(": ");
       }
@@ -289,38 +501,39 @@ public class WorldHistory
   }
 
   /**
-   * Tries to reduce the number of undoLayers to the target size
-   * 1) culls all invalid layers (Player or WorldServer no longer exist)
+   * Tries to reduce the number of undoLayers to the target size, counting the layers of all dimensions together
+   * 1) culls all invalid layers (Player no longer exists)
    * 2) limit each player to the given maximum per player
    * 3) If the total layers is still above target - for each player with more than one undolayer, delete the extra layers, starting from oldest first
-   * NB does nothing if there is an asynchronous task currently in progress
+   * The layers are only queued for retirement here (see scheduleRetirement()); layers already queued don't count.
+   * NB layers in a dimension with an asynchronous task in progress are counted, but never chosen for culling; the layers
+   *   of the other dimensions are culled instead.  Invalid layers in such a dimension are skipped until the task has finished.
+   * @param complexHistory true to cull the complex histories, false for the simple histories
    */
-  private void cullUndoLayers(LinkedList<UndoLayerInfo> historyToCull, int maxUndoPerPlayer, int targetTotalSize)
+  private void cullUndoLayers(boolean complexHistory, int maxUndoPerPlayer, int targetTotalSize)
   {
-    if (currentAsynchronousTask != null && !currentAsynchronousTask.isTaskComplete()) return;
-
-    // delete all invalid layers
-    Iterator<UndoLayerInfo> undoLayerInfoIterator = historyToCull.iterator();
-    while  (undoLayerInfoIterator.hasNext()) {
-      UndoLayerInfo undoLayerInfo = undoLayerInfoIterator.next();
-      if (undoLayerInfo.worldServer.get() == null) {
-        undoLayerInfoIterator.remove();
-      } else {
-        if (undoLayerInfo.entityPlayerMP.get() == null) {
-          LinkedList<WorldSelectionUndo> precedingUndoLayers = collatePrecedingUndoLayersAllHistories(undoLayerInfo.creationTime, undoLayerInfo.worldServer.get());
-          undoLayerInfo.worldSelectionUndo.makePermanent(undoLayerInfo.worldServer.get(), precedingUndoLayers);
-          undoLayerInfoIterator.remove();
+    // delete all invalid layers, and collect all the dimensions' layers in ascending order of time
+    List<UndoLayerInfo> allLayers = new ArrayList<UndoLayerInfo>();
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      LinkedList<UndoLayerInfo> historyToCull = dimensionHistory.getHistory(complexHistory);
+      boolean taskInProgress = dimensionHistory.isAsynchronousTaskInProgress();
+      for (UndoLayerInfo undoLayerInfo : historyToCull) {
+        if (undoLayerInfo.entityPlayerMP.get() == null && !undoLayerInfo.awaitingPlayer && !taskInProgress) {
+          scheduleRetirement(historyToCull, undoLayerInfo);
         }
       }
+      allLayers.addAll(historyToCull);
     }
+    Collections.sort(allLayers);
 
     HashMap<EntityPlayerMP, Integer> playerUndoCount = new HashMap<EntityPlayerMP, Integer>();
     HashSet<UniqueTokenID> uniqueTransactions = new HashSet<UniqueTokenID>();
-    for (UndoLayerInfo undoLayerInfo : historyToCull) {
+    for (UndoLayerInfo undoLayerInfo : allLayers) {
+      if (undoLayerInfo.awaitingPlayer || undoLayerInfo.retiringFromHistory != null) continue;
+      EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
+      if (entityPlayerMP == null) continue;      // in a dimension with a task in progress; retired once the task has finished
       if (!uniqueTransactions.contains(undoLayerInfo.transactionID)) {
         uniqueTransactions.add(undoLayerInfo.transactionID);
-        EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
-        assert (entityPlayerMP != null);
         if (!playerUndoCount.containsKey(entityPlayerMP)) {
           playerUndoCount.put(entityPlayerMP, 1);
         } else {
@@ -339,11 +552,12 @@ public class WorldHistory
     }
 
     HashSet<UniqueTokenID> deletedTransactions = new HashSet<UniqueTokenID>();
-    Iterator<UndoLayerInfo> excessIterator = historyToCull.iterator();
-    while (excessIterator.hasNext()) {
-      UndoLayerInfo undoLayerInfo = excessIterator.next();
+    for (UndoLayerInfo undoLayerInfo : allLayers) {
+      if (undoLayerInfo.awaitingPlayer || undoLayerInfo.retiringFromHistory != null) continue;
+      DimensionHistory dimensionHistory = undoLayerInfo.dimensionHistory;
+      if (dimensionHistory.isAsynchronousTaskInProgress()) continue;   // the task may be using the layers
       EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
-      assert (entityPlayerMP != null);
+      if (entityPlayerMP == null) continue;
       if (playerUndoCount.get(entityPlayerMP) > 1 && (layersToDelete > 0 || playerUndoCount.get(entityPlayerMP) > maxUndoPerPlayer)) {
         deletedTransactions.add(undoLayerInfo.transactionID);
         if (playerUndoCount.get(entityPlayerMP) <= maxUndoPerPlayer) {
@@ -352,52 +566,302 @@ public class WorldHistory
         playerUndoCount.put(entityPlayerMP, playerUndoCount.get(entityPlayerMP) - 1);
       }
       if (deletedTransactions.contains(undoLayerInfo.transactionID)) {
-        LinkedList<WorldSelectionUndo> precedingUndoLayers = collatePrecedingUndoLayersAllHistories(undoLayerInfo.creationTime, undoLayerInfo.worldServer.get());
-        undoLayerInfo.worldSelectionUndo.makePermanent(undoLayerInfo.worldServer.get(), precedingUndoLayers);
-        excessIterator.remove();
+        scheduleRetirement(dimensionHistory.getHistory(complexHistory), undoLayerInfo);
       }
     }
   }
 
   /**
-   * collates a list of undo layers with a creation time after the given time, for the given worldServerReader
-   * @param creationTime only collate layers with a creation time > this value
-   * @param worldServerToMatch the worldServerReader to match against
-   * @return a list of matching WorldSelectionUndo in ascending order of time.
+   * Moves the undo data of idle layers to disk, and reads back the layers which are likely to be needed soon.
+   * Should be called regularly (say every few seconds) from the server thread.
+   * 1) completes any spills which have finished writing
+   * 2) starts reading back each player's next undo (simple and complex), if it was spilled
+   * 3) spills any other layers which haven't been used for idleTimeNS, or - if the history is using more than
+   *    spillThresholdBytes - the least recently used layers until it is below the threshold
+   * NB doesn't spill anything from a dimension with an asynchronous task in progress, because the task may be using the layers
+   * @param idleTimeNS layers which haven't been used for this long are spilled
+   * @param spillThresholdBytes spill layers until the history uses less than this; 0 = only spill idle layers
    */
-  private LinkedList<WorldSelectionUndo> collateSubsequentUndoLayersAllHistories(long creationTime, WorldServer worldServerToMatch)
+  public void manageUndoStorage(long idleTimeNS, long spillThresholdBytes)
   {
-    LinkedList<UndoLayerInfo> combinedList = collateSubsequentUndoLayers(undoLayersSimple, creationTime, worldServerToMatch);
-    combinedList.addAll(collateSubsequentUndoLayers(undoLayersComplex, creationTime, worldServerToMatch));
-    Collections.sort(combinedList);
-    LinkedList<WorldSelectionUndo> collatedList = new LinkedList<WorldSelectionUndo>();
-    for (UndoLayerInfo layerInfo : combinedList) {
-      collatedList.add(layerInfo.worldSelectionUndo);
+    HashSet<UndoLayerInfo> nextUndos = new HashSet<UndoLayerInfo>();
+    List<UndoLayerInfo> spillCandidates = new ArrayList<UndoLayerInfo>();
+    long residentBytes = 0;
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      List<UndoLayerInfo> allLayers = new ArrayList<UndoLayerInfo>(dimensionHistory.undoLayersComplex);
+      allLayers.addAll(dimensionHistory.undoLayersSimple);
+      for (UndoLayerInfo undoLayerInfo : allLayers) {
+        undoLayerInfo.worldSelectionUndo.updateStorage();
+      }
+      boolean taskInProgress = dimensionHistory.isAsynchronousTaskInProgress();
+      if (!taskInProgress) {
+        findNextUndoForEachPlayer(dimensionHistory.undoLayersComplex, nextUndos);
+        findNextUndoForEachPlayer(dimensionHistory.undoLayersSimple, nextUndos);
+      }
+      for (UndoLayerInfo undoLayerInfo : allLayers) {
+        WorldSelectionUndo worldSelectionUndo = undoLayerInfo.worldSelectionUndo;
+        if (worldSelectionUndo.isSpilled()) continue;
+        residentBytes += worldSelectionUndo.getRetainedBytes();
+        if (!taskInProgress && !nextUndos.contains(undoLayerInfo) && !undoLayerInfo.undoHasCommenced && undoLayerInfo.worldServer.get() != null) {
+          spillCandidates.add(undoLayerInfo);
+        }
+      }
+    }
+    for (UndoLayerInfo undoLayerInfo : nextUndos) {
+      undoLayerInfo.worldSelectionUndo.prefetch();
+    }
+
+    Collections.sort(spillCandidates, new Comparator<UndoLayerInfo>() {
+      @Override
+      public int compare(UndoLayerInfo o1, UndoLayerInfo o2) {
+        long lastAccess1 = o1.worldSelectionUndo.getLastAccessTime();
+        long lastAccess2 = o2.worldSelectionUndo.getLastAccessTime();
+        return (lastAccess1 < lastAccess2) ? -1 : ((lastAccess1 == lastAccess2) ? 0 : 1);
+      }
+    });
+
+    long idleIfAccessedBefore = System.nanoTime() - idleTimeNS;
+    for (UndoLayerInfo undoLayerInfo : spillCandidates) {      // least recently used first
+      WorldSelectionUndo worldSelectionUndo = undoLayerInfo.worldSelectionUndo;
+      boolean overThreshold = spillThresholdBytes > 0 && residentBytes > spillThresholdBytes;
+      if (!overThreshold && worldSelectionUndo.getLastAccessTime() > idleIfAccessedBefore) break;
+      File spillFolder = getSpillFolder(undoLayerInfo.worldServer.get());
+      if (spillFolder == null) return;
+      long layerBytes = worldSelectionUndo.getRetainedBytes();
+      if (worldSelectionUndo.startSpillToDisk(spillFolder)) {
+        residentBytes -= layerBytes;
+      }
+    }
+  }
+
+  // add the most recent undo of each player, in the given history of one dimension, to nextUndos
+  private void findNextUndoForEachPlayer(LinkedList<UndoLayerInfo> undoHistory, Set<UndoLayerInfo> nextUndos)
+  {
+    HashMap<EntityPlayerMP, UndoLayerInfo> mostRecent = new HashMap<EntityPlayerMP, UndoLayerInfo>();
+    for (UndoLayerInfo undoLayerInfo : undoHistory) {     // history is in ascending order of time
+      EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
+      if (entityPlayerMP != null && !undoLayerInfo.undoHasCommenced && undoLayerInfo.retiringFromHistory == null) {
+        mostRecent.put(entityPlayerMP, undoLayerInfo);
+      }
+    }
+    nextUndos.addAll(mostRecent.values());
+  }
+
+  // the folder for spilling this world's undo layers; emptied of any old files the first time it is used
+  private File getSpillFolder(WorldServer worldServer)
+  {
+    File spillFolder = UndoLayerSpillFile.getSpillFolder(worldServer);
+    if (spillFolder != null && !spillFoldersUsed.contains(spillFolder)) {
+      UndoLayerSpillFile.emptySpillFolder(spillFolder);
+      spillFoldersUsed.add(spillFolder);
+    }
+    return spillFolder;
+  }
+
+  /**
+   * Makes undos permanent until the history fits within the memory budget:
+   * 1) any player above the per-player limit loses undos until they are within it
+   * 2) if the total is still above the budget, the players using more than their fair share (budget / number of players)
+   *    lose undos.  If none of those players has an undo which can be removed, any player's undos may be removed.
+   * Within those players, the undo to be removed is chosen by the evictionPolicy.  All the layers of a transaction are
+   *   made permanent together, and each player always keeps their most recent complex undo.
+   * The chosen layers are queued for retirement.  Layers queued for retirement still count towards the budget until
+   *   they have been made permanent, except for the layers chosen by this call, which are counted as freed already.
+   * NB layers in a dimension with an asynchronous task in progress count towards the budget, but aren't chosen
+   */
+  private void enforceMemoryBudget()
+  {
+    if (memoryBudgetBytes <= 0 && memoryPerPlayerBytes <= 0) return;
+
+    HashSet<UndoLayerInfo> chosenLayers = new HashSet<UndoLayerInfo>();
+    while (true) {
+      Collection<PlayerMemoryUsage> allUsage = collatePlayerMemoryUsage(chosenLayers);
+      long totalBytes = 0;
+      for (PlayerMemoryUsage usage : allUsage) {
+        totalBytes += usage.totalBytes;
+      }
+
+      List<PlayerMemoryUsage> playersToEvictFrom = new ArrayList<PlayerMemoryUsage>();
+      if (memoryPerPlayerBytes > 0) {
+        for (PlayerMemoryUsage usage : allUsage) {
+          if (usage.totalBytes > memoryPerPlayerBytes && !usage.candidates.isEmpty()) playersToEvictFrom.add(usage);
+        }
+      }
+      if (playersToEvictFrom.isEmpty() && memoryBudgetBytes > 0 && totalBytes > memoryBudgetBytes) {
+        long fairShare = memoryBudgetBytes / allUsage.size();
+        for (PlayerMemoryUsage usage : allUsage) {
+          if (usage.totalBytes > fairShare && !usage.candidates.isEmpty()) playersToEvictFrom.add(usage);
+        }
+        if (playersToEvictFrom.isEmpty()) {
+          for (PlayerMemoryUsage usage : allUsage) {
+            if (!usage.candidates.isEmpty()) playersToEvictFrom.add(usage);
+          }
+        }
+      }
+      if (playersToEvictFrom.isEmpty()) return;
+
+      EvictionCandidate victim = chooseEvictionCandidate(playersToEvictFrom);
+      for (UndoLayerInfo undoLayerInfo : victim.layers) {    // in ascending order of time, same as cullUndoLayers
+        scheduleRetirement(victim.history, undoLayerInfo);
+        chosenLayers.add(undoLayerInfo);
+      }
     }
-    return collatedList;
   }
 
-  private LinkedList<UndoLayerInfo> collateSubsequentUndoLayers(LinkedList<UndoLayerInfo> whichHistory, long creationTime, WorldServer worldServerToMatch)
+  /**
+   * totals up the memory used by each player (in all dimensions), and finds the transactions which could be made permanent
+   * Layers whose player or WorldServer are no longer valid are ignored (cullUndoLayers will remove them)
+   * Layers waiting for retirement are counted, but can't be chosen
+   * @param ignoredLayers layers which aren't counted at all
+   */
+  private Collection<PlayerMemoryUsage> collatePlayerMemoryUsage(Set<UndoLayerInfo> ignoredLayers)
+  {
+    HashMap<EntityPlayerMP, PlayerMemoryUsage> usageByPlayer = new HashMap<EntityPlayerMP, PlayerMemoryUsage>();
+    HashMap<EntityPlayerMP, UndoLayerInfo> mostRecentComplexLayer = new HashMap<EntityPlayerMP, UndoLayerInfo>();
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+        EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
+        if (entityPlayerMP == null || undoLayerInfo.retiringFromHistory != null) continue;
+        UndoLayerInfo mostRecent = mostRecentComplexLayer.get(entityPlayerMP);
+        if (mostRecent == null || undoLayerInfo.creationTime > mostRecent.creationTime) {
+          mostRecentComplexLayer.put(entityPlayerMP, undoLayerInfo);
+        }
+      }
+    }
+    HashMap<EntityPlayerMP, UniqueTokenID> mostRecentTransaction = new HashMap<EntityPlayerMP, UniqueTokenID>();
+    for (Map.Entry<EntityPlayerMP, UndoLayerInfo> entry : mostRecentComplexLayer.entrySet()) {
+      mostRecentTransaction.put(entry.getKey(), entry.getValue().transactionID);
+    }
+
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      boolean taskInProgress = dimensionHistory.isAsynchronousTaskInProgress();
+      collatePlayerMemoryUsage(usageByPlayer, dimensionHistory.undoLayersComplex, mostRecentTransaction, taskInProgress, ignoredLayers);
+      collatePlayerMemoryUsage(usageByPlayer, dimensionHistory.undoLayersSimple, null, taskInProgress, ignoredLayers);
+    }
+    for (PlayerMemoryUsage usage : usageByPlayer.values()) {
+      usage.candidates.addAll(usage.transactions.values());
+    }
+    return usageByPlayer.values();
+  }
+
+  /**
+   * adds the memory used by the layers of one history (in one dimension) to usageByPlayer
+   * @param mostRecentTransaction each player's transaction which must be kept; null = none
+   * @param countOnly true if the layers count towards the memory used, but can't be chosen for eviction
+   * @param ignoredLayers layers which aren't counted at all
+   */
+  private void collatePlayerMemoryUsage(HashMap<EntityPlayerMP, PlayerMemoryUsage> usageByPlayer, LinkedList<UndoLayerInfo> whichHistory,
+                                        HashMap<EntityPlayerMP, UniqueTokenID> mostRecentTransaction, boolean countOnly,
+                                        Set<UndoLayerInfo> ignoredLayers)
   {
-    LinkedList<UndoLayerInfo> collatedList = new LinkedList<UndoLayerInfo>();
     for (UndoLayerInfo undoLayerInfo : whichHistory) {
-      if (undoLayerInfo.worldServer.get() == worldServerToMatch
-              && undoLayerInfo.creationTime > creationTime) {
-        collatedList.add(undoLayerInfo);
+      EntityPlayerMP entityPlayerMP = undoLayerInfo.entityPlayerMP.get();
+      if (entityPlayerMP == null || undoLayerInfo.worldServer.get() == null || ignoredLayers.contains(undoLayerInfo)) continue;
+      PlayerMemoryUsage usage = usageByPlayer.get(entityPlayerMP);
+      if (usage == null) {
+        Long lastActivity = playerLastActivity.get(entityPlayerMP);
+        usage = new PlayerMemoryUsage((lastActivity == null) ? 0 : lastActivity);
+        usageByPlayer.put(entityPlayerMP, usage);
+      }
+      long layerBytes = undoLayerInfo.worldSelectionUndo.getRetainedBytes();
+      usage.totalBytes += layerBytes;
+      if (countOnly || undoLayerInfo.undoHasCommenced || undoLayerInfo.retiringFromHistory != null
+          || (mostRecentTransaction != null && undoLayerInfo.transactionID.equals(mostRecentTransaction.get(entityPlayerMP)))) {
+        continue;
+      }
+
+      EvictionCandidate candidate = usage.transactions.get(undoLayerInfo.transactionID);
+      if (candidate == null) {
+        candidate = new EvictionCandidate(whichHistory, undoLayerInfo.creationTime);
+        usage.transactions.put(undoLayerInfo.transactionID, candidate);
+      }
+      candidate.layers.add(undoLayerInfo);
+      candidate.bytes += layerBytes;
+    }
+  }
+
+  private EvictionCandidate chooseEvictionCandidate(List<PlayerMemoryUsage> playersToEvictFrom)
+  {
+    if (evictionPolicy == EvictionPolicy.PLAYER_LRU) {
+      PlayerMemoryUsage leastRecentlyUsed = playersToEvictFrom.get(0);
+      for (PlayerMemoryUsage usage : playersToEvictFrom) {
+        if (usage.lastActivityTime < leastRecentlyUsed.lastActivityTime) leastRecentlyUsed = usage;
+      }
+      playersToEvictFrom = Collections.singletonList(leastRecentlyUsed);
+    }
+
+    EvictionCandidate chosen = null;
+    for (PlayerMemoryUsage usage : playersToEvictFrom) {
+      for (EvictionCandidate candidate : usage.candidates) {
+        if (chosen == null
+            || (evictionPolicy == EvictionPolicy.LARGEST_FIRST && candidate.bytes > chosen.bytes)
+            || (evictionPolicy != EvictionPolicy.LARGEST_FIRST && candidate.creationTime < chosen.creationTime)) {
+          chosen = candidate;
+        }
+      }
+    }
+    return chosen;
+  }
+
+  // the memory used by one player's undo layers
+  private static class PlayerMemoryUsage
+  {
+    public PlayerMemoryUsage(long i_lastActivityTime) {lastActivityTime = i_lastActivityTime;}
+
+    public final long lastActivityTime;
+    public long totalBytes;
+    public final List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+    private final HashMap<UniqueTokenID, EvictionCandidate> transactions = new LinkedHashMap<UniqueTokenID, EvictionCandidate>();
+  }
+
+  // the layers of one transaction, which will be made permanent together
+  private static class EvictionCandidate
+  {
+    public EvictionCandidate(LinkedList<UndoLayerInfo> i_history, long i_creationTime)
+    {
+      history = i_history;
+      creationTime = i_creationTime;
+    }
+
+    public final LinkedList<UndoLayerInfo> history;
+    public final long creationTime;        // of the oldest layer
+    public long bytes;
+    public final List<UndoLayerInfo> layers = new ArrayList<UndoLayerInfo>();
+  }
+
+  /**
+   * collates a list of the undo layers after the given layer which might overlap it (same world, nearby chunks)
+   * @param undoLayer the layer to match against
+   * @return a list of matching WorldSelectionUndo in ascending order of time.
+   */
+  private LinkedList<WorldSelectionUndo> collateSubsequentUndoLayersAllHistories(UndoLayerInfo undoLayer)
+  {
+    List<UndoLayerInfo> combinedList = new ArrayList<UndoLayerInfo>();
+    for (UndoLayerInfo undoLayerInfo : getNearbyUndoLayers(undoLayer)) {
+      if (undoLayerInfo.creationTime > undoLayer.creationTime) {
+        combinedList.add(undoLayerInfo);
       }
     }
+    Collections.sort(combinedList);
+    LinkedList<WorldSelectionUndo> collatedList = new LinkedList<WorldSelectionUndo>();
+    for (UndoLayerInfo layerInfo : combinedList) {
+      collatedList.add(layerInfo.worldSelectionUndo);
+    }
     return collatedList;
   }
 
   /**
-   * collates a list of undo layers with a creation time before the given time, for the given worldServerReader
-   * @param creationTime only collate layers with a creation time < this value
-   * @param worldServerToMatch the worldServerReader to match against
+   * collates a list of the undo layers before the given layer which might overlap it (same world, nearby chunks)
+   * @param undoLayer the layer to match against
    * @return a list of matching WorldSelectionUndo in descending order of time.
    */
-  private LinkedList<WorldSelectionUndo> collatePrecedingUndoLayersAllHistories(long creationTime, WorldServer worldServerToMatch) {
-    LinkedList<UndoLayerInfo> combinedList = collatePrecedingUndoLayers(undoLayersSimple, creationTime, worldServerToMatch);
-    combinedList.addAll(collatePrecedingUndoLayers(undoLayersComplex, creationTime, worldServerToMatch));
+  private LinkedList<WorldSelectionUndo> collatePrecedingUndoLayersAllHistories(UndoLayerInfo undoLayer) {
+    List<UndoLayerInfo> combinedList = new ArrayList<UndoLayerInfo>();
+    for (UndoLayerInfo undoLayerInfo : getNearbyUndoLayers(undoLayer)) {
+      if (undoLayerInfo.creationTime < undoLayer.creationTime) {
+        combinedList.add(undoLayerInfo);
+      }
+    }
     Collections.sort(combinedList);
     LinkedList<WorldSelectionUndo> collatedList = new LinkedList<WorldSelectionUndo>();
     for (UndoLayerInfo layerInfo : combinedList) {
@@ -406,20 +870,357 @@ public class WorldHistory
     return collatedList;
   }
 
-  private LinkedList<UndoLayerInfo> collatePrecedingUndoLayers(LinkedList<UndoLayerInfo> whichHistory, long creationTime, WorldServer worldServerToMatch)
+  // the layers in either history of the layer's dimension whose footprint shares a chunk column with the given layer
+  //   (may include the layer itself)
+  private Set<UndoLayerInfo> getNearbyUndoLayers(UndoLayerInfo undoLayer)
   {
-    LinkedList<UndoLayerInfo> collatedList = new LinkedList<UndoLayerInfo>();
-    for (UndoLayerInfo undoLayerInfo : whichHistory) {
-      if (undoLayerInfo.worldServer.get() == worldServerToMatch
-              && undoLayerInfo.creationTime < creationTime) {
-        collatedList.add(undoLayerInfo);
+    WorldSelectionUndo worldSelectionUndo = undoLayer.worldSelectionUndo;
+    return undoLayer.dimensionHistory.spatialIndex.getOverlapping(worldSelectionUndo.getWxOfOrigin(), worldSelectionUndo.getWzOfOrigin(),
+                                       worldSelectionUndo.getWxOfOrigin() + worldSelectionUndo.getxCount(),
+                                       worldSelectionUndo.getWzOfOrigin() + worldSelectionUndo.getzCount());
+  }
+
+  /**
+   * merge a new simple tool layer into the player's previous simple tool layer, if coalescing is enabled and:
+   * 1) the previous layer was created no more than simpleCoalesceWindowNS before the new one
+   * 2) the two layers touch or overlap (their footprints include the border), and the merged layer isn't too large
+   * 3) no other layer overlapping them has been created since the previous layer, in either history
+   * @return true if the layer was merged; false if it should be added to the history as normal
+   */
+  private boolean coalesceWithPreviousSimpleUndo(UndoLayerInfo newLayer)
+  {
+    DimensionHistory dimensionHistory = newLayer.dimensionHistory;
+    if (simpleCoalesceWindowNS <= 0 || dimensionHistory.isAsynchronousTaskInProgress()) return false;
+    UndoLayerInfo previousLayer = getMostRecentUndo(dimensionHistory.undoLayersSimple, newLayer.entityPlayerMP.get());
+    if (previousLayer == null || previousLayer.awaitingPlayer || previousLayer.worldSelectionUndo.isSpilled()
+        || newLayer.creationTime - previousLayer.creationTime > simpleCoalesceWindowNS) {
+      return false;
+    }
+    WorldSelectionUndo previous = previousLayer.worldSelectionUndo;
+    WorldSelectionUndo latest = newLayer.worldSelectionUndo;
+    if (previous.getWxOfOrigin() > latest.getWxOfOrigin() + latest.getxCount()
+        || previous.getWyOfOrigin() > latest.getWyOfOrigin() + latest.getyCount()
+        || previous.getWzOfOrigin() > latest.getWzOfOrigin() + latest.getzCount()
+        || latest.getWxOfOrigin() > previous.getWxOfOrigin() + previous.getxCount()
+        || latest.getWyOfOrigin() > previous.getWyOfOrigin() + previous.getyCount()
+        || latest.getWzOfOrigin() > previous.getWzOfOrigin() + previous.getzCount()) {
+      return false;
+    }
+    long mergedXSize = Math.max(previous.getWxOfOrigin() + previous.getxCount(), latest.getWxOfOrigin() + latest.getxCount())
+                       - Math.min(previous.getWxOfOrigin(), latest.getWxOfOrigin());
+    long mergedYSize = Math.max(previous.getWyOfOrigin() + previous.getyCount(), latest.getWyOfOrigin() + latest.getyCount())
+                       - Math.min(previous.getWyOfOrigin(), latest.getWyOfOrigin());
+    long mergedZSize = Math.max(previous.getWzOfOrigin() + previous.getzCount(), latest.getWzOfOrigin() + latest.getzCount())
+                       - Math.min(previous.getWzOfOrigin(), latest.getWzOfOrigin());
+    if (mergedXSize * mergedYSize * mergedZSize > MAX_COALESCED_VOLUME) return false;
+
+    Set<UndoLayerInfo> nearbyLayers = getNearbyUndoLayers(previousLayer);
+    nearbyLayers.addAll(getNearbyUndoLayers(newLayer));
+    for (UndoLayerInfo nearbyLayer : nearbyLayers) {
+      if (nearbyLayer != previousLayer && nearbyLayer.creationTime > previousLayer.creationTime) return false;
+    }
+
+    previous.coalesce(latest);
+    addToSpatialIndex(previousLayer);    // the footprint has grown; the journal picks up the change in journalChangedLayers()
+    return true;
+  }
+
+  // queue the layer to be made permanent and removed from the history by the retirement task; it can't be undone any more
+  private void scheduleRetirement(LinkedList<UndoLayerInfo> whichHistory, UndoLayerInfo undoLayerInfo)
+  {
+    if (undoLayerInfo.retiringFromHistory != null) return;
+    undoLayerInfo.retiringFromHistory = whichHistory;
+    undoLayerInfo.dimensionHistory.layersAwaitingRetirement.add(undoLayerInfo);
+  }
+
+  /**
+   * make the next layer queued in the given dimension permanent and remove it from its history; skipped if it has
+   *   already been removed.  The layer and the layers it overlaps are first brought back into memory (see makeResident()).
+   * A large layer is made permanent over several calls, a few chunk columns at a time, stopping once interruptToken
+   *   says it is time to stop.
+   * @return true if the layer has been dealt with; false if its undo data is still being read back from disk, or it
+   *   hasn't been finished yet (the layer stays at the front of the queue)
+   */
+  private boolean retireNextLayer(DimensionHistory dimensionHistory, AsynchronousToken interruptToken)
+  {
+    UndoLayerInfo undoLayerInfo = dimensionHistory.layersAwaitingRetirement.getFirst();
+    LinkedList<UndoLayerInfo> whichHistory = undoLayerInfo.retiringFromHistory;
+    if (!whichHistory.contains(undoLayerInfo)) {             // eg it has been undone
+      dimensionHistory.layersAwaitingRetirement.removeFirst();
+      return true;
+    }
+    if (undoLayerInfo.worldServer.get() != null) {
+      LinkedList<WorldSelectionUndo> precedingUndoLayers = collatePrecedingUndoLayersAllHistories(undoLayerInfo);
+      if (!undoLayerInfo.worldSelectionUndo.makeResident(precedingUndoLayers)) return false;
+      undoLayerInfo.nextPermanentColumn = undoLayerInfo.worldSelectionUndo.makePermanent(undoLayerInfo.worldServer.get(), precedingUndoLayers,
+                                                                                       undoLayerInfo.nextPermanentColumn, interruptToken);
+      if (undoLayerInfo.nextPermanentColumn != WorldSelectionUndo.MAKE_PERMANENT_COMPLETE) return false;
+      removeFromHistory(whichHistory, undoLayerInfo);
+    } else {     // left in the journal, to be recovered when the world is loaded again
+      whichHistory.remove(undoLayerInfo);
+      dimensionHistory.spatialIndex.remove(undoLayerInfo);
+    }
+    dimensionHistory.layersAwaitingRetirement.removeFirst();
+    return true;
+  }
+
+  // the total number of layers waiting for retirement, in all dimensions
+  private int getLayersAwaitingRetirement()
+  {
+    int layerCount = 0;
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      layerCount += dimensionHistory.layersAwaitingRetirement.size();
+    }
+    return layerCount;
+  }
+
+  // a layer can only be merged (see coalesceTransaction()) if it can still be undone
+  private boolean isMergeable(UndoLayerInfo undoLayerInfo)
+  {
+    return !undoLayerInfo.undoHasCommenced && !undoLayerInfo.awaitingPlayer && undoLayerInfo.retiringFromHistory == null
+           && undoLayerInfo.worldServer.get() != null;
+  }
+
+  // add the layer to the end of the given history, to the spatial index, and to the journal
+  private void addToHistory(LinkedList<UndoLayerInfo> whichHistory, UndoLayerInfo undoLayerInfo)
+  {
+    whichHistory.add(undoLayerInfo);
+    addToSpatialIndex(undoLayerInfo);
+    UndoJournal journal = getJournal(undoLayerInfo.worldServer.get());
+    if (journal != null && undoLayerInfo.playerID != null) {
+      long creationOrder = journal.getCreationOrderBase() + (undoLayerInfo.creationTime - historyStartTimeNS);
+      journal.appendLayer(undoLayerInfo.worldSelectionUndo, undoLayerInfo.playerID, whichHistory == undoLayerInfo.dimensionHistory.undoLayersComplex,
+                          undoLayerInfo.transactionID, creationOrder);
+    }
+  }
+
+  private void addToSpatialIndex(UndoLayerInfo undoLayerInfo)
+  {
+    WorldSelectionUndo worldSelectionUndo = undoLayerInfo.worldSelectionUndo;
+    undoLayerInfo.dimensionHistory.spatialIndex.add(undoLayerInfo, worldSelectionUndo.getWxOfOrigin(), worldSelectionUndo.getWzOfOrigin(),
+                     worldSelectionUndo.getWxOfOrigin() + worldSelectionUndo.getxCount(),
+                     worldSelectionUndo.getWzOfOrigin() + worldSelectionUndo.getzCount());
+  }
+
+  // remove the layer from the given history, from the spatial index, and from the journal
+  // returns false if the layer wasn't in the history
+  private boolean removeFromHistory(LinkedList<UndoLayerInfo> whichHistory, UndoLayerInfo undoLayerInfo)
+  {
+    if (!whichHistory.remove(undoLayerInfo)) return false;
+    undoLayerInfo.dimensionHistory.spatialIndex.remove(undoLayerInfo);
+    journalLayerRemoved(undoLayerInfo);
+    return true;
+  }
+
+  // record the removal of a layer in its world's journal, after any changes it made to the other layers
+  private void journalLayerRemoved(UndoLayerInfo undoLayerInfo)
+  {
+    UndoJournal journal = worldJournals.get(undoLayerInfo.worldServer.get());
+    if (journal == null) return;
+    journal.journalChangedLayers();
+    journal.appendRemoval(undoLayerInfo.worldSelectionUndo);
+  }
+
+  // record the layers which have been changed by an undo or makePermanent in their world's journal
+  private void journalChangedLayers()
+  {
+    for (UndoJournal journal : journalsByFile.values()) {
+      journal.journalChangedLayers();
+    }
+  }
+
+  /**
+   * get ready for the player to use the history in the given world:
+   * 1) if this is the first time the world has been used, open its journal and recover the layers recorded in it
+   * 2) give the player back any of their layers which were recovered from a journal
+   */
+  private void prepareHistory(EntityPlayerMP player, WorldServer worldServer)
+  {
+    getJournal(worldServer);
+    if (player == null) return;
+    UUID playerID = null;
+    for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+      if (dimensionHistory.recoveredLayersAwaitingPlayer == 0) continue;
+      if (playerID == null) playerID = player.getUniqueID();
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersComplex) {
+        attachRecoveredLayer(undoLayerInfo, player, playerID);
+      }
+      for (UndoLayerInfo undoLayerInfo : dimensionHistory.undoLayersSimple) {
+        attachRecoveredLayer(undoLayerInfo, player, playerID);
       }
     }
-    return collatedList;
+  }
+
+  private void attachRecoveredLayer(UndoLayerInfo undoLayerInfo, EntityPlayerMP player, UUID playerID)
+  {
+    if (undoLayerInfo.awaitingPlayer && playerID.equals(undoLayerInfo.playerID)) {
+      undoLayerInfo.entityPlayerMP = new WeakReference<EntityPlayerMP>(player);
+      undoLayerInfo.awaitingPlayer = false;
+      --undoLayerInfo.dimensionHistory.recoveredLayersAwaitingPlayer;
+    }
+  }
+
+  /**
+   * returns the journal for the given world, opening it (and recovering its layers into the history) the first time
+   * @return the journal, or null if journalling is disabled or the journal couldn't be opened
+   */
+  private UndoJournal getJournal(WorldServer worldServer)
+  {
+    if (!journalEnabled || worldServer == null) return null;
+    if (worldJournals.containsKey(worldServer)) return worldJournals.get(worldServer);
+
+    UndoJournal journal = null;
+    File journalFile = UndoJournal.getJournalFile(worldServer);
+    if (journalFile != null) {
+      UndoJournal previousJournal = journalsByFile.remove(journalFile);    // the world has been unloaded and loaded again
+      if (previousJournal != null) previousJournal.close();
+      journal = UndoJournal.open(journalFile, journalGroupCommitNS);
+    }
+    worldJournals.put(worldServer, journal);    // null = don't try again
+    if (journal == null) return null;
+    journalsByFile.put(journalFile, journal);
+
+    List<UndoJournal.RecoveredLayer> recoveredLayers = journal.getRecoveredLayers();
+    DimensionHistory dimensionHistory = getDimensionHistory(worldServer);
+    long creationTime = historyStartTimeNS - recoveredLayers.size() - 1;    // before any layer created in this session
+    for (UndoJournal.RecoveredLayer recoveredLayer : recoveredLayers) {
+      UndoLayerInfo undoLayerInfo = new UndoLayerInfo(creationTime++, worldServer, null, recoveredLayer.worldSelectionUndo, dimensionHistory);
+      undoLayerInfo.playerID = recoveredLayer.playerID;
+      undoLayerInfo.transactionID = recoveredLayer.transactionID;
+      undoLayerInfo.awaitingPlayer = true;
+      ++dimensionHistory.recoveredLayersAwaitingPlayer;
+      dimensionHistory.getHistory(recoveredLayer.complexHistory).add(undoLayerInfo);
+      addToSpatialIndex(undoLayerInfo);
+    }
+    if (!recoveredLayers.isEmpty()) {
+      Collections.sort(dimensionHistory.undoLayersComplex);
+      Collections.sort(dimensionHistory.undoLayersSimple);
+      ErrorLog.defaultLog().info("Recovered " + recoveredLayers.size() + " undo layers from " + journalFile);
+    }
+    return journal;
+  }
+
+  // returns the part of the history for the given world, creating it the first time the world is used
+  private DimensionHistory getDimensionHistory(WorldServer worldServer)
+  {
+    DimensionHistory dimensionHistory = dimensionHistories.get(worldServer);
+    if (dimensionHistory == null) {
+      dimensionHistory = new DimensionHistory();
+      dimensionHistories.put(worldServer, dimensionHistory);
+    }
+    return dimensionHistory;
   }
 
   enum AsynchronousActionType {WRITE, UNDO};
 
+  /**
+   * the part of the history for one WorldServer: its undo layers, the spatial index of the layers, the tasks in progress
+   *   and the voxels they have locked, and the layers waiting for retirement.
+   */
+  private static class DimensionHistory
+  {
+    public LinkedList<UndoLayerInfo> getHistory(boolean complexHistory)
+    {
+      return complexHistory ? undoLayersComplex : undoLayersSimple;
+    }
+
+    /** returns true if any complex write or undo is in progress in this dimension
+     */
+    public boolean isAsynchronousTaskInProgress()
+    {
+      return !getAsynchronousTasksInProgress().isEmpty();
+    }
+
+    /** returns the complex writes and undos which are in progress in this dimension, after discarding any which have completed
+     */
+    public List<AsynchronousWriteOrUndo> getAsynchronousTasksInProgress()
+    {
+      Iterator<AsynchronousWriteOrUndo> iterator = asynchronousTasksInProgress.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().isTaskComplete()) {
+          iterator.remove();
+        }
+      }
+      return asynchronousTasksInProgress;
+    }
+
+    public final LinkedList<UndoLayerInfo> undoLayersComplex = new LinkedList<UndoLayerInfo>();    // cloning tools
+    public final LinkedList<UndoLayerInfo> undoLayersSimple = new LinkedList<UndoLayerInfo>();     // instant tools
+    public final UndoLayerSpatialIndex<UndoLayerInfo> spatialIndex = new UndoLayerSpatialIndex<UndoLayerInfo>();  // the layers of both histories
+    public final List<AsynchronousWriteOrUndo> asynchronousTasksInProgress = new LinkedList<AsynchronousWriteOrUndo>();
+    public final ChunkGridLockIndex lockIndex = new ChunkGridLockIndex();   // the voxels locked by the tasks in progress
+    public final LinkedList<UndoLayerInfo> layersAwaitingRetirement = new LinkedList<UndoLayerInfo>();  // oldest first
+    public int recoveredLayersAwaitingPlayer = 0;
+  }
+
+  /**
+   * retires the layers waiting in each dimension, oldest first, one layer at a time, taking turns between the
+   *   dimensions.  A large layer is retired over several timeslices.  Skips any dimension where a write or undo is in progress, because the task may be using the layers,
+   *   or where the next layer is still being read back from disk.
+   */
+  private class AsynchronousRetirement implements AsynchronousToken
+  {
+    @Override
+    public boolean isTaskComplete() {
+      return getLayersAwaitingRetirement() == 0;
+    }
+
+    @Override
+    public boolean isTaskAborted() {
+      return false;
+    }
+
+    @Override
+    public double getFractionComplete() {
+      int totalLayers = layersRetired + getLayersAwaitingRetirement();
+      return (totalLayers == 0) ? 1.0 : layersRetired / (double)totalLayers;
+    }
+
+    @Override
+    public boolean isTimeToInterrupt() {
+      return (interruptTimeNS == IMMEDIATE_TIMEOUT || (interruptTimeNS != INFINITE_TIMEOUT && System.nanoTime() >= interruptTimeNS));
+    }
+
+    @Override
+    public void setTimeOfInterrupt(long timeToStopNS) {
+      interruptTimeNS = timeToStopNS;
+    }
+
+    @Override
+    public void continueProcessing() {
+      boolean layerRetired;
+      do {
+        layerRetired = false;
+        for (DimensionHistory dimensionHistory : dimensionHistories.values()) {
+          if (dimensionHistory.layersAwaitingRetirement.isEmpty() || dimensionHistory.isAsynchronousTaskInProgress()) continue;
+          if (!retireNextLayer(dimensionHistory, this)) continue;    // waiting for the disk or out of time; carry on in the next timeslice
+          ++layersRetired;
+          layerRetired = true;
+          if (isTimeToInterrupt()) break;
+        }
+      } while (layerRetired && !isTimeToInterrupt());
+      journalChangedLayers();
+    }
+
+    @Override
+    public void abortProcessing() {   // the culled layers must be retired eventually, so there's nothing to abort
+    }
+
+    @Override
+    public VoxelSelectionWithOrigin getLockedRegion() {
+      return null;
+    }
+
+    @Override
+    public UniqueTokenID getUniqueTokenID() {
+      return uniqueTokenID;
+    }
+
+    private long interruptTimeNS = INFINITE_TIMEOUT;
+    private int layersRetired = 0;
+    private final UniqueTokenID uniqueTokenID = new UniqueTokenID();
+  }
+
   private class AsynchronousWriteOrUndo implements AsynchronousToken
   {
     @Override
@@ -449,17 +1250,21 @@ public class WorldHistory
       // beware - further undo may be added every time we interrupt
 
       if (completed) return;
-      if (!executeSubTask()) return;
+      if (!executeSubTask()) {
+        updateLockIndex();
+        return;
+      }
+      dimensionHistory.lockIndex.removeLockedRegion(this);
       if (undoLayerInfo != null) {
         switch (asynchronousActionType) {
           case WRITE: {
             undoLayerInfo.transactionID = transactionID;
-            undoLayersComplex.add(undoLayerInfo);
+            addToHistory(dimensionHistory.undoLayersComplex, undoLayerInfo);
             break;
           }
           case UNDO: {
             if (!aborting) {
-              undoLayersComplex.remove(undoLayerInfo);
+              removeFromHistory(dimensionHistory.undoLayersComplex, undoLayerInfo);
             }
             break;
           }
@@ -469,15 +1274,22 @@ public class WorldHistory
       }
       while (!deferredSimpleUndoToPerform.isEmpty()) {
         UndoLayerInfo queuedUndoLayerInfo = deferredSimpleUndoToPerform.remove(0);
-        LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(queuedUndoLayerInfo.creationTime, queuedUndoLayerInfo.worldServer.get());
+        LinkedList<WorldSelectionUndo> subsequentUndoLayers = collateSubsequentUndoLayersAllHistories(queuedUndoLayerInfo);
         queuedUndoLayerInfo.worldSelectionUndo.undoChanges(queuedUndoLayerInfo.worldServer.get(), subsequentUndoLayers);
-        boolean foundAndRemoved = undoLayersSimple.remove(queuedUndoLayerInfo);
-        assert (foundAndRemoved);
+        // if the layer was split by several tasks, it stays in the history until the last of its parts has been undone
+        UndoLayerInfo layerInHistory = (queuedUndoLayerInfo.splitFrom == null) ? queuedUndoLayerInfo : queuedUndoLayerInfo.splitFrom;
+        --layerInHistory.deferredPartsRemaining;
+        if (layerInHistory.deferredPartsRemaining == 0) {
+          boolean foundAndRemoved = removeFromHistory(dimensionHistory.undoLayersSimple, layerInHistory);
+          assert (foundAndRemoved);
+        }
         if (isTimeToInterrupt()) return;
       }
 
       completed = true;
-      cullUndoLayers(undoLayersComplex, maximumSimpleDepthPerPlayer, maximumComplexDepth);
+      cullUndoLayers(true, maximumSimpleDepthPerPlayer, maximumComplexDepth);
+      enforceMemoryBudget();
+      journalChangedLayers();
     }
 
     @Override
@@ -495,11 +1307,24 @@ public class WorldHistory
     {
       subTask = i_subTask;
       undoLayerInfo = i_undoLayerInfo;
+      dimensionHistory = i_undoLayerInfo.dimensionHistory;
       interruptTimeNS = INFINITE_TIMEOUT;
       fractionComplete = 0;
       completed = false;
       asynchronousActionType = i_actionType;
       transactionID = (i_transactionID == null) ? new UniqueTokenID() : i_transactionID;
+      updateLockIndex();
+    }
+
+    // add the subTask's locked region to the lock index, once it is known
+    private void updateLockIndex()
+    {
+      if (lockRegistered || undoLayerInfo == null) return;
+      VoxelSelectionWithOrigin lockedRegion = getLockedRegion();
+      WorldServer worldServer = undoLayerInfo.worldServer.get();
+      if (lockedRegion == null || worldServer == null) return;
+      dimensionHistory.lockIndex.addLockedRegion(this, worldServer, lockedRegion, lockedRegion.getWxOrigin(), lockedRegion.getWyOrigin(), lockedRegion.getWzOrigin());
+      lockRegistered = true;
     }
 
     // returns true if the sub-task is finished
@@ -528,30 +1353,6 @@ public class WorldHistory
       return uniqueTokenID;
     }
 
-    /**
-     * remove all blocks from the placement list which are locked by the current task
-     * @param worldServer
-     * @param blocksToCheck
-     * @return
-     */
-    public List<BlockPos> cullLockedVoxels(WorldServer worldServer, List<BlockPos> blocksToCheck)
-    {
-      if (undoLayerInfo == null) return blocksToCheck;
-      VoxelSelectionWithOrigin lockedRegion = getLockedRegion();
-      if (lockedRegion == null) return blocksToCheck;
-
-      WorldServer taskWorldServer = undoLayerInfo.worldServer.get();
-      if (taskWorldServer == null || taskWorldServer != worldServer) return blocksToCheck;
-
-      LinkedList<BlockPos> culledList = new LinkedList<BlockPos>();
-      for (BlockPos coordinate : blocksToCheck) {
-        if (!lockedRegion.getVoxelWXYZ(coordinate.getX(), coordinate.getY(), coordinate.getZ())) {
-          culledList.add(coordinate);
-        }
-      }
-      return culledList;
-    }
-
     /**
      * Used when performing a simple undo at the same time as a complex task is taking place.
      * The simple undo is split into two parts:
@@ -559,6 +1360,8 @@ public class WorldHistory
      * 2) a portion that will be performed after the complex task is finished
      * After the call, layerToBeSplit will contain only the voxels locked by the current task
      * These locked voxels are scheduled to be undone at the end of the current task.
+     * If layerToBeSplit has already been split by another task, it is the unlocked part from that split; the layer in the
+     *   history is then removed once all of the tasks have undone their parts.
      * The unlocked voxels, which can be executed immediately, are placed in the return value
      * @param layerToBeSplit
      * @return a new undo layer which contains only unlocked voxels.  Shallow copy of original!  Might have no voxels at all.  If null, there is no locked
@@ -566,13 +1369,14 @@ public class WorldHistory
      */
     public UndoLayerInfo removeLockedVoxelsAndScheduleForLaterExecution(UndoLayerInfo layerToBeSplit)
     {
-      if (undoLayerInfo == null) return null;
+      if (undoLayerInfo == null || !lockRegistered) return null;
+      WorldServer worldServer = layerToBeSplit.worldServer.get();
+      if (worldServer == null) return null;
       UndoLayerInfo unlockedVoxelsOnly = new UndoLayerInfo(layerToBeSplit);
 
-      VoxelSelectionWithOrigin lockedRegion = getLockedRegion();
-      if (lockedRegion == null) return null;
-
-      unlockedVoxelsOnly.worldSelectionUndo = layerToBeSplit.worldSelectionUndo.splitByLockedVoxels(lockedRegion);
+      unlockedVoxelsOnly.worldSelectionUndo = layerToBeSplit.worldSelectionUndo.splitByLockedVoxels(dimensionHistory.lockIndex, worldServer, this);
+      UndoLayerInfo layerInHistory = (layerToBeSplit.splitFrom == null) ? layerToBeSplit : layerToBeSplit.splitFrom;
+      ++layerInHistory.deferredPartsRemaining;
       deferredSimpleUndoToPerform.add(layerToBeSplit);    // only the locked voxels remain
       return unlockedVoxelsOnly;
     }
@@ -584,25 +1388,42 @@ public class WorldHistory
     private double fractionComplete;
     private AsynchronousToken subTask;
     private UndoLayerInfo undoLayerInfo;
+    private final DimensionHistory dimensionHistory;
     private AsynchronousActionType asynchronousActionType;
     private boolean aborting = false;
+    private boolean lockRegistered = false;
     private final UniqueTokenID uniqueTokenID = new UniqueTokenID();
     private UniqueTokenID transactionID = null;
   }
 
-  private AsynchronousWriteOrUndo currentAsynchronousTask;
-
-  private LinkedList<UndoLayerInfo> undoLayersComplex = new LinkedList<UndoLayerInfo>();    // cloning tools
-  private LinkedList<UndoLayerInfo> undoLayersSimple = new LinkedList<UndoLayerInfo>();     // instant tools
+  private WeakHashMap<WorldServer, DimensionHistory> dimensionHistories = new WeakHashMap<WorldServer, DimensionHistory>();
 
   private int maximumComplexDepth = 0;
   private int maximumSimpleDepthPerPlayer = 0;
 
+  private long memoryBudgetBytes = 0;           // 0 = no limit
+  private long memoryPerPlayerBytes = 0;        // 0 = no limit
+  private EvictionPolicy evictionPolicy = EvictionPolicy.OLDEST_FIRST;
+  private HashSet<File> spillFoldersUsed = new HashSet<File>();
+  private WeakHashMap<EntityPlayerMP, Long> playerLastActivity = new WeakHashMap<EntityPlayerMP, Long>();  // time of each player's last write or undo
+
+  private boolean journalEnabled = false;
+  private long journalGroupCommitNS = 0;
+  private WeakHashMap<WorldServer, UndoJournal> worldJournals = new WeakHashMap<WorldServer, UndoJournal>();
+  private HashMap<File, UndoJournal> journalsByFile = new HashMap<File, UndoJournal>();    // one per dimension
+  private final long historyStartTimeNS = System.nanoTime();   // all layers created in this session are after this time
+  private AsynchronousRetirement retirementTask;
+  private long simpleCoalesceWindowNS = 0;                       // 0 = don't merge simple tool layers
+  private static final long MAX_COALESCED_VOLUME = 64 * 64 * 64;  // don't let merged simple tool layers grow larger than this
+
   private static class UndoLayerInfo implements Comparable<UndoLayerInfo> {
-    public UndoLayerInfo(long i_creationTime, WorldServer i_worldServer, EntityPlayerMP i_entityPlayerMP, WorldSelectionUndo i_worldSelectionUndo) {
+    public UndoLayerInfo(long i_creationTime, WorldServer i_worldServer, EntityPlayerMP i_entityPlayerMP, WorldSelectionUndo i_worldSelectionUndo,
+                         DimensionHistory i_dimensionHistory) {
       creationTime = i_creationTime;
       worldServer = new WeakReference<WorldServer>(i_worldServer);
+      dimensionHistory = i_dimensionHistory;
       entityPlayerMP = new WeakReference<EntityPlayerMP>(i_entityPlayerMP);
+      playerID = (i_entityPlayerMP == null) ? null : i_entityPlayerMP.getUniqueID();
       worldSelectionUndo = i_worldSelectionUndo;
       transactionID = new UniqueTokenID();  // default; might be replaced later
 //      creatingTaskID = null;
@@ -621,18 +1442,28 @@ public class WorldHistory
     {
       creationTime = source.creationTime;
       worldServer = source.worldServer;
+      dimensionHistory = source.dimensionHistory;
       entityPlayerMP = source.entityPlayerMP;
+      playerID = source.playerID;
       worldSelectionUndo = source.worldSelectionUndo;
 //      creatingTaskID = source.creatingTaskID;
       undoHasCommenced = false;
+      splitFrom = (source.splitFrom == null) ? source : source.splitFrom;
     }
 
     public long creationTime;
     public WeakReference<WorldServer> worldServer;
+    public final DimensionHistory dimensionHistory;    // the part of the history for worldServer
     public WeakReference<EntityPlayerMP>  entityPlayerMP;
+    public UUID playerID;          // so that layers recovered from the journal can be given back to their player
+    boolean awaitingPlayer;        // recovered from the journal, and the player hasn't used the history yet
     public WorldSelectionUndo worldSelectionUndo;
     public UniqueTokenID transactionID;
     boolean undoHasCommenced;  // set to true once the player has commenced this undo
+    LinkedList<UndoLayerInfo> retiringFromHistory;   // non-null once the layer is queued for retirement from this history
+    UndoLayerInfo splitFrom;           // for a part split off by a task in progress: the layer in the history; otherwise null
+    int nextPermanentColumn;           // while being retired: where makePermanent carries on from
+    int deferredPartsRemaining;        // the number of parts of this layer waiting to be undone by tasks in progress
 //    public UniqueTokenID creatingTaskID;
 
     @Override
@@ -1,21 +1,35 @@
 package speedytools.serverside.worldmanipulation;
 
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockFalling;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.init.Blocks;
 import net.minecraft.init.Items;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.EnumFacing;
 import net.minecraft.world.WorldServer;
+import speedytools.common.SpeedyToolsOptions;
 import speedytools.common.blocks.BlockWithMetadata;
 import speedytools.common.selections.VoxelSelection;
 import speedytools.common.selections.VoxelSelectionWithOrigin;
+import speedytools.common.utilities.ErrorLog;
+import speedytools.common.utilities.HeapSizeEstimate;
+import speedytools.common.utilities.OperationMetrics;
 import speedytools.common.utilities.Pair;
 import speedytools.common.utilities.QuadOrientation;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
 * User: The Grey Ghost
@@ -48,6 +62,13 @@ import java.util.List;
 *       can be updated.
 * (4) makePermanent() to adjust the World and other undo layers to make this undo permanent, typically so that it can
 *     be freed up.
+* (5) optionally, startSpillToDisk() to move the undo data of an idle layer out of memory; it is read back automatically
+*     whenever it is needed, or ahead of time with prefetch().  Call updateStorage() regularly to complete the spill.
+*     The asynchronous tasks call makeResident() until it returns true before using a layer, so that the server thread
+*     doesn't wait for the disk.
+* (6) optionally, record the layer in the UndoJournal with getSnapshotForJournal(), and again whenever getChangeCount()
+*     changes; after a restart, createFromStorage() recreates the layer from the journal.
+* (7) optionally, coalesce() a later layer into this one so that both are undone together.
 */
 public class WorldSelectionUndo
 {
@@ -120,42 +141,73 @@ public class WorldSelectionUndo
     /* algorithm is:
        (1) create a border mask for the fragment to be written, i.e. a mask showing all voxels which are adjacent to a set voxel in the fragment.
        (2) save the world data for the fragment voxels and the border mask voxels
+       (2a) compare the saved world data with the fragment; voxels which already hold exactly what the fragment would write
+            (eg stone pasted over stone) are left out of the write
        (3) write the fragment data into the world
-       (4) find out which voxels in the border mask were unaffected by the writing into the world, and remove them from the undo mask (changedBlocksMask)
+       (4) find out which voxels in the border mask, and which of the voxels left out in (2a), were unaffected by the
+           writing into the world, and remove them from the undo mask (changedBlocksMask) and from the undo fragment, so
+           that only the voxels which actually changed are stored
 
        When aborting:
        If we haven't gotten to the WRITING yet, just erase the changedBlocksMask.  Otherwise, abort the WRITE SUBTASK and proceed with the remaining stages as normal
+
+       The mask generation (1) and the comparisons (2a) and (4) don't touch the world, so they are prepared off the server thread
+       (see PreparationPool) in the PREPARE_MASKS, COMPARE_CONTENTS, and COMPARE_BORDER stages.
      */
 
 //    System.out.println("WorldSelectionUndo stage: " + state.getStage() + " fractionComplete:" + state.getFractionComplete());
 
-    WorldFragment fragmentToWrite = state.fragmentToWrite;
-    QuadOrientation quadOrientation = state.quadOrientation;
+    final WorldFragment fragmentToWrite = state.fragmentToWrite;
+    final QuadOrientation quadOrientation = state.quadOrientation;
+    final int BORDER_WIDTH = 1;
     if (state.getStage() == AsynchronousWriteStages.SETUP) {
       if (state.amIaborting()) {
         state.setStage(AsynchronousWriteStages.COMPLETE);
         changedBlocksMask = new VoxelSelection(1, 1, 1);
         return;
       }
-      final int Y_MIN_VALID = 0;
-      final int Y_MAX_VALID_PLUS_ONE = 256;
-
-      final int BORDER_WIDTH = 1;
-      Pair<Integer, Integer> wxzOriginMove = new Pair<Integer, Integer>(0, 0);
-
-      VoxelSelection voxelSelection = fragmentToWrite.getVoxelsWithStoredData().makeReorientedCopyWithBorder(quadOrientation, BORDER_WIDTH, wxzOriginMove);
-      state.borderMask = voxelSelection.generateBorderMask();
-      voxelSelection.union(state.borderMask);
-
-      wxOfOrigin = state.wxOrigin - BORDER_WIDTH + wxzOriginMove.getFirst();
-      wyOfOrigin = state.wyOrigin - BORDER_WIDTH;
-      wzOfOrigin = state.wzOrigin - BORDER_WIDTH + wxzOriginMove.getSecond();
+      final int wyOfOriginWithBorder = state.wyOrigin - BORDER_WIDTH;
+      state.maskPreparation = PreparationPool.prepare(new Callable<PreparedMasks>() {
+        @Override
+        public PreparedMasks call() {
+          final int Y_MIN_VALID = 0;
+          final int Y_MAX_VALID_PLUS_ONE = 256;
+          PreparedMasks preparedMasks = new PreparedMasks();
+          preparedMasks.wxzOriginMove = new Pair<Integer, Integer>(0, 0);
+          VoxelSelection voxelSelection = fragmentToWrite.getVoxelsWithStoredData().makeReorientedCopyWithBorder(quadOrientation, BORDER_WIDTH,
+                                                                                                               preparedMasks.wxzOriginMove);
+          VoxelSelection borderMask = voxelSelection.generateBorderMask();
+          voxelSelection.union(borderMask);
+
+          int wyMax = wyOfOriginWithBorder + voxelSelection.getySize();
+          if (wyOfOriginWithBorder < Y_MIN_VALID || wyMax >= Y_MAX_VALID_PLUS_ONE) {
+            voxelSelection.clipToYrange(Y_MIN_VALID - wyOfOriginWithBorder, Y_MAX_VALID_PLUS_ONE - 1 - wyOfOriginWithBorder);
+            borderMask.clipToYrange(Y_MIN_VALID - wyOfOriginWithBorder, Y_MAX_VALID_PLUS_ONE - 1 - wyOfOriginWithBorder);
+          }
+          preparedMasks.selectionWithBorder = voxelSelection;
+          preparedMasks.borderMask = borderMask;
+          return preparedMasks;
+        }
+      });
+      state.setStage(AsynchronousWriteStages.PREPARE_MASKS);
+      if (state.isTimeToInterrupt()) return;
+    }
 
-      int wyMax = wyOfOrigin + voxelSelection.getySize();
-      if (wyOfOrigin < Y_MIN_VALID || wyMax >= Y_MAX_VALID_PLUS_ONE) {
-        voxelSelection.clipToYrange(Y_MIN_VALID - wyOfOrigin, Y_MAX_VALID_PLUS_ONE - 1 - wyOfOrigin);
-        state.borderMask.clipToYrange(Y_MIN_VALID - wyOfOrigin, Y_MAX_VALID_PLUS_ONE - 1 - wyOfOrigin);
+    if (state.getStage() == AsynchronousWriteStages.PREPARE_MASKS) {
+      PreparedMasks preparedMasks = PreparationPool.getResult(state.maskPreparation, state.isRunToCompletion());
+      if (preparedMasks == null) return;
+      state.maskPreparation = null;
+      if (state.amIaborting()) {
+        state.setStage(AsynchronousWriteStages.COMPLETE);
+        changedBlocksMask = new VoxelSelection(1, 1, 1);
+        return;
       }
+      VoxelSelection voxelSelection = preparedMasks.selectionWithBorder;
+      state.borderMask = preparedMasks.borderMask;
+      state.recheckMask = preparedMasks.borderMask;
+      wxOfOrigin = state.wxOrigin - BORDER_WIDTH + preparedMasks.wxzOriginMove.getFirst();
+      wyOfOrigin = state.wyOrigin - BORDER_WIDTH;
+      wzOfOrigin = state.wzOrigin - BORDER_WIDTH + preparedMasks.wxzOriginMove.getSecond();
 
       state.expandedSelection = new VoxelSelectionWithOrigin(wxOfOrigin, wyOfOrigin, wzOfOrigin, voxelSelection);
 
@@ -178,8 +230,72 @@ public class WorldSelectionUndo
         return;
       }
 
+      final VoxelSelection expandedSelection = state.expandedSelection;
+      final VoxelSelection borderMask = state.borderMask;
+      final WorldFragment undoFragment = undoWorldFragment;
+      final int xOffset = wxOfOrigin - state.wxOrigin;    // converts undo fragment coordinates to write-relative world coordinates
+      final int yOffset = wyOfOrigin - state.wyOrigin;
+      final int zOffset = wzOfOrigin - state.wzOrigin;
+
+      state.contentsComparison = PreparationPool.prepare(new Callable<PreparedDelta>() {
+        @Override
+        public PreparedDelta call() {
+          VoxelSelection storedVoxels = fragmentToWrite.getVoxelsWithStoredData();
+          VoxelSelection writeMask = new VoxelSelection(storedVoxels);
+          VoxelSelection unchangedVoxels = new VoxelSelection(expandedSelection.getxSize(), expandedSelection.getySize(), expandedSelection.getzSize());
+          boolean foundUnchangedVoxel = false;
+          for (int y = 0; y < expandedSelection.getySize(); ++y) {
+            int ySrc = y + yOffset;
+            if (ySrc < 0 || ySrc >= fragmentToWrite.getyCount()) continue;
+            for (int x = 0; x < expandedSelection.getxSize(); ++x) {
+              for (int z = 0; z < expandedSelection.getzSize(); ++z) {
+                if (!expandedSelection.getVoxel(x, y, z) || borderMask.getVoxel(x, y, z)) continue;
+                int xSrc = quadOrientation.calcXfromWXZ(x + xOffset, z + zOffset);
+                int zSrc = quadOrientation.calcZfromWXZ(x + xOffset, z + zOffset);
+                if (xSrc < 0 || xSrc >= fragmentToWrite.getxCount() || zSrc < 0 || zSrc >= fragmentToWrite.getzCount()
+                    || !storedVoxels.getVoxel(xSrc, ySrc, zSrc)) continue;
+                if (undoFragment.doesVoxelMatchReoriented(x, y, z, fragmentToWrite, xSrc, ySrc, zSrc, quadOrientation)) {
+                  writeMask.clearVoxel(xSrc, ySrc, zSrc);
+                  unchangedVoxels.setVoxel(x, y, z);
+                  foundUnchangedVoxel = true;
+                }
+              }
+            }
+          }
+          PreparedDelta preparedDelta = new PreparedDelta();
+          if (foundUnchangedVoxel) {
+            preparedDelta.writeMask = writeMask;
+            preparedDelta.unchangedVoxels = unchangedVoxels;
+          }
+          return preparedDelta;
+        }
+      });
+      state.setStage(AsynchronousWriteStages.COMPARE_CONTENTS);
+      if (state.isTimeToInterrupt()) return;
+    }
+
+    if (state.getStage() == AsynchronousWriteStages.COMPARE_CONTENTS) {
+      PreparedDelta preparedDelta = PreparationPool.getResult(state.contentsComparison, state.isRunToCompletion());
+      if (preparedDelta == null) return;
+      state.contentsComparison = null;
+      if (state.amIaborting()) {
+        state.setStage(AsynchronousWriteStages.COMPLETE);
+        changedBlocksMask = new VoxelSelection(1, 1, 1);
+        return;
+      }
+      if (preparedDelta.unchangedVoxels != null) {
+        // the skipped voxels are checked again after writing, in case the write caused them to change (eg a torch falling off)
+        state.recheckMask = new VoxelSelection(state.borderMask);
+        state.recheckMask.union(preparedDelta.unchangedVoxels);
+        if (OperationMetrics.defaultMetrics().isEnabled()) {
+          OperationMetrics.defaultMetrics().addToCounter(OperationMetrics.Counter.UNDO_VOXELS_UNCHANGED,
+                                                         preparedDelta.unchangedVoxels.getSetVoxelsCount());
+        }
+      }
+
       //    fragmentToWrite.writeToWorld(worldServerReader, i_wxOfOrigin, i_wyOfOrigin, i_wzOfOrigin, null, quadOrientation);
-      AsynchronousToken token = fragmentToWrite.writeToWorldAsynchronous(worldServer, state.wxOrigin, state.wyOrigin, state.wzOrigin, null, quadOrientation);
+      AsynchronousToken token = fragmentToWrite.writeToWorldAsynchronous(worldServer, state.wxOrigin, state.wyOrigin, state.wzOrigin,
+                                                                         preparedDelta.writeMask, quadOrientation);
       state.setSubTask(token);
       state.setStage(AsynchronousWriteStages.WRITE_FRAGMENT);
       if (state.isTimeToInterrupt()) return;
@@ -193,8 +309,8 @@ public class WorldSelectionUndo
       if (!subTaskFinished) return;
 
 //    borderFragmentAfterWrite.readFromWorld(worldServerReader, wxOfOrigin, wyOfOrigin, wzOfOrigin, borderMask);
-      state.borderFragmentAfterWrite = new WorldFragment(state.borderMask.getxSize(), state.borderMask.getySize(), state.borderMask.getzSize());
-      AsynchronousToken token = state.borderFragmentAfterWrite.readFromWorldAsynchronous(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, state.borderMask);
+      state.borderFragmentAfterWrite = new WorldFragment(state.recheckMask.getxSize(), state.recheckMask.getySize(), state.recheckMask.getzSize());
+      AsynchronousToken token = state.borderFragmentAfterWrite.readFromWorldAsynchronous(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, state.recheckMask);
       state.setSubTask(token);
       state.setStage(AsynchronousWriteStages.UPDATE_MASK);
       if (state.isTimeToInterrupt()) return;
@@ -204,28 +320,60 @@ public class WorldSelectionUndo
       boolean subTaskFinished = state.executeSubTask();
       if (!subTaskFinished) return;
 
-      VoxelSelection borderMask = state.borderMask;
-      VoxelSelection expandedSelection = state.expandedSelection;
-      WorldFragment borderFragmentAfterWrite = state.borderFragmentAfterWrite;
-
-      for (int y = 0; y < borderMask.getySize(); ++y) {
-        for (int x = 0; x < borderMask.getxSize(); ++x) {
-          for (int z = 0; z < borderMask.getzSize(); ++z) {
-            if (borderMask.getVoxel(x, y, z)
-                    && borderFragmentAfterWrite.doesVoxelMatch(undoWorldFragment, x, y, z)) {
-              expandedSelection.clearVoxel(x, y, z);
+      final VoxelSelection recheckMask = state.recheckMask;
+      final VoxelSelection expandedSelection = state.expandedSelection;
+      final WorldFragment borderFragmentAfterWrite = state.borderFragmentAfterWrite;
+      final WorldFragment undoFragment = undoWorldFragment;
+
+      state.borderComparison = PreparationPool.prepare(new Callable<VoxelSelection>() {
+        @Override
+        public VoxelSelection call() {
+          VoxelSelection changedVoxels = new VoxelSelection(expandedSelection);  // copy: the locked region refers to expandedSelection
+          for (int y = 0; y < recheckMask.getySize(); ++y) {
+            for (int x = 0; x < recheckMask.getxSize(); ++x) {
+              for (int z = 0; z < recheckMask.getzSize(); ++z) {
+                if (recheckMask.getVoxel(x, y, z)
+                        && borderFragmentAfterWrite.doesVoxelMatch(undoFragment, x, y, z)) {
+                  changedVoxels.clearVoxel(x, y, z);
+                }
+              }
             }
           }
+          undoFragment.discardVoxelsOutsideMask(changedVoxels);
+          return changedVoxels;
         }
-      }
-      changedBlocksMask = expandedSelection;
+      });
+      state.setStage(AsynchronousWriteStages.COMPARE_BORDER);
+      if (state.isTimeToInterrupt()) return;
+    }
+
+    if (state.getStage() == AsynchronousWriteStages.COMPARE_BORDER) {
+      VoxelSelection changedVoxels = PreparationPool.getResult(state.borderComparison, state.isRunToCompletion());
+      if (changedVoxels == null) return;
+      state.borderComparison = null;
+      changedBlocksMask = changedVoxels;
       state.setStage(AsynchronousWriteStages.COMPLETE);
     }
   }
 
+  // the masks for writing a fragment, generated off the server thread
+  private static class PreparedMasks
+  {
+    public VoxelSelection selectionWithBorder;   // the reoriented fragment voxels plus the border
+    public VoxelSelection borderMask;
+    public Pair<Integer, Integer> wxzOriginMove;
+  }
+
+  // the result of comparing the fragment to write with the world data it will overwrite, generated off the server thread
+  private static class PreparedDelta
+  {
+    public VoxelSelection writeMask;         // the fragment voxels which need writing; null = all of them
+    public VoxelSelection unchangedVoxels;   // the voxels left out of the write (undo fragment coordinates); null = none
+  }
+
   public enum AsynchronousWriteStages
   {
-    SETUP(0.1), READ_UNDO_FRAGMENT(0.2), WRITE_FRAGMENT(0.6), UPDATE_MASK(0.1), COMPLETE(0.0);
+    SETUP(0.05), PREPARE_MASKS(0.05), READ_UNDO_FRAGMENT(0.2), COMPARE_CONTENTS(0.05), WRITE_FRAGMENT(0.55), UPDATE_MASK(0.05), COMPARE_BORDER(0.05), COMPLETE(0.0);
 
     AsynchronousWriteStages(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
@@ -255,7 +403,9 @@ public class WorldSelectionUndo
 
     @Override
     public void continueProcessing() {
+      stageTimer.resume();
       writeToWorldAsynchronous_do(worldServer, this);
+      stageTimer.pause();
     }
 
     @Override
@@ -266,7 +416,7 @@ public class WorldSelectionUndo
     @Override
     public double getFractionComplete()
     {
-      return cumulativeCompletion + currentStage.durationWeight * stageFractionComplete;
+      return cumulativeCompletion + stageTimer.getStageWeight(currentStage, currentStage.durationWeight) * stageFractionComplete;
     }
 
     public AsynchronousWrite(WorldServer i_worldServer, WorldFragment i_fragmentToWrite, int i_wxOrigin, int i_wyOrigin, int i_wzOrigin, QuadOrientation i_quadOrientation)
@@ -277,7 +427,9 @@ public class WorldSelectionUndo
       wzOrigin = i_wzOrigin;
       fragmentToWrite = i_fragmentToWrite;
       quadOrientation = i_quadOrientation;
+      stageTimer = new StageTimingModel.StageTimer(StageTimingModel.getInstance(worldServer), "WorldSelectionUndo.Write");
       currentStage = AsynchronousWriteStages.SETUP;
+      stageTimer.switchStage(currentStage);
       interruptTimeNS = INFINITE_TIMEOUT;
       stageFractionComplete = 0;
       cumulativeCompletion = 0;
@@ -287,8 +439,12 @@ public class WorldSelectionUndo
     public AsynchronousWriteStages getStage() {return currentStage;}
     public void setStage(AsynchronousWriteStages nextStage)
     {
-      cumulativeCompletion += currentStage.durationWeight;
+      cumulativeCompletion += stageTimer.getStageWeight(currentStage, currentStage.durationWeight);
       currentStage = nextStage;
+      stageTimer.switchStage(nextStage);
+      if (nextStage == AsynchronousWriteStages.COMPLETE && !aborting) {
+        stageTimer.finish(0, 0);
+      }
     }
 
     public void setSubTask(AsynchronousToken token) {subTask = token;}
@@ -311,9 +467,13 @@ public class WorldSelectionUndo
 
     public boolean amIaborting() {return aborting;}
 
+    // true if the write must be finished in a single call (see writeToWorld()), so it must wait for the preparation
+    public boolean isRunToCompletion() {return interruptTimeNS == INFINITE_TIMEOUT;}
+
     public VoxelSelectionWithOrigin getLockedRegion()
     {
-      if (currentStage == AsynchronousWriteStages.SETUP || isTaskComplete()) return null;
+      if (currentStage == AsynchronousWriteStages.SETUP || currentStage == AsynchronousWriteStages.PREPARE_MASKS
+          || isTaskComplete()) return null;
       return expandedSelection;
     }
 
@@ -331,9 +491,14 @@ public class WorldSelectionUndo
 
     public VoxelSelectionWithOrigin expandedSelection;
     public VoxelSelection borderMask;
+    public VoxelSelection recheckMask;                   // the voxels to compare after writing: the border plus any voxels left out of the write
     public WorldFragment borderFragmentAfterWrite;
+    public Future<PreparedMasks> maskPreparation;        // PREPARE_MASKS: the masks being generated
+    public Future<PreparedDelta> contentsComparison;     // COMPARE_CONTENTS: the voxels which don't need writing being found
+    public Future<VoxelSelection> borderComparison;      // COMPARE_BORDER: the changed voxels being found
 
     private AsynchronousWriteStages currentStage;
+    private final StageTimingModel.StageTimer stageTimer;
     private long interruptTimeNS;
     private double stageFractionComplete;
     private double cumulativeCompletion;
@@ -354,7 +519,15 @@ public class WorldSelectionUndo
        (1) create a border mask for the blocks to be written, i.e. a mask showing all voxels which are adjacent to a block in the selection
        (2) save the world data for the fragment voxels and the border mask voxels
        (3) write the fragment data into the world
-       (4) find out which voxels in the border mask were unaffected by the writing into the world, and remove them from the undo mask (changedBlocksMask)
+       (4) find out which voxels were unaffected by the writing into the world (in the border mask, or blocks placed over an
+           identical block), and remove them from the undo mask (changedBlocksMask) and from the undo fragment
+       The placed blocks aren't known until onBlockPlaced has been called, so unlike the clone tool write, all the voxels are
+         compared after writing rather than before.
+
+       Large placements of plain blocks are written in a batch (see getBatchedPlacementState()): the blocks are written as a
+         uniform fill WorldFragment, which sets the chunk sections directly, notifies neighbours only at the boundary,
+         relights each column once, and sends one delta per chunk.  The block callbacks are still made for each block
+         (see callBatchedPlacementHooks()).  Other blocks are placed one at a time.
      */
 
     if (blockSelection == null || blockSelection.isEmpty()) return;
@@ -400,42 +573,153 @@ public class WorldSelectionUndo
     undoWorldFragment = new WorldFragment(xSize, ySize, zSize);
     undoWorldFragment.readFromWorld(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, expandedSelection);
 
+    IBlockState batchedState = null;
+    List<IBlockState> placedStates = new ArrayList<IBlockState>(blockSelection.size());
+    if (SpeedyToolsOptions.getBatchedSimplePlacement() && blockSelection.size() >= MIN_BLOCKS_FOR_BATCHED_PLACEMENT) {
+      batchedState = getBatchedPlacementState(worldServer, entityPlayerMP, blockToPlace, sideToPlace, blockSelection, placedStates);
+    }
+    if (batchedState != null) {
+      VoxelSelection placementMask = new VoxelSelection(xSize, ySize, zSize);
+      for (BlockPos blockCoords : blockSelection) {
+        placementMask.setVoxel(blockCoords.getX() - wxOfOrigin, blockCoords.getY() - wyOfOrigin, blockCoords.getZ() - wzOfOrigin);
+      }
+      WorldFragment placementFragment = WorldFragment.createUniformFill(placementMask, new BlockWithMetadata(batchedState));
+      AsynchronousToken placementWrite = placementFragment.writeToWorldAsynchronous(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, null);
+      while (!placementWrite.isTaskComplete()) {     // the hooks must only see the finished write
+        placementWrite.setTimeOfInterrupt(placementWrite.INFINITE_TIMEOUT);
+        placementWrite.continueProcessing();
+      }
+      callBatchedPlacementHooks(worldServer, entityPlayerMP, blockToPlace, batchedState, blockSelection);
+    } else {
+      placeBlocksOneAtATime(worldServer, entityPlayerMP, blockToPlace, sideToPlace, blockSelection, placedStates);
+    }
+
+    VoxelSelection recheckMask = new VoxelSelection(expandedSelection);
+    WorldFragment fragmentAfterWrite = new WorldFragment(xSize, ySize, zSize);
+    fragmentAfterWrite.readFromWorld(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, recheckMask);
+
+    for (int y = 0; y < ySize; ++y) {
+      for (int x = 0; x < xSize; ++x) {
+        for (int z = 0; z < zSize; ++z) {
+          if (recheckMask.getVoxel(x, y, z)
+                  && fragmentAfterWrite.doesVoxelMatch(undoWorldFragment, x, y, z)) {
+            expandedSelection.clearVoxel(x, y, z);
+          }
+        }
+      }
+    }
+    undoWorldFragment.discardVoxelsOutsideMask(expandedSelection);
+    changedBlocksMask = expandedSelection;
+  }
+
+  // place each block with its own onBlockPlaced and onBlockPlacedBy, the same as a player placing it by hand
+  // placedStates = the states already returned by onBlockPlaced for the first blocks (see getBatchedPlacementState()),
+  //   so that it isn't called twice for the same block
+  private void placeBlocksOneAtATime(WorldServer worldServer, EntityPlayerMP entityPlayerMP, BlockWithMetadata blockToPlace,
+                                     EnumFacing sideToPlace, List<BlockPos> blockSelection, List<IBlockState> placedStates)
+  {
     Item blockItem = (blockToPlace.block == null) ? null : Item.getItemFromBlock(blockToPlace.block);
     ItemStack dummyPlaceItemStack = new ItemStack(blockItem == null ? Items.diamond : blockItem);
+    int blockIndex = 0;
     for (BlockPos cc : blockSelection) {
       if (blockToPlace.block == null) {
         worldServer.setBlockToAir(cc);
       } else {
-        final float DUMMY_HIT_XYZ = 0.5F;
+        IBlockState iBlockState = (blockIndex < placedStates.size()) ? placedStates.get(blockIndex)
+                                                                     : getPlacedState(worldServer, entityPlayerMP, blockToPlace, sideToPlace, cc);
         try {
-          IBlockState iBlockState = blockToPlace.block.onBlockPlaced(worldServer, cc,
-                                                                     sideToPlace, DUMMY_HIT_XYZ, DUMMY_HIT_XYZ,
-                                                                     DUMMY_HIT_XYZ, blockToPlace.metaData,
-                                                                     entityPlayerMP);
-          worldServer.setBlockState(cc, iBlockState, 1 + 2);
-          blockToPlace.block.onBlockPlacedBy(worldServer, cc, iBlockState, entityPlayerMP, dummyPlaceItemStack);
-        } catch (IllegalArgumentException iae) {  // some blocks can't be placed (such as DoubleSlab), so
-          // just paste it directly
-          IBlockState iBlockState = blockToPlace.block.getStateFromMeta(blockToPlace.metaData);
-          worldServer.setBlockState(cc, iBlockState, 1 + 2);
+          if (iBlockState != null) {
+            worldServer.setBlockState(cc, iBlockState, 1 + 2);
+            blockToPlace.block.onBlockPlacedBy(worldServer, cc, iBlockState, entityPlayerMP, dummyPlaceItemStack);
+          }
+        } catch (IllegalArgumentException iae) {
+          iBlockState = null;
+        }
+        if (iBlockState == null) {  // some blocks can't be placed (such as DoubleSlab), so just paste it directly
+          worldServer.setBlockState(cc, blockToPlace.block.getStateFromMeta(blockToPlace.metaData), 1 + 2);
         }
       }
+      ++blockIndex;
     }
+  }
 
-    WorldFragment borderFragmentAfterWrite = new WorldFragment(borderMask.getxSize(), borderMask.getySize(), borderMask.getzSize());
-    borderFragmentAfterWrite.readFromWorld(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, borderMask);
+  // the state given by onBlockPlaced for the block at cc, or null if the block can't be placed
+  private static IBlockState getPlacedState(WorldServer worldServer, EntityPlayerMP entityPlayerMP, BlockWithMetadata blockToPlace,
+                                            EnumFacing sideToPlace, BlockPos cc)
+  {
+    final float DUMMY_HIT_XYZ = 0.5F;
+    try {
+      return blockToPlace.block.onBlockPlaced(worldServer, cc, sideToPlace, DUMMY_HIT_XYZ, DUMMY_HIT_XYZ, DUMMY_HIT_XYZ,
+                                              blockToPlace.metaData, entityPlayerMP);
+    } catch (IllegalArgumentException iae) {
+      return null;
+    }
+  }
 
-    for (int y = 0; y < borderMask.getySize(); ++y) {
-      for (int x = 0; x < borderMask.getxSize(); ++x) {
-        for (int z = 0; z < borderMask.getzSize(); ++z) {
-          if (borderMask.getVoxel(x, y, z)
-                  && borderFragmentAfterWrite.doesVoxelMatch(undoWorldFragment, x, y, z)) {
-            expandedSelection.clearVoxel(x, y, z);
-          }
-        }
+  /**
+   * returns the state to place for every block of a batched placement, or null if the blocks need to be placed one at a
+   *   time.  Only air and plain opaque cubes without TileEntities, redstone power, or gravity are batched, and only if
+   *   none of the blocks being replaced has a TileEntity: the batched write removes TileEntities without breakBlock, so
+   *   their contents wouldn't be dropped.  onBlockPlaced is called for each block, and must give the same state for all of them.
+   * The undo data must already have been read from the world.
+   * @param placedStates filled with the states returned by onBlockPlaced, so that placeBlocksOneAtATime() can use them
+   *   if the placement can't be batched after all
+   */
+  private IBlockState getBatchedPlacementState(WorldServer worldServer, EntityPlayerMP entityPlayerMP, BlockWithMetadata blockToPlace,
+                                               EnumFacing sideToPlace, List<BlockPos> blockSelection, List<IBlockState> placedStates)
+  {
+    Block block = blockToPlace.block;
+    if (block != null) {
+      IBlockState iBlockState = block.getStateFromMeta(blockToPlace.metaData);
+      if (!block.isFullCube() || !block.isOpaqueCube() || block.hasTileEntity(iBlockState)
+          || block.canProvidePower() || block instanceof BlockFalling) {
+        return null;
+      }
+    }
+    for (BlockPos cc : blockSelection) {
+      int x = cc.getX() - wxOfOrigin;
+      int y = cc.getY() - wyOfOrigin;
+      int z = cc.getZ() - wzOfOrigin;
+      Block replacedBlock = Block.getBlockById(undoWorldFragment.getBlockID(x, y, z));
+      if (replacedBlock.hasTileEntity(replacedBlock.getStateFromMeta(undoWorldFragment.getMetadata(x, y, z)))) return null;
+    }
+    if (block == null) return Blocks.air.getDefaultState();
+
+    IBlockState batchedState = null;
+    for (BlockPos cc : blockSelection) {
+      IBlockState placedState = getPlacedState(worldServer, entityPlayerMP, blockToPlace, sideToPlace, cc);
+      placedStates.add(placedState);
+      if (placedState == null || (batchedState != null && placedState != batchedState)) return null;
+      batchedState = placedState;
+    }
+    return batchedState;
+  }
+
+  /**
+   * make the per-block callbacks for a batched placement, in the same way as placing the blocks one at a time:
+   *   breakBlock for each block which was replaced and onBlockAdded for its new block (as setBlockState does when the
+   *   block changes), then onBlockPlacedBy.
+   * The undo data must already have been read from the world.
+   */
+  private void callBatchedPlacementHooks(WorldServer worldServer, EntityPlayerMP entityPlayerMP, BlockWithMetadata blockToPlace,
+                                         IBlockState placedState, List<BlockPos> blockSelection)
+  {
+    Block placedBlock = placedState.getBlock();
+    Item blockItem = (blockToPlace.block == null) ? null : Item.getItemFromBlock(blockToPlace.block);
+    ItemStack dummyPlaceItemStack = new ItemStack(blockItem == null ? Items.diamond : blockItem);
+    for (BlockPos cc : blockSelection) {
+      int x = cc.getX() - wxOfOrigin;
+      int y = cc.getY() - wyOfOrigin;
+      int z = cc.getZ() - wzOfOrigin;
+      Block replacedBlock = Block.getBlockById(undoWorldFragment.getBlockID(x, y, z));
+      if (replacedBlock != placedBlock) {
+        replacedBlock.breakBlock(worldServer, cc, replacedBlock.getStateFromMeta(undoWorldFragment.getMetadata(x, y, z)));
+        placedBlock.onBlockAdded(worldServer, cc, placedState);
+      }
+      if (blockToPlace.block != null) {
+        placedBlock.onBlockPlacedBy(worldServer, cc, placedState, entityPlayerMP, dummyPlaceItemStack);
       }
     }
-    changedBlocksMask = expandedSelection;
   }
 
   /**
@@ -476,17 +760,21 @@ public class WorldSelectionUndo
           if no: set that voxel in the write mask
        3) write the undo data to the world using the write mask (of voxels not overlapped by any other layers.)
      */
+    if (state.getStage() == AsynchronousUndoStages.MAKE_RESIDENT) {
+      if (!makeResident(state.subsequentUndoLayers) && !state.isRunToCompletion()) {
+        return;             // still being read back on the I/O pool; try again in the next timeslice
+      }
+      state.setStage(AsynchronousUndoStages.SETUP);
+      if (state.isTimeToInterrupt()) return;
+    }
+
     if (state.getStage() == AsynchronousUndoStages.SETUP) {
       LinkedList<WorldSelectionUndo> overlappingUndoLayers = new LinkedList<WorldSelectionUndo>();
 
+      ensureResident();
       for (WorldSelectionUndo undoLayer : state.subsequentUndoLayers) {
-        if (wxOfOrigin <= undoLayer.wxOfOrigin + undoLayer.undoWorldFragment.getxCount()
-                && wyOfOrigin <= undoLayer.wyOfOrigin + undoLayer.undoWorldFragment.getyCount()
-                && wzOfOrigin <= undoLayer.wzOfOrigin + undoLayer.undoWorldFragment.getzCount()
-                && wxOfOrigin + undoWorldFragment.getxCount() >= undoLayer.wxOfOrigin
-                && wyOfOrigin + undoWorldFragment.getyCount() >= undoLayer.wyOfOrigin
-                && wzOfOrigin + undoWorldFragment.getzCount() >= undoLayer.wzOfOrigin
-                ) {
+        if (overlaps(undoLayer)) {
+          undoLayer.ensureResident();
           overlappingUndoLayers.add(undoLayer);
         }
       }
@@ -498,30 +786,43 @@ public class WorldSelectionUndo
 
     if (state.getStage() == AsynchronousUndoStages.ADJUST_MASK) {
       if (!state.amIaborting()) {
-        for (int y = 0; y < undoWorldFragment.getyCount(); ++y) {
-          for (int x = 0; x < undoWorldFragment.getxCount(); ++x) {
-            for (int z = 0; z < undoWorldFragment.getzCount(); ++z) {
-              if (changedBlocksMask.getVoxel(x, y, z)) {
-                boolean writeVoxelToWorld = true;
-                for (WorldSelectionUndo undoLayer : state.getOverlappingUndoLayers()) {
-                  if (undoLayer.changedBlocksMask.getVoxel(x + wxOfOrigin - undoLayer.wxOfOrigin,
-                          y + wyOfOrigin - undoLayer.wyOfOrigin,
-                          z + wzOfOrigin - undoLayer.wzOfOrigin)) {
-                    writeVoxelToWorld = false;
-                    undoLayer.undoWorldFragment.copyVoxelContents(x + wxOfOrigin - undoLayer.wxOfOrigin,
-                            y + wyOfOrigin - undoLayer.wyOfOrigin,
-                            z + wzOfOrigin - undoLayer.wzOfOrigin,
-                            this.undoWorldFragment, x, y, z);
-                    break;
+        // one chunk column at a time, so that each voxel is only checked against the layers which overlap its chunk
+        for (int wxColumn = wxOfOrigin & ~0x0f; wxColumn < wxOfOrigin + undoWorldFragment.getxCount(); wxColumn += 16) {
+          for (int wzColumn = wzOfOrigin & ~0x0f; wzColumn < wzOfOrigin + undoWorldFragment.getzCount(); wzColumn += 16) {
+            List<WorldSelectionUndo> columnLayers = getLayersOverlappingColumn(state.getOverlappingUndoLayers(), wxColumn, wzColumn);
+            int xMin = Math.max(0, wxColumn - wxOfOrigin);
+            int xMaxPlusOne = Math.min(undoWorldFragment.getxCount(), wxColumn + 16 - wxOfOrigin);
+            int zMin = Math.max(0, wzColumn - wzOfOrigin);
+            int zMaxPlusOne = Math.min(undoWorldFragment.getzCount(), wzColumn + 16 - wzOfOrigin);
+            for (int y = 0; y < undoWorldFragment.getyCount(); ++y) {
+              for (int x = xMin; x < xMaxPlusOne; ++x) {
+                for (int z = zMin; z < zMaxPlusOne; ++z) {
+                  if (changedBlocksMask.getVoxel(x, y, z)) {
+                    boolean writeVoxelToWorld = true;
+                    for (WorldSelectionUndo undoLayer : columnLayers) {
+                      if (undoLayer.changedBlocksMask.getVoxel(x + wxOfOrigin - undoLayer.wxOfOrigin,
+                              y + wyOfOrigin - undoLayer.wyOfOrigin,
+                              z + wzOfOrigin - undoLayer.wzOfOrigin)) {
+                        writeVoxelToWorld = false;
+                        undoLayer.undoWorldFragment.copyVoxelContents(x + wxOfOrigin - undoLayer.wxOfOrigin,
+                                y + wyOfOrigin - undoLayer.wyOfOrigin,
+                                z + wzOfOrigin - undoLayer.wzOfOrigin,
+                                this.undoWorldFragment, x, y, z);
+                        break;
+                      }
+                    }
+                    if (writeVoxelToWorld) {
+                      state.worldWriteMask.setVoxel(x, y, z);
+                    }
                   }
                 }
-                if (writeVoxelToWorld) {
-                  state.worldWriteMask.setVoxel(x, y, z);
-                }
               }
             }
           }
         }
+        for (WorldSelectionUndo undoLayer : state.getOverlappingUndoLayers()) {
+          undoLayer.markChanged();
+        }
         AsynchronousToken token = undoWorldFragment.writeToWorldAsynchronous(worldServer, wxOfOrigin, wyOfOrigin, wzOfOrigin, state.worldWriteMask);
         state.setSubTask(token);
       }  // !amIaborting()
@@ -542,7 +843,7 @@ public class WorldSelectionUndo
 
   public enum AsynchronousUndoStages
   {
-    SETUP(0.1), ADJUST_MASK(0.1), UNDO(0.8), COMPLETE(0.0);
+    MAKE_RESIDENT(0.05), SETUP(0.05), ADJUST_MASK(0.1), UNDO(0.8), COMPLETE(0.0);
 
     AsynchronousUndoStages(double i_durationWeight) {durationWeight = i_durationWeight;}
     public double durationWeight;
@@ -572,7 +873,9 @@ public class WorldSelectionUndo
 
     @Override
     public void continueProcessing() {
+      stageTimer.resume();
       undoChangesAsynchronous_do(worldServer, this);
+      stageTimer.pause();
     }
 
     @Override
@@ -583,14 +886,16 @@ public class WorldSelectionUndo
     @Override
     public double getFractionComplete()
     {
-      return cumulativeCompletion + currentStage.durationWeight * stageFractionComplete;
+      return cumulativeCompletion + stageTimer.getStageWeight(currentStage, currentStage.durationWeight) * stageFractionComplete;
     }
 
     public AsynchronousUndo(WorldServer i_worldServer, List<WorldSelectionUndo> i_subsequentUndoLayers)
     {
       worldServer = i_worldServer;
       subsequentUndoLayers = i_subsequentUndoLayers;
-      currentStage = AsynchronousUndoStages.SETUP;
+      stageTimer = new StageTimingModel.StageTimer(StageTimingModel.getInstance(worldServer), "WorldSelectionUndo.Undo");
+      currentStage = AsynchronousUndoStages.MAKE_RESIDENT;
+      stageTimer.switchStage(currentStage);
       interruptTimeNS = INFINITE_TIMEOUT;
       stageFractionComplete = 0;
       cumulativeCompletion = 0;
@@ -600,8 +905,12 @@ public class WorldSelectionUndo
     public AsynchronousUndoStages getStage() {return currentStage;}
     public void setStage(AsynchronousUndoStages nextStage)
     {
-      cumulativeCompletion += currentStage.durationWeight;
+      cumulativeCompletion += stageTimer.getStageWeight(currentStage, currentStage.durationWeight);
       currentStage = nextStage;
+      stageTimer.switchStage(nextStage);
+      if (nextStage == AsynchronousUndoStages.COMPLETE && !aborting) {
+        stageTimer.finish(0, 0);
+      }
     }
 
     public void setSubTask(AsynchronousToken token) {subTask = token;}
@@ -613,6 +922,9 @@ public class WorldSelectionUndo
 
     public boolean amIaborting() {return aborting;}
 
+    // true if the undo must be finished in a single call (see undoChanges()), so it may wait for the disk
+    public boolean isRunToCompletion() {return interruptTimeNS == INFINITE_TIMEOUT;}
+
     // returns true if the sub-task is finished
     public boolean executeSubTask() {
       if (subTask == null || subTask.isTaskComplete()) {
@@ -627,7 +939,10 @@ public class WorldSelectionUndo
     public VoxelSelectionWithOrigin getLockedRegion()
     {
       if (isTaskComplete()) return null;
-      return new VoxelSelectionWithOrigin(wxOfOrigin, wyOfOrigin, wzOfOrigin, changedBlocksMask);
+      if (lockedRegion == null) {
+        lockedRegion = new VoxelSelectionWithOrigin(wxOfOrigin, wyOfOrigin, wzOfOrigin, changedBlocksMask);
+      }
+      return lockedRegion;
     }
 
     @Override
@@ -648,8 +963,10 @@ public class WorldSelectionUndo
 
     public VoxelSelection worldWriteMask;
 
+    private VoxelSelectionWithOrigin lockedRegion;   // copied once, on the first request
     private List<WorldSelectionUndo> overlappingUndoLayers;
     private AsynchronousUndoStages currentStage;
+    private final StageTimingModel.StageTimer stageTimer;
     private long interruptTimeNS;
     private double stageFractionComplete;
     private double cumulativeCompletion;
@@ -669,6 +986,23 @@ public class WorldSelectionUndo
    * @param precedingUndoLayers the list of undo layers before this one, can be in any order
    */
   public void makePermanent(WorldServer worldServer, List<WorldSelectionUndo> precedingUndoLayers)//, List<WorldSelectionUndo> subsequentUndoLayers)
+  {
+    makePermanent(worldServer, precedingUndoLayers, 0, null);
+  }
+
+  /**
+   * as for makePermanent(), but in several parts: the layer is processed one chunk column at a time, starting from
+   *   firstColumn, until interruptToken says it is time to stop.  Call again with the returned column (eg in the next
+   *   timeslice) until it returns MAKE_PERMANENT_COMPLETE.  Each column is independent of the others, so the preceding
+   *   layers can be undone or changed in between the calls.
+   * Doesn't wait for the disk if makeResident(precedingUndoLayers) has already returned true.
+   * @param precedingUndoLayers the list of undo layers before this one, can be in any order; may be different for each call
+   * @param firstColumn the column to start from: 0 for the first call, then the value returned by the previous call
+   * @param interruptToken checked after each column (isTimeToInterrupt()); null = run to completion
+   * @return the column to carry on from, or MAKE_PERMANENT_COMPLETE if the layer has been completely made permanent
+   */
+  public int makePermanent(WorldServer worldServer, List<WorldSelectionUndo> precedingUndoLayers, int firstColumn,
+                           AsynchronousToken interruptToken)
   {
     /* In order to remove this undoLayer completely, we need to propagate undo information backwards
        For example:
@@ -680,36 +1014,66 @@ public class WorldSelectionUndo
 
        algorithm is:
        1) remove undoLayers which don't overlap the undoWorldFragment at all (quick cull on x,y,z extents)
-       2) for each voxel in the undoWorldFragment B, remove the undo information for all overlapping voxels in all preceding layers
+       2) for each voxel in the undoWorldFragment B, remove the undo information for the same world voxel in all preceding
+          layers.  Done one chunk column at a time, so that each voxel is only checked against the layers overlapping its column
      */
+    OperationMetrics metrics = OperationMetrics.defaultMetrics();
+    boolean timed = metrics.isEnabled();
+    long startTimeNS = timed ? System.nanoTime() : 0;
     LinkedList<WorldSelectionUndo> precedingOverlaps = new LinkedList<WorldSelectionUndo>();
 
+    ensureResident();
+    if (undoWorldFragment == null) return MAKE_PERMANENT_COMPLETE;   // nothing was written, eg the write was aborted before it started
     for (WorldSelectionUndo undoLayer : precedingUndoLayers) {
-      if (wxOfOrigin <= undoLayer.wxOfOrigin + undoLayer.undoWorldFragment.getxCount()
-              && wyOfOrigin <= undoLayer.wyOfOrigin + undoLayer.undoWorldFragment.getyCount()
-              && wzOfOrigin <= undoLayer.wzOfOrigin + undoLayer.undoWorldFragment.getzCount()
-              && wxOfOrigin + undoWorldFragment.getxCount() >= undoLayer.wxOfOrigin
-              && wyOfOrigin + undoWorldFragment.getyCount() >= undoLayer.wyOfOrigin
-              && wzOfOrigin + undoWorldFragment.getzCount() >= undoLayer.wzOfOrigin
-              ) {
+      if (overlaps(undoLayer)) {
+        undoLayer.ensureResident();
         precedingOverlaps.add(undoLayer);
       }
     }
 
-    for (int y = 0; y < undoWorldFragment.getyCount(); ++y) {
-      for (int x = 0; x < undoWorldFragment.getxCount(); ++x) {
-//        System.out.print(y + ";" + x + ";");
-        for (int z = 0; z < undoWorldFragment.getzCount(); ++z) {
-//          char symbol = '.';
-          if (this.changedBlocksMask.getVoxel(x, y, z)) {
-            for (WorldSelectionUndo precedingUndo : precedingOverlaps) {
-              precedingUndo.changedBlocksMask.clearVoxel(x, y, z);
+    int wxFirstColumn = wxOfOrigin & ~0x0f;
+    int wzFirstColumn = wzOfOrigin & ~0x0f;
+    int zColumnCount = ((wzOfOrigin + undoWorldFragment.getzCount() - 1) >> 4) - (wzFirstColumn >> 4) + 1;
+    int columnCount = (((wxOfOrigin + undoWorldFragment.getxCount() - 1) >> 4) - (wxFirstColumn >> 4) + 1) * zColumnCount;
+    int nextColumn = MAKE_PERMANENT_COMPLETE;
+    HashSet<WorldSelectionUndo> changedLayers = new HashSet<WorldSelectionUndo>();
+    for (int column = firstColumn; column < columnCount; ++column) {
+      if (column > firstColumn && interruptToken != null && interruptToken.isTimeToInterrupt()) {
+        nextColumn = column;
+        break;
+      }
+      int wxColumn = wxFirstColumn + 16 * (column / zColumnCount);
+      int wzColumn = wzFirstColumn + 16 * (column % zColumnCount);
+      List<WorldSelectionUndo> columnLayers = getLayersOverlappingColumn(precedingOverlaps, wxColumn, wzColumn);
+      if (columnLayers.isEmpty()) continue;
+      changedLayers.addAll(columnLayers);
+      int xMin = Math.max(0, wxColumn - wxOfOrigin);
+      int xMaxPlusOne = Math.min(undoWorldFragment.getxCount(), wxColumn + 16 - wxOfOrigin);
+      int zMin = Math.max(0, wzColumn - wzOfOrigin);
+      int zMaxPlusOne = Math.min(undoWorldFragment.getzCount(), wzColumn + 16 - wzOfOrigin);
+      for (int y = 0; y < undoWorldFragment.getyCount(); ++y) {
+        for (int x = xMin; x < xMaxPlusOne; ++x) {
+          for (int z = zMin; z < zMaxPlusOne; ++z) {
+            if (this.changedBlocksMask.getVoxel(x, y, z)) {
+              for (WorldSelectionUndo precedingUndo : columnLayers) {
+                precedingUndo.changedBlocksMask.clearVoxel(x + wxOfOrigin - precedingUndo.wxOfOrigin,
+                                                           y + wyOfOrigin - precedingUndo.wyOfOrigin,
+                                                           z + wzOfOrigin - precedingUndo.wzOfOrigin);
+              }
             }
-          }
-        }  // for z
-      } // for x
-    } // for y
+          }  // for z
+        } // for x
+      } // for y
+    }
+    for (WorldSelectionUndo undoLayer : changedLayers) {
+      undoLayer.markChanged();
+    }
 
+    if (timed) {
+      metrics.recordLatency("WorldSelectionUndo.MakePermanent", (interruptToken == null) ? "TOTAL" : "TIMESLICE",
+                            System.nanoTime() - startTimeNS);
+    }
+    return nextColumn;
   }
 
 //  /** takes the input blocksToCheck list and removes any blocks that lie within the selection (undoWorldFragment), i.e. that
@@ -747,23 +1111,398 @@ public class WorldSelectionUndo
 //  }
 
   /**
-   * Split this WorldSelectionUndo into two parts based on the supplied locked VoxelSelection region
+   * Split this WorldSelectionUndo into two parts based on the voxels locked by the given owner
    * Two WorldSelectionUndo are the result:
-   * this: all set voxels which were also present in the locked region
-   * return value: all set voxels which were not present in the locked region
-   * @param lockedRegion - the locked Region to split on
-   * @return a new WorldSelectionUndo containing only voxels which aren't in the lockedRegion - shallow copy only
+   * this: all set voxels which are locked by the owner
+   * return value: all other set voxels
+   * @param lockIndex the index of locked voxels
+   * @param worldServer the world of this undo layer
+   * @param lockOwner the owner of the locks to split on
+   * @return a new WorldSelectionUndo containing only voxels which aren't locked by the owner - shallow copy only
    */
-  public WorldSelectionUndo splitByLockedVoxels(VoxelSelectionWithOrigin lockedRegion)
+  public WorldSelectionUndo splitByLockedVoxels(ChunkGridLockIndex lockIndex, WorldServer worldServer, Object lockOwner)
   {
+    ensureResident();
     WorldSelectionUndo unlockedVoxelsCopy = new WorldSelectionUndo(this);
-    int wxOffsetMask = lockedRegion.getWxOrigin() - wxOfOrigin;
-    int wyOffsetMask = lockedRegion.getWyOrigin() - wyOfOrigin;
-    int wzOffsetMask = lockedRegion.getWzOrigin() - wzOfOrigin;
-    unlockedVoxelsCopy.changedBlocksMask = changedBlocksMask.splitByMask(lockedRegion, wxOffsetMask, wyOffsetMask, wzOffsetMask);
+    int xSize = changedBlocksMask.getxSize();
+    int ySize = changedBlocksMask.getySize();
+    int zSize = changedBlocksMask.getzSize();
+    VoxelSelection lockedVoxels = new VoxelSelection(xSize, ySize, zSize);
+    for (int z = 0; z < zSize; ++z) {
+      for (int y = 0; y < ySize; ++y) {
+        for (int x = 0; x < xSize; ++x) {
+          if (changedBlocksMask.getVoxel(x, y, z)
+              && lockIndex.getLockOwner(worldServer, x + wxOfOrigin, y + wyOfOrigin, z + wzOfOrigin) == lockOwner) {
+            lockedVoxels.setVoxel(x, y, z);
+          }
+        }
+      }
+    }
+    unlockedVoxelsCopy.changedBlocksMask = changedBlocksMask.splitByMask(lockedVoxels, 0, 0, 0);
+    markChanged();
     return unlockedVoxelsCopy;
   }
 
+  /**
+   * Merge a later undo layer into this one, so that undoing this layer undoes both changes at once.
+   * Where both layers changed the same voxel, this layer's (earlier) undo data is kept.
+   * Only valid if no other layer overlapping either of them was created in between.  The later layer should be
+   *   discarded afterwards.
+   * @param laterLayer the layer created after this one
+   */
+  public void coalesce(WorldSelectionUndo laterLayer)
+  {
+    ensureResident();
+    laterLayer.ensureResident();
+    if (laterLayer.undoWorldFragment == null || laterLayer.changedBlocksMask == null) return;   // nothing was written
+    enlarge(laterLayer.wxOfOrigin, laterLayer.wyOfOrigin, laterLayer.wzOfOrigin,
+            laterLayer.getxCount(), laterLayer.getyCount(), laterLayer.getzCount());
+    laterLayer.copyChangedVoxels(undoWorldFragment, changedBlocksMask, wxOfOrigin, wyOfOrigin, wzOfOrigin, false);
+    markChanged();
+  }
+
+  /**
+   * Enlarge this layer so that it covers the given region as well; the undo data is unchanged.
+   * Coalescing a later layer enlarges this layer anyway, but if several layers will be coalesced into this one, enlarging
+   *   it to cover all of them first means that its undo data is only copied once.
+   * @param wxMin the world coordinates of the region's [0,0,0]
+   * @param xSize the size of the region
+   */
+  public void enlarge(int wxMin, int wyMin, int wzMin, int xSize, int ySize, int zSize)
+  {
+    ensureResident();
+    if (undoWorldFragment == null || changedBlocksMask == null) {   // nothing written yet
+      undoWorldFragment = new WorldFragment(xSize, ySize, zSize);
+      changedBlocksMask = new VoxelSelection(xSize, ySize, zSize);
+      wxOfOrigin = wxMin;
+      wyOfOrigin = wyMin;
+      wzOfOrigin = wzMin;
+      markChanged();
+      return;
+    }
+    int wxNewMin = Math.min(wxOfOrigin, wxMin);
+    int wyNewMin = Math.min(wyOfOrigin, wyMin);
+    int wzNewMin = Math.min(wzOfOrigin, wzMin);
+    int xNewSize = Math.max(wxOfOrigin + getxCount(), wxMin + xSize) - wxNewMin;
+    int yNewSize = Math.max(wyOfOrigin + getyCount(), wyMin + ySize) - wyNewMin;
+    int zNewSize = Math.max(wzOfOrigin + getzCount(), wzMin + zSize) - wzNewMin;
+    if (wxNewMin == wxOfOrigin && wyNewMin == wyOfOrigin && wzNewMin == wzOfOrigin
+        && xNewSize == getxCount() && yNewSize == getyCount() && zNewSize == getzCount()) {
+      return;
+    }
+
+    WorldFragment enlargedFragment = new WorldFragment(xNewSize, yNewSize, zNewSize);
+    VoxelSelection enlargedMask = new VoxelSelection(xNewSize, yNewSize, zNewSize);
+    copyChangedVoxels(enlargedFragment, enlargedMask, wxNewMin, wyNewMin, wzNewMin, true);
+
+    undoWorldFragment = enlargedFragment;
+    changedBlocksMask = enlargedMask;
+    wxOfOrigin = wxNewMin;
+    wyOfOrigin = wyNewMin;
+    wzOfOrigin = wzNewMin;
+    markChanged();
+  }
+
+  // copy the undo data of all the changed voxels (including light and scheduled ticks) into the given fragment and mask,
+  //   whose origin is at wxDest, wyDest, wzDest
+  // overwrite = false to leave any voxel which is already set in destMask unchanged
+  private void copyChangedVoxels(WorldFragment destFragment, VoxelSelection destMask, int wxDest, int wyDest, int wzDest, boolean overwrite)
+  {
+    int xOffset = wxOfOrigin - wxDest;
+    int yOffset = wyOfOrigin - wyDest;
+    int zOffset = wzOfOrigin - wzDest;
+    for (int y = 0; y < changedBlocksMask.getySize(); ++y) {
+      for (int z = 0; z < changedBlocksMask.getzSize(); ++z) {
+        for (int x = 0; x < changedBlocksMask.getxSize(); ++x) {
+          if (changedBlocksMask.getVoxel(x, y, z)
+              && (overwrite || !destMask.getVoxel(x + xOffset, y + yOffset, z + zOffset))) {
+            destFragment.copyVoxelContents(x + xOffset, y + yOffset, z + zOffset, undoWorldFragment, x, y, z);
+            destFragment.setLightValue(x + xOffset, y + yOffset, z + zOffset, undoWorldFragment.getLightValue(x, y, z));
+            destFragment.setTickInfo(x + xOffset, y + yOffset, z + zOffset, undoWorldFragment.getTickInfo(x, y, z));
+            destMask.setVoxel(x + xOffset, y + yOffset, z + zOffset);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * adds the chunks covered by this undo layer to the given footprint, including the one-block border which receives
+   *   neighbour updates
+   * @param footprint
+   */
+  public void addToFootprint(RegionLockManager.Footprint footprint)
+  {
+    if (undoWorldFragment == null && storageState == StorageState.RESIDENT) return;
+    footprint.addRectangle(wxOfOrigin - 1, wzOfOrigin - 1, wxOfOrigin + getxCount(), wzOfOrigin + getzCount());
+  }
+
+  /**
+   * estimates the heap space retained by this undo layer (the undo fragment and the changed blocks mask), for memory
+   *   budgeting of the WorldHistory.  Calculated on the first call after the write is complete, then remembered.
+   * @return the estimated number of bytes, or 0 if the write hasn't finished yet
+   */
+  public long getRetainedBytes()
+  {
+    if (retainedBytes < 0) {
+      if (storageState == StorageState.SPILLED) return SPILLED_LAYER_BYTES;
+      if (undoWorldFragment == null || changedBlocksMask == null) return 0;
+      retainedBytes = HeapSizeEstimate.OBJECT_HEADER + undoWorldFragment.getRetainedBytes() + changedBlocksMask.getRetainedBytes();
+    }
+    return retainedBytes;
+  }
+
+  /**
+   * Start writing the undo data of this layer to a file on a worker thread.  Once updateStorage() finds that the
+   *   write has finished, the data is released from memory; it is read back automatically whenever it is needed again.
+   * The layer must not be changed while the write is in progress, except via methods which call ensureResident() first.
+   * @param spillFolder the folder to write the file to
+   * @return true if the write was started; false if the layer is already spilled or has no data
+   */
+  public boolean startSpillToDisk(File spillFolder)
+  {
+    if (storageState != StorageState.RESIDENT || undoWorldFragment == null || changedBlocksMask == null) return false;
+    final UndoLayerSpillFile file = new UndoLayerSpillFile(spillFolder);
+    final WorldFragment fragmentToWrite = undoWorldFragment;
+    final VoxelSelection maskToWrite = changedBlocksMask;
+    storedLayer = file;
+    spillWrite = PreparationPool.submitIO(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return file.write(fragmentToWrite, maskToWrite);
+      }
+    });
+    storageState = StorageState.SPILLING;
+    return true;
+  }
+
+  /**
+   * Start reading the undo data back from disk on a worker thread, so that it's ready when it's needed.
+   * Does nothing if the layer isn't spilled.
+   */
+  public void prefetch()
+  {
+    if (storageState != StorageState.SPILLED || spillRead != null) return;
+    final StoredUndoLayer file = storedLayer;
+    spillRead = PreparationPool.submitIO(new Callable<UndoLayerSpillFile.Contents>() {
+      @Override
+      public UndoLayerSpillFile.Contents call() {
+        return file.read();
+      }
+    });
+  }
+
+  /**
+   * Start bringing the undo data back into memory, without waiting for the disk: a spilled layer is read back on the
+   *   I/O pool (see prefetch()), and a spill which hasn't started yet is cancelled.  Call again later (eg in the next
+   *   timeslice) until it returns true; after that, using the layer won't wait for the disk.
+   * @return true if the undo data is in memory, false if it's still being read or written
+   */
+  public boolean makeResident()
+  {
+    lastAccessTimeNS = System.nanoTime();
+    switch (storageState) {
+      case RESIDENT: {
+        return true;
+      }
+      case SPILLING: {
+        if (!spillWrite.isDone() && !spillWrite.cancel(false)) return false;   // already writing; wait for it to finish
+        break;
+      }
+      case SPILLED: {
+        prefetch();
+        if (!spillRead.isDone()) return false;
+        break;
+      }
+      default: assert false : "Invalid storageState:" + storageState;
+    }
+    ensureResident();      // doesn't wait, now that the read or write has finished
+    return true;
+  }
+
+  /**
+   * makeResident() this layer, and those of the given layers which overlap it
+   * @return true if they are all in memory
+   */
+  public boolean makeResident(List<WorldSelectionUndo> otherUndoLayers)
+  {
+    boolean allResident = makeResident();
+    for (WorldSelectionUndo undoLayer : otherUndoLayers) {
+      if (overlaps(undoLayer) && !undoLayer.makeResident()) {
+        allResident = false;
+      }
+    }
+    return allResident;
+  }
+
+  /**
+   * Finish a spill to disk, if the write has completed: the undo data is released from memory (or kept, if the write failed)
+   * Should be called regularly from the server thread.
+   */
+  public void updateStorage()
+  {
+    if (storageState != StorageState.SPILLING || !spillWrite.isDone()) return;
+    if (Boolean.TRUE.equals(getFutureResult(spillWrite))) {
+      spilledXCount = undoWorldFragment.getxCount();
+      spilledYCount = undoWorldFragment.getyCount();
+      spilledZCount = undoWorldFragment.getzCount();
+      undoWorldFragment = null;
+      changedBlocksMask = null;
+      storageState = StorageState.SPILLED;
+      retainedBytes = -1;
+    } else {
+      storedLayer = null;
+      storageState = StorageState.RESIDENT;
+    }
+    spillWrite = null;
+  }
+
+  /** returns true if the undo data has been spilled to disk, or is being spilled */
+  public boolean isSpilled() {return storageState != StorageState.RESIDENT;}
+
+  /** returns the time (System.nanoTime) that the undo data was last used */
+  public long getLastAccessTime() {return lastAccessTimeNS;}
+
+  /**
+   * Creates an undo layer whose undo data is held in storage (eg the undo journal) instead of in memory; the data is
+   *   read back the first time it is needed, the same as for a layer which has been spilled to disk.
+   * @param i_wxOfOrigin the world coordinates of the layer's [0,0,0]
+   * @param xCount the size of the stored layer
+   */
+  public static WorldSelectionUndo createFromStorage(StoredUndoLayer storedLayer, int i_wxOfOrigin, int i_wyOfOrigin, int i_wzOfOrigin,
+                                                     int xCount, int yCount, int zCount)
+  {
+    WorldSelectionUndo worldSelectionUndo = new WorldSelectionUndo();
+    worldSelectionUndo.wxOfOrigin = i_wxOfOrigin;
+    worldSelectionUndo.wyOfOrigin = i_wyOfOrigin;
+    worldSelectionUndo.wzOfOrigin = i_wzOfOrigin;
+    worldSelectionUndo.spilledXCount = xCount;
+    worldSelectionUndo.spilledYCount = yCount;
+    worldSelectionUndo.spilledZCount = zCount;
+    worldSelectionUndo.storedLayer = storedLayer;
+    worldSelectionUndo.storageState = StorageState.SPILLED;
+    return worldSelectionUndo;
+  }
+
+  /** returns a count which changes whenever the undo data is altered by another layer's undo or makePermanent */
+  public int getChangeCount() {return changeCount;}
+
+  /**
+   * returns a copy of the undo data for the undo journal, which encodes it on its own I/O thread while the layer carries
+   *   on changing.  Only the changed voxels are copied.
+   * @return the copy, or null if the undo data isn't in memory (spilled to disk) or the layer has no data
+   */
+  public UndoLayerSpillFile.Contents getSnapshotForJournal()
+  {
+    if (storageState == StorageState.SPILLED || undoWorldFragment == null || changedBlocksMask == null) return null;
+    WorldFragment snapshotFragment = new WorldFragment(undoWorldFragment.getxCount(), undoWorldFragment.getyCount(), undoWorldFragment.getzCount());
+    VoxelSelection snapshotMask = new VoxelSelection(changedBlocksMask.getxSize(), changedBlocksMask.getySize(), changedBlocksMask.getzSize());
+    copyChangedVoxels(snapshotFragment, snapshotMask, wxOfOrigin, wyOfOrigin, wzOfOrigin, true);
+    return new UndoLayerSpillFile.Contents(snapshotFragment, snapshotMask);
+  }
+
+  private void markChanged()
+  {
+    ++changeCount;
+    retainedBytes = -1;
+  }
+
+  /**
+   * make sure the undo data is in memory, reading it back from disk if necessary (waits for any prefetch to finish).
+   * If a spill to disk is in progress, it waits for it to finish and then keeps the data in memory.
+   * If the data can't be read back, the layer is replaced by an empty one (nothing to undo) and an error is logged.
+   * Doesn't wait if makeResident() has already returned true.
+   */
+  private void ensureResident()
+  {
+    lastAccessTimeNS = System.nanoTime();
+    switch (storageState) {
+      case RESIDENT: {
+        return;
+      }
+      case SPILLING: {
+        if (!spillWrite.cancel(false)) {   // started already - wait for it so that the layer isn't changed during the write
+          getFutureResult(spillWrite);
+        }
+        break;
+      }
+      case SPILLED: {
+        UndoLayerSpillFile.Contents contents = null;
+        if (spillRead != null && !spillRead.cancel(false)) {
+          contents = getFutureResult(spillRead);
+        } else {
+          contents = storedLayer.read();
+        }
+        if (contents != null && contents.undoWorldFragment.getxCount() == spilledXCount
+            && contents.undoWorldFragment.getyCount() == spilledYCount && contents.undoWorldFragment.getzCount() == spilledZCount) {
+          undoWorldFragment = contents.undoWorldFragment;
+          changedBlocksMask = contents.changedBlocksMask;
+        } else {
+          ErrorLog.defaultLog().info("Couldn't read back undo layer at [" + wxOfOrigin + ", " + wyOfOrigin + ", " + wzOfOrigin + "]; it can no longer be undone");
+          undoWorldFragment = new WorldFragment(spilledXCount, spilledYCount, spilledZCount);
+          changedBlocksMask = new VoxelSelection(spilledXCount, spilledYCount, spilledZCount);
+        }
+        break;
+      }
+      default: assert false : "Invalid storageState:" + storageState;
+    }
+    storedLayer.delete();
+    storedLayer = null;
+    spillWrite = null;
+    spillRead = null;
+    storageState = StorageState.RESIDENT;
+    retainedBytes = -1;
+  }
+
+  // returns null if the work failed
+  private static <T> T getFutureResult(Future<T> future)
+  {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ee) {
+      ErrorLog.defaultLog().info("Undo storage failed: " + ee.getCause());
+    } catch (CancellationException ce) {
+      // return null
+    }
+    return null;
+  }
+
+  // returns the layers whose extents overlap the 16x16 chunk column with the given corner, in the same order
+  private static List<WorldSelectionUndo> getLayersOverlappingColumn(List<WorldSelectionUndo> undoLayers, int wxColumn, int wzColumn)
+  {
+    List<WorldSelectionUndo> columnLayers = new ArrayList<WorldSelectionUndo>();
+    for (WorldSelectionUndo undoLayer : undoLayers) {
+      if (undoLayer.wxOfOrigin < wxColumn + 16 && undoLayer.wxOfOrigin + undoLayer.getxCount() > wxColumn
+          && undoLayer.wzOfOrigin < wzColumn + 16 && undoLayer.wzOfOrigin + undoLayer.getzCount() > wzColumn) {
+        columnLayers.add(undoLayer);
+      }
+    }
+    return columnLayers;
+  }
+
+  // true if the x,y,z extents of the two layers overlap; works even if either layer is spilled to disk
+  private boolean overlaps(WorldSelectionUndo undoLayer)
+  {
+    return wxOfOrigin <= undoLayer.wxOfOrigin + undoLayer.getxCount()
+            && wyOfOrigin <= undoLayer.wyOfOrigin + undoLayer.getyCount()
+            && wzOfOrigin <= undoLayer.wzOfOrigin + undoLayer.getzCount()
+            && wxOfOrigin + getxCount() >= undoLayer.wxOfOrigin
+            && wyOfOrigin + getyCount() >= undoLayer.wyOfOrigin
+            && wzOfOrigin + getzCount() >= undoLayer.wzOfOrigin;
+  }
+
+  /** the world coordinates of the undo layer's [0,0,0] */
+  public int getWxOfOrigin() {return wxOfOrigin;}
+  public int getWyOfOrigin() {return wyOfOrigin;}
+  public int getWzOfOrigin() {return wzOfOrigin;}
+
+  /** the size of the undo layer; zero if nothing has been written.  Available even if the layer is spilled to disk */
+  public int getxCount() {return (storageState == StorageState.SPILLED) ? spilledXCount : (undoWorldFragment == null ? 0 : undoWorldFragment.getxCount());}
+  public int getyCount() {return (storageState == StorageState.SPILLED) ? spilledYCount : (undoWorldFragment == null ? 0 : undoWorldFragment.getyCount());}
+  public int getzCount() {return (storageState == StorageState.SPILLED) ? spilledZCount : (undoWorldFragment == null ? 0 : undoWorldFragment.getzCount());}
+
   /**
    * returns the undo metadata stored at a particular location (intended for debugging)
    * @param wx  world coordinates
@@ -772,6 +1511,7 @@ public class WorldSelectionUndo
    * @return the metadata at this location, or NULL if not stored
    */
   public Integer getStoredMetadata(int wx, int wy, int wz) {
+    ensureResident();
     int x = wx - wxOfOrigin;
     int y = wy - wyOfOrigin;
     int z = wz - wzOfOrigin;
@@ -784,5 +1524,21 @@ public class WorldSelectionUndo
   private int wxOfOrigin;
   private int wyOfOrigin;
   private int wzOfOrigin;
+  private long retainedBytes = -1;    // -1 = not calculated yet
+
+  private enum StorageState {RESIDENT, SPILLING, SPILLED}
+  private static final long SPILLED_LAYER_BYTES = 256;    // the stub left in memory
+
+  private StorageState storageState = StorageState.RESIDENT;
+  private StoredUndoLayer storedLayer;
+  private Future<Boolean> spillWrite;
+  private Future<UndoLayerSpillFile.Contents> spillRead;
+  private int spilledXCount;
+  private int spilledYCount;
+  private int spilledZCount;
+  private long lastAccessTimeNS = System.nanoTime();
+  private int changeCount = 0;
+  public static final int MAKE_PERMANENT_COMPLETE = -1;    // returned by makePermanent() once it has finished
+  private static final int MIN_BLOCKS_FOR_BATCHED_PLACEMENT = 8;   // smaller simple tool placements are placed one at a time
 
 }
@@ -55,5 +55,9 @@ public class WorldServerReader
     return worldServer.func_175712_a(structureBoundingBox, false);
   }
 
+  public WorldServer getWorldServer() {
+    return worldServer;
+  }
+
   private WorldServer worldServer;
 }
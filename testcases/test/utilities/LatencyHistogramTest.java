@@ -0,0 +1,68 @@
+package test.utilities;
+
+import org.junit.Test;
+import speedytools.common.utilities.LatencyHistogram;
+import speedytools.common.utilities.OperationMetrics;
+
+import static org.junit.Assert.*;
+
+/* test the histogram and metrics:
+1) small values are recorded exactly; large values to within 12.5%
+2) percentiles, mean and max
+3) metrics are kept separately for each stage, and reset clears them
+*/
+public class LatencyHistogramTest
+{
+  @Test
+  public void testPercentiles()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    for (long i = 0; i < 8; ++i) {
+      histogram.recordValue(i);
+    }
+    assertEquals(8, histogram.getTotalCount());
+    assertEquals(3, histogram.getValueAtPercentile(50));
+    assertEquals(7, histogram.getValueAtPercentile(100));
+    assertEquals(3.5, histogram.getMean(), 0.0001);
+
+    histogram.reset();
+    for (long i = 1; i <= 1000; ++i) {
+      histogram.recordValue(i * 1000000L);
+    }
+    assertEquals(1000000000L, histogram.getMaxValue());
+    long median = histogram.getValueAtPercentile(50);
+    assertTrue(median >= 500000000L && median <= 500000000L * 1.125);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue(p99 >= 990000000L && p99 <= 1000000000L);
+    assertEquals(1000000000L, histogram.getValueAtPercentile(100));
+
+    histogram.recordValue(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    histogram.recordValue(-5);
+    assertEquals(0, histogram.getValueAtPercentile(0));
+  }
+
+  @Test
+  public void testMetrics()
+  {
+    OperationMetrics metrics = new OperationMetrics();
+    assertFalse(metrics.isEnabled());
+    metrics.recordLatency("WorldFragment.Write", "WRITE_BLOCKS", 2000);
+    metrics.recordLatency("WorldFragment.Write", "WRITE_BLOCKS", 4000);
+    metrics.recordLatency("WorldFragment.Read", "WRITE_BLOCKS", 1000);
+    metrics.addToCounter(OperationMetrics.Counter.VOXELS_PROCESSED, 100);
+    metrics.addToCounter(OperationMetrics.Counter.VOXELS_PROCESSED, 23);
+
+    assertEquals(2, metrics.getHistogram("WorldFragment.Write", "WRITE_BLOCKS").getTotalCount());
+    assertEquals(1, metrics.getHistogram("WorldFragment.Read", "WRITE_BLOCKS").getTotalCount());
+    assertNull(metrics.getHistogram("WorldFragment.Read", "SETUP"));
+    assertEquals(123, metrics.getCounter(OperationMetrics.Counter.VOXELS_PROCESSED));
+    assertEquals(3, metrics.getReport().size());
+
+    metrics.reset();
+    assertNull(metrics.getHistogram("WorldFragment.Write", "WRITE_BLOCKS"));
+    assertEquals(0, metrics.getCounter(OperationMetrics.Counter.VOXELS_PROCESSED));
+    assertEquals(1, metrics.getReport().size());
+  }
+}
@@ -0,0 +1,125 @@
+package test.worldmanipulation;
+
+import org.junit.Test;
+import speedytools.serverside.worldmanipulation.BlockDataStoreAdaptive;
+import speedytools.serverside.worldmanipulation.BlockDataStoreArray;
+import speedytools.serverside.worldmanipulation.BlockDataStoreSparse;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/* test the adaptive store:
+1) gives the same results as the sparse store for a random mix of reads and writes
+2) promotes a section to dense once it fills up
+3) demotes the section again once it is mostly cleared
+4) the retained bytes estimate grows with the stored blocks and is smaller than the array store when sparse
+*/
+public class BlockDataStoreAdaptiveTest
+{
+  @Test
+  public void testMatchesSparse() throws Exception
+  {
+    final int XSIZE = 37;
+    final int YSIZE = 20;
+    final int ZSIZE = 19;
+    BlockDataStoreAdaptive adaptive = new BlockDataStoreAdaptive(XSIZE, YSIZE, ZSIZE);
+    BlockDataStoreSparse sparse = new BlockDataStoreSparse(XSIZE, YSIZE, ZSIZE, 16);
+    Random random = new Random(1234);
+
+    for (int i = 0; i < 50000; ++i) {
+      int x = random.nextInt(XSIZE);
+      int y = random.nextInt(YSIZE);
+      int z = random.nextInt(ZSIZE);
+      switch (random.nextInt(3)) {
+        case 0: {
+          int id = random.nextInt(0x1000);
+          adaptive.setBlockID(x, y, z, id);
+          sparse.setBlockID(x, y, z, id);
+          break;
+        }
+        case 1: {
+          int meta = random.nextInt(16);
+          adaptive.setMetadata(x, y, z, meta);
+          sparse.setMetadata(x, y, z, meta);
+          break;
+        }
+        case 2: {
+          byte light = (byte)random.nextInt(256);
+          adaptive.setLightValue(x, y, z, light);
+          sparse.setLightValue(x, y, z, light);
+          break;
+        }
+      }
+    }
+    for (int x = 0; x < XSIZE; ++x) {
+      for (int y = 0; y < YSIZE; ++y) {
+        for (int z = 0; z < ZSIZE; ++z) {
+          assertEquals(sparse.getBlockID(x, y, z), adaptive.getBlockID(x, y, z));
+          assertEquals(sparse.getMetadata(x, y, z), adaptive.getMetadata(x, y, z));
+          assertEquals(sparse.getLightValue(x, y, z), adaptive.getLightValue(x, y, z));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPromoteAndDemote() throws Exception
+  {
+    BlockDataStoreAdaptive adaptive = new BlockDataStoreAdaptive(32, 16, 16);
+    assertEquals(0, adaptive.getDenseSectionCount());
+    assertEquals(0, adaptive.getSparseSectionCount());
+
+    adaptive.setBlockID(20, 3, 3, 1);
+    assertEquals(0, adaptive.getDenseSectionCount());
+    assertEquals(1, adaptive.getSparseSectionCount());
+
+    for (int x = 0; x < 16; ++x) {
+      for (int y = 0; y < 16; ++y) {
+        for (int z = 0; z < 16; ++z) {
+          adaptive.setBlockID(x, y, z, 1);
+        }
+      }
+    }
+    assertEquals(1, adaptive.getDenseSectionCount());
+    assertEquals(1, adaptive.getSparseSectionCount());
+
+    for (int x = 0; x < 16; ++x) {
+      for (int y = 0; y < 16; ++y) {
+        for (int z = 0; z < 16; ++z) {
+          if (y != 0 || x >= 8) adaptive.setBlockID(x, y, z, 0);
+        }
+      }
+    }
+    assertEquals(0, adaptive.getDenseSectionCount());
+    assertEquals(2, adaptive.getSparseSectionCount());
+    assertEquals(1, adaptive.getBlockID(5, 0, 5));
+    assertEquals(0, adaptive.getBlockID(5, 1, 5));
+  }
+
+  @Test
+  public void testRetainedBytes() throws Exception
+  {
+    final int SIZE = 64;
+    BlockDataStoreAdaptive adaptive = new BlockDataStoreAdaptive(SIZE, SIZE, SIZE);
+    BlockDataStoreArray array = new BlockDataStoreArray(SIZE, SIZE, SIZE);
+    long emptyBytes = adaptive.getRetainedBytes();
+    assertTrue(emptyBytes < array.getRetainedBytes() / 100);
+    assertTrue(array.getRetainedBytes() >= 3L * SIZE * SIZE * SIZE);
+
+    adaptive.setBlockID(1, 1, 1, 5);
+    long oneBlockBytes = adaptive.getRetainedBytes();
+    assertTrue(oneBlockBytes > emptyBytes);
+
+    for (int x = 0; x < 16; ++x) {
+      for (int z = 0; z < 16; ++z) {
+        for (int y = 0; y < 16; ++y) {
+          adaptive.setBlockID(x, y, z, 1);
+        }
+      }
+    }
+    assertEquals(1, adaptive.getDenseSectionCount());
+    assertTrue(adaptive.getRetainedBytes() >= emptyBytes + 3 * 16 * 16 * 16);
+    assertTrue(adaptive.getRetainedBytes() < array.getRetainedBytes());
+  }
+}
@@ -0,0 +1,50 @@
+package test.worldmanipulation;
+
+import org.junit.Test;
+import speedytools.serverside.worldmanipulation.RegionLockManager;
+
+import static org.junit.Assert.*;
+
+/* test the lock manager:
+1) footprints which share a chunk can't both be locked; footprints in different chunks or dimensions can
+2) acquisition is all-or-nothing
+3) released chunks can be locked again
+*/
+public class RegionLockManagerTest
+{
+  @Test
+  public void testAcquireAndRelease()
+  {
+    RegionLockManager lockManager = new RegionLockManager();
+    Object ownerA = new Object();
+    Object ownerB = new Object();
+    Object ownerC = new Object();
+
+    RegionLockManager.Footprint footprintA = new RegionLockManager.Footprint(0);
+    footprintA.addRectangle(0, 0, 20, 20);                  // chunks [0..1, 0..1]
+    assertEquals(4, footprintA.getChunkCount());
+    assertTrue(lockManager.tryAcquire(ownerA, footprintA));
+    assertTrue(lockManager.isLocked(0, 1, 1));
+    assertFalse(lockManager.isLocked(0, 2, 1));
+    assertFalse(lockManager.isLocked(-1, 1, 1));
+
+    RegionLockManager.Footprint footprintB = new RegionLockManager.Footprint(0);
+    footprintB.addRectangle(-40, -40, -20, -20);            // no overlap
+    footprintB.addRectangle(31, 31, 40, 40);                // overlaps chunk [1, 1]
+    assertTrue(footprintB.overlaps(footprintA));
+    assertFalse(lockManager.tryAcquire(ownerB, footprintB));
+    assertFalse(lockManager.isLocked(0, -2, -2));          // nothing locked by the failed attempt
+
+    RegionLockManager.Footprint footprintC = new RegionLockManager.Footprint(-1);
+    footprintC.addRectangle(0, 0, 20, 20);                  // same chunks, different dimension
+    assertFalse(footprintC.overlaps(footprintA));
+    assertTrue(lockManager.tryAcquire(ownerC, footprintC));
+
+    lockManager.release(ownerA);
+    assertFalse(lockManager.isLocked(0, 1, 1));
+    assertTrue(lockManager.isLocked(-1, 1, 1));
+    assertTrue(lockManager.tryAcquire(ownerB, footprintB));
+    assertTrue(lockManager.isLocked(0, -2, -2));
+    assertTrue(lockManager.isLocked(0, 2, 2));
+  }
+}
@@ -0,0 +1,43 @@
+package test.worldmanipulation;
+
+import org.junit.Test;
+import speedytools.serverside.worldmanipulation.UndoLayerSpatialIndex;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/* test the spatial index of undo layers:
+1) finds the layers sharing a chunk column with the query region, including negative coordinates
+2) doesn't find layers in distant chunks
+3) remove() and re-add() update the index
+*/
+public class UndoLayerSpatialIndexTest
+{
+  @Test
+  public void testOverlapping() throws Exception
+  {
+    UndoLayerSpatialIndex<String> index = new UndoLayerSpatialIndex<String>();
+    index.add("A", 0, 0, 20, 5);           // chunks [0..1, 0]
+    index.add("B", -40, -40, -17, -17);    // chunks [-3..-2, -3..-2]
+    index.add("C", 1000, 1000, 1001, 1001);
+
+    Set<String> found = index.getOverlapping(15, 0, 15, 0);
+    assertEquals(1, found.size());
+    assertTrue(found.contains("A"));
+
+    found = index.getOverlapping(-33, -33, 17, 0);
+    assertEquals(2, found.size());
+    assertTrue(found.contains("A") && found.contains("B"));
+
+    assertTrue(index.getOverlapping(500, 500, 600, 600).isEmpty());
+    assertEquals(3, index.size());
+
+    index.remove("A");
+    assertTrue(index.getOverlapping(0, 0, 20, 5).isEmpty());
+    index.add("C", 0, 0, 0, 0);
+    assertTrue(index.getOverlapping(0, 0, 0, 0).contains("C"));
+    assertTrue(index.getOverlapping(1000, 1000, 1000, 1000).isEmpty());
+    assertEquals(2, index.size());
+  }
+}
@@ -0,0 +1,154 @@
+package test.worldmanipulation;
+
+import net.minecraft.nbt.NBTTagCompound;
+import org.junit.Test;
+import speedytools.serverside.worldmanipulation.WorldFragment;
+import speedytools.serverside.worldmanipulation.WorldFragmentCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/* test the codec:
+1) a fragment spanning several partial sections round-trips its mask, blocks, metadata, light and tile entity data
+2) two fragments written back-to-back on the same channel can be read back one after the other
+3) a corrupt header is rejected
+4) corrupt or truncated section data is rejected: wrong lengths, a mask voxel outside the fragment, a count which is
+   out of range
+*/
+public class WorldFragmentCodecTest
+{
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    final int XSIZE = 37;
+    final int YSIZE = 20;
+    final int ZSIZE = 19;
+    WorldFragment original = new WorldFragment(XSIZE, YSIZE, ZSIZE);
+    Random random = new Random(1234);
+    for (int i = 0; i < 3000; ++i) {
+      int x = random.nextInt(XSIZE);
+      int y = random.nextInt(YSIZE);
+      int z = random.nextInt(ZSIZE);
+      original.setBlockID(x, y, z, random.nextInt(5));
+      original.setMetadata(x, y, z, random.nextInt(16));
+      original.setLightValue(x, y, z, (byte)random.nextInt(256));
+    }
+    NBTTagCompound nbt = new NBTTagCompound();
+    nbt.setString("id", "Chest");
+    original.setBlockID(20, 17, 18, 54);
+    original.setTileEntityData(20, 17, 18, nbt);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    assertTrue(WorldFragmentCodec.writeToChannel(original, Channels.newChannel(bos)));
+    assertTrue(WorldFragmentCodec.writeToChannel(original, Channels.newChannel(bos)));
+
+    ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+    for (int copy = 0; copy < 2; ++copy) {
+      WorldFragment decoded = WorldFragmentCodec.readFromChannel(Channels.newChannel(bis));
+      assertNotNull(decoded);
+      assertEquals(XSIZE, decoded.getxCount());
+      assertEquals(YSIZE, decoded.getyCount());
+      assertEquals(ZSIZE, decoded.getzCount());
+      for (int y = 0; y < YSIZE; ++y) {
+        for (int z = 0; z < ZSIZE; ++z) {
+          for (int x = 0; x < XSIZE; ++x) {
+            assertEquals(original.getVoxel(x, y, z), decoded.getVoxel(x, y, z));
+            if (original.getVoxel(x, y, z)) {
+              assertEquals(original.getBlockID(x, y, z), decoded.getBlockID(x, y, z));
+              assertEquals(original.getMetadata(x, y, z), decoded.getMetadata(x, y, z));
+              assertEquals(original.getLightValue(x, y, z), decoded.getLightValue(x, y, z));
+            }
+          }
+        }
+      }
+      assertEquals(nbt, decoded.getTileEntityData(20, 17, 18));
+    }
+    assertEquals(0, bis.available());
+  }
+
+  @Test
+  public void testCorruptHeader() throws Exception
+  {
+    WorldFragment original = new WorldFragment(3, 3, 3);
+    original.setBlockID(1, 1, 1, 1);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    assertTrue(WorldFragmentCodec.writeToChannel(original, Channels.newChannel(bos)));
+    byte [] data = bos.toByteArray();
+    data[0] ^= 0xff;
+    assertNull(WorldFragmentCodec.readFromChannel(Channels.newChannel(new ByteArrayInputStream(data))));
+  }
+
+  @Test
+  public void testCorruptSections() throws Exception
+  {
+    WorldFragment original = new WorldFragment(3, 3, 3);
+    original.setBlockID(1, 1, 1, 1);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    assertTrue(WorldFragmentCodec.writeToChannel(original, Channels.newChannel(bos)));
+    byte [] data = bos.toByteArray();
+
+    byte [] truncated = Arrays.copyOf(data, data.length - 1);
+    assertNull(WorldFragmentCodec.readFromChannel(Channels.newChannel(new ByteArrayInputStream(truncated))));
+
+    byte [] wrongLength = Arrays.copyOf(data, data.length);
+    final int UNCOMPRESSED_LENGTH_OFFSET = 5 * 4 + 4;
+    wrongLength[UNCOMPRESSED_LENGTH_OFFSET + 3] ^= 0x01;
+    assertNull(WorldFragmentCodec.readFromChannel(Channels.newChannel(new ByteArrayInputStream(wrongLength))));
+
+    final int LOCAL_INDEX_OUTSIDE = 5;   // x = 5 is outside a fragment 3 wide
+    assertNull(decodeSingleSection(3, 3, 3, sectionData(LOCAL_INDEX_OUTSIDE, 0)));
+    final int LOCAL_INDEX_INSIDE = 1;
+    assertNotNull(decodeSingleSection(3, 3, 3, sectionData(LOCAL_INDEX_INSIDE, 0)));
+    assertNull(decodeSingleSection(3, 3, 3, sectionData(LOCAL_INDEX_INSIDE, 1000000)));
+    assertNull(decodeSingleSection(3, 3, 3, sectionData(LOCAL_INDEX_INSIDE, -1)));
+  }
+
+  // the uncompressed data for a section with a single stored voxel of stone, with the given tile entity count
+  private byte [] sectionData(int localIndex, int tileEntityCount) throws Exception
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream outputStream = new DataOutputStream(bos);
+    byte [] maskBits = new byte[16 * 16 * 16 / 8];
+    maskBits[localIndex >> 3] |= (byte)(1 << (localIndex & 7));
+    outputStream.write(maskBits);
+    outputStream.writeShort(1);      // palette size
+    outputStream.writeChar(1);       // stone
+    outputStream.writeByte(0);       // bits per index
+    outputStream.writeByte(0x0f);    // light value
+    outputStream.writeInt(tileEntityCount);
+    outputStream.writeInt(0);        // entities
+    outputStream.writeInt(0);        // ticks
+    outputStream.flush();
+    return bos.toByteArray();
+  }
+
+  private WorldFragment decodeSingleSection(int xSize, int ySize, int zSize, byte [] sectionData) throws Exception
+  {
+    Deflater deflater = new Deflater();
+    deflater.setInput(sectionData);
+    deflater.finish();
+    byte [] compressed = new byte[sectionData.length + 1024];
+    int compressedLength = deflater.deflate(compressed);
+    deflater.end();
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream outputStream = new DataOutputStream(bos);
+    outputStream.writeInt(0x53545746);
+    outputStream.writeInt(1);
+    outputStream.writeInt(xSize);
+    outputStream.writeInt(ySize);
+    outputStream.writeInt(zSize);
+    outputStream.writeInt(compressedLength);
+    outputStream.writeInt(sectionData.length);
+    outputStream.write(compressed, 0, compressedLength);
+    outputStream.flush();
+    return WorldFragmentCodec.readFromChannel(Channels.newChannel(new ByteArrayInputStream(bos.toByteArray())));
+  }
+}